@@ -0,0 +1,340 @@
+package com.github.faucamp.simplertmp;
+
+import android.os.Debug;
+import android.os.Process;
+
+import com.github.faucamp.simplertmp.io.RtmpIngestServer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * End-to-end throughput benchmark of a publisher, pushing a synthetic H.264/AAC stream as fast
+ * as it can be sent to an {@link RtmpIngestServer} running in the same process.
+ * <p>
+ * The frames are taken from small pools of arrays recycled through
+ * {@link RtmpPublisher.OnContentReleasedListener}, so that the producer waits for the publisher
+ * instead of queueing without bound, and allocates nothing itself. The ingest server counts in
+ * the CPU time and the allocations, the results are meant to compare publisher settings on the
+ * same device rather than as absolute costs.
+ */
+public class RtmpBenchmark {
+
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final int POOL_SIZE = 8;
+    private static final int TIMEOUT_MS = 30000;
+
+    // H.264 baseline 3.0 SPS and PPS in an AVCDecoderConfigurationRecord
+    private static final byte[] AVC_SEQUENCE_HEADER = {0x17, 0, 0, 0, 0,
+            1, 0x42, 0, 0x1e, (byte) 0xff, (byte) 0xe1, 0, 4, 0x67, 0x42, 0, 0x1e,
+            1, 0, 2, 0x68, (byte) 0xce};
+    // AAC LC, 44.1 kHz stereo AudioSpecificConfig
+    private static final byte[] AAC_SEQUENCE_HEADER = {(byte) 0xaf, 0, 0x12, 0x10};
+
+    private int videoFrames = 1800;
+    private int fps = 30;
+    private int gopFrames = 60;
+    private int videoBitrate = 2000000;
+    private int audioBitrate = 128000;
+    private SSLContext serverSslContext;
+
+    // Set up by run()
+    private int keyFrameSize;
+    private int interFrameSize;
+    private int audioSize;
+    private ArrayBlockingQueue<byte[]> videoPool;
+    private ArrayBlockingQueue<byte[]> audioPool;
+
+    /**
+     * set the number of video frames pushed, audio frames are pushed for the same duration
+     */
+    public void setVideoFrames(int frames) {
+        videoFrames = frames;
+    }
+
+    /**
+     * set the frame rate and the number of frames from a key frame to the next
+     */
+    public void setVideoFrameRate(int fps, int gopFrames) {
+        this.fps = fps;
+        this.gopFrames = gopFrames;
+    }
+
+    /**
+     * set the average bitrates of the synthetic streams, in bps
+     */
+    public void setBitrates(int videoBitrate, int audioBitrate) {
+        this.videoBitrate = videoBitrate;
+        this.audioBitrate = audioBitrate;
+    }
+
+    /**
+     * set the TLS context of the ingest server to publish over rtmps, its certificate must be
+     * trusted by the publisher, or null for rtmp
+     */
+    public void setServerSslContext(SSLContext context) {
+        serverSslContext = context;
+    }
+
+    /**
+     * Runs the benchmark with the publisher, configured beforehand but not connected yet,
+     * and closes it
+     *
+     * @throws IOException if the publisher fails to publish, or its frames do not all reach
+     *                     the server in time
+     */
+    @SuppressWarnings("deprecation")
+    public Result run(DefaultRtmpPublisher publisher) throws IOException {
+        int averageVideoSize = videoBitrate / 8 / fps;
+        // Key frames of four times the average size, the others sized for the GOP to average out
+        keyFrameSize = averageVideoSize * 4;
+        interFrameSize = Math.max(16, (averageVideoSize * gopFrames - keyFrameSize) / Math.max(1, gopFrames - 1));
+        audioSize = Math.max(8, audioBitrate / 8 * AAC_FRAME_SAMPLES / AUDIO_SAMPLE_RATE);
+        final int videoBufferSize = Math.max(keyFrameSize, interFrameSize);
+        int audioFrames = (int) ((long) videoFrames * AUDIO_SAMPLE_RATE / fps / AAC_FRAME_SAMPLES);
+
+        videoPool = new ArrayBlockingQueue<>(POOL_SIZE);
+        audioPool = new ArrayBlockingQueue<>(POOL_SIZE);
+        Random random = new Random(0);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            byte[] video = new byte[videoBufferSize];
+            random.nextBytes(video);
+            videoPool.add(video);
+            byte[] audio = new byte[audioSize];
+            random.nextBytes(audio);
+            audioPool.add(audio);
+        }
+        publisher.setOnContentReleasedListener(new RtmpPublisher.OnContentReleasedListener() {
+            @Override
+            public void onContentReleased(byte[] data, boolean video) {
+                // The sequence headers are not pooled
+                if (video && data.length == videoBufferSize) {
+                    videoPool.offer(data);
+                } else if (!video && data.length == audioSize) {
+                    audioPool.offer(data);
+                }
+            }
+        });
+
+        RtmpIngestServer server = new RtmpIngestServer();
+        server.setSslContext(serverSslContext);
+        server.setVerifyPayloads(true);
+        server.setArrivalCapacity(Math.max(videoFrames, audioFrames) + 1);
+        server.start();
+        try {
+            String url = server.getUrl("benchmark");
+            if (!publisher.connect(url) || !publisher.publish("live")) {
+                throw new IOException("Could not publish to " + url);
+            }
+            publisher.publishVideoData(AVC_SEQUENCE_HEADER.clone(), AVC_SEQUENCE_HEADER.length, 0);
+            publisher.publishAudioData(AAC_SEQUENCE_HEADER.clone(), AAC_SEQUENCE_HEADER.length, 0);
+
+            long[] sendTimes = new long[videoFrames];
+            long bytes = 0;
+            Debug.resetGlobalAllocSize();
+            Debug.startAllocCounting();
+            long startCpuMs = Process.getElapsedCpuTime();
+            long startTime = System.nanoTime();
+
+            int video = 0;
+            int audio = 0;
+            while (video < videoFrames || audio < audioFrames) {
+                if (video < videoFrames && (audio >= audioFrames || videoDts(video) <= audioDts(audio))) {
+                    sendTimes[video] = System.nanoTime();
+                    bytes += pushVideo(publisher, video++);
+                } else {
+                    bytes += pushAudio(publisher, audio++);
+                }
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+            long received = 0;
+            while (server.getVideoFrames() < videoFrames + 1 || server.getAudioFrames() < audioFrames + 1) {
+                if (System.nanoTime() > deadline) {
+                    Debug.stopAllocCounting();
+                    throw new IOException("Received " + server.getVideoFrames() + " video and "
+                            + server.getAudioFrames() + " audio frames of " + (videoFrames + 1)
+                            + " and " + (audioFrames + 1));
+                }
+                sleep(1);
+                // Frames held back by the publisher, to be batched, go with the next ones
+                long receivedNow = server.getVideoFrames() + server.getAudioFrames();
+                if (receivedNow == received) {
+                    pushVideo(publisher, video++);
+                    pushAudio(publisher, audio++);
+                }
+                received = receivedNow;
+            }
+            long elapsedNs = System.nanoTime() - startTime;
+            long cpuMs = Process.getElapsedCpuTime() - startCpuMs;
+            Debug.stopAllocCounting();
+            long allocatedBytes = Debug.getGlobalAllocSize();
+
+            // The first video arrival is the sequence header
+            long[] arrivals = server.getArrivalTimes(true);
+            long[] latencies = new long[videoFrames];
+            for (int i = 0; i < videoFrames; i++) {
+                latencies[i] = arrivals[i + 1] - sendTimes[i];
+            }
+            Arrays.sort(latencies);
+
+            return new Result(bytes, videoFrames + audioFrames, elapsedNs, cpuMs, allocatedBytes,
+                    latencies[videoFrames / 2], latencies[videoFrames - 1], server.getInvalidPayloads());
+        } finally {
+            publisher.close();
+            server.stop();
+        }
+    }
+
+    private int videoDts(int frame) {
+        return (int) ((long) frame * 1000 / fps);
+    }
+
+    private int audioDts(int frame) {
+        return (int) ((long) frame * AAC_FRAME_SAMPLES * 1000 / AUDIO_SAMPLE_RATE);
+    }
+
+    /**
+     * @return the size of the tag pushed
+     */
+    private int pushVideo(DefaultRtmpPublisher publisher, int index) throws IOException {
+        boolean keyFrame = index % gopFrames == 0;
+        int size = keyFrame ? keyFrameSize : interFrameSize;
+        byte[] frame = take(videoPool);
+        // FrameType | CodecID, AVCPacketType NALU, CompositionTime, then a single NAL unit
+        frame[0] = (byte) (keyFrame ? 0x17 : 0x27);
+        frame[1] = 1;
+        frame[2] = frame[3] = frame[4] = 0;
+        int naluLength = size - 9;
+        frame[5] = (byte) (naluLength >>> 24);
+        frame[6] = (byte) (naluLength >>> 16);
+        frame[7] = (byte) (naluLength >>> 8);
+        frame[8] = (byte) naluLength;
+        frame[9] = (byte) (keyFrame ? 0x65 : 0x41);
+        publisher.publishVideoData(frame, size, videoDts(index));
+        return size;
+    }
+
+    /**
+     * @return the size of the tag pushed
+     */
+    private int pushAudio(DefaultRtmpPublisher publisher, int index) throws IOException {
+        byte[] frame = take(audioPool);
+        // AAC, 44.1 kHz 16 bits stereo, AACPacketType raw
+        frame[0] = (byte) 0xaf;
+        frame[1] = 1;
+        publisher.publishAudioData(frame, audioSize, audioDts(index));
+        return audioSize;
+    }
+
+    private static byte[] take(ArrayBlockingQueue<byte[]> pool) throws IOException {
+        try {
+            byte[] frame = pool.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (frame == null) {
+                throw new IOException("Frames not released by the publisher");
+            }
+            return frame;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private static void sleep(long ms) throws IOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    /**
+     * Results of a run, measured from the first frame pushed to the last one received
+     */
+    public static final class Result {
+        private final long bytes;
+        private final int frames;
+        private final long elapsedNs;
+        private final long cpuMs;
+        private final long allocatedBytes;
+        private final long medianVideoLatencyNs;
+        private final long maxVideoLatencyNs;
+        private final long invalidPayloads;
+
+        private Result(long bytes, int frames, long elapsedNs, long cpuMs, long allocatedBytes,
+                       long medianVideoLatencyNs, long maxVideoLatencyNs, long invalidPayloads) {
+            this.bytes = bytes;
+            this.frames = frames;
+            this.elapsedNs = elapsedNs;
+            this.cpuMs = cpuMs;
+            this.allocatedBytes = allocatedBytes;
+            this.medianVideoLatencyNs = medianVideoLatencyNs;
+            this.maxVideoLatencyNs = maxVideoLatencyNs;
+            this.invalidPayloads = invalidPayloads;
+        }
+
+        /**
+         * @return the bytes of the FLV tag bodies pushed and received
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getElapsedMs() {
+            return elapsedNs / 1e6;
+        }
+
+        /**
+         * @return the rate of the FLV tag bodies pushed and received, in bps
+         */
+        public double getThroughput() {
+            return elapsedNs <= 0 ? 0 : bytes * 8 * 1e9 / elapsedNs;
+        }
+
+        /**
+         * @return the CPU time of the process per MB received, in ms
+         */
+        public double getCpuMsPerMb() {
+            return bytes <= 0 ? 0 : cpuMs * 1048576.0 / bytes;
+        }
+
+        /**
+         * @return the bytes allocated by all the threads of the process per audio or video frame
+         */
+        public double getAllocatedBytesPerFrame() {
+            return frames <= 0 ? 0 : (double) allocatedBytes / frames;
+        }
+
+        /**
+         * @return the median time from the push of a video frame to its arrival, in ms
+         */
+        public double getMedianVideoLatencyMs() {
+            return medianVideoLatencyNs / 1e6;
+        }
+
+        public double getMaxVideoLatencyMs() {
+            return maxVideoLatencyNs / 1e6;
+        }
+
+        /**
+         * @return the tags the server found malformed, see {@link RtmpIngestServer#setVerifyPayloads}
+         */
+        public long getInvalidPayloads() {
+            return invalidPayloads;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f Mbps, %.1f ms CPU/MB, %.0f bytes allocated/frame, video latency %.2f ms median %.2f ms max, %d invalid",
+                    getThroughput() / 1e6, getCpuMsPerMb(), getAllocatedBytesPerFrame(),
+                    getMedianVideoLatencyMs(), getMaxVideoLatencyMs(), invalidPayloads);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.faucamp.simplertmp;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.github.faucamp.simplertmp.io.RtmpEventLoop;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs {@link RtmpBenchmark} on the device, the results are logged to compare the settings
+ */
+@RunWith(AndroidJUnit4.class)
+public class RtmpBenchmarkTest {
+    private static final String TAG = "RtmpBenchmarkTest";
+
+    private RtmpHandler handler;
+
+    @Before
+    public void setUp() {
+        // The handler posts to the looper of the thread it is created on
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                handler = new RtmpHandler(null);
+            }
+        });
+    }
+
+    @Test
+    public void blockingWrites() throws Exception {
+        RtmpBenchmark.Result result = new RtmpBenchmark().run(new DefaultRtmpPublisher(handler));
+        Log.i(TAG, "blocking writes: " + result);
+        assertEquals(0, result.getInvalidPayloads());
+    }
+
+    @Test
+    public void eventLoop() throws Exception {
+        RtmpEventLoop eventLoop = new RtmpEventLoop();
+        eventLoop.start();
+        try {
+            RtmpBenchmark.Result result = new RtmpBenchmark().run(new DefaultRtmpPublisher(handler, eventLoop));
+            Log.i(TAG, "event loop: " + result);
+            assertEquals(0, result.getInvalidPayloads());
+        } finally {
+            eventLoop.stop();
+        }
+    }
+}
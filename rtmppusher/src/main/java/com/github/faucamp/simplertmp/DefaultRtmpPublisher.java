@@ -1,9 +1,16 @@
 package com.github.faucamp.simplertmp;
 
 import com.github.faucamp.simplertmp.io.RtmpConnection;
+import com.github.faucamp.simplertmp.io.RtmpEventLoop;
+import com.github.faucamp.simplertmp.io.RtmpFlushPolicy;
+import com.github.faucamp.simplertmp.io.RtmpStallPolicy;
+import com.github.faucamp.simplertmp.io.RtmpStream;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+
 /**
  * Srs implementation of an RTMP publisher
  *
@@ -17,6 +24,14 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
         rtmpConnection = new RtmpConnection(handler);
     }
 
+    /**
+     * Non-blocking publisher sharing the I/O thread of the specified started event loop,
+     * or a blocking one with its own threads if the loop is null
+     */
+    public DefaultRtmpPublisher(RtmpHandler handler, RtmpEventLoop eventLoop) {
+        rtmpConnection = new RtmpConnection(handler, eventLoop);
+    }
+
     @Override
     public boolean connect(String url) {
         return rtmpConnection.connect(url);
@@ -27,6 +42,13 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
         return rtmpConnection.publish(publishType);
     }
 
+    /**
+     * Publishes another stream on the same connection, see {@link RtmpConnection#publishStream}
+     */
+    public RtmpStream publishStream(String streamName, String publishType) {
+        return rtmpConnection.publishStream(streamName, publishType);
+    }
+
     @Override
     public void close() {
         rtmpConnection.close();
@@ -47,6 +69,15 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
         return rtmpConnection.getVideoFrameCacheNumber();
     }
 
+    public RtmpMetrics getMetrics() {
+        return rtmpConnection.getMetrics();
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return rtmpConnection.isConnectionLost();
+    }
+
     @Override
     public final String getServerIpAddr() {
         return rtmpConnection.getServerIpAddr();
@@ -62,6 +93,97 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
         return rtmpConnection.getServerId();
     }
 
+    public void setTxChunkSize(int chunkSize) {
+        rtmpConnection.setTxChunkSize(chunkSize);
+    }
+
+    public void setTxAckWindowSize(int size) {
+        rtmpConnection.setTxAckWindowSize(size);
+    }
+
+    public void setAggregation(int maxDelayMs, int maxVideoSize) {
+        rtmpConnection.setAggregation(maxDelayMs, maxVideoSize);
+    }
+
+    public void setPipelinedPublish(boolean enabled) {
+        rtmpConnection.setPipelinedPublish(enabled);
+    }
+
+    public void setFlushPolicy(RtmpFlushPolicy policy) {
+        rtmpConnection.setFlushPolicy(policy);
+    }
+
+    public void setPacing(int targetBitrate, int headroomPercent, int maxBurstBytes) {
+        rtmpConnection.setPacing(targetBitrate, headroomPercent, maxBurstBytes);
+    }
+
+    public void setStallPolicies(RtmpStallPolicy... policies) {
+        rtmpConnection.setStallPolicies(policies);
+    }
+
+    public void setOnSendStalledListener(OnSendStalledListener listener) {
+        rtmpConnection.setOnSendStalledListener(listener);
+    }
+
+    public void setTcpNoDelay(boolean enabled) {
+        rtmpConnection.setTcpNoDelay(enabled);
+    }
+
+    public void setSslContext(SSLContext context) {
+        rtmpConnection.setSslContext(context);
+    }
+
+    public void setHostnameVerifier(HostnameVerifier verifier) {
+        rtmpConnection.setHostnameVerifier(verifier);
+    }
+
+    public long getTxWriteCount() {
+        return rtmpConnection.getTxWriteCount();
+    }
+
+    public double getTxBytesPerWrite() {
+        return rtmpConnection.getTxBytesPerWrite();
+    }
+
+    public void setOnContentReleasedListener(OnContentReleasedListener listener) {
+        rtmpConnection.setOnContentReleasedListener(listener);
+    }
+
+    public long getTxHeaderBytes() {
+        return rtmpConnection.getTxHeaderBytes();
+    }
+
+    public long getTxPayloadBytes() {
+        return rtmpConnection.getTxPayloadBytes();
+    }
+
+    public long getInFlightBytes() {
+        return rtmpConnection.getInFlightBytes();
+    }
+
+    public void setSendLatencyTarget(int latencyMs) {
+        rtmpConnection.setSendLatencyTarget(latencyMs);
+    }
+
+    public int getSendBufferSize() {
+        return rtmpConnection.getSendBufferSize();
+    }
+
+    public long getSendBufferedBytes() {
+        return rtmpConnection.getSendBufferedBytes();
+    }
+
+    public double getDeliveryRate() {
+        return rtmpConnection.getDeliveryRate();
+    }
+
+    /**
+     * Measures the uplink between connect and publish, see {@link RtmpConnection#probeBandwidth}
+     */
+    public double probeBandwidth(int maxDurationMs) {
+        return rtmpConnection.probeBandwidth(maxDurationMs);
+    }
+
     @Override
     public void setVideoResolution(int width, int height) {
         rtmpConnection.setVideoResolution(width, height);
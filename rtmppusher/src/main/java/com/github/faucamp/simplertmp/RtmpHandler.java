@@ -26,6 +26,16 @@ public class RtmpHandler extends Handler {
     private static final int MSG_RTMP_ILLEGAL_STATE_EXCEPTION = 12;
 
     private WeakReference<RtmpListener> mWeakListener;
+    // Polled on the handler thread only
+    private RtmpMetrics mMetrics;
+    private RtmpMetrics.Snapshot mLastSnapshot;
+    private int mMetricsIntervalMs;
+    private final Runnable mMetricsPoller = new Runnable() {
+        @Override
+        public void run() {
+            pollMetrics();
+        }
+    };
 
     public RtmpHandler(RtmpListener listener) {
         mWeakListener = new WeakReference<>(listener);
@@ -39,10 +49,62 @@ public class RtmpHandler extends Handler {
         obtainMessage(MSG_RTMP_CONNECTED, msg).sendToTarget();
     }
 
+    /**
+     * Takes a snapshot of the metrics every interval, and reports the video fps and the
+     * bitrates over the interval to the listener. Replaces the metrics polled so far.
+     */
+    public void startMetricsPolling(final RtmpMetrics metrics, final int intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("Invalid metrics interval: " + intervalMs);
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                removeCallbacks(mMetricsPoller);
+                mMetrics = metrics;
+                mMetricsIntervalMs = intervalMs;
+                mLastSnapshot = metrics.snapshot();
+                postDelayed(mMetricsPoller, intervalMs);
+            }
+        });
+    }
+
+    public void stopMetricsPolling() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                removeCallbacks(mMetricsPoller);
+                mMetrics = null;
+                mLastSnapshot = null;
+            }
+        });
+    }
+
+    private void pollMetrics() {
+        if (mMetrics == null) {
+            return;
+        }
+        RtmpMetrics.Snapshot snapshot = mMetrics.snapshot();
+        RtmpListener listener = mWeakListener.get();
+        if (listener != null) {
+            listener.onRtmpVideoFpsChanged(snapshot.getVideoFps(mLastSnapshot));
+            listener.onRtmpVideoBitrateChanged(snapshot.getVideoBitrate(mLastSnapshot));
+            listener.onRtmpAudioBitrateChanged(snapshot.getAudioBitrate(mLastSnapshot));
+        }
+        mLastSnapshot = snapshot;
+        postDelayed(mMetricsPoller, mMetricsIntervalMs);
+    }
+
+    /**
+     * notifies that video frames are being sent, once per publish
+     */
     public void notifyRtmpVideoStreaming() {
         sendEmptyMessage(MSG_RTMP_VIDEO_STREAMING);
     }
 
+    /**
+     * notifies that audio frames are being sent, once per publish
+     */
     public void notifyRtmpAudioStreaming() {
         sendEmptyMessage(MSG_RTMP_AUDIO_STREAMING);
     }
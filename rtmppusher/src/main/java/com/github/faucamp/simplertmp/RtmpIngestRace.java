@@ -0,0 +1,118 @@
+package com.github.faucamp.simplertmp;
+
+/**
+ * Publishes a stream to the first of several ingest urls, in order of priority, that accepts it.
+ * <p>
+ * Each url is tried with a publisher of its own. The attempts are staggered: the next one starts
+ * once the previous one has been running for the stagger delay, or right away if it failed.
+ * The first publish to succeed wins, the publishers of the other attempts are closed as soon as
+ * they are done, so that a slow or dead ingest only delays the stream by the stagger delay.
+ * A race is run once.
+ */
+public class RtmpIngestRace<P extends RtmpPublisher> {
+
+    /**
+     * Creates the publishers of the attempts, called on the thread running the race
+     */
+    public interface PublisherFactory<P extends RtmpPublisher> {
+
+        /**
+         * @return a new publisher, not connected yet, for the specified url
+         */
+        P newPublisher(String url);
+    }
+
+    private final String[] urls;
+    private final int staggerMs;
+    private final PublisherFactory<P> factory;
+    private final Object lock = new Object();
+    private int running = 0;
+    private boolean finished = false;
+    private P winner;
+    private int winnerIndex = -1;
+
+    /**
+     * @param urls      the ingest urls, in order of priority
+     * @param staggerMs the time given to an attempt before the next url is tried as well
+     */
+    public RtmpIngestRace(String[] urls, int staggerMs, PublisherFactory<P> factory) {
+        if (urls.length == 0) {
+            throw new IllegalArgumentException("No ingest url");
+        }
+        this.urls = urls.clone();
+        this.staggerMs = staggerMs;
+        this.factory = factory;
+    }
+
+    /**
+     * Tries the urls from the specified one, wrapping around, until one of them is published to
+     *
+     * @param first       the index of the url tried first, e.g. the one after a failed ingest
+     * @param publishType the publish type, e.g. "live"
+     * @return the index of the winning url, or -1 if all attempts failed or the thread was
+     * interrupted
+     */
+    public int run(int first, String publishType) {
+        int started = 0;
+        long nextStartMs = 0;
+        synchronized (lock) {
+            if (finished) {
+                throw new IllegalStateException("Ingest race already run");
+            }
+            try {
+                while (winner == null) {
+                    long nowMs = System.nanoTime() / 1000000;
+                    if (started < urls.length && (running == 0 || nowMs >= nextStartMs)) {
+                        startAttempt((first + started) % urls.length, publishType);
+                        started++;
+                        nextStartMs = nowMs + staggerMs;
+                    } else if (running == 0) {
+                        break;
+                    } else {
+                        lock.wait(started < urls.length ? Math.max(1, nextStartMs - nowMs) : 0);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // Attempts still running close their publisher once done
+            finished = true;
+            return winner != null ? winnerIndex : -1;
+        }
+    }
+
+    /**
+     * @return the publisher of the winning url, published to, or null if none won
+     */
+    public P getWinner() {
+        synchronized (lock) {
+            return winner;
+        }
+    }
+
+    private void startAttempt(final int index, final String publishType) {
+        final String url = urls[index];
+        final P publisher = factory.newPublisher(url);
+        running++;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean published = publisher.connect(url) && publisher.publish(publishType);
+                synchronized (lock) {
+                    running--;
+                    lock.notifyAll();
+                    if (published && winner == null && !finished) {
+                        winner = publisher;
+                        winnerIndex = index;
+                        return;
+                    }
+                }
+                try {
+                    publisher.close();
+                } catch (IllegalStateException e) {
+                    // Ignore illegal state.
+                }
+            }
+        }, "RtmpIngestRace-" + index).start();
+    }
+}
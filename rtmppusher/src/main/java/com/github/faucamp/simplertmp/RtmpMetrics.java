@@ -0,0 +1,257 @@
+package com.github.faucamp.simplertmp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Streaming metrics of a publisher: counters of the frames and bytes sent and dropped, of
+ * the video bursts and the time they were held back by pacing, of the send stalls with a
+ * histogram of their durations, and of the reconnects, and the number of video frames queued.
+ * <p>
+ * Recorded lock-free from the sending threads, and read by taking a {@link Snapshot}, from
+ * which the rates are derived against an earlier one, see {@link RtmpHandler#startMetricsPolling}.
+ */
+public class RtmpMetrics {
+
+    // Upper bounds of the buckets of the stall histogram, the last bucket has none
+    private static final int[] STALL_BUCKET_BOUNDS_MS = {500, 1000, 2000, 5000, 10000, 30000};
+
+    private final AtomicLong videoFrames = new AtomicLong();
+    private final AtomicLong videoBytes = new AtomicLong();
+    private final AtomicLong audioFrames = new AtomicLong();
+    private final AtomicLong audioBytes = new AtomicLong();
+    private final AtomicLong droppedVideoFrames = new AtomicLong();
+    private final AtomicLong droppedAudioFrames = new AtomicLong();
+    private final AtomicLong videoBursts = new AtomicLong();
+    private final AtomicLong videoBurstBytes = new AtomicLong();
+    private final AtomicLong pacingDelayMs = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong stallDurationMs = new AtomicLong();
+    private final AtomicLongArray stallHistogram = new AtomicLongArray(STALL_BUCKET_BOUNDS_MS.length + 1);
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicInteger queuedVideoFrames = new AtomicInteger();
+
+    public void onVideoSent(int frames, int bytes) {
+        videoFrames.addAndGet(frames);
+        videoBytes.addAndGet(bytes);
+    }
+
+    public void onAudioSent(int frames, int bytes) {
+        audioFrames.addAndGet(frames);
+        audioBytes.addAndGet(bytes);
+    }
+
+    public void onVideoDropped(int frames) {
+        droppedVideoFrames.addAndGet(frames);
+    }
+
+    public void onAudioDropped(int frames) {
+        droppedAudioFrames.addAndGet(frames);
+    }
+
+    /**
+     * Records video bytes written in a row, and the time pacing held them back before
+     */
+    public void onVideoBurst(int bytes, long delayMs) {
+        videoBursts.incrementAndGet();
+        videoBurstBytes.addAndGet(bytes);
+        pacingDelayMs.addAndGet(delayMs);
+    }
+
+    /**
+     * Records a send stall that crossed the threshold of a stall policy, once it is over
+     */
+    public void onStall(long durationMs) {
+        stalls.incrementAndGet();
+        stallDurationMs.addAndGet(durationMs);
+        int bucket = 0;
+        while (bucket < STALL_BUCKET_BOUNDS_MS.length && durationMs >= STALL_BUCKET_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        stallHistogram.incrementAndGet(bucket);
+    }
+
+    public void onReconnect() {
+        reconnects.incrementAndGet();
+    }
+
+    /**
+     * @return the upper bounds of the buckets of the stall histogram in milliseconds, excluded,
+     * the last bucket having none
+     */
+    public static int[] getStallBucketBounds() {
+        return STALL_BUCKET_BOUNDS_MS.clone();
+    }
+
+    /**
+     * @return the gauge of the video frames queued and not yet sent or dropped
+     */
+    public AtomicInteger getQueuedVideoFrames() {
+        return queuedVideoFrames;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * The values of the metrics at a point in time. The counters are read one by one, so
+     * they may be a few frames apart when recorded concurrently.
+     */
+    public static final class Snapshot {
+        private final long timeMs;
+        private final long videoFrames;
+        private final long videoBytes;
+        private final long audioFrames;
+        private final long audioBytes;
+        private final long droppedVideoFrames;
+        private final long droppedAudioFrames;
+        private final long videoBursts;
+        private final long videoBurstBytes;
+        private final long pacingDelayMs;
+        private final long stalls;
+        private final long stallDurationMs;
+        private final long[] stallHistogram;
+        private final long reconnects;
+        private final int queuedVideoFrames;
+
+        private Snapshot(RtmpMetrics metrics) {
+            timeMs = System.nanoTime() / 1000000;
+            videoFrames = metrics.videoFrames.get();
+            videoBytes = metrics.videoBytes.get();
+            audioFrames = metrics.audioFrames.get();
+            audioBytes = metrics.audioBytes.get();
+            droppedVideoFrames = metrics.droppedVideoFrames.get();
+            droppedAudioFrames = metrics.droppedAudioFrames.get();
+            videoBursts = metrics.videoBursts.get();
+            videoBurstBytes = metrics.videoBurstBytes.get();
+            pacingDelayMs = metrics.pacingDelayMs.get();
+            stalls = metrics.stalls.get();
+            stallDurationMs = metrics.stallDurationMs.get();
+            stallHistogram = new long[metrics.stallHistogram.length()];
+            for (int i = 0; i < stallHistogram.length; i++) {
+                stallHistogram[i] = metrics.stallHistogram.get(i);
+            }
+            reconnects = metrics.reconnects.get();
+            queuedVideoFrames = metrics.queuedVideoFrames.get();
+        }
+
+        /**
+         * @return the time the snapshot was taken, from the clock of {@link System#nanoTime}
+         * in milliseconds
+         */
+        public long getTimeMs() {
+            return timeMs;
+        }
+
+        public long getVideoFrames() {
+            return videoFrames;
+        }
+
+        public long getVideoBytes() {
+            return videoBytes;
+        }
+
+        public long getAudioFrames() {
+            return audioFrames;
+        }
+
+        public long getAudioBytes() {
+            return audioBytes;
+        }
+
+        public long getDroppedVideoFrames() {
+            return droppedVideoFrames;
+        }
+
+        public long getDroppedAudioFrames() {
+            return droppedAudioFrames;
+        }
+
+        public long getVideoBursts() {
+            return videoBursts;
+        }
+
+        public long getVideoBurstBytes() {
+            return videoBurstBytes;
+        }
+
+        /**
+         * @return the total time video was held back by pacing, in milliseconds
+         */
+        public long getPacingDelayMs() {
+            return pacingDelayMs;
+        }
+
+        public long getStalls() {
+            return stalls;
+        }
+
+        /**
+         * @return the total duration of the stalls, in milliseconds
+         */
+        public long getStallDurationMs() {
+            return stallDurationMs;
+        }
+
+        /**
+         * @return the number of stalls per duration bucket, see {@link #getStallBucketBounds}
+         */
+        public long[] getStallHistogram() {
+            return stallHistogram.clone();
+        }
+
+        public long getReconnects() {
+            return reconnects;
+        }
+
+        public int getQueuedVideoFrames() {
+            return queuedVideoFrames;
+        }
+
+        /**
+         * @return the video frames sent per second since the earlier snapshot
+         */
+        public double getVideoFps(Snapshot since) {
+            return rate(videoFrames - since.videoFrames, since);
+        }
+
+        /**
+         * @return the video bitrate since the earlier snapshot, in bps
+         */
+        public double getVideoBitrate(Snapshot since) {
+            return rate((videoBytes - since.videoBytes) * 8, since);
+        }
+
+        /**
+         * @return the audio bitrate since the earlier snapshot, in bps
+         */
+        public double getAudioBitrate(Snapshot since) {
+            return rate((audioBytes - since.audioBytes) * 8, since);
+        }
+
+        /**
+         * @return the average number of video bytes written in a row since the earlier
+         * snapshot, 0 if none was written
+         */
+        public double getAverageBurstSize(Snapshot since) {
+            long bursts = videoBursts - since.videoBursts;
+            return bursts == 0 ? 0 : (double) (videoBurstBytes - since.videoBurstBytes) / bursts;
+        }
+
+        /**
+         * @return the average time pacing held each video frame back since the earlier
+         * snapshot, in milliseconds
+         */
+        public double getAveragePacingDelayMs(Snapshot since) {
+            long frames = videoFrames - since.videoFrames;
+            return frames == 0 ? 0 : (double) (pacingDelayMs - since.pacingDelayMs) / frames;
+        }
+
+        private double rate(long delta, Snapshot since) {
+            long elapsed = timeMs - since.timeMs;
+            return elapsed <= 0 ? 0 : (double) delta * 1000 / elapsed;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.github.faucamp.simplertmp;
 
+import com.github.faucamp.simplertmp.io.RtmpStallPolicy;
+
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -13,8 +15,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 public interface RtmpPublisher {
     /**
      * Issues an RTMP "connect" command and wait for the response.
+     * The connection then stays idle until {@link #publish}, so it may be made in advance.
      *
-     * @param url specify the RTMP url
+     * @param url specify the RTMP url, rtmp:// or rtmps:// for RTMP over TLS
      * @return If succeeded return true else return false
      */
     boolean connect(String url);
@@ -35,6 +38,8 @@ public interface RtmpPublisher {
 
     /**
      * publish a video content packet to server
+     * The packet may be sent asynchronously, data must not be modified until it is released,
+     * see {@link OnContentReleasedListener}
      *
      * @param data video stream byte array
      * @param size video stream byte size (not the whole length of byte array)
@@ -44,6 +49,8 @@ public interface RtmpPublisher {
 
     /**
      * publish an audio content packet to server
+     * The packet may be sent asynchronously, data must not be modified until it is released,
+     * see {@link OnContentReleasedListener}
      *
      * @param data audio stream byte array
      * @param size audio stream byte size (not the whole length of byte array)
@@ -56,6 +63,12 @@ public interface RtmpPublisher {
      */
     AtomicInteger getVideoFrameCacheNumber();
 
+    /**
+     * whether the connection failed or was closed by the server after connecting,
+     * nothing is sent anymore until the publisher is closed and connected again
+     */
+    boolean isConnectionLost();
+
     /**
      * obtain the IP address of the peer if any
      */
@@ -79,4 +92,29 @@ public interface RtmpPublisher {
      */
     void setVideoResolution(int width, int height);
 
+    /**
+     * Notified when the publisher no longer references a content array, either sent or dropped
+     */
+    interface OnContentReleasedListener {
+
+        /**
+         * @param data  the array handed to publishVideoData or publishAudioData
+         * @param video true for video content, false for audio
+         */
+        void onContentReleased(byte[] data, boolean video);
+    }
+
+    /**
+     * Notified on a thread of the publisher when its writes have been stalled for the
+     * threshold of a stall policy, after the action of the policy is taken
+     */
+    interface OnSendStalledListener {
+
+        /**
+         * @param policy    the policy triggered
+         * @param stalledMs the time the writes have made no progress
+         */
+        void onSendStalled(RtmpStallPolicy policy, long stalledMs);
+    }
+
 }
@@ -3,6 +3,7 @@ package com.github.faucamp.simplertmp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Misc utility method
@@ -24,6 +25,10 @@ public class Util {
         return ((in.read() & 0xff) << 24) | ((in.read() & 0xff) << 16) | ((in.read() & 0xff) << 8) | (in.read() & 0xff);
     }
 
+    public static int readUnsignedInt32LittleEndian(InputStream in) throws IOException {
+        return (in.read() & 0xff) | ((in.read() & 0xff) << 8) | ((in.read() & 0xff) << 16) | ((in.read() & 0xff) << 24);
+    }
+
     public static int readUnsignedInt24(InputStream in) throws IOException {
         return ((in.read() & 0xff) << 16) | ((in.read() & 0xff) << 8) | (in.read() & 0xff);
     }
@@ -43,6 +48,19 @@ public class Util {
         out.write((byte) value);
     }
 
+    public static void writeUnsignedInt24(ByteBuffer out, int value) {
+        out.put((byte) (value >>> 16));
+        out.put((byte) (value >>> 8));
+        out.put((byte) value);
+    }
+
+    public static void writeUnsignedInt32LittleEndian(ByteBuffer out, int value) {
+        out.put((byte) value);
+        out.put((byte) (value >>> 8));
+        out.put((byte) (value >>> 16));
+        out.put((byte) (value >>> 24));
+    }
+
     public static int toUnsignedInt32(byte[] bytes) {
         return (((int) bytes[0] & 0xff) << 24) | (((int) bytes[1] & 0xff) << 16) | (((int) bytes[2] & 0xff) << 8) | ((int) bytes[3] & 0xff);
     }
@@ -85,17 +103,23 @@ public class Util {
      * Reads bytes from the specified inputstream into the specified target buffer until it is filled up
      */
     public static void readBytesUntilFull(InputStream in, byte[] targetBuffer) throws IOException {
+        readBytesUntilFull(in, targetBuffer, 0, targetBuffer.length);
+    }
+
+    /**
+     * Reads the specified number of bytes from the specified inputstream into the target buffer at the specified offset
+     */
+    public static void readBytesUntilFull(InputStream in, byte[] targetBuffer, int offset, int length) throws IOException {
         int totalBytesRead = 0;
         int read;
-        final int targetBytes = targetBuffer.length;
-        do {
-            read = in.read(targetBuffer, totalBytesRead, (targetBytes - totalBytesRead));
+        while (totalBytesRead < length) {
+            read = in.read(targetBuffer, offset + totalBytesRead, length - totalBytesRead);
             if (read != -1) {
                 totalBytesRead += read;
             } else {
                 throw new IOException("Unexpected EOF reached before read buffer was filled");
             }
-        } while (totalBytesRead < targetBytes);
+        }
     }
 
     public static byte[] toByteArray(double d) {
@@ -56,4 +56,16 @@ public class AmfArray implements AmfData {
         return items != null ? items.size() : 0;
     }
 
+    public List<AmfData> getItems() {
+        if (items == null) {
+            items = new ArrayList<>();
+        }
+        return items;
+    }
+
+    public void addItem(AmfData dataItem) {
+        getItems().add(dataItem);
+        size = -1;
+    }
+
 }
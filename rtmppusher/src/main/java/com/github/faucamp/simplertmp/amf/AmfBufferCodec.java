@@ -0,0 +1,685 @@
+package com.github.faucamp.simplertmp.amf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AMF0 and AMF3 codec working directly on {@link ByteBuffer}, an alternative of
+ * {@link AmfData#writeTo}/{@link AmfDecoder} that computes the encoded sizes up front and
+ * writes without intermediate arrays.
+ * <p>
+ * AMF3 values are mapped on the AMF0 data types: integers and doubles to {@link AmfNumber},
+ * objects to {@link AmfObject}, dense arrays to {@link AmfArray} and arrays with associative
+ * members to {@link AmfMap}. Byte arrays, vectors, dictionaries and externalizable objects
+ * are not supported.
+ * <p>
+ * A codec keeps the reference tables of the message being read, call {@link #reset} before
+ * each message. Not thread safe.
+ */
+public class AmfBufferCodec {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int AMF0_NUMBER = 0x00;
+    private static final int AMF0_BOOLEAN = 0x01;
+    private static final int AMF0_STRING = 0x02;
+    private static final int AMF0_OBJECT = 0x03;
+    private static final int AMF0_NULL = 0x05;
+    private static final int AMF0_UNDEFINED = 0x06;
+    private static final int AMF0_REFERENCE = 0x07;
+    private static final int AMF0_ECMA_ARRAY = 0x08;
+    private static final int AMF0_OBJECT_END = 0x09;
+    private static final int AMF0_STRICT_ARRAY = 0x0A;
+    private static final int AMF0_DATE = 0x0B;
+    private static final int AMF0_LONG_STRING = 0x0C;
+    private static final int AMF0_UNSUPPORTED = 0x0D;
+    private static final int AMF0_XML_DOCUMENT = 0x0F;
+    private static final int AMF0_TYPED_OBJECT = 0x10;
+    private static final int AMF0_AVMPLUS_OBJECT = 0x11;
+
+    private static final int AMF3_UNDEFINED = 0x00;
+    private static final int AMF3_NULL = 0x01;
+    private static final int AMF3_FALSE = 0x02;
+    private static final int AMF3_TRUE = 0x03;
+    private static final int AMF3_INTEGER = 0x04;
+    private static final int AMF3_DOUBLE = 0x05;
+    private static final int AMF3_STRING = 0x06;
+    private static final int AMF3_XML_DOCUMENT = 0x07;
+    private static final int AMF3_DATE = 0x08;
+    private static final int AMF3_ARRAY = 0x09;
+    private static final int AMF3_OBJECT = 0x0A;
+    private static final int AMF3_XML = 0x0B;
+
+    private static final int AMF3_INTEGER_MIN = -(1 << 28);
+    private static final int AMF3_INTEGER_MAX = (1 << 28) - 1;
+
+    private boolean lazyStrings = false;
+    private final List<AmfData> amf0References = new ArrayList<>();
+    private final List<String> amf3Strings = new ArrayList<>();
+    private final List<AmfData> amf3Objects = new ArrayList<>();
+    private final List<Amf3Traits> amf3Traits = new ArrayList<>();
+
+    private static class Amf3Traits {
+        final boolean dynamic;
+        final String[] sealedNames;
+
+        Amf3Traits(boolean dynamic, String[] sealedNames) {
+            this.dynamic = dynamic;
+            this.sealedNames = sealedNames;
+        }
+    }
+
+    /**
+     * set whether AMF0 string values keep a reference of the buffer and are only decoded
+     * when read, in which case the buffer must not be modified while they are in use.
+     * Object keys are always decoded.
+     */
+    public void setLazyStrings(boolean lazy) {
+        lazyStrings = lazy;
+    }
+
+    /**
+     * Clears the reference tables, to be called before reading each message
+     */
+    public void reset() {
+        amf0References.clear();
+        amf3Strings.clear();
+        amf3Objects.clear();
+        amf3Traits.clear();
+    }
+
+    /**
+     * Reads an AMF0 value, or an AMF3 one following the AVM+ marker
+     */
+    public AmfData readAmf0(ByteBuffer in) throws IOException {
+        int marker = in.get() & 0xff;
+        switch (marker) {
+            case AMF0_NUMBER:
+                return new AmfNumber(in.getDouble());
+            case AMF0_BOOLEAN:
+                return new AmfBoolean(in.get() != 0);
+            case AMF0_STRING:
+                return readAmf0StringValue(in, in.getShort() & 0xffff);
+            case AMF0_LONG_STRING:
+            case AMF0_XML_DOCUMENT:
+                return readAmf0StringValue(in, in.getInt());
+            case AMF0_OBJECT: {
+                AmfObject object = new AmfObject();
+                amf0References.add(object);
+                readAmf0Properties(in, object);
+                return object;
+            }
+            case AMF0_TYPED_OBJECT: {
+                // The class name is dropped, the members are kept
+                readAmf0Key(in);
+                AmfObject object = new AmfObject();
+                amf0References.add(object);
+                readAmf0Properties(in, object);
+                return object;
+            }
+            case AMF0_ECMA_ARRAY: {
+                AmfMap map = new AmfMap();
+                amf0References.add(map);
+                // The count is only a hint, the properties end with the end marker
+                in.getInt();
+                readAmf0Properties(in, map);
+                return map;
+            }
+            case AMF0_STRICT_ARRAY: {
+                int count = in.getInt();
+                AmfArray array = new AmfArray();
+                amf0References.add(array);
+                for (int i = 0; i < count; i++) {
+                    array.addItem(readAmf0(in));
+                }
+                return array;
+            }
+            case AMF0_DATE: {
+                AmfNumber date = new AmfNumber(in.getDouble());
+                // Time zone, reserved
+                in.getShort();
+                return date;
+            }
+            case AMF0_REFERENCE: {
+                int index = in.getShort() & 0xffff;
+                if (index >= amf0References.size()) {
+                    throw new IOException("Invalid AMF0 reference: " + index);
+                }
+                return amf0References.get(index);
+            }
+            case AMF0_NULL:
+                return new AmfNull();
+            case AMF0_UNDEFINED:
+            case AMF0_UNSUPPORTED:
+                return new AmfUndefined();
+            case AMF0_AVMPLUS_OBJECT:
+                return readAmf3(in);
+            default:
+                throw new IOException("Unknown/unimplemented AMF0 data type: " + marker);
+        }
+    }
+
+    /**
+     * Reads an AMF0 string value, without its type marker
+     */
+    public String readAmf0String(ByteBuffer in) throws IOException {
+        AmfData value = readAmf0(in);
+        if (!(value instanceof AmfString)) {
+            throw new IOException("AMF string expected, got " + value.getClass().getSimpleName());
+        }
+        return ((AmfString) value).getValue();
+    }
+
+    private AmfString readAmf0StringValue(ByteBuffer in, int length) throws IOException {
+        checkRemaining(in, length);
+        AmfString string = new AmfString();
+        if (lazyStrings && in.hasArray()) {
+            string.setRawValue(in.array(), in.arrayOffset() + in.position(), length);
+            in.position(in.position() + length);
+        } else {
+            string.setValue(decodeUtf8(in, length));
+        }
+        return string;
+    }
+
+    private String readAmf0Key(ByteBuffer in) throws IOException {
+        return decodeUtf8(in, in.getShort() & 0xffff);
+    }
+
+    private void readAmf0Properties(ByteBuffer in, AmfObject object) throws IOException {
+        while (true) {
+            String key = readAmf0Key(in);
+            if (key.isEmpty() && in.hasRemaining() && (in.get(in.position()) & 0xff) == AMF0_OBJECT_END) {
+                in.get();
+                return;
+            }
+            object.setProperty(key, readAmf0(in));
+        }
+    }
+
+    /**
+     * Reads an AMF3 value
+     */
+    public AmfData readAmf3(ByteBuffer in) throws IOException {
+        int marker = in.get() & 0xff;
+        switch (marker) {
+            case AMF3_UNDEFINED:
+                return new AmfUndefined();
+            case AMF3_NULL:
+                return new AmfNull();
+            case AMF3_FALSE:
+                return new AmfBoolean(false);
+            case AMF3_TRUE:
+                return new AmfBoolean(true);
+            case AMF3_INTEGER: {
+                // 29-bit signed integer
+                int value = readU29(in);
+                return new AmfNumber((value << 3) >> 3);
+            }
+            case AMF3_DOUBLE:
+                return new AmfNumber(in.getDouble());
+            case AMF3_STRING:
+                return new AmfString(readAmf3String(in));
+            case AMF3_XML_DOCUMENT:
+            case AMF3_XML: {
+                int ref = readU29(in);
+                if ((ref & 1) == 0) {
+                    return getAmf3Object(ref >> 1);
+                }
+                AmfString xml = new AmfString(decodeUtf8(in, ref >> 1));
+                amf3Objects.add(xml);
+                return xml;
+            }
+            case AMF3_DATE: {
+                int ref = readU29(in);
+                if ((ref & 1) == 0) {
+                    return getAmf3Object(ref >> 1);
+                }
+                AmfNumber date = new AmfNumber(in.getDouble());
+                amf3Objects.add(date);
+                return date;
+            }
+            case AMF3_ARRAY:
+                return readAmf3Array(in);
+            case AMF3_OBJECT:
+                return readAmf3Object(in);
+            default:
+                throw new IOException("Unknown/unimplemented AMF3 data type: " + marker);
+        }
+    }
+
+    private String readAmf3String(ByteBuffer in) throws IOException {
+        int ref = readU29(in);
+        if ((ref & 1) == 0) {
+            int index = ref >> 1;
+            if (index >= amf3Strings.size()) {
+                throw new IOException("Invalid AMF3 string reference: " + index);
+            }
+            return amf3Strings.get(index);
+        }
+        String string = decodeUtf8(in, ref >> 1);
+        // The empty string is never sent by reference
+        if (!string.isEmpty()) {
+            amf3Strings.add(string);
+        }
+        return string;
+    }
+
+    private AmfData readAmf3Array(ByteBuffer in) throws IOException {
+        int ref = readU29(in);
+        if ((ref & 1) == 0) {
+            return getAmf3Object(ref >> 1);
+        }
+        int denseCount = ref >> 1;
+        String key = readAmf3String(in);
+        if (key.isEmpty()) {
+            AmfArray array = new AmfArray();
+            amf3Objects.add(array);
+            for (int i = 0; i < denseCount; i++) {
+                array.addItem(readAmf3(in));
+            }
+            return array;
+        }
+
+        // Associative members first, then the dense ones by index
+        AmfMap map = new AmfMap();
+        amf3Objects.add(map);
+        while (!key.isEmpty()) {
+            map.setProperty(key, readAmf3(in));
+            key = readAmf3String(in);
+        }
+        for (int i = 0; i < denseCount; i++) {
+            map.setProperty(String.valueOf(i), readAmf3(in));
+        }
+        return map;
+    }
+
+    private AmfData readAmf3Object(ByteBuffer in) throws IOException {
+        int ref = readU29(in);
+        if ((ref & 1) == 0) {
+            return getAmf3Object(ref >> 1);
+        }
+        Amf3Traits traits;
+        if ((ref & 2) == 0) {
+            int index = ref >> 2;
+            if (index >= amf3Traits.size()) {
+                throw new IOException("Invalid AMF3 traits reference: " + index);
+            }
+            traits = amf3Traits.get(index);
+        } else if ((ref & 4) != 0) {
+            throw new IOException("Unsupported AMF3 externalizable object: " + readAmf3String(in));
+        } else {
+            // The class name is dropped, the members are kept
+            readAmf3String(in);
+            String[] sealedNames = new String[ref >> 4];
+            for (int i = 0; i < sealedNames.length; i++) {
+                sealedNames[i] = readAmf3String(in);
+            }
+            traits = new Amf3Traits((ref & 8) != 0, sealedNames);
+            amf3Traits.add(traits);
+        }
+
+        AmfObject object = new AmfObject();
+        amf3Objects.add(object);
+        for (String name : traits.sealedNames) {
+            object.setProperty(name, readAmf3(in));
+        }
+        if (traits.dynamic) {
+            String key = readAmf3String(in);
+            while (!key.isEmpty()) {
+                object.setProperty(key, readAmf3(in));
+                key = readAmf3String(in);
+            }
+        }
+        return object;
+    }
+
+    private AmfData getAmf3Object(int index) throws IOException {
+        if (index >= amf3Objects.size()) {
+            throw new IOException("Invalid AMF3 object reference: " + index);
+        }
+        return amf3Objects.get(index);
+    }
+
+    private static int readU29(ByteBuffer in) {
+        int value = 0;
+        for (int i = 0; i < 3; i++) {
+            int b = in.get() & 0xff;
+            if ((b & 0x80) == 0) {
+                return (value << 7) | b;
+            }
+            value = (value << 7) | (b & 0x7f);
+        }
+        // The fourth byte carries 8 bits
+        return (value << 8) | (in.get() & 0xff);
+    }
+
+    /**
+     * @return the number of bytes {@link #writeAmf0} writes for the specified value
+     */
+    public static int sizeOfAmf0(AmfData data) {
+        if (data instanceof AmfNumber) {
+            return 9;
+        } else if (data instanceof AmfBoolean) {
+            return 2;
+        } else if (data instanceof AmfString) {
+            return sizeOfAmf0String(((AmfString) data).getEncodedLength());
+        } else if (data instanceof AmfMap) {
+            return 5 + sizeOfAmf0Properties((AmfObject) data);
+        } else if (data instanceof AmfObject) {
+            return 1 + sizeOfAmf0Properties((AmfObject) data);
+        } else if (data instanceof AmfArray) {
+            int size = 5;
+            for (AmfData item : ((AmfArray) data).getItems()) {
+                size += sizeOfAmf0(item);
+            }
+            return size;
+        } else {
+            // Null and undefined
+            return 1;
+        }
+    }
+
+    /**
+     * @return the number of bytes {@link #writeAmf0String} writes for the specified string
+     */
+    public static int sizeOfAmf0String(String string) {
+        return sizeOfAmf0String(utf8Length(string));
+    }
+
+    private static int sizeOfAmf0String(int length) {
+        return (length > 0xffff ? 5 : 3) + length;
+    }
+
+    private static int sizeOfAmf0Properties(AmfObject object) {
+        int size = 3;
+        for (Map.Entry<String, AmfData> entry : object.properties.entrySet()) {
+            size += 2 + utf8Length(entry.getKey()) + sizeOfAmf0(entry.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * Writes an AMF0 value, the buffer must have {@link #sizeOfAmf0} bytes remaining
+     */
+    public static void writeAmf0(ByteBuffer out, AmfData data) {
+        if (data instanceof AmfNumber) {
+            writeAmf0Number(out, ((AmfNumber) data).getValue());
+        } else if (data instanceof AmfBoolean) {
+            out.put((byte) AMF0_BOOLEAN);
+            out.put((byte) (((AmfBoolean) data).isValue() ? 1 : 0));
+        } else if (data instanceof AmfString) {
+            writeAmf0String(out, ((AmfString) data).getValue());
+        } else if (data instanceof AmfMap) {
+            out.put((byte) AMF0_ECMA_ARRAY);
+            out.putInt(((AmfMap) data).properties.size());
+            writeAmf0Properties(out, (AmfObject) data);
+        } else if (data instanceof AmfObject) {
+            out.put((byte) AMF0_OBJECT);
+            writeAmf0Properties(out, (AmfObject) data);
+        } else if (data instanceof AmfArray) {
+            List<AmfData> items = ((AmfArray) data).getItems();
+            out.put((byte) AMF0_STRICT_ARRAY);
+            out.putInt(items.size());
+            for (AmfData item : items) {
+                writeAmf0(out, item);
+            }
+        } else if (data instanceof AmfUndefined) {
+            out.put((byte) AMF0_UNDEFINED);
+        } else {
+            out.put((byte) AMF0_NULL);
+        }
+    }
+
+    /**
+     * Writes an AMF0 number value with its type marker
+     */
+    public static void writeAmf0Number(ByteBuffer out, double number) {
+        out.put((byte) AMF0_NUMBER);
+        out.putDouble(number);
+    }
+
+    /**
+     * Writes an AMF0 string value with its type marker, a long string beyond 65535 bytes
+     */
+    public static void writeAmf0String(ByteBuffer out, String string) {
+        int length = utf8Length(string);
+        if (length > 0xffff) {
+            out.put((byte) AMF0_LONG_STRING);
+            out.putInt(length);
+        } else {
+            out.put((byte) AMF0_STRING);
+            out.putShort((short) length);
+        }
+        writeUtf8(out, string);
+    }
+
+    private static void writeAmf0Properties(ByteBuffer out, AmfObject object) {
+        for (Map.Entry<String, AmfData> entry : object.properties.entrySet()) {
+            out.putShort((short) utf8Length(entry.getKey()));
+            writeUtf8(out, entry.getKey());
+            writeAmf0(out, entry.getValue());
+        }
+        out.put((byte) 0x00).put((byte) 0x00).put((byte) AMF0_OBJECT_END);
+    }
+
+    /**
+     * @return the number of bytes {@link #writeAmf3} writes for the specified value
+     */
+    public static int sizeOfAmf3(AmfData data) {
+        if (data instanceof AmfNumber) {
+            double value = ((AmfNumber) data).getValue();
+            return isAmf3Integer(value) ? 1 + sizeOfU29((int) value & 0x1fffffff) : 9;
+        } else if (data instanceof AmfString) {
+            return 1 + sizeOfAmf3String(((AmfString) data).getValue());
+        } else if (data instanceof AmfMap) {
+            // Associative array without dense members
+            int size = 1 + sizeOfU29(1) + sizeOfAmf3Members((AmfObject) data);
+            return size;
+        } else if (data instanceof AmfObject) {
+            // Anonymous dynamic object, traits inline: 0x0B and an empty class name
+            return 1 + sizeOfU29(0x0B) + 1 + sizeOfAmf3Members((AmfObject) data);
+        } else if (data instanceof AmfArray) {
+            List<AmfData> items = ((AmfArray) data).getItems();
+            int size = 1 + sizeOfU29((items.size() << 1) | 1) + 1;
+            for (AmfData item : items) {
+                size += sizeOfAmf3(item);
+            }
+            return size;
+        } else {
+            // Booleans, null and undefined
+            return 1;
+        }
+    }
+
+    private static int sizeOfAmf3Members(AmfObject object) {
+        int size = 1;
+        for (Map.Entry<String, AmfData> entry : object.properties.entrySet()) {
+            size += sizeOfAmf3String(entry.getKey()) + sizeOfAmf3(entry.getValue());
+        }
+        return size;
+    }
+
+    private static int sizeOfAmf3String(String string) {
+        int length = utf8Length(string);
+        return sizeOfU29((length << 1) | 1) + length;
+    }
+
+    /**
+     * Writes an AMF3 value without references, the buffer must have {@link #sizeOfAmf3} bytes remaining
+     */
+    public static void writeAmf3(ByteBuffer out, AmfData data) {
+        if (data instanceof AmfNumber) {
+            double value = ((AmfNumber) data).getValue();
+            if (isAmf3Integer(value)) {
+                out.put((byte) AMF3_INTEGER);
+                writeU29(out, (int) value & 0x1fffffff);
+            } else {
+                out.put((byte) AMF3_DOUBLE);
+                out.putDouble(value);
+            }
+        } else if (data instanceof AmfBoolean) {
+            out.put((byte) (((AmfBoolean) data).isValue() ? AMF3_TRUE : AMF3_FALSE));
+        } else if (data instanceof AmfString) {
+            out.put((byte) AMF3_STRING);
+            writeAmf3String(out, ((AmfString) data).getValue());
+        } else if (data instanceof AmfMap) {
+            out.put((byte) AMF3_ARRAY);
+            writeU29(out, 1);
+            writeAmf3Members(out, (AmfObject) data);
+        } else if (data instanceof AmfObject) {
+            out.put((byte) AMF3_OBJECT);
+            writeU29(out, 0x0B);
+            writeAmf3String(out, "");
+            writeAmf3Members(out, (AmfObject) data);
+        } else if (data instanceof AmfArray) {
+            List<AmfData> items = ((AmfArray) data).getItems();
+            out.put((byte) AMF3_ARRAY);
+            writeU29(out, (items.size() << 1) | 1);
+            writeAmf3String(out, "");
+            for (AmfData item : items) {
+                writeAmf3(out, item);
+            }
+        } else if (data instanceof AmfUndefined) {
+            out.put((byte) AMF3_UNDEFINED);
+        } else {
+            out.put((byte) AMF3_NULL);
+        }
+    }
+
+    private static void writeAmf3Members(ByteBuffer out, AmfObject object) {
+        for (Map.Entry<String, AmfData> entry : object.properties.entrySet()) {
+            writeAmf3String(out, entry.getKey());
+            writeAmf3(out, entry.getValue());
+        }
+        writeAmf3String(out, "");
+    }
+
+    private static void writeAmf3String(ByteBuffer out, String string) {
+        writeU29(out, (utf8Length(string) << 1) | 1);
+        writeUtf8(out, string);
+    }
+
+    private static boolean isAmf3Integer(double value) {
+        return value == Math.rint(value) && value >= AMF3_INTEGER_MIN && value <= AMF3_INTEGER_MAX
+                && !(value == 0 && 1 / value < 0);
+    }
+
+    private static int sizeOfU29(int value) {
+        if (value < 0x80) {
+            return 1;
+        } else if (value < 0x4000) {
+            return 2;
+        } else if (value < 0x200000) {
+            return 3;
+        }
+        return 4;
+    }
+
+    private static void writeU29(ByteBuffer out, int value) {
+        if (value < 0x80) {
+            out.put((byte) value);
+        } else if (value < 0x4000) {
+            out.put((byte) ((value >> 7) | 0x80));
+            out.put((byte) (value & 0x7f));
+        } else if (value < 0x200000) {
+            out.put((byte) ((value >> 14) | 0x80));
+            out.put((byte) ((value >> 7) | 0x80));
+            out.put((byte) (value & 0x7f));
+        } else {
+            out.put((byte) ((value >> 22) | 0x80));
+            out.put((byte) ((value >> 15) | 0x80));
+            out.put((byte) ((value >> 8) | 0x80));
+            out.put((byte) value);
+        }
+    }
+
+    /**
+     * @return the number of bytes of the UTF-8 encoding of the specified string
+     */
+    static int utf8Length(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeUtf8(ByteBuffer out, String string) {
+        int length = string.length();
+        if (out.hasArray()) {
+            // Fast path for ASCII into heap buffers, without per byte bounds checks
+            byte[] array = out.array();
+            int pos = out.arrayOffset() + out.position();
+            int i = 0;
+            if (out.remaining() >= length) {
+                for (; i < length; i++) {
+                    char c = string.charAt(i);
+                    if (c >= 0x80) {
+                        break;
+                    }
+                    array[pos + i] = (byte) c;
+                }
+            }
+            out.position(out.position() + i);
+            if (i == length) {
+                return;
+            }
+            string = string.substring(i);
+        }
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xc0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                out.put((byte) (0xf0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else {
+                // Unpaired surrogates are encoded as is, like the other chars of the BMP
+                out.put((byte) (0xe0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    private static String decodeUtf8(ByteBuffer in, int length) throws IOException {
+        checkRemaining(in, length);
+        String string;
+        if (in.hasArray()) {
+            string = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            string = new String(bytes, UTF8);
+        }
+        return string;
+    }
+
+    private static void checkRemaining(ByteBuffer in, int length) throws IOException {
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid AMF string length: " + length);
+        }
+    }
+}
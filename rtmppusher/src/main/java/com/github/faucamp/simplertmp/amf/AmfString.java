@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 
 /**
  * @author francois
@@ -17,9 +18,15 @@ public class AmfString implements AmfData {
 
     private static final String TAG = "AmfString";
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     private String value;
     private boolean key;
     private int size = -1;
+    // Undecoded UTF-8 value, see AmfBufferCodec#setLazyStrings
+    private byte[] rawValue;
+    private int rawOffset;
+    private int rawLength;
 
     public AmfString() {
     }
@@ -38,11 +45,30 @@ public class AmfString implements AmfData {
     }
 
     public String getValue() {
+        if (rawValue != null) {
+            value = new String(rawValue, rawOffset, rawLength, UTF8);
+            rawValue = null;
+        }
         return value;
     }
 
     public void setValue(String value) {
         this.value = value;
+        rawValue = null;
+    }
+
+    void setRawValue(byte[] bytes, int offset, int length) {
+        value = null;
+        rawValue = bytes;
+        rawOffset = offset;
+        rawLength = length;
+    }
+
+    /**
+     * @return the number of bytes of the UTF-8 encoded value
+     */
+    int getEncodedLength() {
+        return rawValue != null ? rawLength : AmfBufferCodec.utf8Length(value);
     }
 
     public boolean isKey() {
@@ -56,7 +82,7 @@ public class AmfString implements AmfData {
     @Override
     public void writeTo(OutputStream out) throws IOException {
         // Strings are ASCII encoded
-        byte[] byteValue = this.value.getBytes("ASCII");
+        byte[] byteValue = getValue().getBytes("ASCII");
         // Write the STRING data type definition (except if this String is used as a key)
         if (!key) {
             out.write(AmfType.STRING.getValue());
@@ -107,7 +133,7 @@ public class AmfString implements AmfData {
     public int getSize() {
         if (size == -1) {
             try {
-                size = (isKey() ? 0 : 1) + 2 + value.getBytes("ASCII").length;
+                size = (isKey() ? 0 : 1) + 2 + getValue().getBytes("ASCII").length;
             } catch (UnsupportedEncodingException ex) {
                 if (DEBUG) Log.e(TAG, "AmfString.getSize(): caught exception", ex);
                 throw new RuntimeException(ex);
@@ -3,10 +3,9 @@ package com.github.faucamp.simplertmp.io;
 import com.github.faucamp.simplertmp.Util;
 import com.github.faucamp.simplertmp.packets.RtmpHeader;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Chunk stream channel information
@@ -25,7 +24,10 @@ public class ChunkStreamInfo {
     private RtmpHeader prevHeaderTx;
     private static long sessionBeginTimestamp;
     private long realLastTimestamp = System.nanoTime() / 1000000;  // Do not use wall time!
-    private ByteArrayOutputStream baos = new ByteArrayOutputStream(1024 * 128);
+    // Reassembly buffer of the received message, grown as needed and reused for the next ones
+    private byte[] rxMessage = new byte[0];
+    private ByteBuffer rxMessageBuffer = ByteBuffer.wrap(rxMessage);
+    private int rxMessageSize;
 
     /**
      * @return the previous header that was received on this channel, or <code>null</code> if no previous header was received
@@ -52,6 +54,34 @@ public class ChunkStreamInfo {
         return (prevHeaderTx != null && prevHeaderTx.getMessageType() == forMessageType);
     }
 
+    /**
+     * Selects the smallest chunk header type that can carry the specified header on this channel,
+     * relative to the previously transmitted header, and sets its timestamp delta accordingly.
+     * Extended timestamps are only ever sent in full headers, so that peers disagreeing on whether
+     * a relative extended timestamp is a delta or an absolute value decode them the same way.
+     */
+    public RtmpHeader.ChunkType selectChunkTypeTx(RtmpHeader header) {
+        if (prevHeaderTx == null || prevHeaderTx.getMessageStreamId() != header.getMessageStreamId()) {
+            return RtmpHeader.ChunkType.TYPE_0_FULL;
+        }
+        int prevTimestamp = prevHeaderTx.getAbsoluteTimestamp();
+        int timestamp = header.getAbsoluteTimestamp();
+        if (timestamp < prevTimestamp || timestamp >= 0xffffff || prevTimestamp >= 0xffffff) {
+            return RtmpHeader.ChunkType.TYPE_0_FULL;
+        }
+
+        int timestampDelta = timestamp - prevTimestamp;
+        header.setTimestampDelta(timestampDelta);
+        if (!canReusePrevHeaderTx(header.getMessageType()) || prevHeaderTx.getPacketLength() != header.getPacketLength()) {
+            return RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE;
+        }
+        // A type 3 header only repeats a delta that has been explicitly sent before
+        if (prevHeaderTx.getChunkType() == RtmpHeader.ChunkType.TYPE_0_FULL || prevHeaderTx.getTimestampDelta() != timestampDelta) {
+            return RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY;
+        }
+        return RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE;
+    }
+
     /**
      * Sets the previous header that was transmitted on this channel
      */
@@ -87,23 +117,47 @@ public class ChunkStreamInfo {
      * @return <code>true</code> if all packet data has been stored, or <code>false</code> if not
      */
     public boolean storePacketChunk(InputStream in, int chunkSize) throws IOException {
-        final int remainingBytes = prevHeaderRx.getPacketLength() - baos.size();
-        byte[] chunk = new byte[Math.min(remainingBytes, chunkSize)];
-        Util.readBytesUntilFull(in, chunk);
-        baos.write(chunk);
-        return (baos.size() == prevHeaderRx.getPacketLength());
+        final int packetLength = prevHeaderRx.getPacketLength();
+        if (rxMessage.length < packetLength) {
+            rxMessage = new byte[Math.max(packetLength, Math.min(rxMessage.length * 2, 0xffffff))];
+            rxMessageBuffer = ByteBuffer.wrap(rxMessage);
+        }
+        int length = Math.min(packetLength - rxMessageSize, chunkSize);
+        Util.readBytesUntilFull(in, rxMessage, rxMessageSize, length);
+        rxMessageSize += length;
+        return (rxMessageSize == packetLength);
     }
 
-    public ByteArrayInputStream getStoredPacketInputStream() {
-        ByteArrayInputStream bis = new ByteArrayInputStream(baos.toByteArray());
-        baos.reset();
-        return bis;
+    /**
+     * @return <code>true</code> if a partially received packet is currently stored
+     */
+    public boolean hasStoredChunks() {
+        return rxMessageSize > 0;
+    }
+
+    /**
+     * @return the number of bytes stored for the partially received packet
+     */
+    public int getStoredChunksSize() {
+        return rxMessageSize;
+    }
+
+    /**
+     * Takes the completely stored packet, whose bytes stay in the returned buffer until the
+     * next chunk of this chunk stream is stored
+     *
+     * @return a buffer positioned on the packet body
+     */
+    public ByteBuffer takeStoredPacket() {
+        rxMessageBuffer.limit(rxMessageSize).position(0);
+        rxMessageSize = 0;
+        return rxMessageBuffer;
     }
 
     /**
      * Clears all currently-stored packet chunks (used when an ABORT packet is received)
      */
     public void clearStoredChunks() {
-        baos.reset();
+        rxMessageSize = 0;
     }
 }
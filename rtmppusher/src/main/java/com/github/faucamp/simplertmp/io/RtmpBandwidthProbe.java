@@ -0,0 +1,109 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.util.ArrayDeque;
+
+/**
+ * Measures the uplink of a connection from a burst of filler data, see
+ * {@link RtmpConnection#probeBandwidth}.
+ * <p>
+ * The rate is taken between the first and the last Acknowledgement received during the burst,
+ * so that the round trip to the first one is not counted. Without two of them, it falls back
+ * to the rate at which the socket took the burst, which the send buffer inflates on fast links
+ * but which is close to the link rate once the buffer is full.
+ */
+class RtmpBandwidthProbe {
+
+    private final long startMs;
+    private final long startTxBytes;
+    private long firstAckMs = -1;
+    private long lastAckMs;
+    // Bytes acknowledged since the first acknowledgement of the burst
+    private long lastAckBytes;
+    private int lastSequenceNumber;
+    // Largest encoded sizes of the probe messages queued and not written yet, in order
+    private final ArrayDeque<Integer> pendingSizes = new ArrayDeque<>();
+    // Encoded bytes of the probe messages queued, exact for the written ones
+    private long queuedBytes;
+
+    /**
+     * @param startMs      the start of the burst, from a monotonic clock
+     * @param startTxBytes the bytes written on the connection before the burst
+     */
+    RtmpBandwidthProbe(long startMs, long startTxBytes) {
+        this.startMs = startMs;
+        this.startTxBytes = startTxBytes;
+    }
+
+    /**
+     * @param nowMs          the current time in milliseconds, from the clock given to the constructor
+     * @param sequenceNumber the number of bytes received by the server, wrapping at 2^32
+     */
+    synchronized void onAcknowledgement(long nowMs, int sequenceNumber) {
+        if (firstAckMs < 0) {
+            firstAckMs = nowMs;
+        } else {
+            lastAckBytes += (sequenceNumber - lastSequenceNumber) & 0xffffffffL;
+        }
+        lastAckMs = nowMs;
+        lastSequenceNumber = sequenceNumber;
+        notifyAll();
+    }
+
+    /**
+     * @param maxEncodedSize the largest number of bytes the queued message may take, headers included
+     */
+    synchronized void onMessageQueued(int maxEncodedSize) {
+        pendingSizes.add(maxEncodedSize);
+        queuedBytes += maxEncodedSize;
+    }
+
+    /**
+     * @param encodedSize the number of bytes the oldest queued message took, headers included
+     */
+    synchronized void onMessageWritten(int encodedSize) {
+        Integer maxEncodedSize = pendingSizes.poll();
+        if (maxEncodedSize != null) {
+            queuedBytes += encodedSize - maxEncodedSize;
+        }
+    }
+
+    /**
+     * @return the encoded bytes of the messages queued so far, an upper bound until all are written
+     */
+    synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * waits for the next acknowledgement, or the timeout
+     */
+    synchronized void awaitAcknowledgement(long timeoutMs) throws InterruptedException {
+        if (timeoutMs > 0) {
+            wait(timeoutMs);
+        }
+    }
+
+    /**
+     * @return whether the rate is measured from acknowledgements
+     */
+    synchronized boolean isAcknowledged() {
+        return firstAckMs >= 0 && lastAckMs > firstAckMs && lastAckBytes > 0;
+    }
+
+    /**
+     * @param nowMs   the end of the burst
+     * @param txBytes the bytes written on the connection by then
+     * @return the measured rate in bps, or -1 if nothing was measured
+     */
+    synchronized double getRate(long nowMs, long txBytes) {
+        if (isAcknowledged()) {
+            return (double) lastAckBytes * 8 * 1000 / (lastAckMs - firstAckMs);
+        }
+        long elapsed = nowMs - startMs;
+        long written = txBytes - startTxBytes;
+        if (elapsed <= 0 || written <= 0) {
+            return -1;
+        }
+        return (double) written * 8 * 1000 / elapsed;
+    }
+}
@@ -0,0 +1,330 @@
+package com.github.faucamp.simplertmp.io;
+
+import android.util.Log;
+
+import com.github.faucamp.simplertmp.packets.Handshake;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking transport of an RTMP connection driven by a {@link RtmpEventLoop}: performs the
+ * handshake on a connected channel, decodes chunks once they are completely received and writes the
+ * chunk scheduler queues whenever the socket is writable. For rtmps, the TLS handshake comes first
+ * and the bytes go through a {@link RtmpTlsChannel}.
+ */
+class RtmpChannelHandler implements RtmpEventLoop.ChannelHandler {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "RtmpChannelHandler";
+
+    private static final int HANDSHAKE_TLS = 0;
+    private static final int HANDSHAKE_S0_S1 = 1;
+    private static final int HANDSHAKE_S2 = 2;
+    private static final int HANDSHAKE_DONE = 3;
+
+    /**
+     * Callbacks invoked on the loop thread
+     */
+    interface Callback {
+
+        void onHandshakeDone();
+
+        void onPacketReceived(RtmpPacket rtmpPacket);
+
+        /**
+         * Called when the bytes read fill the acknowledgement window, before the packet read if any
+         */
+        void onWindowAckRequired(int bytesRead);
+
+        /**
+         * Called when reading or decoding fails, EOFException once the peer closed its output
+         */
+        void onChannelException(IOException e);
+    }
+
+    private final RtmpEventLoop eventLoop;
+    // Due time of the last flush timer, loop thread only
+    private long scheduledFlushDeadline = -1;
+    private final SocketChannel channel;
+    private final RtmpTlsChannel tlsChannel;
+    // The TLS channel if any, otherwise the socket channel
+    private final ByteChannel transport;
+    private final RtmpDecoder rtmpDecoder;
+    private final RtmpChunkScheduler chunkScheduler;
+    private final Callback callback;
+    private final Handshake handshake = new Handshake();
+    private final ByteBufferInputStream rxStream = new ByteBufferInputStream();
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+    private ByteBuffer rxBuffer = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer handshakeOut;
+    private int handshakeState = HANDSHAKE_S0_S1;
+    private SelectionKey key;
+
+    /**
+     * @param tlsChannel the TLS transport on top of the channel, or null for plain rtmp
+     */
+    RtmpChannelHandler(RtmpEventLoop eventLoop, SocketChannel channel, RtmpTlsChannel tlsChannel,
+                       RtmpDecoder rtmpDecoder, RtmpChunkScheduler chunkScheduler, Callback callback) {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.tlsChannel = tlsChannel;
+        transport = tlsChannel != null ? tlsChannel : channel;
+        this.rtmpDecoder = rtmpDecoder;
+        this.chunkScheduler = chunkScheduler;
+        this.callback = callback;
+    }
+
+    /**
+     * Starts the handshake on the connected non-blocking channel, on the loop thread
+     */
+    void start() {
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    key = eventLoop.register(channel, 0, RtmpChannelHandler.this);
+                    if (tlsChannel != null) {
+                        handshakeState = HANDSHAKE_TLS;
+                        continueTlsHandshake();
+                    } else {
+                        onConnected();
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks the loop to write the scheduler queues, may be called from any thread
+     */
+    void requestWrite() {
+        if (writeRequested.compareAndSet(false, true)) {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Closes the channel on the loop thread and drops the messages being written,
+     * waiting at most one second for the loop
+     */
+    void close() {
+        final CountDownLatch closed = new CountDownLatch(1);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    if (DEBUG) Log.e(TAG, "close(): failed to close channel", e);
+                }
+                chunkScheduler.releasePending();
+                closed.countDown();
+            }
+        };
+        if (eventLoop.inEventLoop()) {
+            task.run();
+            return;
+        }
+        eventLoop.execute(task);
+        try {
+            closed.await(1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) {
+        try {
+            if (handshakeState == HANDSHAKE_TLS) {
+                continueTlsHandshake();
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void continueTlsHandshake() throws IOException {
+        int interestOps = tlsChannel.handshake();
+        if (interestOps != 0) {
+            key.interestOps(interestOps);
+            return;
+        }
+        handshakeState = HANDSHAKE_S0_S1;
+        onConnected();
+    }
+
+    private void onConnected() throws IOException {
+        if (DEBUG) Log.d(TAG, "onConnected(): socket connection established, doing handshake...");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 + Handshake.HANDSHAKE_SIZE);
+        handshake.writeC0(out);
+        handshake.writeC1(out); // Write C1 without waiting for S0
+        handshakeOut = ByteBuffer.wrap(out.toByteArray());
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void read() throws IOException {
+        do {
+            if (!readOnce()) {
+                return;
+            }
+            // Records answered while reading, e.g. key updates
+            if (tlsChannel != null && tlsChannel.hasPendingOutput()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            // Bytes decrypted past the end of the buffer are not signaled by the selector
+        } while (tlsChannel != null && tlsChannel.hasBufferedInput() && rxBuffer.hasRemaining());
+    }
+
+    /**
+     * @return false once the peer closed the connection
+     */
+    private boolean readOnce() throws IOException {
+        if (transport.read(rxBuffer) == -1) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            callback.onChannelException(new EOFException("Connection closed by peer"));
+            return false;
+        }
+
+        int requiredSize = 0;
+        rxBuffer.flip();
+        rxStream.setBuffer(rxBuffer);
+        try {
+            if (handshakeState != HANDSHAKE_DONE) {
+                readHandshake();
+            }
+            if (handshakeState == HANDSHAKE_DONE) {
+                requiredSize = decodeChunks();
+            }
+        } finally {
+            rxBuffer.compact();
+        }
+
+        // A chunk may be larger than the buffer once the peer has raised its chunk size
+        if (requiredSize > rxBuffer.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(requiredSize);
+            rxBuffer.flip();
+            grown.put(rxBuffer);
+            rxBuffer = grown;
+        }
+        return true;
+    }
+
+    private void readHandshake() throws IOException {
+        if (handshakeState == HANDSHAKE_S0_S1 && rxBuffer.remaining() >= 1 + Handshake.HANDSHAKE_SIZE) {
+            handshake.readS0(rxStream);
+            handshake.readS1(rxStream);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Handshake.HANDSHAKE_SIZE);
+            handshake.writeC2(out);
+            ByteBuffer c2 = ByteBuffer.wrap(out.toByteArray());
+            if (handshakeOut != null && handshakeOut.hasRemaining()) {
+                ByteBuffer pending = ByteBuffer.allocate(handshakeOut.remaining() + c2.remaining());
+                pending.put(handshakeOut).put(c2).flip();
+                c2 = pending;
+            }
+            handshakeOut = c2;
+            handshakeState = HANDSHAKE_S2;
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        if (handshakeState == HANDSHAKE_S2 && rxBuffer.remaining() >= Handshake.HANDSHAKE_SIZE) {
+            handshake.readS2(rxStream);
+            handshakeState = HANDSHAKE_DONE;
+            if (DEBUG) Log.d(TAG, "readHandshake(): handshake done");
+            // Packets queued from now on are written after C2
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            callback.onHandshakeDone();
+        }
+    }
+
+    /**
+     * @return the size of the incomplete chunk left in the buffer, if known
+     */
+    private int decodeChunks() throws IOException {
+        while (true) {
+            int chunkSize = rtmpDecoder.peekChunkSize(rxBuffer);
+            if (chunkSize < 0 || rxBuffer.remaining() < chunkSize) {
+                return chunkSize;
+            }
+            RtmpPacket rtmpPacket;
+            try {
+                rtmpPacket = rtmpDecoder.readPacket(rxStream);
+            } catch (WindowAckRequired war) {
+                callback.onWindowAckRequired(war.getBytesRead());
+                rtmpPacket = war.getRtmpPacket();
+            }
+            if (rtmpPacket != null) {
+                callback.onPacketReceived(rtmpPacket);
+            }
+        }
+    }
+
+    private void write() throws IOException {
+        if (handshakeOut != null) {
+            transport.write(handshakeOut);
+            if (handshakeOut.hasRemaining()) {
+                return;
+            }
+            handshakeOut = null;
+        }
+        // Records encrypted by the last writes go first
+        if (tlsChannel != null && !tlsChannel.flush()) {
+            return;
+        }
+        if (handshakeState != HANDSHAKE_DONE) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            return;
+        }
+
+        // Packets queued while flushing request another write
+        writeRequested.set(false);
+        if (chunkScheduler.flush() && (tlsChannel == null || tlsChannel.flush())) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            // Buffered bytes held by the flush policy are written once due
+            long deadline = chunkScheduler.getFlushDeadline();
+            if (deadline >= 0 && deadline != scheduledFlushDeadline) {
+                scheduledFlushDeadline = deadline;
+                eventLoop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        requestWrite();
+                    }
+                }, Math.max(0, deadline - System.nanoTime() / 1000000));
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        if (key != null) {
+            key.cancel();
+        }
+        callback.onChannelException(e);
+    }
+}
@@ -0,0 +1,561 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.packets.Aggregate;
+import com.github.faucamp.simplertmp.packets.Audio;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.SetChunkSize;
+import com.github.faucamp.simplertmp.packets.Video;
+
+import java.io.IOException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Single writer of an RTMP connection.
+ * <p>
+ * Packets may be queued from any thread and are written in priority order: protocol control
+ * and commands first, then audio, then video. Video messages are written a burst of chunks at
+ * a time, so that control and audio messages are interleaved on their own chunk streams inside
+ * large video frames instead of waiting for a whole keyframe.
+ * <p>
+ * Audio and video messages may be held in a write buffer and coalesced into fewer writes,
+ * see {@link #setFlushPolicy}, and video bursts may be paced, see {@link #setPacer}.
+ * <p>
+ * Packets are written either by the scheduler's own thread on a blocking channel, see
+ * {@link #start}, or by an event loop calling {@link #flush} when a non-blocking channel
+ * is writable.
+ */
+public class RtmpChunkScheduler implements Runnable {
+
+    /**
+     * Upper bound of video bytes written before the higher priority queues are checked again.
+     * The largest TLS record payload, so that a burst is encrypted into a single record on
+     * rtmps connections.
+     */
+    private static final int VIDEO_BURST_BYTES = RtmpTlsChannel.MAX_RECORD_PAYLOAD;
+
+    public interface Listener {
+
+        /**
+         * Called on the sending thread once a packet has been queued
+         */
+        void onPacketQueued();
+
+        /**
+         * Called on the writing thread once the packet has been fully written
+         */
+        void onPacketSent(RtmpPacket packet);
+
+        /**
+         * Called when the packet will never be written, because the scheduler is closed or failed
+         */
+        void onPacketDropped(RtmpPacket packet);
+
+        /**
+         * Called on the writing thread once video bytes have been written without waiting for
+         * the pacer, when the video queue is drained or the pacer holds the next burst back
+         *
+         * @param bytes          the number of video bytes written in a row, chunk headers included
+         * @param pacingDelayMs  the time the pacer held the first of these bytes back
+         */
+        void onVideoBurst(int bytes, long pacingDelayMs);
+
+        /**
+         * Called on the writing thread when writing fails, no packet is written after this
+         */
+        void onWriteException(IOException e);
+    }
+
+    private final GatheringByteChannel channel;
+    private final RtmpSessionInfo rtmpSessionInfo;
+    private final Listener listener;
+    private final RtmpChunkWriter messageWriter = new RtmpChunkWriter();
+    private final RtmpChunkWriter videoWriter = new RtmpChunkWriter();
+    private final Object lock = new Object();
+    private final ArrayDeque<RtmpPacket> controlQueue = new ArrayDeque<>();
+    private final ArrayDeque<RtmpPacket> audioQueue = new ArrayDeque<>();
+    private final ArrayDeque<RtmpPacket> videoQueue = new ArrayDeque<>();
+    // Messages being written by messageWriter and videoWriter, owned by the writing thread
+    private RtmpPacket currentMessage;
+    private RtmpPacket currentVideo;
+    // Whether a control or audio message is being written, video bursts excluded
+    private boolean writingMessage = false;
+    private boolean closing = false;
+    private boolean closed = false;
+    private Thread writerThread;
+    private RtmpFlushPolicy flushPolicy = RtmpFlushPolicy.IMMEDIATE;
+    private RtmpWriteBuffer writeBuffer;
+    // Set when the write buffer must be flushed before anything else is written
+    private boolean flushRequested = false;
+    private volatile RtmpPacer pacer;
+    // Time until which the pacer holds video back, from System.nanoTime, owned by the writing thread
+    private long pacedUntilNanos = 0;
+    private long pacedSinceNanos = 0;
+    private long pacingDelayNanos = 0;
+    private long burstBytes = 0;
+    // Time a packet was queued since the writing thread last wrote, 0 if none
+    private volatile long queuedSince = 0;
+
+    public RtmpChunkScheduler(GatheringByteChannel channel, RtmpSessionInfo rtmpSessionInfo, Listener listener) {
+        this.channel = channel;
+        this.rtmpSessionInfo = rtmpSessionInfo;
+        this.listener = listener;
+        writeBuffer = new RtmpWriteBuffer(channel, flushPolicy.getBufferSize());
+    }
+
+    /**
+     * set when the written audio and video messages are flushed to the channel.
+     * To be called before the first message is sent.
+     */
+    public void setFlushPolicy(RtmpFlushPolicy policy) {
+        flushPolicy = policy;
+        writeBuffer = new RtmpWriteBuffer(channel, policy.getBufferSize());
+        writeBuffer.setHolding(!policy.isImmediate());
+    }
+
+    /**
+     * set the token bucket video bursts are released by, or null to write them as soon as
+     * the channel takes them. May be called at any time.
+     */
+    void setPacer(RtmpPacer pacer) {
+        synchronized (lock) {
+            this.pacer = pacer;
+            // The writer thread may be waiting for the previous pacer
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return the time at which the buffered bytes are due or the pacer releases the next video
+     * burst, from the clock of {@link System#nanoTime} in milliseconds, or -1 if no bytes are
+     * buffered or they wait for a byte count or keyframe, and no video is held back.
+     * {@link #flush} must be called again by then.
+     */
+    public long getFlushDeadline() {
+        long deadline = getBufferDeadline();
+        if (pacedUntilNanos != 0) {
+            // Rounded up, the burst is not released before
+            long paced = (pacedUntilNanos + 999999) / 1000000;
+            deadline = deadline < 0 ? paced : Math.min(deadline, paced);
+        }
+        return deadline;
+    }
+
+    private long getBufferDeadline() {
+        if (writeBuffer.getBufferedBytes() == 0 || flushPolicy.getMaxDelayMs() == 0) {
+            return -1;
+        }
+        return writeBuffer.getOldestBufferedTime() + flushPolicy.getMaxDelayMs();
+    }
+
+    /**
+     * @return the number of write calls made on the channel
+     */
+    public long getWriteCalls() {
+        return writeBuffer.getWriteCalls();
+    }
+
+    /**
+     * @return the time since which the writes have made no progress, from the clock of
+     * {@link System#nanoTime}, 0 if they are not stalled. Queued packets count as stalled
+     * until the writing thread takes them, e.g. while waiting for a non-blocking channel to
+     * be writable. Not stalled once closed.
+     */
+    long getStalledSince() {
+        synchronized (lock) {
+            if (closed) {
+                return 0;
+            }
+        }
+        long writing = writeBuffer.getStalledSince();
+        long queued = queuedSince;
+        if (writing == 0 || queued == 0) {
+            return writing + queued;
+        }
+        return Math.min(writing, queued);
+    }
+
+    /**
+     * @return the number of bytes written on the channel, chunk headers included
+     */
+    public long getWrittenBytes() {
+        return writeBuffer.getWrittenBytes();
+    }
+
+    /**
+     * set whether commands and data messages are encoded by the AMF buffer codec, see
+     * {@link RtmpChunkWriter#setAmfBufferCodec}. To be called before the first message is sent.
+     */
+    public void setAmfBufferCodec(boolean enabled) {
+        messageWriter.setAmfBufferCodec(enabled);
+        videoWriter.setAmfBufferCodec(enabled);
+    }
+
+    /**
+     * Starts the writer thread, for blocking channels only
+     */
+    public void start() {
+        writerThread = new Thread(this, "RtmpChunkScheduler");
+        writerThread.start();
+    }
+
+    /**
+     * Queues the packet for writing, the header timestamp must already be set
+     */
+    public void send(RtmpPacket packet) {
+        boolean dropped;
+        synchronized (lock) {
+            dropped = closed || (closing && isMedia(packet));
+            if (!dropped) {
+                if (queuedSince == 0) {
+                    queuedSince = System.nanoTime();
+                }
+                queueOf(packet).add(packet);
+                lock.notifyAll();
+            }
+        }
+        if (dropped) {
+            listener.onPacketDropped(packet);
+        } else {
+            listener.onPacketQueued();
+        }
+    }
+
+    /**
+     * Drops the queued audio and video packets and waits until the queued control packets
+     * have been written, at most the specified time. Nothing is written afterwards.
+     */
+    public void close(long timeoutMillis) {
+        dropQueued(true);
+        long deadline = System.nanoTime() / 1000000 + timeoutMillis;
+        synchronized (lock) {
+            closing = true;
+            lock.notifyAll();
+            while (!closed && (writingMessage || !controlQueue.isEmpty())) {
+                long left = deadline - System.nanoTime() / 1000000;
+                if (left <= 0) {
+                    break;
+                }
+                try {
+                    lock.wait(left);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        dropQueued(false);
+    }
+
+    /**
+     * Drops the queued video packets of a chunk stream up to its first keyframe or sequence
+     * header, the packet being written excluded. The packets of the other streams are kept.
+     *
+     * @return true if a keyframe of the stream is left queued, false if none is
+     */
+    public boolean dropVideoUntilKeyframe(int chunkStreamId) {
+        ArrayDeque<RtmpPacket> dropped = new ArrayDeque<>();
+        boolean found = false;
+        synchronized (lock) {
+            Iterator<RtmpPacket> it = videoQueue.iterator();
+            while (it.hasNext()) {
+                RtmpPacket packet = it.next();
+                if (packet.getHeader().getChunkStreamId() != chunkStreamId) {
+                    continue;
+                }
+                if (isKeyframe(packet)) {
+                    found = true;
+                    break;
+                }
+                it.remove();
+                dropped.add(packet);
+            }
+        }
+        for (RtmpPacket packet : dropped) {
+            listener.onPacketDropped(packet);
+        }
+        return found;
+    }
+
+    /**
+     * Waits for the writer thread to exit, it may be blocked in a write until the socket is shut down
+     */
+    public void join() {
+        if (writerThread != null) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
+    }
+
+    /**
+     * @return the number of chunk header bytes written
+     */
+    public long getHeaderBytes() {
+        return messageWriter.getHeaderBytes() + videoWriter.getHeaderBytes();
+    }
+
+    /**
+     * @return the number of message payload bytes written
+     */
+    public long getPayloadBytes() {
+        return messageWriter.getPayloadBytes() + videoWriter.getPayloadBytes();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (lock) {
+                while (!closed && !hasWritablePackets()) {
+                    long deadline = getFlushDeadline();
+                    long left = deadline - System.nanoTime() / 1000000;
+                    if (deadline >= 0 && left <= 0) {
+                        break;
+                    }
+                    try {
+                        lock.wait(deadline < 0 ? 0 : left);
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (closed) {
+                    break;
+                }
+            }
+            flush();
+        }
+        releasePending();
+    }
+
+    /**
+     * Writes queued packets in priority order until none is left or the channel does not
+     * accept more bytes. Must always be called from the same thread.
+     *
+     * @return true if all queued packets have been written, the remaining video is held back
+     * by the pacer until {@link #getFlushDeadline}, or the scheduler is closed, false if a
+     * non-blocking channel is full
+     */
+    public boolean flush() {
+        try {
+            while (true) {
+                // From here on, a stall shows in the write calls
+                queuedSince = 0;
+                if (flushRequested) {
+                    if (!writeBuffer.flush()) {
+                        return false;
+                    }
+                    flushRequested = false;
+                }
+                // A chunk stopped half way must be completed before anything else is written
+                if (currentMessage == null && !videoWriter.isBurstPending()) {
+                    synchronized (lock) {
+                        if (closed) {
+                            return true;
+                        }
+                        currentMessage = nextMessage();
+                        if (currentMessage == null && currentVideo == null) {
+                            currentVideo = videoQueue.poll();
+                        }
+                        writingMessage = currentMessage != null;
+                    }
+                    if (currentMessage == null && currentVideo == null) {
+                        endBurst();
+                        // Nothing left to write, the buffered bytes go out once due
+                        long deadline = getBufferDeadline();
+                        if (deadline < 0 || deadline > System.nanoTime() / 1000000) {
+                            return true;
+                        }
+                        flushRequested = true;
+                        continue;
+                    }
+                    if (currentMessage != null) {
+                        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(currentMessage.getHeader().getChunkStreamId());
+                        messageWriter.prepare(currentMessage, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
+                    }
+                }
+
+                if (currentMessage != null) {
+                    messageWriter.writeChunks(writeBuffer, Integer.MAX_VALUE);
+                    if (messageWriter.hasPendingChunks()) {
+                        return false;
+                    }
+                    completeMessage();
+                } else {
+                    if (!videoWriter.isBurstPending() && isPaced()) {
+                        // The buffered bytes go out before waiting, control and audio messages
+                        // are still written meanwhile
+                        return writeBuffer.flush();
+                    }
+                    if (!videoWriter.hasPendingChunks()) {
+                        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(currentVideo.getHeader().getChunkStreamId());
+                        videoWriter.prepare(currentVideo, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
+                    }
+                    // The byte counters of the writer only move once the whole message is written
+                    long written = videoWriter.writeChunks(writeBuffer, VIDEO_BURST_BYTES);
+                    burstBytes += written;
+                    RtmpPacer currentPacer = pacer;
+                    if (currentPacer != null) {
+                        currentPacer.consume(written, System.nanoTime());
+                    }
+                    if (videoWriter.isBurstPending()) {
+                        return false;
+                    }
+                    if (!videoWriter.hasPendingChunks()) {
+                        RtmpPacket sent = currentVideo;
+                        currentVideo = null;
+                        flushRequested |= isFlushedAfter(sent);
+                        listener.onPacketSent(sent);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            synchronized (lock) {
+                closed = true;
+                writingMessage = false;
+                lock.notifyAll();
+            }
+            releasePending();
+            listener.onWriteException(e);
+            return true;
+        }
+    }
+
+    /**
+     * Drops the messages being written and the queued packets, to be called from the writing
+     * thread once the scheduler is closed
+     */
+    public void releasePending() {
+        if (currentMessage != null) {
+            listener.onPacketDropped(currentMessage);
+            currentMessage = null;
+        }
+        if (currentVideo != null) {
+            listener.onPacketDropped(currentVideo);
+            currentVideo = null;
+        }
+        dropQueued(false);
+    }
+
+    private void completeMessage() {
+        RtmpPacket sent = currentMessage;
+        if (sent instanceof SetChunkSize) {
+            // Only chunks written after the SetChunkSize message may use the new size
+            rtmpSessionInfo.setTxChunkSize(((SetChunkSize) sent).getChunkSize());
+        }
+        currentMessage = null;
+        flushRequested |= isFlushedAfter(sent);
+        synchronized (lock) {
+            writingMessage = false;
+            lock.notifyAll();
+        }
+        listener.onPacketSent(sent);
+    }
+
+    /**
+     * @return true if the pacer holds the next video burst back, which ends the current burst
+     */
+    private boolean isPaced() {
+        RtmpPacer currentPacer = pacer;
+        if (currentPacer == null) {
+            pacedUntilNanos = 0;
+            return false;
+        }
+        long now = System.nanoTime();
+        long delay = currentPacer.getDelayNanos(now);
+        if (delay == 0) {
+            if (pacedUntilNanos != 0) {
+                pacingDelayNanos += now - pacedSinceNanos;
+                pacedUntilNanos = 0;
+            }
+            return false;
+        }
+        if (pacedUntilNanos == 0) {
+            endBurst();
+            pacedSinceNanos = now;
+        }
+        pacedUntilNanos = now + delay;
+        return true;
+    }
+
+    private void endBurst() {
+        if (burstBytes > 0) {
+            listener.onVideoBurst((int) burstBytes, pacingDelayNanos / 1000000);
+            burstBytes = 0;
+            pacingDelayNanos = 0;
+        }
+    }
+
+    private boolean isFlushedAfter(RtmpPacket sent) {
+        if (!isMedia(sent)) {
+            return true;
+        }
+        if (flushPolicy.isFlushOnKeyframe() && isKeyframe(sent)) {
+            return true;
+        }
+        return flushPolicy.getFlushBytes() > 0 && writeBuffer.getBufferedBytes() >= flushPolicy.getFlushBytes();
+    }
+
+    /**
+     * @return true if a packet may be written now, video packets only if the pacer releases them
+     */
+    private boolean hasWritablePackets() {
+        if (currentMessage != null || !controlQueue.isEmpty() || !audioQueue.isEmpty()) {
+            return true;
+        }
+        return (currentVideo != null || !videoQueue.isEmpty()) && (videoWriter.isBurstPending() || !isPaced());
+    }
+
+    private RtmpPacket nextMessage() {
+        RtmpPacket packet = controlQueue.peek();
+        // A new chunk size applies to whole messages, the pending video message is finished first
+        if (packet != null && !(packet instanceof SetChunkSize && currentVideo != null)) {
+            return controlQueue.poll();
+        }
+        return audioQueue.poll();
+    }
+
+    private void dropQueued(boolean mediaOnly) {
+        ArrayDeque<RtmpPacket> dropped = new ArrayDeque<>();
+        synchronized (lock) {
+            if (!mediaOnly) {
+                dropped.addAll(controlQueue);
+                controlQueue.clear();
+            }
+            dropped.addAll(audioQueue);
+            audioQueue.clear();
+            dropped.addAll(videoQueue);
+            videoQueue.clear();
+        }
+        for (RtmpPacket packet : dropped) {
+            listener.onPacketDropped(packet);
+        }
+    }
+
+    private ArrayDeque<RtmpPacket> queueOf(RtmpPacket packet) {
+        if (packet instanceof Video || (packet instanceof Aggregate && ((Aggregate) packet).isVideo())) {
+            return videoQueue;
+        } else if (packet instanceof Audio || packet instanceof Aggregate) {
+            return audioQueue;
+        }
+        return controlQueue;
+    }
+
+    private static boolean isKeyframe(RtmpPacket packet) {
+        if (!(packet instanceof Video)) {
+            return false;
+        }
+        ContentData video = (ContentData) packet;
+        // FLV video tag, frame type in the high nibble of the first byte
+        return video.size() > 0 && ((video.array()[0] >> 4) & 0x0f) == 1;
+    }
+
+    private static boolean isMedia(RtmpPacket packet) {
+        return packet instanceof Video || packet instanceof Audio || packet instanceof Aggregate;
+    }
+}
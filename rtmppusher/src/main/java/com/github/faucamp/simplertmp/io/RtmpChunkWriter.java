@@ -0,0 +1,335 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.amf.AmfBufferCodec;
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.VariableBodyRtmpPacket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * NIO alternative of {@link RtmpPacket#writeTo}: all chunk headers of a message are
+ * encoded into one pooled direct buffer and sent together with slices of the payload
+ * array in a single gathering write, without copying the payload or allocating per packet.
+ * The first chunk header is compressed to the smallest legal type relative to the previous
+ * message on the same chunk stream.
+ * <p>
+ * A prepared message can also be written a few chunks at a time, see {@link #writeChunks}.
+ * Not thread safe, callers must serialize writes of the same connection.
+ */
+public class RtmpChunkWriter {
+
+    /**
+     * Basic header (1) + message header (11) + extended timestamp (4)
+     */
+    private static final int MAX_FIRST_HEADER_SIZE = 16;
+    /**
+     * Basic header (1) + extended timestamp (4)
+     */
+    private static final int MAX_CONTINUATION_HEADER_SIZE = 5;
+    /**
+     * Payload arrays whose chunk views are kept, payloads usually come from a few recycled allocations
+     */
+    private static final int PAYLOAD_VIEW_SLOTS = 8;
+
+    private final BodyOutputStream bodyBuffer = new BodyOutputStream();
+    private boolean amfBufferCodec = false;
+    private ByteBuffer amfBody = ByteBuffer.allocate(1024);
+    // Chunk views of the last payload arrays, replaced in turn, the arrays are held until then
+    private final byte[][] payloadViewBodies = new byte[PAYLOAD_VIEW_SLOTS][];
+    private final ByteBuffer[][] payloadViews = new ByteBuffer[PAYLOAD_VIEW_SLOTS][];
+    private int nextPayloadViewSlot;
+    private ByteBuffer headerBuffer = ByteBuffer.allocateDirect(4 * 1024);
+    private ByteBuffer[] headerViews = new ByteBuffer[0];
+    private ByteBuffer[] srcs = new ByteBuffer[0];
+    // Index in srcs just past the end of each chunk of the prepared message
+    private int[] chunkEnds = new int[0];
+    private int srcOffset;
+    private int chunkCount;
+    private int nextChunk;
+    // End of the burst being written, srcOffset reaches it on a chunk boundary
+    private int burstEnd;
+    private int pendingHeaderBytes;
+    private int pendingPayloadBytes;
+    // Written by the sending thread only, read from any thread
+    private volatile long headerBytes;
+    private volatile long payloadBytes;
+
+    /**
+     * set whether commands and data messages are encoded by {@link AmfBufferCodec} instead of
+     * the stream based AMF classes
+     */
+    public void setAmfBufferCodec(boolean enabled) {
+        amfBufferCodec = enabled;
+    }
+
+    /**
+     * Encodes and writes the specified packet on the channel, blocking until all of it has been written
+     *
+     * @return the number of bytes written
+     */
+    public long write(GatheringByteChannel channel, RtmpPacket packet, int chunkSize, ChunkStreamInfo chunkStreamInfo) throws IOException {
+        prepare(packet, chunkSize, chunkStreamInfo);
+        long written = 0;
+        while (hasPendingChunks()) {
+            written += writeChunks(channel, Integer.MAX_VALUE);
+        }
+        return written;
+    }
+
+    /**
+     * Encodes all chunk headers of the specified packet, to be written afterwards with
+     * {@link #writeChunks}. Any message still pending in this writer is discarded.
+     */
+    public void prepare(RtmpPacket packet, int chunkSize, ChunkStreamInfo chunkStreamInfo) throws IOException {
+        byte[] body;
+        int length;
+        if (packet instanceof ContentData) {
+            body = ((ContentData) packet).array();
+            length = ((ContentData) packet).size();
+        } else if (amfBufferCodec && packet instanceof VariableBodyRtmpPacket) {
+            length = ((VariableBodyRtmpPacket) packet).getBodySize();
+            if (amfBody.capacity() < length) {
+                amfBody = ByteBuffer.allocate(Math.max(length, amfBody.capacity() * 2));
+            }
+            amfBody.clear();
+            ((VariableBodyRtmpPacket) packet).writeBody(amfBody);
+            body = amfBody.array();
+        } else {
+            bodyBuffer.reset();
+            packet.writeBodyTo(bodyBuffer);
+            body = bodyBuffer.array();
+            length = bodyBuffer.size();
+        }
+        RtmpHeader header = packet.getHeader();
+        header.setPacketLength(length);
+
+        int chunks = length == 0 ? 1 : (length + chunkSize - 1) / chunkSize;
+        ensureCapacity(chunks);
+        ByteBuffer[] bodyViews = getPayloadViews(body, chunks);
+
+        // Compress the first chunk header against the previous one sent on this chunk stream
+        RtmpHeader.ChunkType chunkType = chunkStreamInfo.selectChunkTypeTx(header);
+        header.setChunkType(chunkType);
+
+        // Encode all chunk headers first, then slice them out of the pooled buffer
+        headerBuffer.clear();
+        int count = 0;
+        int pos = 0;
+        for (int i = 0; i < chunks; i++) {
+            int headerStart = headerBuffer.position();
+            header.writeTo(headerBuffer, i == 0 ? chunkType : RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE);
+            ByteBuffer headerView = headerViews[i];
+            headerView.clear();
+            headerView.limit(headerBuffer.position());
+            headerView.position(headerStart);
+            srcs[count++] = headerView;
+
+            int chunkLength = Math.min(chunkSize, length - pos);
+            if (chunkLength > 0) {
+                ByteBuffer bodyView = bodyViews[i];
+                bodyView.clear();
+                bodyView.limit(pos + chunkLength);
+                bodyView.position(pos);
+                srcs[count++] = bodyView;
+                pos += chunkLength;
+            }
+            chunkEnds[i] = count;
+        }
+        chunkStreamInfo.setPrevHeaderTx(header);
+
+        srcOffset = 0;
+        burstEnd = 0;
+        chunkCount = chunks;
+        nextChunk = 0;
+        pendingHeaderBytes = headerBuffer.position();
+        pendingPayloadBytes = length;
+    }
+
+    /**
+     * @return true if the message given to {@link #prepare} has bytes left to write
+     */
+    public boolean hasPendingChunks() {
+        return nextChunk < chunkCount || isBurstPending();
+    }
+
+    /**
+     * @return true if the last burst stopped in the middle of a chunk because a non-blocking
+     * channel was full, nothing else may be written on the connection before it completes
+     */
+    public boolean isBurstPending() {
+        return srcOffset < burstEnd;
+    }
+
+    /**
+     * Writes whole chunks of the prepared message, at least one and no more than fit in
+     * maxBytes, so that other chunk streams can be interleaved on the connection in between.
+     * On a non-blocking channel the burst may stop early, it is then resumed by the next call.
+     *
+     * @return the number of bytes written
+     */
+    public long writeChunks(GatheringByteChannel channel, int maxBytes) throws IOException {
+        if (!isBurstPending()) {
+            if (!hasPendingChunks()) {
+                return 0;
+            }
+            burstEnd = chunkEnds[nextChunk++];
+            long burst = remaining(srcOffset, burstEnd);
+            while (nextChunk < chunkCount) {
+                long size = remaining(burstEnd, chunkEnds[nextChunk]);
+                if (burst + size > maxBytes) {
+                    break;
+                }
+                burst += size;
+                burstEnd = chunkEnds[nextChunk++];
+            }
+        }
+
+        long written = 0;
+        while (srcOffset < burstEnd) {
+            long n = channel.write(srcs, srcOffset, burstEnd - srcOffset);
+            written += n;
+            while (srcOffset < burstEnd && !srcs[srcOffset].hasRemaining()) {
+                srcOffset++;
+            }
+            if (n == 0 && srcOffset < burstEnd) {
+                // Non-blocking channel is full
+                break;
+            }
+        }
+        if (!hasPendingChunks()) {
+            headerBytes += pendingHeaderBytes;
+            payloadBytes += pendingPayloadBytes;
+        }
+        return written;
+    }
+
+    /**
+     * @return the number of chunk header bytes written since the last reset
+     */
+    public long getHeaderBytes() {
+        return headerBytes;
+    }
+
+    /**
+     * @return the number of message payload bytes written since the last reset
+     */
+    public long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    public void resetCounters() {
+        headerBytes = 0;
+        payloadBytes = 0;
+    }
+
+    /**
+     * @return the largest number of bytes a message of the specified length may take once
+     * chunked, headers included
+     */
+    static int getMaxEncodedSize(int length, int chunkSize) {
+        int chunks = length == 0 ? 1 : (length + chunkSize - 1) / chunkSize;
+        return length + MAX_FIRST_HEADER_SIZE + (chunks - 1) * MAX_CONTINUATION_HEADER_SIZE;
+    }
+
+    /**
+     * @return the number of bytes a message took once chunked, headers included, from its
+     * header as {@link #prepare} left it
+     */
+    static int getEncodedSize(RtmpHeader header, int chunkSize) {
+        int length = header.getPacketLength();
+        int chunks = length == 0 ? 1 : (length + chunkSize - 1) / chunkSize;
+        RtmpHeader.ChunkType chunkType = header.getChunkType();
+        // Only full headers carry an extended timestamp, repeated in every following chunk
+        int extended = chunkType == RtmpHeader.ChunkType.TYPE_0_FULL && header.getAbsoluteTimestamp() >= 0xffffff ? 4 : 0;
+        int firstHeaderSize;
+        if (chunkType == RtmpHeader.ChunkType.TYPE_0_FULL) {
+            firstHeaderSize = 12;
+        } else if (chunkType == RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE) {
+            firstHeaderSize = 8;
+        } else if (chunkType == RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY) {
+            firstHeaderSize = 4;
+        } else {
+            firstHeaderSize = 1;
+        }
+        return length + firstHeaderSize + extended + (chunks - 1) * (1 + extended);
+    }
+
+    private void ensureCapacity(int chunks) {
+        int headerSize = MAX_FIRST_HEADER_SIZE + (chunks - 1) * MAX_CONTINUATION_HEADER_SIZE;
+        if (headerBuffer.capacity() < headerSize) {
+            headerBuffer = ByteBuffer.allocateDirect(Math.max(headerSize, headerBuffer.capacity() * 2));
+            headerViews = new ByteBuffer[0];
+        }
+        if (headerViews.length < chunks) {
+            ByteBuffer[] views = new ByteBuffer[Math.max(chunks, headerViews.length * 2)];
+            System.arraycopy(headerViews, 0, views, 0, headerViews.length);
+            for (int i = headerViews.length; i < views.length; i++) {
+                views[i] = headerBuffer.duplicate();
+            }
+            headerViews = views;
+        }
+        if (srcs.length < chunks * 2) {
+            srcs = new ByteBuffer[headerViews.length * 2];
+            chunkEnds = new int[headerViews.length];
+        }
+    }
+
+    private long remaining(int from, int to) {
+        long size = 0;
+        for (int i = from; i < to; i++) {
+            size += srcs[i].remaining();
+        }
+        return size;
+    }
+
+    private ByteBuffer[] getPayloadViews(byte[] body, int chunks) {
+        int slot = -1;
+        for (int i = 0; i < PAYLOAD_VIEW_SLOTS; i++) {
+            if (payloadViewBodies[i] == body) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot < 0) {
+            slot = nextPayloadViewSlot;
+            nextPayloadViewSlot = (slot + 1) % PAYLOAD_VIEW_SLOTS;
+            payloadViewBodies[slot] = body;
+            payloadViews[slot] = null;
+        }
+        ByteBuffer[] views = payloadViews[slot];
+        if (views == null || views.length < chunks) {
+            ByteBuffer[] grown = new ByteBuffer[Math.max(chunks, views == null ? 0 : views.length * 2)];
+            int reused = 0;
+            if (views != null) {
+                System.arraycopy(views, 0, grown, 0, views.length);
+                reused = views.length;
+            }
+            ByteBuffer wrapped = ByteBuffer.wrap(body);
+            for (int i = reused; i < grown.length; i++) {
+                grown[i] = wrapped.duplicate();
+            }
+            payloadViews[slot] = grown;
+            views = grown;
+        }
+        return views;
+    }
+
+    /**
+     * Reusable body buffer for non content packets, exposing its backing array
+     */
+    private static class BodyOutputStream extends ByteArrayOutputStream {
+
+        BodyOutputStream() {
+            super(1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
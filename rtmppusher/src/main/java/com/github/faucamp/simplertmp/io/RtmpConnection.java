@@ -3,20 +3,27 @@ package com.github.faucamp.simplertmp.io;
 import android.util.Log;
 
 import com.github.faucamp.simplertmp.RtmpHandler;
+import com.github.faucamp.simplertmp.RtmpMetrics;
 import com.github.faucamp.simplertmp.RtmpPublisher;
+import com.github.faucamp.simplertmp.RtmpPublisher.OnContentReleasedListener;
+import com.github.faucamp.simplertmp.RtmpPublisher.OnSendStalledListener;
+import com.github.faucamp.simplertmp.amf.AmfBufferCodec;
 import com.github.faucamp.simplertmp.amf.AmfMap;
 import com.github.faucamp.simplertmp.amf.AmfNull;
 import com.github.faucamp.simplertmp.amf.AmfNumber;
 import com.github.faucamp.simplertmp.amf.AmfObject;
 import com.github.faucamp.simplertmp.amf.AmfString;
 import com.github.faucamp.simplertmp.packets.Abort;
+import com.github.faucamp.simplertmp.packets.Acknowledgement;
+import com.github.faucamp.simplertmp.packets.Aggregate;
 import com.github.faucamp.simplertmp.packets.Audio;
 import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.ContentData;
 import com.github.faucamp.simplertmp.packets.Data;
 import com.github.faucamp.simplertmp.packets.Handshake;
 import com.github.faucamp.simplertmp.packets.RtmpHeader;
 import com.github.faucamp.simplertmp.packets.RtmpPacket;
-import com.github.faucamp.simplertmp.packets.SetPeerBandwidth;
+import com.github.faucamp.simplertmp.packets.SetChunkSize;
 import com.github.faucamp.simplertmp.packets.UserControl;
 import com.github.faucamp.simplertmp.packets.Video;
 import com.github.faucamp.simplertmp.packets.WindowAckSize;
@@ -27,14 +34,24 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+
 /**
  * Main RTMP connection implementation class
  *
@@ -43,44 +60,131 @@ import java.util.regex.Pattern;
 public class RtmpConnection implements RtmpPublisher {
     private static final boolean DEBUG = false;
     private static final String TAG = "RtmpConnection";
-    private static final Pattern rtmpUrlPattern = Pattern.compile("^rtmp://([^/:]+)(:(\\d+))*/([^/]+)(/(.*))*$");
+    public static final int MIN_TX_CHUNK_SIZE = 128;
+    public static final int MAX_TX_CHUNK_SIZE = 65536;
+    public static final int DEFAULT_TX_CHUNK_SIZE = 4096;
+    public static final int DEFAULT_TX_ACK_WINDOW_SIZE = 128 * 1024;
+    public static final int DEFAULT_SEND_LATENCY_TARGET_MS = 200;
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int PUBLISH_TIMEOUT_MS = 5000;
+    // C0, C1 and C2, which servers count in the sequence number of their acknowledgements
+    private static final int HANDSHAKE_TX_BYTES = 1 + 2 * Handshake.HANDSHAKE_SIZE;
+    // Servers number the streams of a connection from 1
+    private static final int PIPELINED_STREAM_ID = 1;
+    // After the audio and video chunk streams of the main stream
+    private static final int FIRST_EXTRA_CHUNK_STREAM_ID = 8;
+    // Chunk stream ids fitting the one byte basic header
+    private static final int MAX_CHUNK_STREAM_ID = 63;
+    private static final int AGGREGATE_BUFFER_SIZE = 16 * 1024;
+    // Acknowledgement window announced during a bandwidth probe, so that the server acknowledges often
+    private static final int PROBE_ACK_WINDOW_SIZE = 16 * 1024;
+    private static final int PROBE_MESSAGE_SIZE = 8 * 1024;
+    private static final String PROBE_DATA_TYPE = "onBandwidthProbe";
+    // Bytes of the probe in flight, at first and bounded once the rate is known
+    private static final int PROBE_INITIAL_IN_FLIGHT = 64 * 1024;
+    private static final int PROBE_MIN_IN_FLIGHT = 32 * 1024;
+    private static final int PROBE_MAX_IN_FLIGHT = 256 * 1024;
+    // Time of the measured rate kept in flight, what is left of the burst once the probe is over
+    private static final int PROBE_IN_FLIGHT_MS = 200;
+    private static final int PROBE_POLL_MS = 5;
+    // Socket send buffer until the rate is known, and its bounds
+    private static final int INITIAL_SEND_BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_SEND_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_SEND_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_AGGREGATE_BUFFERS = 8;
+    private static final Pattern rtmpUrlPattern = Pattern.compile("^(rtmps?)://([^/:]+)(:(\\d+))*/([^/]+)(/(.*))*$");
 
     private RtmpHandler mHandler;
     private String appName;
+    // Stream name of the url, published by publish()
     private String streamName;
-    private String publishType;
     private String swfUrl;
     private String tcUrl;
     private String pageUrl;
     private Socket socket;
+    private SocketChannel socketChannel;
+    // Transport of rtmps connections, null for rtmp ones
+    private RtmpTlsChannel tlsChannel;
+    private SSLContext sslContext;
+    private HostnameVerifier hostnameVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
     private String srsServerInfo = "";
     private String socketExceptionCause = "";
     private RtmpSessionInfo rtmpSessionInfo;
     private RtmpDecoder rtmpDecoder;
     private BufferedInputStream inputStream;
     private BufferedOutputStream outputStream;
+    private volatile RtmpChunkScheduler chunkScheduler;
+    private volatile OnContentReleasedListener contentReleasedListener;
+    private final RtmpEventLoop eventLoop;
+    private volatile RtmpChannelHandler channelHandler;
+    private volatile boolean handshakeDone = false;
+    private final Object handshakeLock = new Object();
     private Thread rxPacketHandler;
     private volatile boolean connected = false;
-    private volatile boolean publishPermitted = false;
+    private boolean pipelinedPublish = false;
+    // Set once a pipelined publish failed, the next ones wait for each reply
+    private volatile boolean pipelineFallback = false;
+    // Set while the connect reply is pending, the publish commands are sent meanwhile
+    private volatile boolean connectPending = false;
+    // Stream the publish command was sent on before the createStream reply, 0 if none
+    private volatile int pipelinedStreamId = 0;
+    // Set once reading or writing fails, until the next connect
+    private volatile boolean connectionLost = false;
     private final Object connectingLock = new Object();
     private final Object publishLock = new Object();
-    private AtomicInteger videoFrameCacheNumber = new AtomicInteger(0);
-    private int currentStreamId = 0;
+    private final RtmpMetrics metrics = new RtmpMetrics();
+    private final AtomicInteger videoFrameCacheNumber = metrics.getQueuedVideoFrames();
+    // The stream of publish(), and the streams added by publishStream() since connect
+    private volatile RtmpStream mainStream;
+    private final List<RtmpStream> streams = new CopyOnWriteArrayList<>();
+    // Stream of each audio and video chunk stream, to account for the packets sent or dropped
+    private final RtmpStream[] streamsByChunkStreamId = new RtmpStream[MAX_CHUNK_STREAM_ID + 1];
+    // Chunk stream ids of the next stream added, a pair per stream
+    private int nextChunkStreamId = FIRST_EXTRA_CHUNK_STREAM_ID;
+    private int txChunkSize = DEFAULT_TX_CHUNK_SIZE;
+    private int txAckWindowSize = DEFAULT_TX_ACK_WINDOW_SIZE;
+    private volatile boolean txAckWindowSizeSent = false;
+    private boolean amfBufferCodec = true;
+    private RtmpFlushPolicy flushPolicy = RtmpFlushPolicy.IMMEDIATE;
+    private boolean tcpNoDelay = false;
+    private volatile RtmpPacer pacer;
+    private int pacingBucketBytes;
+    private RtmpStallPolicy[] stallPolicies = new RtmpStallPolicy[0];
+    private volatile OnSendStalledListener sendStalledListener;
+    private RtmpStallWatchdog stallWatchdog;
+    private final Object aggregateLock = new Object();
+    private int aggregateMaxDelayMs = 0;
+    private int aggregateMaxVideoSize = 0;
+    private final ArrayDeque<byte[]> aggregateBuffers = new ArrayDeque<>();
+    private volatile RtmpDeliveryRateEstimator deliveryRateEstimator = new RtmpDeliveryRateEstimator();
+    // Set while probeBandwidth runs
+    private volatile RtmpBandwidthProbe bandwidthProbe;
+    private volatile int sendLatencyTargetMs = DEFAULT_SEND_LATENCY_TARGET_MS;
+    // Size set on the socket, -1 while the system sizes it
+    private volatile int sendBufferSize = -1;
+    // Round trip of the connect command, -1 until its reply
+    private volatile int roundTripMs = -1;
+    private long connectSentMs;
+    // Rate expected before the server acknowledges, from the last probe or the pacing, -1 if none
+    private volatile double sendRateHint = -1;
     private int transactionIdCounter = 0;
     private AmfString serverIpAddr;
     private AmfNumber serverPid;
     private AmfNumber serverId;
     private int videoWidth;
     private int videoHeight;
-    private int videoFrameCount;
-    private int videoDataLength;
-    private int audioFrameCount;
-    private int audioDataLength;
-    private long videoLastTimeMillis;
-    private long audioLastTimeMillis;
 
     public RtmpConnection(RtmpHandler handler) {
+        this(handler, null);
+    }
+
+    /**
+     * @param eventLoop if not null, the connection is non-blocking and all its I/O is driven by
+     *                  the loop thread, instead of a reader and a writer thread of its own
+     */
+    public RtmpConnection(RtmpHandler handler, RtmpEventLoop eventLoop) {
         mHandler = handler;
+        this.eventLoop = eventLoop;
     }
 
     private void handshake(InputStream in, OutputStream out) throws IOException {
@@ -100,24 +204,26 @@ public class RtmpConnection implements RtmpPublisher {
         Matcher matcher = rtmpUrlPattern.matcher(url);
         int port;
         String host;
+        boolean tls;
         if (matcher.matches()) {
             tcUrl = url.substring(0, url.lastIndexOf('/'));
             swfUrl = "";
             pageUrl = "";
-            host = matcher.group(1);
-            String portStr = matcher.group(3);
-            port = portStr != null ? Integer.parseInt(portStr) : 1935;
-            appName = matcher.group(4);
-            streamName = matcher.group(6);
+            tls = matcher.group(1).equals("rtmps");
+            host = matcher.group(2);
+            String portStr = matcher.group(4);
+            port = portStr != null ? Integer.parseInt(portStr) : (tls ? 443 : 1935);
+            appName = matcher.group(5);
+            streamName = matcher.group(7);
         } else {
             mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException(
-                    "Invalid RTMP URL. Must be in format: rtmp://host[:port]/application/streamName"));
+                    "Invalid RTMP URL. Must be in format: rtmp[s]://host[:port]/application/streamName"));
             return false;
         }
 
         if (streamName == null || appName == null) {
             mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException(
-                    "Invalid RTMP URL. Must be in format: rtmp://host[:port]/application/streamName"));
+                    "Invalid RTMP URL. Must be in format: rtmp[s]://host[:port]/application/streamName"));
             return false;
         }
 
@@ -126,12 +232,38 @@ public class RtmpConnection implements RtmpPublisher {
             Log.d(TAG, "connect() called. Host: " + host + ", port: " + port + ", appName: " + appName + ", publishPath: " + streamName);
         rtmpSessionInfo = new RtmpSessionInfo();
         rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
-        socket = new Socket();
-        SocketAddress socketAddress = new InetSocketAddress(host, port);
+        // Received packets are handled before the next chunk is read
+        rtmpDecoder.setReuseBuffers(true);
+        rtmpDecoder.setAmfBufferCodec(amfBufferCodec);
+        chunkScheduler = null;
+        connectionLost = false;
+        nextChunkStreamId = FIRST_EXTRA_CHUNK_STREAM_ID;
+        deliveryRateEstimator = new RtmpDeliveryRateEstimator();
+        bandwidthProbe = null;
+        sendBufferSize = -1;
+        roundTripMs = -1;
+        txAckWindowSizeSent = false;
+        if (eventLoop != null) {
+            if (!connectNonBlocking(host, port, tls)) {
+                return false;
+            }
+            startStallWatchdog();
+            return rtmpConnect();
+        }
         try {
-            socket.connect(socketAddress, 3000);
-            inputStream = new BufferedInputStream(socket.getInputStream());
-            outputStream = new BufferedOutputStream(socket.getOutputStream());
+            // Open the socket through a channel so that packets can be sent with gathering writes
+            socketChannel = RtmpConnector.connect(host, port, CONNECT_TIMEOUT_MS, tcpNoDelay);
+            socketChannel.configureBlocking(true);
+            socket = socketChannel.socket();
+            if (tls) {
+                tlsChannel = new RtmpTlsChannel(socketChannel, sslContext, host, port, hostnameVerifier);
+                tlsChannel.handshake();
+                inputStream = new BufferedInputStream(Channels.newInputStream(tlsChannel));
+                outputStream = new BufferedOutputStream(Channels.newOutputStream(tlsChannel));
+            } else {
+                inputStream = new BufferedInputStream(socket.getInputStream());
+                outputStream = new BufferedOutputStream(socket.getOutputStream());
+            }
             if (DEBUG) Log.d(TAG, "connect(): socket connection established, doing handhake...");
             handshake(inputStream, outputStream);
             if (DEBUG) Log.d(TAG, "connect(): handshake done");
@@ -141,6 +273,14 @@ public class RtmpConnection implements RtmpPublisher {
             return false;
         }
 
+        // All packets are written by the scheduler thread from now on
+        chunkScheduler = new RtmpChunkScheduler(tlsChannel != null ? tlsChannel : socketChannel, rtmpSessionInfo, schedulerListener);
+        chunkScheduler.setAmfBufferCodec(amfBufferCodec);
+        chunkScheduler.setFlushPolicy(flushPolicy);
+        chunkScheduler.setPacer(pacer);
+        chunkScheduler.start();
+        startStallWatchdog();
+
         // Start the "main" handling thread
         rxPacketHandler = new Thread(new Runnable() {
             @Override
@@ -154,6 +294,100 @@ public class RtmpConnection implements RtmpPublisher {
         return rtmpConnect();
     }
 
+    private boolean connectNonBlocking(String host, int port, boolean tls) {
+        handshakeDone = false;
+        try {
+            // Only the handshakes and what follows are driven by the loop
+            socketChannel = RtmpConnector.connect(host, port, CONNECT_TIMEOUT_MS, tcpNoDelay);
+            socket = socketChannel.socket();
+            if (tls) {
+                tlsChannel = new RtmpTlsChannel(socketChannel, sslContext, host, port, hostnameVerifier);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            mHandler.notifyRtmpIOException(e);
+            return false;
+        }
+        // The scheduler is flushed by the loop thread whenever the socket is writable
+        chunkScheduler = new RtmpChunkScheduler(tlsChannel != null ? tlsChannel : socketChannel, rtmpSessionInfo, schedulerListener);
+        chunkScheduler.setAmfBufferCodec(amfBufferCodec);
+        chunkScheduler.setFlushPolicy(flushPolicy);
+        chunkScheduler.setPacer(pacer);
+        channelHandler = new RtmpChannelHandler(eventLoop, socketChannel, tlsChannel, rtmpDecoder, chunkScheduler, channelCallback);
+        channelHandler.start();
+
+        synchronized (handshakeLock) {
+            try {
+                // The handshake may be done, or have failed, already
+                if (!handshakeDone && !connectionLost) {
+                    handshakeLock.wait(5000);
+                }
+            } catch (InterruptedException ex) {
+                // do nothing
+            }
+        }
+        if (!handshakeDone) {
+            if (DEBUG) Log.d(TAG, "connectNonBlocking(): handshake not completed");
+            channelHandler.close();
+            channelHandler = null;
+            socket = null;
+            socketChannel = null;
+            tlsChannel = null;
+            return false;
+        }
+        return true;
+    }
+
+    private final RtmpChannelHandler.Callback channelCallback = new RtmpChannelHandler.Callback() {
+        @Override
+        public void onHandshakeDone() {
+            handshakeDone = true;
+            synchronized (handshakeLock) {
+                handshakeLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onPacketReceived(RtmpPacket rtmpPacket) {
+            try {
+                handleRxPacket(rtmpPacket);
+            } catch (SocketException se) {
+                if (DEBUG)
+                    Log.e(TAG, "Caught SocketException while handling packet: " + se.getMessage());
+                mHandler.notifyRtmpSocketException(se);
+            } catch (IOException ioe) {
+                if (DEBUG)
+                    Log.e(TAG, "Caught exception while handling packet: " + ioe.getMessage());
+                mHandler.notifyRtmpIOException(ioe);
+            }
+        }
+
+        @Override
+        public void onWindowAckRequired(int bytesRead) {
+            sendAcknowledgement(bytesRead);
+        }
+
+        @Override
+        public void onChannelException(IOException ioe) {
+            connectionLost = true;
+            if (ioe instanceof EOFException) {
+                if (DEBUG) Log.d(TAG, "Connection closed by peer");
+            } else if (ioe instanceof SocketException) {
+                if (DEBUG)
+                    Log.e(TAG, "Caught SocketException while reading/decoding packet, shutting down: " + ioe.getMessage());
+                mHandler.notifyRtmpSocketException((SocketException) ioe);
+            } else {
+                if (DEBUG)
+                    Log.e(TAG, "Caught exception while reading/decoding packet, shutting down: " + ioe.getMessage());
+                mHandler.notifyRtmpIOException(ioe);
+            }
+            // Do not keep connect() waiting for a handshake that will not complete
+            synchronized (handshakeLock) {
+                handshakeLock.notifyAll();
+            }
+        }
+    };
+
     private boolean rtmpConnect() {
         if (connected) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Already connected to RTMP server"));
@@ -180,120 +414,348 @@ public class RtmpConnection implements RtmpPublisher {
         args.setProperty("pageUrl", pageUrl);
         args.setProperty("objectEncoding", 0);
         invoke.addData(args);
+        connectSentMs = System.nanoTime() / 1000000;
         sendRtmpPacket(invoke);
         mHandler.notifyRtmpConnecting("Connecting");
 
+        if (isPipelining()) {
+            // The reply is awaited by publish, together with the others
+            connectPending = true;
+            setChunkSize();
+            if (!txAckWindowSizeSent) {
+                sendTxAckWindowSize();
+            }
+            return true;
+        }
+
         synchronized (connectingLock) {
             try {
-                connectingLock.wait(5000);
+                // The reply may have been handled already
+                if (!connected) {
+                    connectingLock.wait(5000);
+                }
             } catch (InterruptedException ex) {
                 // do nothing
             }
         }
-        if (!connected) {
+        if (connected) {
+            setChunkSize();
+            if (!txAckWindowSizeSent) {
+                sendTxAckWindowSize();
+            }
+        } else {
             shutdown();
         }
         return connected;
     }
 
+    private void setChunkSize() {
+        if (txChunkSize == rtmpSessionInfo.getTxChunkSize()) {
+            return;
+        }
+
+        if (DEBUG) Log.d(TAG, "setChunkSize(): Sending chunk size " + txChunkSize);
+        // The scheduler switches to the new size once the message is written
+        sendRtmpPacket(new SetChunkSize(txChunkSize));
+    }
+
+    private void sendTxAckWindowSize() {
+        int size = bandwidthProbe != null ? PROBE_ACK_WINDOW_SIZE : txAckWindowSize;
+        if (DEBUG) Log.d(TAG, "sendTxAckWindowSize(): Sending acknowledgement window size " + size);
+        txAckWindowSizeSent = true;
+        // The server acknowledges the bytes it received every window, see getDeliveryRate()
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
+        sendRtmpPacket(new WindowAckSize(size, chunkStreamInfo));
+    }
+
+    /**
+     * Measures the uplink once connected and before publishing, by sending a burst of filler
+     * data messages, which servers ignore, and timing the acknowledgements of the server. The
+     * acknowledgement window is lowered meanwhile. The bytes in flight are bounded to about
+     * 200ms of the measured rate, so that little of the burst is left to drain when publishing.
+     * If the server does not acknowledge, the rate is the one at which the socket took the burst,
+     * which the send buffer inflates on fast links.
+     *
+     * @param maxDurationMs the time given to the probe, waiting for a pipelined connect reply included
+     * @return the uplink rate in bps, or -1 if it could not be measured
+     */
+    public double probeBandwidth(int maxDurationMs) {
+        long startMs = System.nanoTime() / 1000000;
+        long deadlineMs = startMs + maxDurationMs;
+        synchronized (connectingLock) {
+            try {
+                while (connectPending && !connected && System.nanoTime() / 1000000 < deadlineMs) {
+                    connectingLock.wait(Math.max(1, deadlineMs - System.nanoTime() / 1000000));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+        if (!connected) {
+            if (!connectPending) {
+                mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not connected to RTMP server"));
+            }
+            return -1;
+        }
+        if (mainStream != null) {
+            mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Bandwidth probed after publishing"));
+            return -1;
+        }
+
+        long startTxBytes = getTxWrittenBytes();
+        RtmpBandwidthProbe probe = new RtmpBandwidthProbe(startMs, startTxBytes);
+        bandwidthProbe = probe;
+        sendTxAckWindowSize();
+        char[] filler = new char[PROBE_MESSAGE_SIZE];
+        Arrays.fill(filler, '0');
+        String fillerString = new String(filler);
+        // When the socket last took all of the burst queued so far
+        long drainedMs = startMs;
+        long drainedTxBytes = startTxBytes;
+        long maxInFlight = PROBE_INITIAL_IN_FLIGHT;
+        try {
+            while (!connectionLost) {
+                long nowMs = System.nanoTime() / 1000000;
+                if (nowMs >= deadlineMs) {
+                    break;
+                }
+                // Both in bytes on the wire, chunk headers included
+                long txBytes = getTxWrittenBytes();
+                long unwritten = Math.max(0, probe.getQueuedBytes() - (txBytes - startTxBytes));
+                if (unwritten == 0 && txBytes > drainedTxBytes) {
+                    drainedMs = nowMs;
+                    drainedTxBytes = txBytes;
+                }
+                if (probe.isAcknowledged()) {
+                    double rate = probe.getRate(nowMs, txBytes);
+                    maxInFlight = Math.max(PROBE_MIN_IN_FLIGHT, Math.min(PROBE_MAX_IN_FLIGHT,
+                            (long) (rate / 8 * PROBE_IN_FLIGHT_MS / 1000)));
+                }
+                // Nothing written is acknowledged until the first acknowledgement
+                long unacknowledged = getUnacknowledgedBytes(txBytes);
+                if (unacknowledged < 0) {
+                    unacknowledged = txBytes;
+                }
+                if (unwritten + unacknowledged < maxInFlight) {
+                    Data data = new Data(PROBE_DATA_TYPE);
+                    data.addData(fillerString);
+                    // Counted before the scheduler may write it
+                    probe.onMessageQueued(RtmpChunkWriter.getMaxEncodedSize(data.getBodySize(), rtmpSessionInfo.getTxChunkSize()));
+                    sendRtmpPacket(data);
+                } else {
+                    probe.awaitAcknowledgement(Math.min(PROBE_POLL_MS, deadlineMs - nowMs));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            bandwidthProbe = null;
+            if (!connectionLost) {
+                sendTxAckWindowSize();
+            }
+        }
+        double rate = probe.getRate(drainedMs, drainedTxBytes);
+        if (DEBUG) Log.d(TAG, String.format("probeBandwidth(): %.0f bps, %s, %d bytes written",
+                rate, probe.isAcknowledged() ? "acknowledged" : "drained", drainedTxBytes - startTxBytes));
+        if (rate > 0) {
+            sendRateHint = rate;
+            resizeSendBuffer();
+        }
+        return connectionLost ? -1 : rate;
+    }
+
     @Override
     public boolean publish(String type) {
         if (type == null) {
             mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("No publish type specified"));
             return false;
         }
-        publishType = type;
-        return createStream();
-    }
-
-    private boolean createStream() {
-        if (!connected) {
+        if (!connected && !connectPending) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not connected to RTMP server"));
             return false;
         }
-        if (currentStreamId != 0) {
+        if (mainStream != null) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Current stream object has existed"));
             return false;
         }
+        RtmpStream stream = new RtmpStream(this, streamName, type,
+                ChunkStreamInfo.RTMP_CID_AUDIO, ChunkStreamInfo.RTMP_CID_VIDEO, metrics);
+        stream.setVideoResolution(videoWidth, videoHeight);
+        mainStream = stream;
+        if (createStream(stream)) {
+            mHandler.notifyRtmpConnected("Connected" + srsServerInfo);
+            return true;
+        }
+        shutdown();
+        return false;
+    }
+
+    /**
+     * Publishes another stream on this connection, e.g. the one of a second camera, once
+     * connected. The streams share the socket and its congestion window, each one has its
+     * own message stream and chunk streams, and its own metrics. Added streams end with the
+     * connection, they are to be published again after a reconnect.
+     *
+     * @param name the name of the stream in the application of the url
+     * @param type the publish type, e.g. "live"
+     * @return the stream, published, or null if the server refused it
+     */
+    public RtmpStream publishStream(String name, String type) {
+        if (name == null || type == null) {
+            mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("No stream name or publish type specified"));
+            return null;
+        }
+        if (!connected) {
+            mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not connected to RTMP server"));
+            return null;
+        }
+        int chunkStreamId;
+        synchronized (streams) {
+            chunkStreamId = nextChunkStreamId;
+            if (chunkStreamId + 1 > MAX_CHUNK_STREAM_ID) {
+                mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Too many streams on the connection"));
+                return null;
+            }
+            nextChunkStreamId += 2;
+        }
+        RtmpStream stream = new RtmpStream(this, name, type, chunkStreamId, chunkStreamId + 1, new RtmpMetrics());
+        if (!createStream(stream)) {
+            // Keep the connection and the other streams
+            closeStream(stream);
+            return null;
+        }
+        return stream;
+    }
 
+    private boolean isPipelining() {
+        return pipelinedPublish && !pipelineFallback;
+    }
+
+    private boolean createStream(RtmpStream stream) {
+        streams.add(stream);
+        streamsByChunkStreamId[stream.audioChunkStreamId] = stream;
+        streamsByChunkStreamId[stream.videoChunkStreamId] = stream;
         if (DEBUG) Log.d(TAG, "createStream(): Sending releaseStream command...");
-        // transactionId == 2
         Command releaseStream = new Command("releaseStream", ++transactionIdCounter);
         releaseStream.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
         releaseStream.addData(new AmfNull());  // command object: null for "createStream"
-        releaseStream.addData(streamName);  // command object: null for "releaseStream"
+        releaseStream.addData(stream.name);  // command object: null for "releaseStream"
         sendRtmpPacket(releaseStream);
 
         if (DEBUG) Log.d(TAG, "createStream(): Sending FCPublish command...");
-        // transactionId == 3
         Command FCPublish = new Command("FCPublish", ++transactionIdCounter);
         FCPublish.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
         FCPublish.addData(new AmfNull());  // command object: null for "FCPublish"
-        FCPublish.addData(streamName);
+        FCPublish.addData(stream.name);
         sendRtmpPacket(FCPublish);
 
-        if (DEBUG) Log.d(TAG, "createStream(): Sending createStream command...");
+        // Only the main stream is numbered in advance, it is the first one created
+        boolean pipelining = stream == mainStream && isPipelining();
+        if (requestPublish(stream, pipelining)) {
+            return true;
+        }
+        if (!pipelining || !connected || connectionLost) {
+            return false;
+        }
+        // The server may take the commands only one at a time, publish again waiting for each reply
+        if (DEBUG) Log.w(TAG, "createStream(): pipelined publish failed, waiting for each reply from now on");
+        pipelineFallback = true;
+        pipelinedStreamId = 0;
+        int rejectedStreamId = stream.id;
+        stream.id = 0;
+        if (rejectedStreamId != 0) {
+            sendDeleteStream(rejectedStreamId);
+        }
+        return requestPublish(stream, false);
+    }
+
+    /**
+     * Sends createStream, and publish right away if pipelining or else once the stream is created,
+     * then waits for the publish reply.
+     *
+     * @return whether the stream is published
+     */
+    private boolean requestPublish(RtmpStream stream, boolean pipelining) {
+        if (DEBUG) Log.d(TAG, "requestPublish(): Sending createStream command...");
         ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_OVER_CONNECTION);
-        // transactionId == 4
         Command createStream = new Command("createStream", ++transactionIdCounter, chunkStreamInfo);
         createStream.addData(new AmfNull());  // command object: null for "createStream"
+        if (pipelining) {
+            // Set before the reply can be handled, it is checked against the stream created
+            pipelinedStreamId = PIPELINED_STREAM_ID;
+        }
+        stream.publishRejected = false;
+        // Set before the reply can be handled, it is matched against the transaction
+        stream.createTransactionId = createStream.getTransactionId();
         sendRtmpPacket(createStream);
+        if (pipelining) {
+            if (DEBUG) Log.d(TAG, "requestPublish(): Sending publish command on stream " + PIPELINED_STREAM_ID);
+            sendPublish(stream, PIPELINED_STREAM_ID);
+        }
 
         // Waiting for "NetStream.Publish.Start" response.
+        long deadlineMs = System.nanoTime() / 1000000 + PUBLISH_TIMEOUT_MS;
         synchronized (publishLock) {
             try {
-                publishLock.wait(5000);
+                // The reply may have been handled already
+                while (!stream.published && !stream.publishRejected && !connectionLost) {
+                    long remainingMs = deadlineMs - System.nanoTime() / 1000000;
+                    if (remainingMs <= 0) {
+                        break;
+                    }
+                    publishLock.wait(remainingMs);
+                }
             } catch (InterruptedException ex) {
-                // do nothing
+                Thread.currentThread().interrupt();
             }
         }
-        if (publishPermitted) {
-            mHandler.notifyRtmpConnected("Connected" + srsServerInfo);
-        } else {
-            shutdown();
-        }
-        return publishPermitted;
+        return stream.published;
     }
 
-    private void fmlePublish() {
+    private void fmlePublish(RtmpStream stream) {
         if (!connected) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not connected to RTMP server"));
             return;
         }
-        if (currentStreamId == 0) {
+        if (stream.id == 0) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("No current stream object exists"));
             return;
         }
 
         if (DEBUG) Log.d(TAG, "fmlePublish(): Sending publish command...");
+        sendPublish(stream, stream.id);
+    }
+
+    private void sendPublish(RtmpStream stream, int streamId) {
         // transactionId == 0
         Command publish = new Command("publish", 0);
         publish.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
-        publish.getHeader().setMessageStreamId(currentStreamId);
+        publish.getHeader().setMessageStreamId(streamId);
         publish.addData(new AmfNull());  // command object: null for "publish"
-        publish.addData(streamName);
-        publish.addData(publishType);
+        publish.addData(stream.name);
+        publish.addData(stream.publishType);
         sendRtmpPacket(publish);
     }
 
-    private void onMetaData() {
+    private void onMetaData(RtmpStream stream) {
         if (!connected) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not connected to RTMP server"));
             return;
         }
-        if (currentStreamId == 0) {
+        if (stream.id == 0) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("No current stream object exists"));
             return;
         }
 
         if (DEBUG) Log.d(TAG, "onMetaData(): Sending empty onMetaData...");
         Data metadata = new Data("@setDataFrame");
-        metadata.getHeader().setMessageStreamId(currentStreamId);
+        metadata.getHeader().setMessageStreamId(stream.id);
         metadata.addData("onMetaData");
         AmfMap ecmaArray = new AmfMap();
         ecmaArray.setProperty("duration", 0);
-        ecmaArray.setProperty("width", videoWidth);
-        ecmaArray.setProperty("height", videoHeight);
+        ecmaArray.setProperty("width", stream.videoWidth);
+        ecmaArray.setProperty("height", stream.videoHeight);
         ecmaArray.setProperty("videodatarate", 0);
         ecmaArray.setProperty("framerate", 0);
         ecmaArray.setProperty("audiodatarate", 0);
@@ -308,35 +770,84 @@ public class RtmpConnection implements RtmpPublisher {
     @Override
     public void close() {
         if (socket != null) {
-            closeStream();
+            closeMainStream();
         }
         shutdown();
     }
 
-    private void closeStream() {
+    private void closeMainStream() {
         if (!connected) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not connected to RTMP server"));
             return;
         }
-        if (currentStreamId == 0) {
+        RtmpStream stream = mainStream;
+        if (stream == null || stream.id == 0) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("No current stream object exists"));
             return;
         }
-        if (!publishPermitted) {
+        if (!stream.published) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not get _result(Netstream.Publish.Start)"));
             return;
         }
         if (DEBUG) Log.d(TAG, "closeStream(): setting current stream ID to 0");
+        sendCloseStream(stream.id);
+        mHandler.notifyRtmpStopped();
+    }
+
+    /**
+     * Closes and deletes a stream added by publishStream, closing the main stream closes the
+     * connection as well
+     */
+    void closeStream(RtmpStream stream) {
+        if (stream == mainStream) {
+            close();
+            return;
+        }
+        if (!streams.remove(stream)) {
+            // Closed already, or ended with the connection
+            return;
+        }
+        int id = stream.id;
+        stream.published = false;
+        stream.id = 0;
+        discardAggregates(stream);
+        if (id != 0 && connected) {
+            if (DEBUG) Log.d(TAG, "closeStream(): closing and deleting stream " + id);
+            sendCloseStream(id);
+            sendDeleteStream(id);
+        }
+    }
+
+    private void sendDeleteStream(int streamId) {
+        Command deleteStream = new Command("deleteStream", 0);
+        deleteStream.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
+        deleteStream.addData(new AmfNull());
+        deleteStream.addData(streamId);
+        sendRtmpPacket(deleteStream);
+    }
+
+    private void sendCloseStream(int streamId) {
         Command closeStream = new Command("closeStream", 0);
         closeStream.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
-        closeStream.getHeader().setMessageStreamId(currentStreamId);
+        closeStream.getHeader().setMessageStreamId(streamId);
         closeStream.addData(new AmfNull());
         sendRtmpPacket(closeStream);
-        mHandler.notifyRtmpStopped();
     }
 
     private void shutdown() {
+        if (stallWatchdog != null) {
+            stallWatchdog.stop();
+            stallWatchdog = null;
+        }
+        for (RtmpStream stream : streams) {
+            discardAggregates(stream);
+        }
         if (socket != null) {
+            // Let the queued commands (e.g. closeStream) go out before shutting down the output
+            if (chunkScheduler != null) {
+                chunkScheduler.close(1000);
+            }
+
             try {
                 // It will raise EOFException in handleRxPacketThread
                 if (!socket.isInputShutdown()) {
@@ -361,6 +872,11 @@ public class RtmpConnection implements RtmpPublisher {
                 rxPacketHandler = null;
             }
 
+            // The writer thread exits once its pending write fails on the shut down output
+            if (chunkScheduler != null) {
+                chunkScheduler.join();
+            }
+
             // shutdown socket as well as its input and output stream
             try {
                 if (socket != null)
@@ -370,6 +886,12 @@ public class RtmpConnection implements RtmpPublisher {
                 if (DEBUG) Log.e(TAG, "shutdown(): failed to close socket", ex);
             }
 
+            // Let the event loop forget the channel and release the messages it was writing
+            if (channelHandler != null) {
+                channelHandler.close();
+                channelHandler = null;
+            }
+
             mHandler.notifyRtmpDisconnected();
         }
 
@@ -378,14 +900,21 @@ public class RtmpConnection implements RtmpPublisher {
 
     private void reset() {
         connected = false;
-        publishPermitted = false;
+        connectPending = false;
+        pipelinedStreamId = 0;
         tcUrl = null;
         swfUrl = null;
         pageUrl = null;
         appName = null;
         streamName = null;
-        publishType = null;
-        currentStreamId = 0;
+        // The added streams end with the connection
+        for (RtmpStream stream : streams) {
+            stream.published = false;
+            stream.id = 0;
+            stream.videoFrameCacheNumber.set(0);
+        }
+        streams.clear();
+        mainStream = null;
         transactionIdCounter = 0;
         videoFrameCacheNumber.set(0);
         socketExceptionCause = "";
@@ -393,182 +922,446 @@ public class RtmpConnection implements RtmpPublisher {
         serverPid = null;
         serverId = null;
         socket = null;
+        socketChannel = null;
+        tlsChannel = null;
         rtmpSessionInfo = null;
         rtmpDecoder = null;
     }
 
     @Override
     public void publishAudioData(byte[] data, int size, int dts) {
+        publishAudioData(mainStream, data, size, dts);
+    }
+
+    void publishAudioData(RtmpStream stream, byte[] data, int size, int dts) {
         if (data == null || data.length == 0 || dts < 0) {
             mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("Invalid Audio Data"));
+            releaseContent(data, false);
             return;
         }
         if (!connected) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not connected to RTMP server"));
+            releaseContent(data, false);
             return;
         }
-        if (currentStreamId == 0) {
+        if (stream == null || stream.id == 0) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("No current stream object exists"));
+            releaseContent(data, false);
             return;
         }
-        if (!publishPermitted) {
+        if (!stream.published) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not get _result(Netstream.Publish.Start)"));
+            releaseContent(data, false);
+            return;
+        }
+        if (aggregate(stream, data, size, dts, false)) {
             return;
         }
         Audio audio = new Audio();
         audio.setData(data, size);
+        audio.getHeader().setChunkStreamId(stream.audioChunkStreamId);
         audio.getHeader().setAbsoluteTimestamp(dts);
-        audio.getHeader().setMessageStreamId(currentStreamId);
+        audio.getHeader().setMessageStreamId(stream.id);
         sendRtmpPacket(audio);
-        calcAudioBitrate(audio.getHeader().getPacketLength());
-        mHandler.notifyRtmpAudioStreaming();
     }
 
     @Override
     public void publishVideoData(byte[] data, int size, int dts) {
+        publishVideoData(mainStream, data, size, dts);
+    }
+
+    void publishVideoData(RtmpStream stream, byte[] data, int size, int dts) {
         if (data == null || data.length == 0 || dts < 0) {
             mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("Invalid Video Data"));
+            releaseContent(data, true);
             return;
         }
         if (!connected) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not connected to RTMP server"));
+            releaseContent(data, true);
             return;
         }
-        if (currentStreamId == 0) {
+        if (stream == null || stream.id == 0) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("No current stream object exists"));
+            releaseContent(data, true);
             return;
         }
-        if (!publishPermitted) {
+        if (!stream.published) {
             mHandler.notifyRtmpIllegalStateException(new IllegalStateException("Not get _result(Netstream.Publish.Start)"));
+            releaseContent(data, true);
+            return;
+        }
+        if (stream.dropVideoUntilKeyframe) {
+            if (((data[0] >> 4) & 0x0f) != 1) {
+                stream.videoFrameCacheNumber.decrementAndGet();
+                stream.metrics.onVideoDropped(1);
+                releaseContent(data, true);
+                return;
+            }
+            stream.dropVideoUntilKeyframe = false;
+        }
+        if (aggregate(stream, data, size, dts, true)) {
             return;
         }
         Video video = new Video();
         video.setData(data, size);
+        video.getHeader().setChunkStreamId(stream.videoChunkStreamId);
         video.getHeader().setAbsoluteTimestamp(dts);
-        video.getHeader().setMessageStreamId(currentStreamId);
+        video.getHeader().setMessageStreamId(stream.id);
         sendRtmpPacket(video);
-        videoFrameCacheNumber.decrementAndGet();
-        calcVideoFpsAndBitrate(video.getHeader().getPacketLength());
-        mHandler.notifyRtmpVideoStreaming();
     }
 
-    private void calcVideoFpsAndBitrate(int length) {
-        videoDataLength += length;
-        if (videoFrameCount == 0) {
-            videoLastTimeMillis = System.nanoTime() / 1000000;
-            videoFrameCount++;
-        } else {
-            if (++videoFrameCount >= 48) {
-                long diffTimeMillis = System.nanoTime() / 1000000 - videoLastTimeMillis;
-                mHandler.notifyRtmpVideoFpsChanged((double) videoFrameCount * 1000 / diffTimeMillis);
-                mHandler.notifyRtmpVideoBitrateChanged((double) videoDataLength * 8 * 1000 / diffTimeMillis);
-                videoFrameCount = 0;
-                videoDataLength = 0;
+    /**
+     * Copies the tag into the pending aggregate of its track, if batching is enabled and
+     * the tag may be batched, and sends the aggregates of the stream that span the max delay.
+     *
+     * @return false if the tag is to be sent on its own, after the pending aggregate of its track
+     */
+    private boolean aggregate(RtmpStream stream, byte[] data, int size, int dts, boolean video) {
+        boolean aggregated;
+        synchronized (aggregateLock) {
+            if (aggregateMaxDelayMs <= 0) {
+                return false;
+            }
+            aggregated = isAggregable(data, size, video);
+            if (aggregated) {
+                Aggregate aggregate = video ? stream.videoAggregate : stream.audioAggregate;
+                if (aggregate != null && !aggregate.add(data, size, dts)) {
+                    flushAggregate(stream, video);
+                    aggregate = null;
+                }
+                if (aggregate == null) {
+                    aggregate = new Aggregate(video, takeAggregateBuffer());
+                    aggregate.getHeader().setChunkStreamId(video ? stream.videoChunkStreamId : stream.audioChunkStreamId);
+                    aggregate.getHeader().setMessageStreamId(stream.id);
+                    aggregate.add(data, size, dts);
+                    if (video) {
+                        stream.videoAggregate = aggregate;
+                    } else {
+                        stream.audioAggregate = aggregate;
+                    }
+                }
+            } else {
+                // Keep the order of the track
+                flushAggregate(stream, video);
+            }
+            // Both tracks share the clock, so a running track also flushes a stalled one
+            Aggregate audioAggregate = stream.audioAggregate;
+            if (audioAggregate != null && dts - audioAggregate.getHeader().getAbsoluteTimestamp() >= aggregateMaxDelayMs) {
+                flushAggregate(stream, false);
             }
+            Aggregate videoAggregate = stream.videoAggregate;
+            if (videoAggregate != null && dts - videoAggregate.getHeader().getAbsoluteTimestamp() >= aggregateMaxDelayMs) {
+                flushAggregate(stream, true);
+            }
+        }
+        if (aggregated) {
+            releaseContent(data, video);
+        }
+        return aggregated;
+    }
+
+    private boolean isAggregable(byte[] data, int size, boolean video) {
+        if (size < 2 || size + Aggregate.TAG_OVERHEAD > AGGREGATE_BUFFER_SIZE) {
+            return false;
         }
+        if (video) {
+            // Inter frames only, keyframes and sequence headers start a message of their own
+            return size <= aggregateMaxVideoSize && ((data[0] >> 4) & 0x0f) != 1 && data[1] != 0;
+        }
+        // Not the AAC sequence header
+        return ((data[0] >> 4) & 0x0f) != 10 || data[1] != 0;
     }
 
-    private void calcAudioBitrate(int length) {
-        audioDataLength += length;
-        if (audioFrameCount == 0) {
-            audioLastTimeMillis = System.nanoTime() / 1000000;
-            audioFrameCount++;
+    private void flushAggregate(RtmpStream stream, boolean video) {
+        Aggregate aggregate = video ? stream.videoAggregate : stream.audioAggregate;
+        if (aggregate == null) {
+            return;
+        }
+        if (video) {
+            stream.videoAggregate = null;
         } else {
-            if (++audioFrameCount >= 48) {
-                long diffTimeMillis = System.nanoTime() / 1000000 - audioLastTimeMillis;
-                mHandler.notifyRtmpAudioBitrateChanged((double) audioDataLength * 8 * 1000 / diffTimeMillis);
-                audioFrameCount = 0;
-                audioDataLength = 0;
+            stream.audioAggregate = null;
+        }
+        sendRtmpPacket(aggregate);
+    }
+
+    private void discardVideoAggregate(RtmpStream stream) {
+        synchronized (aggregateLock) {
+            if (stream.videoAggregate != null) {
+                schedulerListener.onPacketDropped(stream.videoAggregate);
+                stream.videoAggregate = null;
             }
         }
     }
 
+    private void discardAggregates(RtmpStream stream) {
+        synchronized (aggregateLock) {
+            if (stream.audioAggregate != null) {
+                schedulerListener.onPacketDropped(stream.audioAggregate);
+                stream.audioAggregate = null;
+            }
+            if (stream.videoAggregate != null) {
+                schedulerListener.onPacketDropped(stream.videoAggregate);
+                stream.videoAggregate = null;
+            }
+        }
+    }
+
+    private byte[] takeAggregateBuffer() {
+        synchronized (aggregateBuffers) {
+            byte[] buffer = aggregateBuffers.poll();
+            return buffer != null ? buffer : new byte[AGGREGATE_BUFFER_SIZE];
+        }
+    }
+
+    private void recycleAggregateBuffer(byte[] buffer) {
+        synchronized (aggregateBuffers) {
+            if (aggregateBuffers.size() < MAX_AGGREGATE_BUFFERS) {
+                aggregateBuffers.add(buffer);
+            }
+        }
+    }
+
+    private void releaseContent(byte[] data, boolean video) {
+        OnContentReleasedListener listener = contentReleasedListener;
+        if (listener != null && data != null) {
+            listener.onContentReleased(data, video);
+        }
+    }
+
+    private void onVideoSent(RtmpStream stream, int frames, int length) {
+        if (stream == null) {
+            metrics.onVideoSent(frames, length);
+            return;
+        }
+        stream.metrics.onVideoSent(frames, length);
+        if (!stream.videoStreaming) {
+            stream.videoStreaming = true;
+            if (stream.metrics == metrics) {
+                mHandler.notifyRtmpVideoStreaming();
+            }
+        }
+    }
+
+    private void onAudioSent(RtmpStream stream, int frames, int length) {
+        if (stream == null) {
+            metrics.onAudioSent(frames, length);
+            return;
+        }
+        stream.metrics.onAudioSent(frames, length);
+        if (!stream.audioStreaming) {
+            stream.audioStreaming = true;
+            if (stream.metrics == metrics) {
+                mHandler.notifyRtmpAudioStreaming();
+            }
+        }
+    }
+
+    /**
+     * @return the stream the audio or video packet was published on, null if unknown
+     */
+    private RtmpStream getStream(RtmpPacket rtmpPacket) {
+        int chunkStreamId = rtmpPacket.getHeader().getChunkStreamId();
+        return chunkStreamId >= 0 && chunkStreamId < streamsByChunkStreamId.length ? streamsByChunkStreamId[chunkStreamId] : null;
+    }
+
     private void sendRtmpPacket(RtmpPacket rtmpPacket) {
-        try {
-            ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
-            chunkStreamInfo.setPrevHeaderTx(rtmpPacket.getHeader());
-            if (!(rtmpPacket instanceof Video || rtmpPacket instanceof Audio)) {
-                rtmpPacket.getHeader().setAbsoluteTimestamp((int) chunkStreamInfo.markAbsoluteTimestampTx());
+        RtmpChunkScheduler scheduler = chunkScheduler;
+        if (scheduler == null) {
+            schedulerListener.onPacketDropped(rtmpPacket);
+            return;
+        }
+        // Packets are queued from the muxer worker as well as the rx thread (e.g. PONG replies)
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
+        if (!(rtmpPacket instanceof ContentData)) {
+            rtmpPacket.getHeader().setAbsoluteTimestamp((int) chunkStreamInfo.markAbsoluteTimestampTx());
+        }
+        if (rtmpPacket instanceof Command) {
+            rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(), ((Command) rtmpPacket).getCommandName());
+        }
+        scheduler.send(rtmpPacket);
+    }
+
+    private final RtmpChunkScheduler.Listener schedulerListener = new RtmpChunkScheduler.Listener() {
+        @Override
+        public void onPacketQueued() {
+            RtmpChannelHandler handler = channelHandler;
+            if (handler != null) {
+                handler.requestWrite();
             }
-            rtmpPacket.writeTo(outputStream, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
+        }
+
+        @Override
+        public void onPacketSent(RtmpPacket rtmpPacket) {
             if (DEBUG)
                 Log.d(TAG, "wrote packet: " + rtmpPacket + ", size: " + rtmpPacket.getHeader().getPacketLength());
-            if (rtmpPacket instanceof Command) {
-                rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(), ((Command) rtmpPacket).getCommandName());
+            if (!(rtmpPacket instanceof ContentData)) {
+                RtmpBandwidthProbe probe = bandwidthProbe;
+                if (probe != null && rtmpPacket instanceof Data && PROBE_DATA_TYPE.equals(((Data) rtmpPacket).getType())) {
+                    // The chunk size only changes between messages, on this thread
+                    probe.onMessageWritten(RtmpChunkWriter.getEncodedSize(rtmpPacket.getHeader(), rtmpSessionInfo.getTxChunkSize()));
+                }
+                return;
+            }
+            RtmpStream stream = getStream(rtmpPacket);
+            AtomicInteger cachedFrames = stream != null ? stream.videoFrameCacheNumber : videoFrameCacheNumber;
+            if (rtmpPacket instanceof Video) {
+                cachedFrames.decrementAndGet();
+                onVideoSent(stream, 1, rtmpPacket.getHeader().getPacketLength());
+                releaseContent(((Video) rtmpPacket).array(), true);
+            } else if (rtmpPacket instanceof Audio) {
+                onAudioSent(stream, 1, rtmpPacket.getHeader().getPacketLength());
+                releaseContent(((Audio) rtmpPacket).array(), false);
+            } else if (rtmpPacket instanceof Aggregate) {
+                Aggregate aggregate = (Aggregate) rtmpPacket;
+                if (aggregate.isVideo()) {
+                    cachedFrames.addAndGet(-aggregate.getMessageCount());
+                    onVideoSent(stream, aggregate.getMessageCount(), aggregate.getContentBytes());
+                } else {
+                    onAudioSent(stream, aggregate.getMessageCount(), aggregate.getContentBytes());
+                }
+                recycleAggregateBuffer(aggregate.array());
             }
-            if (socket != null && !socket.isOutputShutdown()) {
-                outputStream.flush();
+        }
+
+        @Override
+        public void onPacketDropped(RtmpPacket rtmpPacket) {
+            if (DEBUG) Log.d(TAG, "Dropped packet: " + rtmpPacket);
+            if (!(rtmpPacket instanceof ContentData)) {
+                return;
             }
-        } catch (SocketException se) {
-            // Since there are still remaining AV frame in the cache, we set a flag to guarantee the
-            // socket exception only issue one time.
-            if (!socketExceptionCause.contentEquals(se.getMessage())) {
-                socketExceptionCause = se.getMessage();
+            RtmpStream stream = getStream(rtmpPacket);
+            RtmpMetrics streamMetrics = stream != null ? stream.metrics : metrics;
+            AtomicInteger cachedFrames = stream != null ? stream.videoFrameCacheNumber : videoFrameCacheNumber;
+            if (rtmpPacket instanceof Video) {
+                cachedFrames.decrementAndGet();
+                streamMetrics.onVideoDropped(1);
+                releaseContent(((Video) rtmpPacket).array(), true);
+            } else if (rtmpPacket instanceof Audio) {
+                streamMetrics.onAudioDropped(1);
+                releaseContent(((Audio) rtmpPacket).array(), false);
+            } else if (rtmpPacket instanceof Aggregate) {
+                Aggregate aggregate = (Aggregate) rtmpPacket;
+                if (aggregate.isVideo()) {
+                    cachedFrames.addAndGet(-aggregate.getMessageCount());
+                    streamMetrics.onVideoDropped(aggregate.getMessageCount());
+                } else {
+                    streamMetrics.onAudioDropped(aggregate.getMessageCount());
+                }
+                recycleAggregateBuffer(aggregate.array());
+            }
+        }
+
+        @Override
+        public void onVideoBurst(int bytes, long pacingDelayMs) {
+            metrics.onVideoBurst(bytes, pacingDelayMs);
+        }
+
+        @Override
+        public void onWriteException(IOException ioe) {
+            connectionLost = true;
+            if (ioe instanceof ClosedChannelException) {
+                // The socket output has been shut down, the disconnection is reported by shutdown()
+                if (DEBUG) Log.d(TAG, "Write loop stopped on closed channel");
+            } else if (ioe instanceof SocketException) {
+                // Since there are still remaining AV frame in the cache, we set a flag to guarantee the
+                // socket exception only issue one time.
+                if (!socketExceptionCause.contentEquals(ioe.getMessage())) {
+                    socketExceptionCause = ioe.getMessage();
+                    if (DEBUG)
+                        Log.e(TAG, "Caught SocketException during write loop, shutting down: " + ioe.getMessage());
+                    mHandler.notifyRtmpSocketException((SocketException) ioe);
+                }
+            } else {
                 if (DEBUG)
-                    Log.e(TAG, "Caught SocketException during write loop, shutting down: " + se.getMessage());
-                mHandler.notifyRtmpSocketException(se);
+                    Log.e(TAG, "Caught IOException during write loop, shutting down: " + ioe.getMessage());
+                mHandler.notifyRtmpIOException(ioe);
             }
-        } catch (IOException ioe) {
-            if (DEBUG)
-                Log.e(TAG, "Caught IOException during write loop, shutting down: " + ioe.getMessage());
-            mHandler.notifyRtmpIOException(ioe);
+        }
+    };
+
+    private void startStallWatchdog() {
+        if (stallPolicies.length == 0) {
+            return;
+        }
+        stallWatchdog = new RtmpStallWatchdog(chunkScheduler, stallPolicies, stallListener);
+        if (eventLoop != null) {
+            stallWatchdog.start(eventLoop);
+        } else {
+            stallWatchdog.start();
         }
     }
 
+    private final RtmpStallWatchdog.Listener stallListener = new RtmpStallWatchdog.Listener() {
+        @Override
+        public void onStallPolicy(RtmpStallPolicy policy, long stalledMs) {
+            if (DEBUG) Log.w(TAG, "Send stalled for " + stalledMs + " ms: " + policy.getAction());
+            if (policy.getAction() == RtmpStallPolicy.Action.DROP_TO_KEYFRAME) {
+                RtmpChunkScheduler scheduler = chunkScheduler;
+                for (RtmpStream stream : streams) {
+                    // Set first, a keyframe published meanwhile clears it
+                    stream.dropVideoUntilKeyframe = true;
+                    discardVideoAggregate(stream);
+                    if (scheduler != null && scheduler.dropVideoUntilKeyframe(stream.videoChunkStreamId)) {
+                        stream.dropVideoUntilKeyframe = false;
+                    }
+                }
+            } else if (policy.getAction() == RtmpStallPolicy.Action.RECONNECT) {
+                connectionLost = true;
+                mHandler.notifyRtmpIOException(new SocketTimeoutException("Send stalled for " + stalledMs + " ms"));
+                Socket stalledSocket = socket;
+                try {
+                    // Fails the blocked write, if any
+                    if (stalledSocket != null && !stalledSocket.isOutputShutdown()) {
+                        stalledSocket.shutdownOutput();
+                    }
+                } catch (IOException e) {
+                    if (DEBUG) Log.e(TAG, "Failed to shut down stalled socket", e);
+                }
+            }
+            // The bitrate is lowered by the listener
+            OnSendStalledListener listener = sendStalledListener;
+            if (listener != null) {
+                listener.onSendStalled(policy, stalledMs);
+            }
+        }
+
+        @Override
+        public void onStallEnded(long durationMs) {
+            metrics.onStall(durationMs);
+        }
+    };
+
     private void handleRxPacketLoop() {
         // Handle all queued received RTMP packets
         while (!Thread.interrupted()) {
             try {
                 // It will be blocked when no data in input stream buffer
-                RtmpPacket rtmpPacket = rtmpDecoder.readPacket(inputStream);
+                RtmpPacket rtmpPacket;
+                try {
+                    rtmpPacket = rtmpDecoder.readPacket(inputStream);
+                } catch (WindowAckRequired war) {
+                    sendAcknowledgement(war.getBytesRead());
+                    rtmpPacket = war.getRtmpPacket();
+                }
                 if (rtmpPacket != null) {
-                    if (rtmpPacket.getHeader().getMessageType() == RtmpHeader.MessageType.ABORT) {
-                        rtmpSessionInfo.getChunkStreamInfo(((Abort) rtmpPacket).getChunkStreamId()).clearStoredChunks();
-                    } else if (rtmpPacket.getHeader().getMessageType() == RtmpHeader.MessageType.USER_CONTROL_MESSAGE) {
-                        UserControl user = (UserControl) rtmpPacket;
-                        if (user.getType() == UserControl.Type.STREAM_BEGIN) {
-                            if (DEBUG)
-                                Log.d(TAG, "handleRxPacketLoop(): Receive STREAM_BEGIN");
-                        } else if (user.getType() == UserControl.Type.PING_REQUEST) {
-                            ChunkStreamInfo channelInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
-                            if (DEBUG)
-                                Log.d(TAG, "handleRxPacketLoop(): Sending PONG reply..");
-                            UserControl pong = new UserControl(user, channelInfo);
-                            sendRtmpPacket(pong);
-                        } else if (user.getType() == UserControl.Type.STREAM_EOF) {
-                            if (DEBUG)
-                                Log.i(TAG, "handleRxPacketLoop(): Stream EOF reached, closing RTMP writer...");
-                        }
-                    } else if (rtmpPacket.getHeader().getMessageType() == RtmpHeader.MessageType.WINDOW_ACKNOWLEDGEMENT_SIZE) {
-                        WindowAckSize windowAckSize = (WindowAckSize) rtmpPacket;
-                        int size = windowAckSize.getAcknowledgementWindowSize();
-                        if (DEBUG)
-                            Log.d(TAG, "handleRxPacketLoop(): Setting acknowledgement window size: " + size);
-                        rtmpSessionInfo.setAcknowledgmentWindowSize(size);
-                    } else if (rtmpPacket.getHeader().getMessageType() == RtmpHeader.MessageType.SET_PEER_BANDWIDTH) {
-                        SetPeerBandwidth bw = (SetPeerBandwidth) rtmpPacket;
-                        rtmpSessionInfo.setAcknowledgmentWindowSize(bw.getAcknowledgementWindowSize());
-                        int acknowledgementWindowSize = rtmpSessionInfo.getAcknowledgementWindowSize();
-                        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
-                        if (DEBUG)
-                            Log.d(TAG, "handleRxPacketLoop(): Send acknowledgement window size: " + acknowledgementWindowSize);
-                        sendRtmpPacket(new WindowAckSize(acknowledgementWindowSize, chunkStreamInfo));
-                        // Set socket option
-                        socket.setSendBufferSize(acknowledgementWindowSize);
-                    } else if (rtmpPacket.getHeader().getMessageType() == RtmpHeader.MessageType.COMMAND_AMF0) {
-                        handleRxInvoke((Command) rtmpPacket);
-                    } else {
-                        if (DEBUG)
-                            Log.w(TAG, "handleRxPacketLoop(): Not handling unimplemented/unknown packet of type: " + rtmpPacket.getHeader().getMessageType());
-                    }
+                    handleRxPacket(rtmpPacket);
                 }
             } catch (EOFException eof) {
+                connectionLost = true;
+                Thread.currentThread().interrupt();
+            } catch (ClosedChannelException cce) {
+                // Interrupted by shutdown() while blocked in a channel read
+                connectionLost = true;
                 Thread.currentThread().interrupt();
             } catch (SocketException se) {
+                connectionLost = true;
                 if (DEBUG)
                     Log.e(TAG, "Caught SocketException while reading/decoding packet, shutting down: " + se.getMessage());
                 mHandler.notifyRtmpSocketException(se);
             } catch (IOException ioe) {
+                connectionLost = true;
                 if (DEBUG)
                     Log.e(TAG, "Caught exception while reading/decoding packet, shutting down: " + ioe.getMessage());
                 mHandler.notifyRtmpIOException(ioe);
@@ -576,6 +1369,92 @@ public class RtmpConnection implements RtmpPublisher {
         }
     }
 
+    private void handleRxPacket(RtmpPacket rtmpPacket) throws IOException {
+        if (rtmpPacket.getHeader().getMessageType() == RtmpHeader.MessageType.ABORT) {
+            rtmpSessionInfo.getChunkStreamInfo(((Abort) rtmpPacket).getChunkStreamId()).clearStoredChunks();
+        } else if (rtmpPacket.getHeader().getMessageType() == RtmpHeader.MessageType.USER_CONTROL_MESSAGE) {
+            UserControl user = (UserControl) rtmpPacket;
+            if (user.getType() == UserControl.Type.STREAM_BEGIN) {
+                if (DEBUG)
+                    Log.d(TAG, "handleRxPacket(): Receive STREAM_BEGIN");
+            } else if (user.getType() == UserControl.Type.PING_REQUEST) {
+                ChunkStreamInfo channelInfo = rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL);
+                if (DEBUG)
+                    Log.d(TAG, "handleRxPacket(): Sending PONG reply..");
+                UserControl pong = new UserControl(user, channelInfo);
+                sendRtmpPacket(pong);
+            } else if (user.getType() == UserControl.Type.STREAM_EOF) {
+                if (DEBUG)
+                    Log.i(TAG, "handleRxPacket(): Stream EOF reached, closing RTMP writer...");
+            }
+        } else if (rtmpPacket.getHeader().getMessageType() == RtmpHeader.MessageType.WINDOW_ACKNOWLEDGEMENT_SIZE) {
+            WindowAckSize windowAckSize = (WindowAckSize) rtmpPacket;
+            int size = windowAckSize.getAcknowledgementWindowSize();
+            if (DEBUG)
+                Log.d(TAG, "handleRxPacket(): Setting acknowledgement window size: " + size);
+            rtmpSessionInfo.setAcknowledgmentWindowSize(size);
+        } else if (rtmpPacket.getHeader().getMessageType() == RtmpHeader.MessageType.SET_PEER_BANDWIDTH) {
+            // The peer bandwidth limits what we send, the window of our acknowledgements is set by WindowAckSize
+            // It does not size the socket send buffer, see resizeSendBuffer()
+            sendTxAckWindowSize();
+        } else if (rtmpPacket.getHeader().getMessageType() == RtmpHeader.MessageType.ACKNOWLEDGEMENT) {
+            Acknowledgement ack = (Acknowledgement) rtmpPacket;
+            if (DEBUG)
+                Log.d(TAG, "handleRxPacket(): Server acknowledged " + ack.getSequenceNumber() + " bytes");
+            long nowMs = System.nanoTime() / 1000000;
+            deliveryRateEstimator.onAcknowledgement(nowMs, ack.getSequenceNumber());
+            RtmpBandwidthProbe probe = bandwidthProbe;
+            if (probe != null) {
+                probe.onAcknowledgement(nowMs, ack.getSequenceNumber());
+            }
+            resizeSendBuffer();
+        } else if (rtmpPacket.getHeader().getMessageType() == RtmpHeader.MessageType.COMMAND_AMF0) {
+            handleRxInvoke((Command) rtmpPacket);
+        } else {
+            if (DEBUG)
+                Log.w(TAG, "handleRxPacket(): Not handling unimplemented/unknown packet of type: " + rtmpPacket.getHeader().getMessageType());
+        }
+    }
+
+    /**
+     * Sizes the socket send buffer to the round trip plus the send latency target at the
+     * delivery rate, so that the bytes waiting in the kernel, out of reach of the drop policies,
+     * stay within the target while the link is kept busy. Called as the rate changes.
+     */
+    private void resizeSendBuffer() {
+        Socket s = socket;
+        int latencyMs = sendLatencyTargetMs;
+        if (s == null || latencyMs <= 0) {
+            return;
+        }
+        double rate = deliveryRateEstimator.getDeliveryRate(System.nanoTime() / 1000000);
+        if (rate <= 0) {
+            rate = sendRateHint;
+        }
+        int size = INITIAL_SEND_BUFFER_SIZE;
+        if (rate > 0) {
+            double bytes = rate / 8 * (Math.max(0, roundTripMs) + latencyMs) / 1000;
+            size = (int) Math.max(MIN_SEND_BUFFER_SIZE, Math.min(MAX_SEND_BUFFER_SIZE, bytes));
+        }
+        int current = sendBufferSize;
+        // Small changes are not worth a system call
+        if (current > 0 && Math.abs(size - current) < current / 4) {
+            return;
+        }
+        try {
+            s.setSendBufferSize(size);
+            sendBufferSize = size;
+            if (DEBUG) Log.d(TAG, String.format("resizeSendBuffer(): %d bytes for %.0f bps", size, rate));
+        } catch (SocketException e) {
+            if (DEBUG) Log.w(TAG, "resizeSendBuffer(): " + e.getMessage());
+        }
+    }
+
+    private void sendAcknowledgement(int bytesRead) {
+        if (DEBUG) Log.d(TAG, "sendAcknowledgement(): Acknowledging " + bytesRead + " bytes");
+        sendRtmpPacket(new Acknowledgement(bytesRead));
+    }
+
     private void handleRxInvoke(Command invoke) {
         String commandName = invoke.getCommandName();
         if (commandName.equals("_result")) {
@@ -586,17 +1465,33 @@ public class RtmpConnection implements RtmpPublisher {
             if ("connect".equals(method)) {
                 // Capture server ip/pid/id information if any
                 srsServerInfo = onSrsServerInfo(invoke);
+                roundTripMs = (int) (System.nanoTime() / 1000000 - connectSentMs);
+                resizeSendBuffer();
                 // We can now send createStream commands
                 connected = true;
+                connectPending = false;
                 synchronized (connectingLock) {
                     connectingLock.notifyAll();
                 }
             } else if ("createStream".contains(method)) {
+                RtmpStream stream = getCreatingStream(invoke.getTransactionId());
+                if (stream == null) {
+                    if (DEBUG) Log.w(TAG, "handleRxInvoke(): stream created for no publish");
+                    return;
+                }
                 // Get stream id
-                currentStreamId = (int) ((AmfNumber) invoke.getData().get(1)).getValue();
-                if (DEBUG) Log.d(TAG, "handleRxInvoke(): Stream ID to publish: " + currentStreamId);
-                if (streamName != null && publishType != null) {
-                    fmlePublish();
+                stream.id = (int) ((AmfNumber) invoke.getData().get(1)).getValue();
+                if (DEBUG) Log.d(TAG, "handleRxInvoke(): Stream ID to publish " + stream.name + ": " + stream.id);
+                if (stream == mainStream && pipelinedStreamId != 0) {
+                    if (stream.id != pipelinedStreamId) {
+                        // Published on a stream that does not exist, again on the one created
+                        if (DEBUG) Log.w(TAG, "handleRxInvoke(): stream " + stream.id + " created instead of " + pipelinedStreamId);
+                        pipelineFallback = true;
+                        pipelinedStreamId = 0;
+                        fmlePublish(stream);
+                    }
+                } else {
+                    fmlePublish(stream);
                 }
             } else if ("releaseStream".contains(method)) {
                 if (DEBUG) Log.d(TAG, "handleRxInvoke(): 'releaseStream'");
@@ -611,12 +1506,32 @@ public class RtmpConnection implements RtmpPublisher {
         } else if (commandName.equals("onFCPublish")) {
             if (DEBUG) Log.d(TAG, "handleRxInvoke(): 'onFCPublish'");
         } else if (commandName.equals("onStatus")) {
-            String code = ((AmfString) ((AmfObject) invoke.getData().get(1)).getProperty("code")).getValue();
+            AmfObject info = (AmfObject) invoke.getData().get(1);
+            String code = ((AmfString) info.getProperty("code")).getValue();
+            AmfString level = (AmfString) info.getProperty("level");
             if (DEBUG) Log.d(TAG, "handleRxInvoke(): onStatus " + code);
-            if (code.equals("NetStream.Publish.Start")) {
-                onMetaData();
+            if (level != null && "error".equals(level.getValue()) && code.startsWith("NetStream.Publish.")) {
+                int streamId = invoke.getHeader().getMessageStreamId();
+                RtmpStream stream = getPublishingStream(streamId);
+                if (stream == null || (stream.id != 0 && stream.id != streamId)) {
+                    // e.g. the pipelined publish on a stream id other than the one created, sent again since
+                    if (DEBUG) Log.w(TAG, "handleRxInvoke(): publish rejected on stream " + streamId);
+                    return;
+                }
+                // Wake up the publish waiting for the reply
+                stream.publishRejected = true;
+                synchronized (publishLock) {
+                    publishLock.notifyAll();
+                }
+            } else if (code.equals("NetStream.Publish.Start")) {
+                RtmpStream stream = getPublishingStream(invoke.getHeader().getMessageStreamId());
+                if (stream == null) {
+                    if (DEBUG) Log.w(TAG, "handleRxInvoke(): publish started for no stream");
+                    return;
+                }
+                onMetaData(stream);
                 // We can now publish AV data
-                publishPermitted = true;
+                stream.published = true;
                 synchronized (publishLock) {
                     publishLock.notifyAll();
                 }
@@ -626,12 +1541,38 @@ public class RtmpConnection implements RtmpPublisher {
         }
     }
 
+    private RtmpStream getCreatingStream(int transactionId) {
+        for (RtmpStream stream : streams) {
+            if (stream.id == 0 && stream.createTransactionId == transactionId) {
+                return stream;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the stream of the publish reply, the main one if the reply is not on a created stream
+     */
+    private RtmpStream getPublishingStream(int streamId) {
+        for (RtmpStream stream : streams) {
+            if (stream.id == streamId && stream.id != 0 && !stream.published) {
+                return stream;
+            }
+        }
+        RtmpStream stream = mainStream;
+        return stream != null && !stream.published ? stream : null;
+    }
+
     private String onSrsServerInfo(Command invoke) {
         // SRS server special information
         AmfObject objData = (AmfObject) invoke.getData().get(1);
         if ((objData).getProperty("data") instanceof AmfObject) {
             objData = ((AmfObject) objData.getProperty("data"));
             serverIpAddr = (AmfString) objData.getProperty("srs_server_ip");
+            // Decode now, lazy strings do not outlive the receive buffer
+            if (serverIpAddr != null) {
+                serverIpAddr.getValue();
+            }
             serverPid = (AmfNumber) objData.getProperty("srs_pid");
             serverId = (AmfNumber) objData.getProperty("srs_id");
         }
@@ -642,11 +1583,24 @@ public class RtmpConnection implements RtmpPublisher {
         return info;
     }
 
+    @Override
+    public boolean isConnectionLost() {
+        return connectionLost;
+    }
+
     @Override
     public AtomicInteger getVideoFrameCacheNumber() {
         return videoFrameCacheNumber;
     }
 
+    /**
+     * @return the streaming metrics of the main stream and of the connection, kept across
+     * reconnects, see {@link RtmpStream#getMetrics} for the other streams
+     */
+    public RtmpMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public final String getServerIpAddr() {
         return serverIpAddr == null ? null : serverIpAddr.getValue();
@@ -662,9 +1616,300 @@ public class RtmpConnection implements RtmpPublisher {
         return serverId == null ? 0 : (int) serverId.getValue();
     }
 
+    /**
+     * set the outbound chunk size negotiated right after "connect"
+     *
+     * @param chunkSize chunk size in bytes, between {@link #MIN_TX_CHUNK_SIZE} and {@link #MAX_TX_CHUNK_SIZE}
+     */
+    public void setTxChunkSize(int chunkSize) {
+        if (chunkSize < MIN_TX_CHUNK_SIZE || chunkSize > MAX_TX_CHUNK_SIZE) {
+            mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("Invalid chunk size: " + chunkSize));
+            return;
+        }
+        txChunkSize = chunkSize;
+    }
+
+    /**
+     * set the listener notified when a content array passed to publishVideoData/publishAudioData
+     * is no longer referenced, as packets are sent by the scheduler thread
+     */
+    public void setOnContentReleasedListener(OnContentReleasedListener listener) {
+        contentReleasedListener = listener;
+    }
+
+    /**
+     * obtain the number of chunk header bytes sent on the current connection
+     */
+    public long getTxHeaderBytes() {
+        RtmpChunkScheduler scheduler = chunkScheduler;
+        return scheduler == null ? 0 : scheduler.getHeaderBytes();
+    }
+
+    /**
+     * obtain the number of message payload bytes sent on the current connection
+     */
+    public long getTxPayloadBytes() {
+        RtmpChunkScheduler scheduler = chunkScheduler;
+        return scheduler == null ? 0 : scheduler.getPayloadBytes();
+    }
+
+    /**
+     * set whether connect returns without waiting for the reply, and publish sends the
+     * publish command along with createStream, on the stream id servers usually give.
+     * The replies are checked as they come, a different stream id gets the publish command
+     * sent again. A rejected or unanswered pipelined publish is retried on the same connection,
+     * creating the stream and publishing it one reply after the other, and disables pipelining
+     * for the next connects.
+     */
+    public void setPipelinedPublish(boolean enabled) {
+        pipelinedPublish = enabled;
+        pipelineFallback = false;
+    }
+
+    /**
+     * set when the written audio and video messages are handed to the socket, applied on the
+     * next connect. Defaults to {@link RtmpFlushPolicy#IMMEDIATE}.
+     */
+    public void setFlushPolicy(RtmpFlushPolicy policy) {
+        flushPolicy = policy;
+    }
+
+    /**
+     * set the pacing of video, which spreads the chunks of large frames such as keyframes
+     * over time instead of writing them in one burst. Video bytes are released by a token
+     * bucket at the target bitrate plus the headroom, audio and control messages are not
+     * delayed. May be called while publishing, e.g. when the encoder bitrate changes.
+     *
+     * @param targetBitrate   the bitrate of the video in bps, 0 to disable pacing
+     * @param headroomPercent the pacing rate in excess of the target bitrate, in percent
+     * @param maxBurstBytes   the largest burst of video bytes, sent after an idle period
+     */
+    public void setPacing(int targetBitrate, int headroomPercent, int maxBurstBytes) {
+        if (targetBitrate < 0 || headroomPercent < 0 || (targetBitrate > 0 && maxBurstBytes <= 0)) {
+            mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("Invalid pacing: "
+                    + targetBitrate + " bps, " + headroomPercent + "% headroom, burst of " + maxBurstBytes + " bytes"));
+            return;
+        }
+        if (targetBitrate > 0) {
+            sendRateHint = targetBitrate * (100 + headroomPercent) / 100.0;
+            resizeSendBuffer();
+        }
+        RtmpPacer current = pacer;
+        if (targetBitrate == 0) {
+            current = null;
+        } else if (current != null && pacingBucketBytes == maxBurstBytes) {
+            // The tokens are kept, a bitrate change must not release an extra burst
+            current.setRate(targetBitrate, headroomPercent);
+        } else {
+            current = new RtmpPacer(targetBitrate, headroomPercent, maxBurstBytes);
+            pacingBucketBytes = maxBurstBytes;
+        }
+        pacer = current;
+        RtmpChunkScheduler scheduler = chunkScheduler;
+        if (scheduler != null) {
+            scheduler.setPacer(current);
+        }
+        RtmpChannelHandler handler = channelHandler;
+        if (handler != null) {
+            // Video held back by the previous pacer may be released now
+            handler.requestWrite();
+        }
+    }
+
+    /**
+     * set what is done when the writes make no progress, applied on the next connect. Each
+     * policy is triggered once per stall, as the stall reaches its threshold. Stalls that
+     * trigger a policy are recorded in the metrics. None by default, stalls are not watched.
+     */
+    public void setStallPolicies(RtmpStallPolicy... policies) {
+        stallPolicies = policies.clone();
+    }
+
+    /**
+     * set the listener notified when a stall policy is triggered
+     */
+    public void setOnSendStalledListener(OnSendStalledListener listener) {
+        sendStalledListener = listener;
+    }
+
+    /**
+     * set TCP_NODELAY on the socket, applied on the next connect. With a flush policy that
+     * coalesces writes, Nagle's algorithm only adds delay and is best disabled.
+     */
+    public void setTcpNoDelay(boolean enabled) {
+        tcpNoDelay = enabled;
+    }
+
+    /**
+     * set the TLS context of rtmps connections, applied on the next connect. Sessions are
+     * resumed from the client session cache of the context, so it should be kept across
+     * connections. Null for a context shared by all the connections, trusting the system
+     * certificates.
+     */
+    public void setSslContext(SSLContext context) {
+        sslContext = context;
+    }
+
+    /**
+     * set the check of the server certificate against the host of rtmps urls, applied on the
+     * next connect, the one of {@link HttpsURLConnection} by default. Cannot be null, a verifier
+     * accepting any host has to be given explicitly.
+     */
+    public void setHostnameVerifier(HostnameVerifier verifier) {
+        if (verifier == null) {
+            mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("No hostname verifier specified"));
+            return;
+        }
+        hostnameVerifier = verifier;
+    }
+
+    /**
+     * @return the number of write calls made on the socket since connect
+     */
+    public long getTxWriteCount() {
+        RtmpChunkScheduler scheduler = chunkScheduler;
+        return scheduler == null ? 0 : scheduler.getWriteCalls();
+    }
+
+    /**
+     * @return the average number of bytes per write call on the socket since connect, 0 before the first one
+     */
+    public double getTxBytesPerWrite() {
+        RtmpChunkScheduler scheduler = chunkScheduler;
+        long calls = scheduler == null ? 0 : scheduler.getWriteCalls();
+        return calls == 0 ? 0 : (double) scheduler.getWrittenBytes() / calls;
+    }
+
+    /**
+     * set the batching of tags into aggregate messages, which saves the message header, the
+     * write and the streaming notification of each tag. Audio tags and, if maxVideoSize is not
+     * 0, inter frames up to that size are batched per track until the batch spans maxDelayMs
+     * of timestamps. Keyframes and sequence headers are always sent on their own.
+     *
+     * @param maxDelayMs   the time span of a batch, 0 to disable batching
+     * @param maxVideoSize the largest inter frame batched, in bytes, 0 to batch audio only
+     */
+    public void setAggregation(int maxDelayMs, int maxVideoSize) {
+        synchronized (aggregateLock) {
+            aggregateMaxDelayMs = maxDelayMs;
+            aggregateMaxVideoSize = maxVideoSize;
+            if (maxDelayMs <= 0) {
+                for (RtmpStream stream : streams) {
+                    flushAggregate(stream, false);
+                    flushAggregate(stream, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * set whether commands and data are encoded and decoded by {@link AmfBufferCodec} instead
+     * of the stream based AMF classes, applied on the next connect
+     */
+    public void setAmfBufferCodec(boolean enabled) {
+        amfBufferCodec = enabled;
+    }
+
+    /**
+     * set the number of bytes after which the server acknowledges what it received,
+     * announced right after "connect"
+     */
+    public void setTxAckWindowSize(int size) {
+        if (size <= 0) {
+            mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("Invalid acknowledgement window size: " + size));
+            return;
+        }
+        txAckWindowSize = size;
+    }
+
+    /**
+     * set the latency of the bytes handed to the socket and not sent yet, which sizes its send
+     * buffer from the delivery rate instead of letting the system grow it to megabytes. What does
+     * not fit waits in the connection and the muxer, where frames can be dropped.
+     *
+     * @param latencyMs the target in milliseconds, 0 to leave the buffer to the system from
+     *                  the next connect
+     */
+    public void setSendLatencyTarget(int latencyMs) {
+        if (latencyMs < 0) {
+            mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("Invalid send latency target: " + latencyMs));
+            return;
+        }
+        sendLatencyTargetMs = latencyMs;
+        resizeSendBuffer();
+    }
+
+    /**
+     * obtain the size of the socket send buffer set for the send latency target, or -1 while
+     * the system sizes it. The kernel may reserve more for its own bookkeeping.
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * obtain an upper bound of the bytes waiting in the socket send buffer, or -1 if unknown.
+     * The platform offers no way to read the queue of the kernel, so these are the bytes not
+     * yet acknowledged by the server, up to the size of the buffer.
+     */
+    public long getSendBufferedBytes() {
+        long inFlight = getInFlightBytes();
+        Socket s = socket;
+        if (inFlight < 0 || s == null) {
+            return -1;
+        }
+        try {
+            return Math.min(inFlight, s.getSendBufferSize());
+        } catch (SocketException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * obtain the number of bytes sent on the current connection and not yet acknowledged by
+     * the server, or -1 before its first acknowledgement
+     */
+    public long getInFlightBytes() {
+        return getUnacknowledgedBytes(getTxWrittenBytes());
+    }
+
+    /**
+     * @param txBytes the bytes written on the socket since the handshake, see {@link #getTxWrittenBytes}
+     */
+    private long getUnacknowledgedBytes(long txBytes) {
+        long acknowledged = deliveryRateEstimator.getAcknowledgedBytes();
+        if (acknowledged < 0) {
+            return -1;
+        }
+        // Sequence numbers wrap at 2^32, far more than can ever be in flight, so the difference
+        // modulo 2^32 is exact. Bytes are counted as the socket takes them, so a server never
+        // acknowledges more, unless it miscounts.
+        int unacknowledged = (int) (HANDSHAKE_TX_BYTES + txBytes - acknowledged);
+        return Math.max(0, unacknowledged);
+    }
+
+    // The header and payload counters only move once a whole message is written, this one
+    // follows each write call, in the middle of a keyframe too
+    private long getTxWrittenBytes() {
+        RtmpChunkScheduler scheduler = chunkScheduler;
+        return scheduler == null ? 0 : scheduler.getWrittenBytes();
+    }
+
+    /**
+     * obtain the rate at which the server acknowledged bytes over the last seconds, in bps,
+     * or -1 until it is known
+     */
+    public double getDeliveryRate() {
+        return deliveryRateEstimator.getDeliveryRate(System.nanoTime() / 1000000);
+    }
+
     @Override
     public void setVideoResolution(int width, int height) {
         videoWidth = width;
         videoHeight = height;
+        RtmpStream stream = mainStream;
+        if (stream != null) {
+            stream.setVideoResolution(width, height);
+        }
     }
 }
@@ -0,0 +1,190 @@
+package com.github.faucamp.simplertmp.io;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Opens the TCP connections of RTMP connections.
+ * <p>
+ * The addresses of the hosts are cached for a minute. The addresses of a host are tried in
+ * turn, IPv6 and IPv4 ones interleaved, each one started before the previous attempts have
+ * failed if they are slow to answer, and the first one to connect wins.
+ */
+class RtmpConnector {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "RtmpConnector";
+
+    private static final int ADDRESS_TTL_MS = 60 * 1000;
+    /**
+     * Time given to an attempt before the next address is tried as well
+     */
+    private static final int ATTEMPT_DELAY_MS = 250;
+
+    private static final HashMap<String, CachedAddresses> addressCache = new HashMap<>();
+
+    private static class CachedAddresses {
+        final InetAddress[] addresses;
+        final long expiryTime;
+
+        CachedAddresses(InetAddress[] addresses, long expiryTime) {
+            this.addresses = addresses;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    private RtmpConnector() {
+    }
+
+    /**
+     * @return the addresses of the host, from the cache if resolved in the last minute,
+     * in the order they are to be tried
+     */
+    static InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.nanoTime() / 1000000;
+        synchronized (addressCache) {
+            CachedAddresses cached = addressCache.get(host);
+            if (cached != null && cached.expiryTime > now) {
+                return cached.addresses;
+            }
+        }
+        InetAddress[] addresses = interleave(InetAddress.getAllByName(host));
+        synchronized (addressCache) {
+            addressCache.put(host, new CachedAddresses(addresses, now + ADDRESS_TTL_MS));
+        }
+        return addresses;
+    }
+
+    /**
+     * forgets the addresses of the host, resolved again on the next connect
+     */
+    static void invalidate(String host) {
+        synchronized (addressCache) {
+            addressCache.remove(host);
+        }
+    }
+
+    /**
+     * Alternates the address families, starting with the one of the first address
+     */
+    private static InetAddress[] interleave(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        InetAddress[] ordered = new InetAddress[addresses.length];
+        int n = 0;
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                ordered[n++] = first.get(i);
+            }
+            if (i < second.size()) {
+                ordered[n++] = second.get(i);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Connects to the first address of the host to answer
+     *
+     * @param timeoutMs the time given to all the attempts together
+     * @return the connected channel, in non-blocking mode
+     */
+    static SocketChannel connect(String host, int port, int timeoutMs, boolean tcpNoDelay) throws IOException {
+        InetAddress[] addresses = resolve(host);
+        long deadline = System.nanoTime() / 1000000 + timeoutMs;
+        Selector selector = Selector.open();
+        List<SocketChannel> pending = new ArrayList<>();
+        SocketChannel connected = null;
+        IOException lastException = null;
+        int next = 0;
+        try {
+            long nextAttemptTime = 0;
+            while (connected == null) {
+                long now = System.nanoTime() / 1000000;
+                if (next < addresses.length && (now >= nextAttemptTime || pending.isEmpty())) {
+                    InetSocketAddress address = new InetSocketAddress(addresses[next++], port);
+                    if (DEBUG) Log.d(TAG, "connect(): trying " + address);
+                    SocketChannel channel = SocketChannel.open();
+                    try {
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(tcpNoDelay);
+                        if (channel.connect(address)) {
+                            connected = channel;
+                            break;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT);
+                        pending.add(channel);
+                    } catch (IOException e) {
+                        lastException = e;
+                        channel.close();
+                        continue;
+                    }
+                    nextAttemptTime = now + ATTEMPT_DELAY_MS;
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+                if (now >= deadline) {
+                    lastException = new SocketTimeoutException("connect timed out");
+                    break;
+                }
+                long wait = deadline - now;
+                if (next < addresses.length) {
+                    wait = Math.min(wait, Math.max(1, nextAttemptTime - now));
+                }
+                selector.select(wait);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            connected = channel;
+                            break;
+                        }
+                    } catch (IOException e) {
+                        // Refused or unreachable, the next address is tried right away
+                        lastException = e;
+                        key.cancel();
+                        pending.remove(channel);
+                        channel.close();
+                        nextAttemptTime = 0;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            for (SocketChannel channel : pending) {
+                if (channel != connected) {
+                    channel.close();
+                }
+            }
+            // Deregisters the winner as well, so that it can be used elsewhere
+            selector.close();
+        }
+        if (connected == null) {
+            // The host may have moved, look it up again next time
+            invalidate(host);
+            throw lastException != null ? lastException : new UnknownHostException(host);
+        }
+        if (DEBUG) Log.d(TAG, "connect(): connected to " + connected.socket().getRemoteSocketAddress());
+        return connected;
+    }
+}
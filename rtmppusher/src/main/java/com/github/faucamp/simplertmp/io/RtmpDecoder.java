@@ -2,21 +2,26 @@ package com.github.faucamp.simplertmp.io;
 
 import android.util.Log;
 
+import com.github.faucamp.simplertmp.amf.AmfBufferCodec;
 import com.github.faucamp.simplertmp.packets.Abort;
 import com.github.faucamp.simplertmp.packets.Acknowledgement;
+import com.github.faucamp.simplertmp.packets.Aggregate;
 import com.github.faucamp.simplertmp.packets.Audio;
 import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.ContentData;
 import com.github.faucamp.simplertmp.packets.Data;
 import com.github.faucamp.simplertmp.packets.RtmpHeader;
 import com.github.faucamp.simplertmp.packets.RtmpPacket;
 import com.github.faucamp.simplertmp.packets.SetChunkSize;
 import com.github.faucamp.simplertmp.packets.SetPeerBandwidth;
 import com.github.faucamp.simplertmp.packets.UserControl;
+import com.github.faucamp.simplertmp.packets.VariableBodyRtmpPacket;
 import com.github.faucamp.simplertmp.packets.Video;
 import com.github.faucamp.simplertmp.packets.WindowAckSize;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * @author francois
@@ -27,29 +32,144 @@ public class RtmpDecoder {
     private static final String TAG = "RtmpDecoder";
 
     private RtmpSessionInfo rtmpSessionInfo;
+    // Size of the last chunk read, headers included
+    private int chunkBytesRead;
+    private boolean reuseBuffers = false;
+    // Header read next, the one it replaces on its chunk stream is recycled in turn
+    private RtmpHeader spareHeader;
+    private final ByteBufferInputStream messageStream = new ByteBufferInputStream();
+    private boolean amfBufferCodec = false;
+    private final AmfBufferCodec amfCodec = new AmfBufferCodec();
 
     public RtmpDecoder(RtmpSessionInfo rtmpSessionInfo) {
         this.rtmpSessionInfo = rtmpSessionInfo;
     }
 
-    public RtmpPacket readPacket(InputStream in) throws IOException {
+    /**
+     * set whether headers and message buffers are recycled instead of allocated for each chunk.
+     * Audio and video packets then hold a slice of the reassembly buffer of their chunk stream
+     * instead of a copy, see {@link ContentData#size()} for its length. A packet and its header
+     * are only valid until the next chunk of the same chunk stream is read.
+     */
+    public void setReuseBuffers(boolean reuse) {
+        reuseBuffers = reuse;
+    }
+
+    /**
+     * set whether commands and data messages are decoded by {@link AmfBufferCodec} instead of
+     * the stream based AMF classes. AMF3 messages are always decoded by the codec. Along with
+     * {@link #setReuseBuffers}, string values are decoded lazily and must be read before the
+     * next chunk of the same chunk stream.
+     */
+    public void setAmfBufferCodec(boolean enabled) {
+        amfBufferCodec = enabled;
+    }
 
-        RtmpHeader header = RtmpHeader.readHeader(in, rtmpSessionInfo);
+    /**
+     * Computes the size of the chunk starting at the buffer position, without consuming it
+     * nor updating the session, so that non-blocking readers only decode complete chunks.
+     *
+     * @return the chunk size in bytes, or -1 if the buffer does not hold its whole header yet
+     */
+    public int peekChunkSize(ByteBuffer buf) throws IOException {
+        int pos = buf.position();
+        int available = buf.remaining();
+        if (available < 1) {
+            return -1;
+        }
+        int basicHeaderByte = buf.get(pos) & 0xff;
+        RtmpHeader.ChunkType chunkType = RtmpHeader.ChunkType.valueOf((byte) (basicHeaderByte >>> 6));
+        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(basicHeaderByte & 0x3f);
+        RtmpHeader prevHeader = chunkStreamInfo.prevHeaderRx();
+        if (prevHeader == null && chunkType != RtmpHeader.ChunkType.TYPE_0_FULL && chunkType != RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE) {
+            throw new IOException("No previous header for chunk type " + chunkType + " on chunk stream " + (basicHeaderByte & 0x3f));
+        }
+
+        int headerSize;
+        int packetLength;
+        boolean extendedTimestamp;
+        if (chunkType == RtmpHeader.ChunkType.TYPE_0_FULL || chunkType == RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE) {
+            headerSize = chunkType == RtmpHeader.ChunkType.TYPE_0_FULL ? 12 : 8;
+            if (available < headerSize) {
+                return -1;
+            }
+            extendedTimestamp = readUnsignedInt24(buf, pos + 1) >= 0xffffff;
+            packetLength = readUnsignedInt24(buf, pos + 4);
+        } else if (chunkType == RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY) {
+            headerSize = 4;
+            if (available < headerSize) {
+                return -1;
+            }
+            extendedTimestamp = readUnsignedInt24(buf, pos + 1) >= 0xffffff;
+            packetLength = prevHeader.getPacketLength();
+        } else {
+            headerSize = 1;
+            extendedTimestamp = prevHeader.getExtendedTimestamp() != 0;
+            packetLength = prevHeader.getPacketLength();
+        }
+        if (extendedTimestamp) {
+            headerSize += 4;
+        }
+
+        // Same body size as read by readPacket()
+        int chunkSize = rtmpSessionInfo.getRxChunkSize();
+        int bodySize = packetLength > chunkSize
+                ? Math.min(packetLength - chunkStreamInfo.getStoredChunksSize(), chunkSize) : packetLength;
+        return headerSize + bodySize;
+    }
+
+    private static int readUnsignedInt24(ByteBuffer buf, int index) {
+        return ((buf.get(index) & 0xff) << 16) | ((buf.get(index + 1) & 0xff) << 8) | (buf.get(index + 2) & 0xff);
+    }
+
+    /**
+     * Reads one chunk, and the packet if the chunk completes it.
+     *
+     * @return the packet, or null if the chunk does not complete one
+     * @throws WindowAckRequired if the chunk fills the acknowledgement window, carrying the
+     *                           packet read if any, so that it can be handled after acknowledging
+     */
+    public RtmpPacket readPacket(InputStream in) throws IOException, WindowAckRequired {
+        RtmpPacket rtmpPacket = readChunk(in);
+        rtmpSessionInfo.addToWindowBytesRead(chunkBytesRead, rtmpPacket);
+        return rtmpPacket;
+    }
+
+    private RtmpPacket readChunk(InputStream in) throws IOException {
+
+        RtmpHeader header;
+        if (reuseBuffers) {
+            header = RtmpHeader.readHeader(in, rtmpSessionInfo, spareHeader != null ? spareHeader : new RtmpHeader());
+        } else {
+            header = RtmpHeader.readHeader(in, rtmpSessionInfo);
+        }
         // Log.d(TAG, "readPacket(): header.messageType: " + header.getMessageType());
 
         ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(header.getChunkStreamId());
+        if (reuseBuffers) {
+            spareHeader = chunkStreamInfo.prevHeaderRx();
+        }
         chunkStreamInfo.setPrevHeaderRx(header);
 
-        if (header.getPacketLength() > rtmpSessionInfo.getRxChunkSize()) {
+        chunkBytesRead = headerSize(header);
+        ByteBuffer message = null;
+        boolean decodeAmfBuffer = isAmf3(header) || (amfBufferCodec && isAmf0(header));
+        if (header.getPacketLength() > rtmpSessionInfo.getRxChunkSize() || reuseBuffers || decodeAmfBuffer) {
+            chunkBytesRead += Math.min(header.getPacketLength() - chunkStreamInfo.getStoredChunksSize(),
+                    rtmpSessionInfo.getRxChunkSize());
             // If the packet consists of more than one chunk,
             // store the chunks in the chunk stream until everything is read
             if (!chunkStreamInfo.storePacketChunk(in, rtmpSessionInfo.getRxChunkSize())) {
                 // return null because of incomplete packet
                 return null;
             } else {
-                // stored chunks complete packet, get the input stream of the chunk stream
-                in = chunkStreamInfo.getStoredPacketInputStream();
+                // stored chunks complete packet, read it from the buffer of the chunk stream
+                message = chunkStreamInfo.takeStoredPacket();
+                messageStream.setBuffer(message);
+                in = messageStream;
             }
+        } else {
+            chunkBytesRead += header.getPacketLength();
         }
 
         RtmpPacket rtmpPacket;
@@ -72,16 +192,56 @@ public class RtmpDecoder {
             rtmpPacket = new Audio(header);
         } else if (header.getMessageType() == RtmpHeader.MessageType.VIDEO) {
             rtmpPacket = new Video(header);
-        } else if (header.getMessageType() == RtmpHeader.MessageType.COMMAND_AMF0) {
+        } else if (header.getMessageType() == RtmpHeader.MessageType.COMMAND_AMF0
+                || header.getMessageType() == RtmpHeader.MessageType.COMMAND_AMF3) {
             rtmpPacket = new Command(header);
-        } else if (header.getMessageType() == RtmpHeader.MessageType.DATA_AMF0) {
+        } else if (header.getMessageType() == RtmpHeader.MessageType.DATA_AMF0
+                || header.getMessageType() == RtmpHeader.MessageType.DATA_AMF3) {
             rtmpPacket = new Data(header);
+        } else if (header.getMessageType() == RtmpHeader.MessageType.AGGREGATE_MESSAGE) {
+            rtmpPacket = new Aggregate(header);
         } else if (header.getMessageType() == RtmpHeader.MessageType.ACKNOWLEDGEMENT) {
             rtmpPacket = new Acknowledgement(header);
         } else {
             throw new IOException("No packet body implementation for message type: " + header.getMessageType());
         }
-        rtmpPacket.readBody(in);
+        if (reuseBuffers && rtmpPacket instanceof ContentData) {
+            ((ContentData) rtmpPacket).setData(message.array(), message.remaining());
+        } else if (decodeAmfBuffer) {
+            amfCodec.setLazyStrings(reuseBuffers);
+            ((VariableBodyRtmpPacket) rtmpPacket).readBody(message, amfCodec);
+        } else {
+            rtmpPacket.readBody(in);
+        }
         return rtmpPacket;
     }
+
+    private static boolean isAmf0(RtmpHeader header) {
+        return header.getMessageType() == RtmpHeader.MessageType.COMMAND_AMF0
+                || header.getMessageType() == RtmpHeader.MessageType.DATA_AMF0;
+    }
+
+    private static boolean isAmf3(RtmpHeader header) {
+        return header.getMessageType() == RtmpHeader.MessageType.COMMAND_AMF3
+                || header.getMessageType() == RtmpHeader.MessageType.DATA_AMF3;
+    }
+
+    private static int headerSize(RtmpHeader header) {
+        int size;
+        switch (header.getChunkType()) {
+            case TYPE_0_FULL:
+                size = 12;
+                break;
+            case TYPE_1_RELATIVE_LARGE:
+                size = 8;
+                break;
+            case TYPE_2_RELATIVE_TIMESTAMP_ONLY:
+                size = 4;
+                break;
+            default:
+                size = 1;
+                break;
+        }
+        return header.getExtendedTimestamp() != 0 ? size + 4 : size;
+    }
 }
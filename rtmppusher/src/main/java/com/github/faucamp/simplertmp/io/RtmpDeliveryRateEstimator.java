@@ -0,0 +1,72 @@
+package com.github.faucamp.simplertmp.io;
+
+/**
+ * Estimates the delivery rate of a connection from the Acknowledgement messages of the server,
+ * which report the number of bytes it has received so far.
+ * <p>
+ * The rate is the number of bytes acknowledged over the last few seconds, so it drops as soon
+ * as the acknowledgements stop coming. While the publisher sends less than the link could carry,
+ * it is the sending rate rather than the capacity of the link.
+ */
+class RtmpDeliveryRateEstimator {
+
+    private static final int WINDOW_MS = 4000;
+    private static final int MAX_SAMPLES = 64;
+
+    // Ring of (time, total acknowledged bytes) samples, oldest at head
+    private final long[] sampleTimes = new long[MAX_SAMPLES];
+    private final long[] sampleBytes = new long[MAX_SAMPLES];
+    private int head;
+    private int count;
+    private int lastSequenceNumber;
+    private long acknowledgedBytes = -1;
+
+    /**
+     * @param nowMs          the current time in milliseconds, from a monotonic clock
+     * @param sequenceNumber the number of bytes received by the server, wrapping at 2^32
+     */
+    synchronized void onAcknowledgement(long nowMs, int sequenceNumber) {
+        if (acknowledgedBytes < 0) {
+            acknowledgedBytes = sequenceNumber & 0xffffffffL;
+        } else {
+            acknowledgedBytes += (sequenceNumber - lastSequenceNumber) & 0xffffffffL;
+        }
+        lastSequenceNumber = sequenceNumber;
+
+        if (count == MAX_SAMPLES) {
+            head = (head + 1) % MAX_SAMPLES;
+            count--;
+        }
+        int tail = (head + count) % MAX_SAMPLES;
+        sampleTimes[tail] = nowMs;
+        sampleBytes[tail] = acknowledgedBytes;
+        count++;
+    }
+
+    /**
+     * @return the number of bytes acknowledged by the server, or -1 before the first acknowledgement
+     */
+    synchronized long getAcknowledgedBytes() {
+        return acknowledgedBytes;
+    }
+
+    /**
+     * @param nowMs the current time in milliseconds, from the clock given to {@link #onAcknowledgement}
+     * @return the delivery rate in bps, or -1 before two acknowledgements
+     */
+    synchronized double getDeliveryRate(long nowMs) {
+        // Keep one sample at or before the window start as the base of the rate
+        while (count > 1 && sampleTimes[(head + 1) % MAX_SAMPLES] <= nowMs - WINDOW_MS) {
+            head = (head + 1) % MAX_SAMPLES;
+            count--;
+        }
+        if (count == 0 || (count == 1 && nowMs - sampleTimes[head] < WINDOW_MS)) {
+            return -1;
+        }
+        long elapsed = nowMs - sampleTimes[head];
+        if (elapsed <= 0) {
+            return -1;
+        }
+        return (double) (acknowledgedBytes - sampleBytes[head]) * 8 * 1000 / elapsed;
+    }
+}
@@ -0,0 +1,189 @@
+package com.github.faucamp.simplertmp.io;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector thread shared by non-blocking RTMP connections.
+ * <p>
+ * Handshakes, reads, decoding and writes of all the connections created with the same loop
+ * are driven by its single thread, instead of a reader and a writer thread per connection.
+ * Several loops can be used to spread many connections over a few threads.
+ */
+public class RtmpEventLoop implements Runnable {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "RtmpEventLoop";
+
+    /**
+     * Handler of a registered channel, invoked on the loop thread
+     */
+    public interface ChannelHandler {
+
+        /**
+         * Called when the channel is ready for some of its interest operations
+         */
+        void onSelected(SelectionKey key);
+    }
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Guarded by itself, ordered by due time
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+    private Thread loopThread;
+    private volatile boolean running = false;
+
+    public RtmpEventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    public synchronized void start() {
+        if (loopThread != null) {
+            return;
+        }
+        running = true;
+        loopThread = new Thread(this, "RtmpEventLoop");
+        loopThread.start();
+    }
+
+    /**
+     * Stops the loop thread and closes the selector, the registered channels are left open
+     */
+    public synchronized void stop() {
+        if (loopThread == null) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            loopThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        loopThread = null;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            if (DEBUG) Log.e(TAG, "stop(): failed to close selector", e);
+        }
+    }
+
+    /**
+     * Runs the task on the loop thread, as soon as the current selection is done
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread once the delay has elapsed
+     */
+    public void schedule(Runnable task, long delayMs) {
+        synchronized (scheduledTasks) {
+            scheduledTasks.add(new ScheduledTask(System.nanoTime() / 1000000 + delayMs, task));
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * @return true if called from the loop thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == loopThread;
+    }
+
+    /**
+     * Registers the channel on the loop selector, must be called from the loop thread
+     */
+    SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                long timeout = nextScheduledTimeout();
+                if (timeout < 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+            } catch (IOException e) {
+                if (DEBUG) Log.e(TAG, "run(): select failed", e);
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            while ((task = pollScheduledTask()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                try {
+                    if (key.isValid()) {
+                        ((ChannelHandler) key.attachment()).onSelected(key);
+                    }
+                } catch (CancelledKeyException e) {
+                    // The channel has been closed by another thread
+                    if (DEBUG) Log.d(TAG, "run(): key cancelled");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the time until the next scheduled task is due, 0 if none is scheduled,
+     * -1 if one is already due
+     */
+    private long nextScheduledTimeout() {
+        synchronized (scheduledTasks) {
+            ScheduledTask next = scheduledTasks.peek();
+            if (next == null) {
+                return 0;
+            }
+            long timeout = next.dueTime - System.nanoTime() / 1000000;
+            return timeout > 0 ? timeout : -1;
+        }
+    }
+
+    private Runnable pollScheduledTask() {
+        synchronized (scheduledTasks) {
+            ScheduledTask next = scheduledTasks.peek();
+            if (next == null || next.dueTime > System.nanoTime() / 1000000) {
+                return null;
+            }
+            return scheduledTasks.poll().task;
+        }
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        final long dueTime;
+        final Runnable task;
+
+        ScheduledTask(long dueTime, Runnable task) {
+            this.dueTime = dueTime;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            return dueTime < other.dueTime ? -1 : (dueTime == other.dueTime ? 0 : 1);
+        }
+    }
+}
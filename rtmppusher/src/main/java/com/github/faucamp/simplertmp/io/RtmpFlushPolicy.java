@@ -0,0 +1,73 @@
+package com.github.faucamp.simplertmp.io;
+
+/**
+ * When the bytes of the audio and video messages are handed to the socket.
+ * <p>
+ * Holding them back in the write buffer of the connection lets several small messages,
+ * e.g. audio frames, go out in one write call and TCP segment instead of one each.
+ * Protocol control and command messages always flush the buffer, and writes larger than the
+ * buffer go straight to the socket once the buffer has been flushed.
+ */
+public class RtmpFlushPolicy {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Every message is written as soon as it has been encoded
+     */
+    public static final RtmpFlushPolicy IMMEDIATE = new RtmpFlushPolicy(0, 0, false, DEFAULT_BUFFER_SIZE);
+
+    private final int flushBytes;
+    private final int maxDelayMs;
+    private final boolean flushOnKeyframe;
+    private final int bufferSize;
+
+    /**
+     * The buffer is flushed as soon as one of the conditions is met, or when it is full.
+     * The policy is immediate if none is set. Otherwise the max delay is required, it bounds
+     * the time a message is held, e.g. audio waiting for a keyframe or for enough bytes.
+     *
+     * @param flushBytes      the number of buffered bytes that triggers a write, 0 for none
+     * @param maxDelayMs      the age of the oldest buffered byte that triggers a write, 0 only
+     *                        for the immediate policy
+     * @param flushOnKeyframe whether a video keyframe triggers a write once buffered
+     * @param bufferSize      the size of the write buffer, in bytes
+     */
+    public RtmpFlushPolicy(int flushBytes, int maxDelayMs, boolean flushOnKeyframe, int bufferSize) {
+        if (flushBytes < 0 || maxDelayMs < 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Invalid flush policy: " + flushBytes + " bytes, "
+                    + maxDelayMs + " ms, buffer of " + bufferSize + " bytes");
+        }
+        if (maxDelayMs == 0 && (flushBytes > 0 || flushOnKeyframe)) {
+            throw new IllegalArgumentException("Flush policy without max delay holds messages without bound: "
+                    + flushBytes + " bytes, flush on keyframe " + flushOnKeyframe);
+        }
+        this.flushBytes = Math.min(flushBytes, bufferSize);
+        this.maxDelayMs = maxDelayMs;
+        this.flushOnKeyframe = flushOnKeyframe;
+        this.bufferSize = bufferSize;
+    }
+
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    public int getMaxDelayMs() {
+        return maxDelayMs;
+    }
+
+    public boolean isFlushOnKeyframe() {
+        return flushOnKeyframe;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return true if nothing is held back in the buffer
+     */
+    public boolean isImmediate() {
+        return flushBytes == 0 && maxDelayMs == 0 && !flushOnKeyframe;
+    }
+}
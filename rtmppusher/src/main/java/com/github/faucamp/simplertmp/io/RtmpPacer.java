@@ -0,0 +1,62 @@
+package com.github.faucamp.simplertmp.io;
+
+/**
+ * Token bucket releasing the video bytes of a connection at the target bitrate plus some
+ * headroom, so that a keyframe is spread over the frame interval instead of being written in
+ * one burst that overflows the queue of the bottleneck link.
+ * <p>
+ * Tokens are bytes, refilled at the pacing rate up to the bucket size, which is the largest
+ * burst sent after an idle period. A burst may be written as long as the bucket is not empty
+ * and overdraws it, the next one waits until it has been refilled. Audio and control messages
+ * bypass the bucket.
+ */
+class RtmpPacer {
+
+    private double bytesPerNano;
+    private final int bucketBytes;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param targetBitrate   the bitrate of the video, in bps
+     * @param headroomPercent the pacing rate in excess of the target bitrate, in percent
+     * @param bucketBytes     the largest burst, in bytes
+     */
+    RtmpPacer(int targetBitrate, int headroomPercent, int bucketBytes) {
+        this.bucketBytes = bucketBytes;
+        setRate(targetBitrate, headroomPercent);
+        tokens = bucketBytes;
+        lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Changes the pacing rate, e.g. when the encoder bitrate is adapted, keeping the tokens
+     */
+    synchronized void setRate(int targetBitrate, int headroomPercent) {
+        bytesPerNano = (double) targetBitrate * (100 + headroomPercent) / 100 / 8 / 1e9;
+    }
+
+    /**
+     * @return the time until a burst may be written, 0 if it may be written now, in nanoseconds
+     */
+    synchronized long getDelayNanos(long nowNanos) {
+        refill(nowNanos);
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / bytesPerNano);
+    }
+
+    /**
+     * Takes the tokens of the bytes written, the bucket may be overdrawn
+     */
+    synchronized void consume(long bytes, long nowNanos) {
+        refill(nowNanos);
+        tokens -= bytes;
+    }
+
+    private void refill(long nowNanos) {
+        long elapsed = nowNanos - lastRefillNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(bucketBytes, tokens + elapsed * bytesPerNano);
+            lastRefillNanos = nowNanos;
+        }
+    }
+}
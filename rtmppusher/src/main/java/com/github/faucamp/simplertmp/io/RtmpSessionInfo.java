@@ -32,7 +32,7 @@ public class RtmpSessionInfo {
     private Map<Integer, ChunkStreamInfo> chunkChannels = new HashMap<>();
     private Map<Integer, String> invokedMethods = new ConcurrentHashMap<>();
 
-    public ChunkStreamInfo getChunkStreamInfo(int chunkStreamId) {
+    public synchronized ChunkStreamInfo getChunkStreamInfo(int chunkStreamId) {
         ChunkStreamInfo chunkStreamInfo = chunkChannels.get(chunkStreamId);
         if (chunkStreamInfo == null) {
             chunkStreamInfo = new ChunkStreamInfo();
@@ -77,7 +77,8 @@ public class RtmpSessionInfo {
      * Add the specified amount of bytes to the total number of bytes read for this RTMP window;
      *
      * @param numBytes the number of bytes to add
-     * @return <code>true</code> if an "acknowledgement" packet should be sent, <code>false</code> otherwise
+     * @param packet   the packet completed by these bytes, can be <code>null</code>
+     * @throws WindowAckRequired if an "acknowledgement" packet should be sent
      */
     public final void addToWindowBytesRead(final int numBytes, final RtmpPacket packet) throws WindowAckRequired {
         windowBytesRead += numBytes;
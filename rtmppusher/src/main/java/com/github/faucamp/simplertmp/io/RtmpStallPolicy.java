@@ -0,0 +1,50 @@
+package com.github.faucamp.simplertmp.io;
+
+/**
+ * What the connection does once its writes have made no progress for some time, e.g. when
+ * the uplink stalls.
+ * <p>
+ * A write is stalled from the moment it blocks, or a non-blocking channel is full, until the
+ * socket takes bytes again. Several policies may be set with growing thresholds, each of them
+ * is triggered once per stall, see {@link RtmpConnection#setStallPolicies}.
+ */
+public class RtmpStallPolicy {
+
+    public enum Action {
+        /**
+         * Drops the queued video up to the next keyframe, and the video published meanwhile,
+         * so that the stream resumes with a keyframe instead of a stale backlog
+         */
+        DROP_TO_KEYFRAME,
+        /**
+         * Only notifies the stall listener, which is expected to lower the encoder bitrate
+         */
+        LOWER_BITRATE,
+        /**
+         * Fails the connection, to be connected again by the publisher owner
+         */
+        RECONNECT
+    }
+
+    private final int thresholdMs;
+    private final Action action;
+
+    /**
+     * @param thresholdMs the time a write has been stalled when the action is taken
+     */
+    public RtmpStallPolicy(int thresholdMs, Action action) {
+        if (thresholdMs <= 0 || action == null) {
+            throw new IllegalArgumentException("Invalid stall policy: " + action + " after " + thresholdMs + " ms");
+        }
+        this.thresholdMs = thresholdMs;
+        this.action = action;
+    }
+
+    public int getThresholdMs() {
+        return thresholdMs;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Watches how long the writes of a chunk scheduler have made no progress, and triggers the
+ * stall policies whose thresholds are crossed.
+ * <p>
+ * Checks run periodically on a thread of the watchdog for blocking connections, whose writer
+ * thread is the one stalled, or as tasks of the event loop for non-blocking ones. Stall
+ * durations are measured to the check interval.
+ */
+class RtmpStallWatchdog implements Runnable {
+
+    private static final int MIN_CHECK_INTERVAL_MS = 10;
+    private static final int MAX_CHECK_INTERVAL_MS = 250;
+
+    /**
+     * Callbacks invoked on the checking thread
+     */
+    interface Listener {
+
+        /**
+         * Called once a write has been stalled for the threshold of the policy
+         */
+        void onStallPolicy(RtmpStallPolicy policy, long stalledMs);
+
+        /**
+         * Called when a stall that triggered a policy is over, or the watchdog stopped during it
+         */
+        void onStallEnded(long durationMs);
+    }
+
+    private final RtmpChunkScheduler scheduler;
+    private final RtmpStallPolicy[] policies;
+    private final Listener listener;
+    private final int checkIntervalMs;
+    private RtmpEventLoop eventLoop;
+    private Thread thread;
+    private volatile boolean running = false;
+    // Start of the stall being watched, 0 if none, and the number of policies it triggered
+    private long stallStartNanos = 0;
+    private int triggered = 0;
+
+    RtmpStallWatchdog(RtmpChunkScheduler scheduler, RtmpStallPolicy[] policies, Listener listener) {
+        this.scheduler = scheduler;
+        this.policies = policies.clone();
+        Arrays.sort(this.policies, new Comparator<RtmpStallPolicy>() {
+            @Override
+            public int compare(RtmpStallPolicy a, RtmpStallPolicy b) {
+                return a.getThresholdMs() - b.getThresholdMs();
+            }
+        });
+        this.listener = listener;
+        checkIntervalMs = Math.max(MIN_CHECK_INTERVAL_MS,
+                Math.min(MAX_CHECK_INTERVAL_MS, this.policies[0].getThresholdMs() / 4));
+    }
+
+    /**
+     * Starts checking on a thread of its own
+     */
+    void start() {
+        running = true;
+        thread = new Thread(this, "RtmpStallWatchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts checking on the started event loop
+     */
+    void start(RtmpEventLoop eventLoop) {
+        running = true;
+        this.eventLoop = eventLoop;
+        eventLoop.schedule(this, checkIntervalMs);
+    }
+
+    /**
+     * Stops checking, the end of a triggered stall is reported right away
+     */
+    void stop() {
+        synchronized (this) {
+            running = false;
+            endStall(System.nanoTime());
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        thread = null;
+    }
+
+    @Override
+    public void run() {
+        if (eventLoop != null) {
+            check(System.nanoTime());
+            if (running) {
+                eventLoop.schedule(this, checkIntervalMs);
+            }
+            return;
+        }
+        while (running) {
+            try {
+                Thread.sleep(checkIntervalMs);
+            } catch (InterruptedException e) {
+                break;
+            }
+            check(System.nanoTime());
+        }
+    }
+
+    private synchronized void check(long nowNanos) {
+        if (!running) {
+            return;
+        }
+        long stalledSince = scheduler.getStalledSince();
+        if (stalledSince != stallStartNanos) {
+            endStall(nowNanos);
+        }
+        if (stalledSince == 0) {
+            return;
+        }
+        stallStartNanos = stalledSince;
+        long stalledMs = (nowNanos - stalledSince) / 1000000;
+        while (triggered < policies.length && stalledMs >= policies[triggered].getThresholdMs()) {
+            listener.onStallPolicy(policies[triggered++], stalledMs);
+        }
+    }
+
+    private void endStall(long nowNanos) {
+        if (triggered > 0) {
+            listener.onStallEnded((nowNanos - stallStartNanos) / 1000000);
+        }
+        stallStartNanos = 0;
+        triggered = 0;
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.RtmpMetrics;
+import com.github.faucamp.simplertmp.packets.Aggregate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A publish session of an {@link RtmpConnection}, on a message stream created by the server
+ * and with chunk streams of its own for its audio and video.
+ * <p>
+ * All the streams of a connection share its socket, and so its congestion window: their
+ * messages are interleaved by the chunk scheduler in priority order, control first, then
+ * audio, then video. Each stream keeps its own metrics. The stream of
+ * {@link RtmpConnection#publish} is the main one, the others are added by
+ * {@link RtmpConnection#publishStream} and end with the connection.
+ */
+public class RtmpStream {
+
+    private final RtmpConnection connection;
+    final String name;
+    final String publishType;
+    final int audioChunkStreamId;
+    final int videoChunkStreamId;
+    final RtmpMetrics metrics;
+    final AtomicInteger videoFrameCacheNumber;
+    // Message stream id given by the server, 0 until created and once closed
+    volatile int id = 0;
+    // Transaction of the createStream command, matched against the reply
+    volatile int createTransactionId = 0;
+    volatile boolean published = false;
+    // Set when the server answers the publish command with an error
+    volatile boolean publishRejected = false;
+    // Set on the first frame sent, the listener is notified once per track of the main stream
+    volatile boolean videoStreaming = false;
+    volatile boolean audioStreaming = false;
+    // Set by a stall policy, published video is dropped until the next keyframe
+    volatile boolean dropVideoUntilKeyframe = false;
+    volatile int videoWidth;
+    volatile int videoHeight;
+    // Pending aggregate of each track, guarded by the aggregate lock of the connection
+    Aggregate audioAggregate;
+    Aggregate videoAggregate;
+
+    RtmpStream(RtmpConnection connection, String name, String publishType,
+               int audioChunkStreamId, int videoChunkStreamId, RtmpMetrics metrics) {
+        this.connection = connection;
+        this.name = name;
+        this.publishType = publishType;
+        this.audioChunkStreamId = audioChunkStreamId;
+        this.videoChunkStreamId = videoChunkStreamId;
+        this.metrics = metrics;
+        videoFrameCacheNumber = metrics.getQueuedVideoFrames();
+    }
+
+    /**
+     * Publishes a video tag on this stream, see {@link RtmpConnection#publishVideoData}
+     */
+    public void publishVideoData(byte[] data, int size, int dts) {
+        connection.publishVideoData(this, data, size, dts);
+    }
+
+    /**
+     * Publishes an audio tag on this stream, see {@link RtmpConnection#publishAudioData}
+     */
+    public void publishAudioData(byte[] data, int size, int dts) {
+        connection.publishAudioData(this, data, size, dts);
+    }
+
+    /**
+     * Stops publishing and deletes the stream, the connection and its other streams are kept
+     */
+    public void close() {
+        connection.closeStream(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the message stream id, 0 if not created or closed
+     */
+    public int getStreamId() {
+        return id;
+    }
+
+    public boolean isPublished() {
+        return published;
+    }
+
+    /**
+     * @return the streaming metrics of this stream, those of the main stream also record the
+     * events of the connection, e.g. stalls
+     */
+    public RtmpMetrics getMetrics() {
+        return metrics;
+    }
+
+    public AtomicInteger getVideoFrameCacheNumber() {
+        return videoFrameCacheNumber;
+    }
+
+    /**
+     * set the video resolution sent in the metadata, before publishing
+     */
+    public void setVideoResolution(int width, int height) {
+        videoWidth = width;
+        videoHeight = height;
+    }
+}
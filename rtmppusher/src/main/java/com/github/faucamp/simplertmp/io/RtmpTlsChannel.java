@@ -0,0 +1,387 @@
+package com.github.faucamp.simplertmp.io;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TLS transport of rtmps connections, encrypting and decrypting through an {@link SSLEngine}
+ * on top of a connected socket channel, in blocking or non-blocking mode.
+ * <p>
+ * Engines are created for the host and port from a single context, whose client session cache
+ * keeps the sessions and tickets of each host, so that reconnects resume them instead of making
+ * a full handshake. Gathering writes are encrypted straight from the chunk header and payload
+ * buffers, a video burst of the chunk scheduler filling a single TLS record.
+ * <p>
+ * Reads and writes may run concurrently on two threads, handshakes must not overlap them.
+ */
+class RtmpTlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "RtmpTlsChannel";
+
+    /**
+     * Largest plaintext of a TLS record
+     */
+    static final int MAX_RECORD_PAYLOAD = 16 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static SSLContext defaultContext;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final String host;
+    private final HostnameVerifier hostnameVerifier;
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    // Received records, in write mode, guarded by readLock
+    private ByteBuffer netIn;
+    // Decrypted bytes not read yet, in read mode, guarded by readLock
+    private ByteBuffer appIn;
+    // Encrypted records not written yet, in read mode, guarded by writeLock
+    private ByteBuffer netOut;
+    private boolean handshakeStarted = false;
+
+    /**
+     * @param context          the context to create the engine from, or null for the one shared
+     *                         by all the connections
+     * @param hostnameVerifier checks the certificate against the host once the handshake is done
+     */
+    RtmpTlsChannel(SocketChannel channel, SSLContext context, String host, int port,
+                   HostnameVerifier hostnameVerifier) throws IOException {
+        this.channel = channel;
+        this.host = host;
+        this.hostnameVerifier = hostnameVerifier;
+        // The host and port are the key of the session cache, and the server name sent
+        engine = (context != null ? context : getDefaultContext()).createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        appIn.flip();
+        netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        netOut.flip();
+    }
+
+    private static synchronized SSLContext getDefaultContext() throws IOException {
+        if (defaultContext == null) {
+            try {
+                // Not the platform default, whose cache other clients of the app may fill up
+                defaultContext = SSLContext.getInstance("TLS");
+                defaultContext.init(null, null, null);
+            } catch (GeneralSecurityException e) {
+                throw new SSLException("No TLS context", e);
+            }
+        }
+        return defaultContext;
+    }
+
+    /**
+     * Advances the TLS handshake. On a blocking channel, returns once it is done.
+     *
+     * @return 0 once the handshake is done, otherwise the operation a non-blocking channel has
+     * to be ready for before calling again, {@link SelectionKey#OP_READ} or {@link SelectionKey#OP_WRITE}
+     */
+    int handshake() throws IOException {
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                if (!handshakeStarted) {
+                    engine.beginHandshake();
+                    handshakeStarted = true;
+                }
+                while (true) {
+                    if (!flushNetOut()) {
+                        return SelectionKey.OP_WRITE;
+                    }
+                    switch (engine.getHandshakeStatus()) {
+                        case NEED_TASK:
+                            runDelegatedTasks();
+                            break;
+                        case NEED_WRAP:
+                            wrap(new ByteBuffer[]{EMPTY}, 0, 1);
+                            break;
+                        case NEED_UNWRAP:
+                            SSLEngineResult.Status status = unwrap().getStatus();
+                            if (status == SSLEngineResult.Status.CLOSED) {
+                                throw new SSLException("TLS handshake closed by peer");
+                            } else if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                                int n = channel.read(netIn);
+                                if (n < 0) {
+                                    throw new EOFException("Connection closed during TLS handshake");
+                                } else if (n == 0) {
+                                    return SelectionKey.OP_READ;
+                                }
+                            }
+                            break;
+                        default:
+                            if (!hostnameVerifier.verify(host, engine.getSession())) {
+                                throw new SSLPeerUnverifiedException("Certificate not valid for " + host);
+                            }
+                            if (DEBUG) Log.d(TAG, "handshake(): done with " + engine.getSession().getProtocol()
+                                    + " " + engine.getSession().getCipherSuite());
+                            return 0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the TLS session, negotiated once the handshake is done
+     */
+    SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    /**
+     * Decrypts the received records into the buffer, reading the channel only if nothing
+     * was decrypted yet
+     *
+     * @return the number of bytes read, 0 if a non-blocking channel has no complete record,
+     * or -1 once the peer closed the connection
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            int read = 0;
+            while (dst.hasRemaining()) {
+                if (appIn.hasRemaining()) {
+                    read += transfer(appIn, dst);
+                    continue;
+                }
+                SSLEngineResult.Status status = SSLEngineResult.Status.BUFFER_UNDERFLOW;
+                if (netIn.position() > 0) {
+                    status = unwrap().getStatus();
+                    onPostHandshake();
+                }
+                if (status == SSLEngineResult.Status.CLOSED) {
+                    return read > 0 ? read : -1;
+                } else if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    // A blocking read would wait for bytes while some are ready to be handled
+                    if (read > 0) {
+                        break;
+                    }
+                    int n = channel.read(netIn);
+                    if (n < 0) {
+                        return -1;
+                    } else if (n == 0) {
+                        break;
+                    }
+                }
+            }
+            return read;
+        }
+    }
+
+    /**
+     * @return true if decrypted bytes are left over from the last read, which the channel
+     * will not signal as readable
+     */
+    boolean hasBufferedInput() {
+        synchronized (readLock) {
+            return appIn.hasRemaining();
+        }
+    }
+
+    /**
+     * Encrypts the buffers into records and writes them. On a non-blocking channel, the
+     * records not written yet are kept and written first by the next write or {@link #flush}.
+     *
+     * @return the number of bytes encrypted, 0 if records of the previous writes are left
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            if (!flushNetOut()) {
+                return 0;
+            }
+            long consumed = 0;
+            while (hasRemaining(srcs, offset, length)) {
+                consumed += wrap(srcs, offset, length).bytesConsumed();
+                if (!flushNetOut()) {
+                    break;
+                }
+            }
+            return consumed;
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    /**
+     * Writes the records left by the previous writes
+     *
+     * @return true if none is left, false if a non-blocking channel is full
+     */
+    boolean flush() throws IOException {
+        synchronized (writeLock) {
+            return flushNetOut();
+        }
+    }
+
+    /**
+     * @return true if encrypted records wait for the channel to be writable
+     */
+    boolean hasPendingOutput() {
+        synchronized (writeLock) {
+            return netOut.hasRemaining();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends the close notification if the channel takes it right away, and closes the channel
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (writeLock) {
+                engine.closeOutbound();
+                if (flushNetOut()) {
+                    wrap(new ByteBuffer[]{EMPTY}, 0, 1);
+                    flushNetOut();
+                }
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Encrypts one record into netOut, which must be empty
+     */
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        netOut.clear();
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(srcs, offset, length, netOut);
+        } finally {
+            netOut.flip();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && hasRemaining(srcs, offset, length)) {
+            throw new SSLException("TLS connection closed");
+        } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            // The packet size only grows for records of a renegotiated session
+            netOut = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+            netOut.flip();
+        }
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+        }
+        return result;
+    }
+
+    /**
+     * Decrypts one record of netIn into appIn, growing them if too small
+     */
+    private SSLEngineResult unwrap() throws IOException {
+        appIn.compact();
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            int size = engine.getSession().getApplicationBufferSize();
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(size, appIn.capacity() * 2));
+            grown.put(appIn).flip();
+            appIn = grown;
+            return unwrap();
+        } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                && netIn.position() == netIn.capacity()) {
+            int size = engine.getSession().getPacketBufferSize();
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(size, netIn.capacity() * 2));
+            netIn.flip();
+            grown.put(netIn);
+            netIn = grown;
+        }
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+        }
+        return result;
+    }
+
+    /**
+     * Answers the handshake messages received after the handshake, e.g. key updates
+     */
+    private void onPostHandshake() throws IOException {
+        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            synchronized (writeLock) {
+                if (flushNetOut()) {
+                    wrap(new ByteBuffer[]{EMPTY}, 0, 1);
+                    flushNetOut();
+                }
+            }
+        }
+    }
+
+    private boolean flushNetOut() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static int transfer(ByteBuffer src, ByteBuffer dst) {
+        int n = Math.min(src.remaining(), dst.remaining());
+        if (n == src.remaining()) {
+            dst.put(src);
+        } else {
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            dst.put(src);
+            src.limit(limit);
+        }
+        return n;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,162 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Write buffer between the chunk writers and the socket channel, coalescing the writes of
+ * small messages until {@link #flush} is called. Writes that do not fit in the buffer go
+ * straight to the channel once the buffer is empty. Counts the write calls made on the
+ * channel, and tracks since when they have made no progress. Not thread safe, owned by the
+ * writing thread of the scheduler.
+ */
+class RtmpWriteBuffer implements GatheringByteChannel {
+
+    private final GatheringByteChannel channel;
+    private final ByteBuffer buffer;
+    private final ByteBuffer[] bufferArray;
+    private boolean holding = false;
+    private long oldestBufferedTime;
+    // Written by the writing thread only, read from any thread
+    private volatile long writeCalls;
+    private volatile long writtenBytes;
+    // Time since which bytes wait for the channel without progress, 0 if none
+    private volatile long stalledSince;
+
+    RtmpWriteBuffer(GatheringByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        bufferArray = new ByteBuffer[]{buffer};
+    }
+
+    /**
+     * set whether writes are held in the buffer, otherwise they go straight to the channel
+     */
+    void setHolding(boolean holding) {
+        this.holding = holding;
+    }
+
+    /**
+     * @return the number of bytes held in the buffer
+     */
+    int getBufferedBytes() {
+        return buffer.position();
+    }
+
+    /**
+     * @return the time the oldest byte held in the buffer was written, in milliseconds
+     */
+    long getOldestBufferedTime() {
+        return oldestBufferedTime;
+    }
+
+    /**
+     * Writes the buffered bytes to the channel
+     *
+     * @return true if the buffer is empty, false if a non-blocking channel is full
+     */
+    boolean flush() throws IOException {
+        if (buffer.position() == 0) {
+            return true;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                int n = (int) writeChannel(bufferArray, 0, 1, buffer.remaining());
+                if (n == 0) {
+                    break;
+                }
+            }
+        } finally {
+            buffer.compact();
+        }
+        return buffer.position() == 0;
+    }
+
+    long getWriteCalls() {
+        return writeCalls;
+    }
+
+    long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long size = 0;
+        for (int i = offset; i < offset + length; i++) {
+            size += srcs[i].remaining();
+        }
+        // Flushed first when it would fit in an empty buffer only
+        if (holding && size > buffer.remaining() && size <= buffer.capacity() && !flush()) {
+            return 0;
+        }
+        if (holding && size <= buffer.remaining()) {
+            if (buffer.position() == 0) {
+                oldestBufferedTime = System.nanoTime() / 1000000;
+            }
+            for (int i = offset; i < offset + length; i++) {
+                buffer.put(srcs[i]);
+            }
+            return size;
+        }
+        // Buffered bytes go first, the ones of a non-blocking channel that is full included
+        if (!flush()) {
+            return 0;
+        }
+        return writeChannel(srcs, offset, length, size);
+    }
+
+    /**
+     * @return the time the pending write call started, or the last time a non-blocking channel
+     * took bytes while leaving some, from the clock of {@link System#nanoTime}, 0 if the last
+     * write call wrote everything
+     */
+    long getStalledSince() {
+        return stalledSince;
+    }
+
+    private long writeChannel(ByteBuffer[] srcs, int offset, int length, long size) throws IOException {
+        if (stalledSince == 0) {
+            stalledSince = System.nanoTime();
+        }
+        long n;
+        try {
+            n = channel.write(srcs, offset, length);
+        } catch (IOException e) {
+            // Failed rather than stalled
+            stalledSince = 0;
+            throw e;
+        }
+        writeCalls++;
+        writtenBytes += n;
+        if (n == size) {
+            stalledSince = 0;
+        } else if (n > 0) {
+            // Progress, the rest waits for the channel from now on
+            stalledSince = System.nanoTime();
+        }
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
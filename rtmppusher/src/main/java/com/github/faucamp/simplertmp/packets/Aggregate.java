@@ -0,0 +1,100 @@
+package com.github.faucamp.simplertmp.packets;
+
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+
+/**
+ * Aggregate message, consecutive audio or video messages of one track sharing a single
+ * RTMP message header.
+ * <p>
+ * The body is a sequence of FLV tags: tag header (type, size, timestamp, stream ID),
+ * message body and the size of the tag. The message timestamp is the one of the first tag.
+ */
+public class Aggregate extends ContentData {
+
+    /**
+     * Tag header (11) + previous tag size (4)
+     */
+    public static final int TAG_OVERHEAD = 15;
+
+    private boolean video;
+    private int messageCount;
+    private int contentBytes;
+
+    public Aggregate(RtmpHeader header) {
+        super(header);
+    }
+
+    /**
+     * @param video  whether the messages are video messages, otherwise audio ones
+     * @param buffer the array the tags are written to, its length is the maximum body size
+     */
+    public Aggregate(boolean video, byte[] buffer) {
+        super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL,
+                video ? ChunkStreamInfo.RTMP_CID_VIDEO : ChunkStreamInfo.RTMP_CID_AUDIO,
+                RtmpHeader.MessageType.AGGREGATE_MESSAGE));
+        this.video = video;
+        setData(buffer, 0);
+    }
+
+    /**
+     * Appends a message of the track as an FLV tag, copying its body
+     *
+     * @return false if the buffer has no room left for it
+     */
+    public boolean add(byte[] body, int length, int timestamp) {
+        if (size + TAG_OVERHEAD + length > data.length) {
+            return false;
+        }
+        if (messageCount == 0) {
+            header.setAbsoluteTimestamp(timestamp);
+        }
+        int pos = size;
+        data[pos++] = (video ? RtmpHeader.MessageType.VIDEO : RtmpHeader.MessageType.AUDIO).getValue();
+        pos = writeInt24(data, pos, length);
+        pos = writeInt24(data, pos, timestamp & 0xffffff);
+        data[pos++] = (byte) (timestamp >>> 24);
+        // Stream ID, always 0
+        pos = writeInt24(data, pos, 0);
+        System.arraycopy(body, 0, data, pos, length);
+        pos += length;
+        int tagSize = 11 + length;
+        data[pos++] = (byte) (tagSize >>> 24);
+        data[pos++] = (byte) (tagSize >>> 16);
+        data[pos++] = (byte) (tagSize >>> 8);
+        data[pos++] = (byte) tagSize;
+        size = pos;
+        messageCount++;
+        contentBytes += length;
+        return true;
+    }
+
+    private static int writeInt24(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >>> 16);
+        buf[pos + 1] = (byte) (value >>> 8);
+        buf[pos + 2] = (byte) value;
+        return pos + 3;
+    }
+
+    public boolean isVideo() {
+        return video;
+    }
+
+    /**
+     * @return the number of messages added
+     */
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @return the total size of the bodies of the messages added, tag headers excluded
+     */
+    public int getContentBytes() {
+        return contentBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "RTMP Aggregate (" + messageCount + (video ? " video" : " audio") + " messages)";
+    }
+}
@@ -1,5 +1,7 @@
 package com.github.faucamp.simplertmp.packets;
 
+import com.github.faucamp.simplertmp.amf.AmfBufferCodec;
+import com.github.faucamp.simplertmp.amf.AmfData;
 import com.github.faucamp.simplertmp.amf.AmfNumber;
 import com.github.faucamp.simplertmp.amf.AmfString;
 import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
@@ -7,6 +9,7 @@ import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Encapsulates an command/"invoke" RTMP packet
@@ -71,6 +74,27 @@ public class Command extends VariableBodyRtmpPacket {
         writeVariableData(out);
     }
 
+    @Override
+    protected void readHeadFrom(ByteBuffer in, AmfBufferCodec codec) throws IOException {
+        commandName = codec.readAmf0String(in);
+        AmfData transactionIdData = codec.readAmf0(in);
+        if (!(transactionIdData instanceof AmfNumber)) {
+            throw new IOException("Invalid transaction ID of command " + commandName);
+        }
+        transactionId = (int) ((AmfNumber) transactionIdData).getValue();
+    }
+
+    @Override
+    protected int getHeadSize() {
+        return AmfBufferCodec.sizeOfAmf0String(commandName) + AmfNumber.SIZE;
+    }
+
+    @Override
+    protected void writeHeadTo(ByteBuffer out) {
+        AmfBufferCodec.writeAmf0String(out, commandName);
+        AmfBufferCodec.writeAmf0Number(out, transactionId);
+    }
+
     @Override
     protected byte[] array() {
         return null;
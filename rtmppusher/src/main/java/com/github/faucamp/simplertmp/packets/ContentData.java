@@ -32,6 +32,7 @@ public abstract class ContentData extends RtmpPacket {
     @Override
     public void readBody(InputStream in) throws IOException {
         data = new byte[this.header.getPacketLength()];
+        size = data.length;
         Util.readBytesUntilFull(in, data);
     }
 
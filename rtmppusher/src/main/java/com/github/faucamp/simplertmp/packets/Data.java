@@ -1,11 +1,13 @@
 package com.github.faucamp.simplertmp.packets;
 
+import com.github.faucamp.simplertmp.amf.AmfBufferCodec;
 import com.github.faucamp.simplertmp.amf.AmfString;
 import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * AMF Data packet
@@ -58,6 +60,21 @@ public class Data extends VariableBodyRtmpPacket {
         writeVariableData(out);
     }
 
+    @Override
+    protected void readHeadFrom(ByteBuffer in, AmfBufferCodec codec) throws IOException {
+        type = codec.readAmf0String(in);
+    }
+
+    @Override
+    protected int getHeadSize() {
+        return AmfBufferCodec.sizeOfAmf0String(type);
+    }
+
+    @Override
+    protected void writeHeadTo(ByteBuffer out) {
+        AmfBufferCodec.writeAmf0String(out, type);
+    }
+
     @Override
     protected byte[] array() {
         return null;
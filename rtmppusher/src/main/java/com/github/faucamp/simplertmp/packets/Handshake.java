@@ -26,7 +26,7 @@ public final class Handshake {
      */
     private byte[] s1;
     private static final int PROTOCOL_VERSION = 0x03;
-    private static final int HANDSHAKE_SIZE = 1536;
+    public static final int HANDSHAKE_SIZE = 1536;
     private static final int SHA256_DIGEST_SIZE = 32;
 
     private static final int DIGEST_OFFSET_INDICATOR_POS = 772; // should either be byte 772 or byte 8
@@ -139,7 +139,7 @@ public final class Handshake {
             if (read != -1) {
                 totalBytesRead += read;
             }
-        } while (totalBytesRead < HANDSHAKE_SIZE);
+        } while (totalBytesRead < HANDSHAKE_SIZE && read != -1);
 
         if (totalBytesRead != HANDSHAKE_SIZE) {
             throw new IOException("Unexpected EOF while reading S1, expected " + HANDSHAKE_SIZE + " bytes, but only read " + totalBytesRead + " bytes");
@@ -12,8 +12,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 /**
  * @author francois, leoma
@@ -135,11 +134,11 @@ public class RtmpHeader {
          */
         AGGREGATE_MESSAGE(0x16);
         private byte value;
-        private static final Map<Byte, MessageType> quickLookupMap = new HashMap<>();
+        private static final MessageType[] quickLookupArray = new MessageType[256];
 
         static {
             for (MessageType messageTypId : MessageType.values()) {
-                quickLookupMap.put(messageTypId.getValue(), messageTypId);
+                quickLookupArray[messageTypId.getValue() & 0xff] = messageTypId;
             }
         }
 
@@ -155,8 +154,9 @@ public class RtmpHeader {
         }
 
         public static MessageType valueOf(byte messageTypeId) {
-            if (quickLookupMap.containsKey(messageTypeId)) {
-                return quickLookupMap.get(messageTypeId);
+            MessageType messageType = quickLookupArray[messageTypeId & 0xff];
+            if (messageType != null) {
+                return messageType;
             } else {
                 throw new IllegalArgumentException("Unknown message type byte: " + Util.toHexString(messageTypeId));
             }
@@ -185,14 +185,11 @@ public class RtmpHeader {
          * The byte value of this chunk header type
          */
         private byte value;
-        /**
-         * The full size (in bytes) of this RTMP header (including the basic header byte)
-         */
-        private static final Map<Byte, ChunkType> quickLookupMap = new HashMap<>();
+        private static final ChunkType[] quickLookupArray = new ChunkType[4];
 
         static {
             for (ChunkType messageTypId : ChunkType.values()) {
-                quickLookupMap.put(messageTypId.getValue(), messageTypId);
+                quickLookupArray[messageTypId.getValue()] = messageTypId;
             }
         }
 
@@ -208,8 +205,8 @@ public class RtmpHeader {
         }
 
         public static ChunkType valueOf(byte chunkHeaderType) {
-            if (quickLookupMap.containsKey(chunkHeaderType)) {
-                return quickLookupMap.get(chunkHeaderType);
+            if (chunkHeaderType >= 0 && chunkHeaderType < quickLookupArray.length) {
+                return quickLookupArray[chunkHeaderType];
             } else {
                 throw new IllegalArgumentException("Unknown chunk header type byte: " + Util.toHexString(chunkHeaderType));
             }
@@ -235,7 +232,15 @@ public class RtmpHeader {
     }
 
     public static RtmpHeader readHeader(InputStream in, RtmpSessionInfo rtmpSessionInfo) throws IOException {
-        RtmpHeader rtmpHeader = new RtmpHeader();
+        return readHeader(in, rtmpSessionInfo, new RtmpHeader());
+    }
+
+    /**
+     * Reads a chunk header into the specified header object, overwriting all of its fields
+     *
+     * @return the specified header
+     */
+    public static RtmpHeader readHeader(InputStream in, RtmpSessionInfo rtmpSessionInfo, RtmpHeader rtmpHeader) throws IOException {
         rtmpHeader.readHeaderImpl(in, rtmpSessionInfo);
         return rtmpHeader;
     }
@@ -259,9 +264,7 @@ public class RtmpHeader {
             // Read byte 7: Message type ID
             messageType = MessageType.valueOf((byte) in.read());
             // Read bytes 8-11: Message stream ID (apparently little-endian order)
-            byte[] messageStreamIdBytes = new byte[4];
-            Util.readBytesUntilFull(in, messageStreamIdBytes);
-            messageStreamId = Util.toUnsignedInt32LittleEndian(messageStreamIdBytes);
+            messageStreamId = Util.readUnsignedInt32LittleEndian(in);
             // Read bytes 1-4: Extended timestamp
             extendedTimestamp = absoluteTimestamp >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
             if (extendedTimestamp != 0) {
@@ -298,14 +301,20 @@ public class RtmpHeader {
             absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : prevHeader.absoluteTimestamp + timestampDelta;
         } else if (chunkType == ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE) {
             // b11 = 1 byte: basic header only
-            RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
-            // Read bytes 1-4: Extended timestamp
-            extendedTimestamp = prevHeader.timestampDelta >= 0xffffff ? Util.readUnsignedInt32(in) : 0;
+            ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId);
+            RtmpHeader prevHeader = chunkStreamInfo.prevHeaderRx();
+            // Read bytes 1-4: Extended timestamp, present whenever the previous header carried one
+            extendedTimestamp = prevHeader.extendedTimestamp != 0 ? Util.readUnsignedInt32(in) : 0;
             timestampDelta = extendedTimestamp != 0 ? 0xffffff : prevHeader.timestampDelta;
             packetLength = prevHeader.packetLength;
             messageType = prevHeader.messageType;
             messageStreamId = prevHeader.messageStreamId;
-            absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : prevHeader.absoluteTimestamp + timestampDelta;
+            if (chunkStreamInfo.hasStoredChunks()) {
+                // Continuation chunk of the same message: the timestamp does not move
+                absoluteTimestamp = prevHeader.absoluteTimestamp;
+            } else {
+                absoluteTimestamp = extendedTimestamp != 0 ? extendedTimestamp : prevHeader.absoluteTimestamp + timestampDelta;
+            }
         } else {
             throw new IOException("Invalid chunk type; basic header byte was: " + Util.toHexString((byte) basicHeaderByte));
         }
@@ -355,6 +364,44 @@ public class RtmpHeader {
         }
     }
 
+    /**
+     * Encodes the chunk header into the specified buffer, used by the NIO chunk writer.
+     * Unlike {@link #writeTo(OutputStream, ChunkType, ChunkStreamInfo)} the timestamp delta of
+     * relative headers is not sampled from the wall clock: it must have been set by the caller,
+     * see {@link ChunkStreamInfo#selectChunkTypeTx(RtmpHeader)}.
+     */
+    public void writeTo(ByteBuffer out, ChunkType chunkType) throws IOException {
+        // Write basic header byte
+        out.put((byte) ((chunkType.getValue() << 6) | chunkStreamId));
+        if (chunkType == ChunkType.TYPE_0_FULL) {
+            // b00 = 12 byte header (full header)
+            Util.writeUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : absoluteTimestamp);
+            Util.writeUnsignedInt24(out, packetLength);
+            out.put(messageType.getValue());
+            Util.writeUnsignedInt32LittleEndian(out, messageStreamId);
+            // The extended timestamp is repeated in every following type 3 chunk of the message
+            extendedTimestamp = absoluteTimestamp >= 0xffffff ? absoluteTimestamp : 0;
+            if (extendedTimestamp != 0) {
+                out.putInt(extendedTimestamp);
+            }
+        } else if (chunkType == ChunkType.TYPE_1_RELATIVE_LARGE) {
+            // b01 = 8 bytes - like type 0. not including message ID (4 last bytes)
+            Util.writeUnsignedInt24(out, timestampDelta);
+            Util.writeUnsignedInt24(out, packetLength);
+            out.put(messageType.getValue());
+        } else if (chunkType == ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY) {
+            // b10 = 4 bytes - Basic Header and timestamp (3 bytes) are included
+            Util.writeUnsignedInt24(out, timestampDelta);
+        } else if (chunkType == ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE) {
+            // b11 = 1 byte: basic header only
+            if (extendedTimestamp != 0) {
+                out.putInt(extendedTimestamp);
+            }
+        } else {
+            throw new IOException("Invalid chunk type: " + chunkType);
+        }
+    }
+
     private void parseBasicHeader(byte basicHeaderByte) {
         chunkType = ChunkType.valueOf((byte) ((0xff & basicHeaderByte) >>> 6)); // 2 most significant bits define the chunk type
         chunkStreamId = basicHeaderByte & 0x3F; // 6 least significant bits define chunk stream ID
@@ -391,6 +438,10 @@ public class RtmpHeader {
         this.absoluteTimestamp = absoluteTimestamp;
     }
 
+    public int getExtendedTimestamp() {
+        return extendedTimestamp;
+    }
+
     public int getTimestampDelta() {
         return timestampDelta;
     }
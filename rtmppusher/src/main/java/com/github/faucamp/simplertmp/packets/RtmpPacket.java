@@ -30,6 +30,14 @@ public abstract class RtmpPacket {
 
     protected abstract int size();
 
+    /**
+     * Write this packet body without chunking; content packets expose their
+     * payload through {@link ContentData#array()} instead
+     */
+    public void writeBodyTo(OutputStream out) throws IOException {
+        writeBody(out);
+    }
+
     public void writeTo(OutputStream out, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         writeBody(baos);
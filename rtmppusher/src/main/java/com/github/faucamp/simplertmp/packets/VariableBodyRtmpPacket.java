@@ -1,6 +1,7 @@
 package com.github.faucamp.simplertmp.packets;
 
 import com.github.faucamp.simplertmp.amf.AmfBoolean;
+import com.github.faucamp.simplertmp.amf.AmfBufferCodec;
 import com.github.faucamp.simplertmp.amf.AmfData;
 import com.github.faucamp.simplertmp.amf.AmfDecoder;
 import com.github.faucamp.simplertmp.amf.AmfNull;
@@ -10,6 +11,7 @@ import com.github.faucamp.simplertmp.amf.AmfString;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -75,4 +77,65 @@ public abstract class VariableBodyRtmpPacket extends RtmpPacket {
             AmfNull.writeNullTo(out);
         }
     }
+
+    /**
+     * Reads the body with the buffer codec, up to the limit of the buffer
+     */
+    public void readBody(ByteBuffer in, AmfBufferCodec codec) throws IOException {
+        codec.reset();
+        if (isAmf3()) {
+            // Format selector, the values are AMF0 switching to AMF3 with the AVM+ marker
+            in.get();
+        }
+        readHeadFrom(in, codec);
+        while (in.hasRemaining()) {
+            addData(codec.readAmf0(in));
+        }
+    }
+
+    /**
+     * @return the number of bytes {@link #writeBody(ByteBuffer)} writes
+     */
+    public int getBodySize() {
+        int size = (isAmf3() ? 1 : 0) + getHeadSize();
+        if (data != null) {
+            for (AmfData dataItem : data) {
+                size += AmfBufferCodec.sizeOfAmf0(dataItem);
+            }
+        } else {
+            size += 1;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the body with the buffer codec, the buffer must have {@link #getBodySize} bytes remaining
+     */
+    public void writeBody(ByteBuffer out) {
+        if (isAmf3()) {
+            out.put((byte) 0x00);
+        }
+        writeHeadTo(out);
+        if (data != null) {
+            for (AmfData dataItem : data) {
+                AmfBufferCodec.writeAmf0(out, dataItem);
+            }
+        } else {
+            AmfBufferCodec.writeAmf0(out, null);
+        }
+    }
+
+    /**
+     * Reads the fixed values that precede the variable data
+     */
+    protected abstract void readHeadFrom(ByteBuffer in, AmfBufferCodec codec) throws IOException;
+
+    protected abstract int getHeadSize();
+
+    protected abstract void writeHeadTo(ByteBuffer out);
+
+    private boolean isAmf3() {
+        RtmpHeader.MessageType messageType = header.getMessageType();
+        return messageType == RtmpHeader.MessageType.COMMAND_AMF3 || messageType == RtmpHeader.MessageType.DATA_AMF3;
+    }
 }
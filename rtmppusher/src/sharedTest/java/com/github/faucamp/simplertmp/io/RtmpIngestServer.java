@@ -0,0 +1,648 @@
+package com.github.faucamp.simplertmp.io;
+
+import android.util.Log;
+
+import com.github.faucamp.simplertmp.amf.AmfNull;
+import com.github.faucamp.simplertmp.amf.AmfNumber;
+import com.github.faucamp.simplertmp.amf.AmfObject;
+import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.packets.Abort;
+import com.github.faucamp.simplertmp.packets.Acknowledgement;
+import com.github.faucamp.simplertmp.packets.Aggregate;
+import com.github.faucamp.simplertmp.packets.Audio;
+import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.Handshake;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.SetPeerBandwidth;
+import com.github.faucamp.simplertmp.packets.Video;
+import com.github.faucamp.simplertmp.packets.WindowAckSize;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Minimal RTMP ingest server on the loopback interface, to publish to without a media server
+ * in benchmarks and end-to-end checks of the publisher.
+ * <p>
+ * Any connect and createStream command is accepted, and any publish on a stream created,
+ * unless told to reject the next ones. Several streams may be published on a connection,
+ * the acknowledgement window asked
+ * by the publisher is honored, and the audio and video messages are drained, aggregate ones
+ * included. The AVC and AAC payloads of the FLV tags can be verified, and the arrival time of
+ * each frame is recorded up to a capacity. Each connection is served by its own thread.
+ * <p>
+ * Serves rtmps instead of rtmp once given a TLS context, e.g. with a self-signed certificate
+ * trusted by the context of the publisher.
+ */
+public class RtmpIngestServer {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "RtmpIngestServer";
+
+    // Streams are numbered from 1 on each connection by default
+    private static final int FIRST_STREAM_ID = 1;
+    private static final int ACK_WINDOW_SIZE = 2500000;
+    // C0, C1 and C2, counted in the acknowledged bytes like servers do
+    private static final int HANDSHAKE_RX_BYTES = 1 + 2 * Handshake.HANDSHAKE_SIZE;
+
+    private static final int FLV_TAG_AUDIO = 8;
+    private static final int FLV_TAG_VIDEO = 9;
+    private static final int FLV_CODEC_AVC = 7;
+    private static final int FLV_SOUND_FORMAT_AAC = 10;
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    // Guarded by itself
+    private final List<Socket> sockets = new ArrayList<>();
+    private volatile boolean verifyPayloads = false;
+    private final Object pauseLock = new Object();
+    // Guarded by pauseLock
+    private boolean readPaused = false;
+    private SSLContext sslContext;
+    private volatile int firstStreamId = FIRST_STREAM_ID;
+    private final AtomicInteger rejectedPublishes = new AtomicInteger();
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger publishes = new AtomicInteger();
+    private final AtomicLong videoFrames = new AtomicLong();
+    private final AtomicLong audioFrames = new AtomicLong();
+    private final AtomicLong aggregateMessages = new AtomicLong();
+    private final AtomicLong contentBytes = new AtomicLong();
+    private final AtomicLong invalidPayloads = new AtomicLong();
+    // Video frames of each stream name
+    private final ConcurrentHashMap<String, AtomicLong> streamVideoFrames = new ConcurrentHashMap<>();
+
+    private final ArrivalLog videoArrivals = new ArrivalLog();
+    private final ArrivalLog audioArrivals = new ArrivalLog();
+
+    /**
+     * Arrival times and timestamps of the frames of a track, in order of arrival
+     */
+    private static class ArrivalLog {
+        private long[] times = new long[0];
+        private int[] timestamps = new int[0];
+        private int count;
+
+        synchronized void setCapacity(int capacity) {
+            times = new long[capacity];
+            timestamps = new int[capacity];
+            count = 0;
+        }
+
+        synchronized void record(long time, int timestamp) {
+            // Frames past the capacity are not recorded, so that nothing is allocated while draining
+            if (count < times.length) {
+                times[count] = time;
+                timestamps[count] = timestamp;
+                count++;
+            }
+        }
+
+        synchronized long[] getTimes() {
+            return Arrays.copyOf(times, count);
+        }
+
+        synchronized int[] getTimestamps() {
+            return Arrays.copyOf(timestamps, count);
+        }
+    }
+
+    /**
+     * set whether the FLV payloads are checked: AVC or AAC, known packet types, NAL unit
+     * lengths adding up to the tag size, timestamps not going backwards per track and well
+     * formed aggregates. Checked from the next message on.
+     */
+    public void setVerifyPayloads(boolean verify) {
+        verifyPayloads = verify;
+    }
+
+    /**
+     * set the number of frames per track whose arrival is recorded, discarding the ones
+     * recorded so far
+     */
+    public void setArrivalCapacity(int frames) {
+        videoArrivals.setCapacity(frames);
+        audioArrivals.setCapacity(frames);
+    }
+
+    /**
+     * set whether the connections stop reading, which stalls the writes of the publisher
+     * once the socket buffers are full, as a stalled uplink would
+     */
+    public void setReadPaused(boolean paused) {
+        synchronized (pauseLock) {
+            readPaused = paused;
+            pauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * set the id of the first stream created on the next connections, as servers numbering
+     * the streams otherwise than from 1 would
+     */
+    public void setFirstStreamId(int streamId) {
+        firstStreamId = streamId;
+    }
+
+    /**
+     * set the number of publish commands to reject from now on, with an error status on the
+     * stream, before accepting them again
+     */
+    public void setRejectedPublishes(int count) {
+        rejectedPublishes.set(count);
+    }
+
+    /**
+     * set the TLS context whose key and certificate serve rtmps, or null for rtmp.
+     * To be called before {@link #start}.
+     */
+    public void setSslContext(SSLContext context) {
+        sslContext = context;
+    }
+
+    /**
+     * Starts listening on an ephemeral port of the loopback interface
+     */
+    public void start() throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("Ingest server already started");
+        }
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        serverSocket = sslContext != null
+                ? sslContext.getServerSocketFactory().createServerSocket(0, 50, loopback)
+                : new ServerSocket(0, 50, loopback);
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "RtmpIngestServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Stops listening and closes the connections
+     */
+    public void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+            sockets.clear();
+        }
+        try {
+            acceptThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        serverSocket = null;
+        acceptThread = null;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the url to publish the stream to
+     */
+    public String getUrl(String streamName) {
+        return (sslContext != null ? "rtmps" : "rtmp") + "://127.0.0.1:" + getPort() + "/live/" + streamName;
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public int getPublishCount() {
+        return publishes.get();
+    }
+
+    /**
+     * @return the video frames received, sequence headers and frames of aggregates included
+     */
+    public long getVideoFrames() {
+        return videoFrames.get();
+    }
+
+    /**
+     * @return the video frames received on the streams of the specified name
+     */
+    public long getVideoFrames(String streamName) {
+        AtomicLong frames = streamVideoFrames.get(streamName);
+        return frames == null ? 0 : frames.get();
+    }
+
+    /**
+     * @return the audio frames received, sequence headers and frames of aggregates included
+     */
+    public long getAudioFrames() {
+        return audioFrames.get();
+    }
+
+    public long getAggregateMessages() {
+        return aggregateMessages.get();
+    }
+
+    /**
+     * @return the bytes of the FLV tag bodies received, without the RTMP headers nor the
+     * aggregate tag headers
+     */
+    public long getContentBytes() {
+        return contentBytes.get();
+    }
+
+    /**
+     * @return the tags and aggregates that failed verification, see {@link #setVerifyPayloads}
+     */
+    public long getInvalidPayloads() {
+        return invalidPayloads.get();
+    }
+
+    /**
+     * @return the arrival times of the recorded frames of the track, from the clock of
+     * {@link System#nanoTime}, see {@link #setArrivalCapacity}
+     */
+    public long[] getArrivalTimes(boolean video) {
+        return (video ? videoArrivals : audioArrivals).getTimes();
+    }
+
+    /**
+     * @return the timestamps of the recorded frames of the track, in the order of
+     * {@link #getArrivalTimes}
+     */
+    public int[] getArrivalTimestamps(boolean video) {
+        return (video ? videoArrivals : audioArrivals).getTimestamps();
+    }
+
+    private void acceptLoop() {
+        ServerSocket server = serverSocket;
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                // Closed by stop()
+                break;
+            }
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+            connections.incrementAndGet();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        new IngestConnection(socket).serve();
+                    } catch (EOFException | SocketException e) {
+                        // Closed by either end
+                    } catch (IOException e) {
+                        if (DEBUG) Log.e(TAG, "Connection failed: " + e.getMessage());
+                    } finally {
+                        synchronized (sockets) {
+                            sockets.remove(socket);
+                        }
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Closing anyway
+                        }
+                    }
+                }
+            }, "RtmpIngestConnection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * A stream published on an ingest connection
+     */
+    private class IngestStream {
+        final AtomicLong videoFrames;
+        int lastVideoTimestamp = -1;
+        int lastAudioTimestamp = -1;
+
+        IngestStream(String name) {
+            if (name == null) {
+                videoFrames = new AtomicLong();
+                return;
+            }
+            AtomicLong frames = new AtomicLong();
+            AtomicLong current = streamVideoFrames.putIfAbsent(name, frames);
+            videoFrames = current != null ? current : frames;
+        }
+    }
+
+    private class IngestConnection {
+        private final Socket socket;
+        private final RtmpSessionInfo sessionInfo = new RtmpSessionInfo();
+        private final RtmpDecoder decoder = new RtmpDecoder(sessionInfo);
+        private InputStream in;
+        private OutputStream out;
+        // Published streams by message stream id
+        private final Map<Integer, IngestStream> streams = new HashMap<>();
+        private final Set<Integer> createdStreamIds = new HashSet<>();
+        private int nextStreamId = firstStreamId;
+
+        IngestConnection(Socket socket) {
+            this.socket = socket;
+            // Packets are handled before the next chunk is read
+            decoder.setReuseBuffers(true);
+        }
+
+        void serve() throws IOException {
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+
+            // The client handshake played backwards: C0 and C1 are read as S0 and S1,
+            // S0 and S1 written as C0 and C1, and C1 echoed back as S2
+            Handshake handshake = new Handshake();
+            handshake.readS0(in);
+            handshake.readS1(in);
+            handshake.writeC0(out);
+            handshake.writeC1(out);
+            handshake.writeC2(out);
+            out.flush();
+            handshake.readS2(in);
+            if (DEBUG) Log.d(TAG, "serve(): handshake done with " + socket.getRemoteSocketAddress());
+
+            while (true) {
+                waitWhileReadPaused();
+                RtmpPacket rtmpPacket;
+                try {
+                    rtmpPacket = decoder.readPacket(in);
+                } catch (WindowAckRequired war) {
+                    send(new Acknowledgement(HANDSHAKE_RX_BYTES + war.getBytesRead()));
+                    rtmpPacket = war.getRtmpPacket();
+                }
+                if (rtmpPacket != null) {
+                    handlePacket(rtmpPacket);
+                }
+            }
+        }
+
+        private void waitWhileReadPaused() throws IOException {
+            synchronized (pauseLock) {
+                while (readPaused) {
+                    if (socket.isClosed()) {
+                        throw new SocketException("Socket closed");
+                    }
+                    try {
+                        pauseLock.wait(100);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted while paused");
+                    }
+                }
+            }
+        }
+
+        private void handlePacket(RtmpPacket rtmpPacket) throws IOException {
+            switch (rtmpPacket.getHeader().getMessageType()) {
+                case VIDEO:
+                    onTag(true, (Video) rtmpPacket);
+                    break;
+                case AUDIO:
+                    onTag(false, (Audio) rtmpPacket);
+                    break;
+                case AGGREGATE_MESSAGE:
+                    onAggregate((Aggregate) rtmpPacket);
+                    break;
+                case COMMAND_AMF0:
+                case COMMAND_AMF3:
+                    onCommand((Command) rtmpPacket);
+                    break;
+                case WINDOW_ACKNOWLEDGEMENT_SIZE:
+                    sessionInfo.setAcknowledgmentWindowSize(((WindowAckSize) rtmpPacket).getAcknowledgementWindowSize());
+                    break;
+                case ABORT:
+                    sessionInfo.getChunkStreamInfo(((Abort) rtmpPacket).getChunkStreamId()).clearStoredChunks();
+                    break;
+                default:
+                    // Chunk size already applied by the decoder, the rest is of no use to an ingest
+                    break;
+            }
+        }
+
+        private void onTag(boolean video, ContentData tag) {
+            long now = System.nanoTime();
+            IngestStream stream = getStream(tag);
+            int timestamp = tag.getHeader().getAbsoluteTimestamp();
+            if (verifyPayloads && !verifyTag(stream, video, tag.array(), 0, tag.size(), timestamp)) {
+                invalidPayloads.incrementAndGet();
+            }
+            onFrame(stream, video, now, timestamp, tag.size());
+        }
+
+        private void onFrame(IngestStream stream, boolean video, long time, int timestamp, int size) {
+            (video ? videoFrames : audioFrames).incrementAndGet();
+            if (video) {
+                stream.videoFrames.incrementAndGet();
+            }
+            contentBytes.addAndGet(size);
+            (video ? videoArrivals : audioArrivals).record(time, timestamp);
+        }
+
+        private IngestStream getStream(RtmpPacket rtmpPacket) {
+            IngestStream stream = streams.get(rtmpPacket.getHeader().getMessageStreamId());
+            if (stream == null) {
+                // Not published, checked and counted on its own
+                stream = new IngestStream(null);
+                streams.put(rtmpPacket.getHeader().getMessageStreamId(), stream);
+            }
+            return stream;
+        }
+
+        private void onAggregate(Aggregate aggregate) {
+            long now = System.nanoTime();
+            IngestStream stream = getStream(aggregate);
+            aggregateMessages.incrementAndGet();
+            byte[] data = aggregate.array();
+            int length = aggregate.size();
+            int pos = 0;
+            // Tags: type (1), body size (3), timestamp (3 + 1 extended), stream id (3),
+            // body, previous tag size (4)
+            while (pos + Aggregate.TAG_OVERHEAD <= length) {
+                int type = data[pos] & 0x1f;
+                int size = readInt24(data, pos + 1);
+                int timestamp = readInt24(data, pos + 4) | ((data[pos + 7] & 0xff) << 24);
+                int end = pos + Aggregate.TAG_OVERHEAD + size;
+                if (end > length || (type != FLV_TAG_VIDEO && type != FLV_TAG_AUDIO)) {
+                    break;
+                }
+                boolean video = type == FLV_TAG_VIDEO;
+                if (verifyPayloads && (readInt32(data, end - 4) != size + 11
+                        || !verifyTag(stream, video, data, pos + 11, size, timestamp))) {
+                    invalidPayloads.incrementAndGet();
+                }
+                onFrame(stream, video, now, timestamp, size);
+                pos = end;
+            }
+            if (verifyPayloads && pos != length) {
+                invalidPayloads.incrementAndGet();
+            }
+        }
+
+        private boolean verifyTag(IngestStream stream, boolean video, byte[] data, int offset, int size, int timestamp) {
+            if (video) {
+                if (timestamp < stream.lastVideoTimestamp) {
+                    return false;
+                }
+                stream.lastVideoTimestamp = timestamp;
+                return verifyAvc(data, offset, size);
+            } else {
+                if (timestamp < stream.lastAudioTimestamp) {
+                    return false;
+                }
+                stream.lastAudioTimestamp = timestamp;
+                return verifyAac(data, offset, size);
+            }
+        }
+
+        private boolean verifyAvc(byte[] data, int offset, int size) {
+            // FrameType | CodecID, AVCPacketType, CompositionTime (3)
+            if (size < 5 || (data[offset] & 0x0f) != FLV_CODEC_AVC) {
+                return false;
+            }
+            int packetType = data[offset + 1];
+            if (packetType == 0) {
+                // AVCDecoderConfigurationRecord, version 1
+                return size > 5 && data[offset + 5] == 1;
+            } else if (packetType == 2) {
+                return true;
+            } else if (packetType != 1) {
+                return false;
+            }
+            // NAL units prefixed by their 4 bytes length
+            int pos = offset + 5;
+            int end = offset + size;
+            while (pos + 4 <= end) {
+                int naluLength = readInt32(data, pos);
+                if (naluLength <= 0 || naluLength > end - pos - 4) {
+                    return false;
+                }
+                pos += 4 + naluLength;
+            }
+            return pos == end;
+        }
+
+        private boolean verifyAac(byte[] data, int offset, int size) {
+            // SoundFormat | SoundRate | SoundSize | SoundType, AACPacketType
+            return size >= 2 && ((data[offset] & 0xf0) >> 4) == FLV_SOUND_FORMAT_AAC
+                    && (data[offset + 1] == 0 || data[offset + 1] == 1);
+        }
+
+        private void onCommand(Command command) throws IOException {
+            String name = command.getCommandName();
+            if (DEBUG) Log.d(TAG, "onCommand(): " + name);
+            if (name.equals("connect")) {
+                send(new WindowAckSize(ACK_WINDOW_SIZE, sessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL)));
+                send(new SetPeerBandwidth(ACK_WINDOW_SIZE, SetPeerBandwidth.LimitType.DYNAMIC,
+                        sessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL)));
+                Command result = new Command("_result", command.getTransactionId());
+                AmfObject properties = new AmfObject();
+                properties.setProperty("fmsVer", "FMS/3,5,3,888");
+                properties.setProperty("capabilities", 127);
+                result.addData(properties);
+                AmfObject information = new AmfObject();
+                information.setProperty("level", "status");
+                information.setProperty("code", "NetConnection.Connect.Success");
+                information.setProperty("description", "Connection succeeded");
+                result.addData(information);
+                send(result);
+            } else if (name.equals("createStream")) {
+                Command result = new Command("_result", command.getTransactionId());
+                result.addData(new AmfNull());
+                createdStreamIds.add(nextStreamId);
+                result.addData(nextStreamId++);
+                send(result);
+            } else if (name.equals("publish")) {
+                int streamId = command.getHeader().getMessageStreamId();
+                if (!createdStreamIds.contains(streamId)) {
+                    sendPublishStatus(streamId, "error", "NetStream.Publish.BadName", "No such stream.");
+                    return;
+                }
+                if (rejectedPublishes.get() > 0) {
+                    rejectedPublishes.decrementAndGet();
+                    sendPublishStatus(streamId, "error", "NetStream.Publish.Denied", "Publish rejected.");
+                    return;
+                }
+                publishes.incrementAndGet();
+                String streamName = ((AmfString) command.getData().get(1)).getValue();
+                streams.put(streamId, new IngestStream(streamName));
+                sendPublishStatus(streamId, "status", "NetStream.Publish.Start", "Started publishing stream.");
+            } else if (name.equals("releaseStream") || name.equals("FCPublish")) {
+                Command result = new Command("_result", command.getTransactionId());
+                result.addData(new AmfNull());
+                send(result);
+            } else if (name.equals("deleteStream")) {
+                int streamId = (int) ((AmfNumber) command.getData().get(1)).getValue();
+                streams.remove(streamId);
+                createdStreamIds.remove(streamId);
+            }
+            // closeStream and FCUnpublish need no reply
+        }
+
+        private void sendPublishStatus(int streamId, String level, String code, String description) throws IOException {
+            Command onStatus = new Command("onStatus", 0);
+            onStatus.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_OVER_STREAM);
+            onStatus.getHeader().setMessageStreamId(streamId);
+            onStatus.addData(new AmfNull());
+            AmfObject information = new AmfObject();
+            information.setProperty("level", level);
+            information.setProperty("code", code);
+            information.setProperty("description", description);
+            onStatus.addData(information);
+            send(onStatus);
+        }
+
+        private void send(RtmpPacket rtmpPacket) throws IOException {
+            ChunkStreamInfo chunkStreamInfo = sessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
+            rtmpPacket.writeTo(out, sessionInfo.getTxChunkSize(), chunkStreamInfo);
+            out.flush();
+        }
+    }
+
+    private static int readInt24(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 16) | ((data[offset + 1] & 0xff) << 8) | (data[offset + 2] & 0xff);
+    }
+
+    private static int readInt32(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | readInt24(data, offset + 1);
+    }
+}
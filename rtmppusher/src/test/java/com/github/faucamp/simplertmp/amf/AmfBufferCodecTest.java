@@ -0,0 +1,266 @@
+package com.github.faucamp.simplertmp.amf;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AmfBufferCodecTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private AmfBufferCodec codec;
+
+    @Before
+    public void setUp() {
+        codec = new AmfBufferCodec();
+    }
+
+    @Test
+    public void amf0RoundTrip() throws Exception {
+        for (AmfData value : values()) {
+            assertAmfEquals(value, amf0RoundTrip(value));
+        }
+        assertAmfEquals(sample(), amf0RoundTrip(sample()));
+    }
+
+    @Test
+    public void amf0MatchesStreamEncoding() throws Exception {
+        AmfObject object = new AmfObject();
+        object.setProperty("app", "live");
+        object.setProperty("fpad", false);
+        object.setProperty("audioCodecs", 3575);
+        object.setProperty("tcUrl", "rtmp://host/live");
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        object.writeTo(stream);
+
+        assertArrayEquals(stream.toByteArray(), encodeAmf0(object));
+    }
+
+    @Test
+    public void amf0LongString() throws Exception {
+        char[] chars = new char[70000];
+        Arrays.fill(chars, 'x');
+        AmfString string = new AmfString(new String(chars));
+        byte[] bytes = encodeAmf0(string);
+
+        // Long string marker and 32 bit length
+        assertEquals(0x0C, bytes[0]);
+        assertEquals(70000, ByteBuffer.wrap(bytes, 1, 4).getInt());
+        assertAmfEquals(string, codec.readAmf0(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    public void utf8Strings() throws Exception {
+        String[] strings = {"", "ascii", "café", "流媒体", "emoji 🎥 end"};
+        for (String string : strings) {
+            assertEquals(string, string.getBytes(UTF8).length, AmfBufferCodec.utf8Length(string));
+            byte[] bytes = encodeAmf0(new AmfString(string));
+            assertEquals(string, 3 + string.getBytes(UTF8).length, bytes.length);
+            assertEquals(string, codec.readAmf0String(ByteBuffer.wrap(bytes)));
+            assertAmfEquals(new AmfString(string), amf3RoundTrip(new AmfString(string)));
+        }
+    }
+
+    @Test
+    public void lazyStringsAreDecodedWhenRead() throws Exception {
+        codec.setLazyStrings(true);
+        byte[] bytes = encodeAmf0(new AmfString("café"));
+
+        AmfString string = (AmfString) codec.readAmf0(ByteBuffer.wrap(bytes));
+        assertEquals("café", string.getValue());
+    }
+
+    @Test
+    public void amf3RoundTrip() throws Exception {
+        for (AmfData value : values()) {
+            assertAmfEquals(value, amf3RoundTrip(value));
+        }
+        assertAmfEquals(sample(), amf3RoundTrip(sample()));
+    }
+
+    @Test
+    public void amf3IntegersAndDoubles() throws Exception {
+        // Boundaries of the 1 to 4 byte U29 encodings, and of the 29 bit range
+        double[] integers = {0, 1, 127, 128, 16383, 16384, 0x1fffff, 0x200000, (1 << 28) - 1, -1, -(1 << 28)};
+        for (double value : integers) {
+            byte[] bytes = encodeAmf3(new AmfNumber(value));
+            assertEquals("integer " + value, 0x04, bytes[0]);
+            assertEquals(value, ((AmfNumber) codec.readAmf3(ByteBuffer.wrap(bytes))).getValue(), 0);
+        }
+        double[] doubles = {0.5, 1 << 28, -(1 << 28) - 1, -0.0, Double.MAX_VALUE};
+        for (double value : doubles) {
+            byte[] bytes = encodeAmf3(new AmfNumber(value));
+            assertEquals("double " + value, 0x05, bytes[0]);
+            assertEquals(9, bytes.length);
+            double decoded = ((AmfNumber) codec.readAmf3(ByteBuffer.wrap(bytes))).getValue();
+            assertEquals(Double.doubleToLongBits(value), Double.doubleToLongBits(decoded));
+        }
+    }
+
+    @Test
+    public void amf3References() throws Exception {
+        byte[] bytes = {
+                // Dense array of 3 items
+                0x09, 0x07, 0x01,
+                // Dynamic anonymous object {a: 1}, traits 0, string "a" 0, object 1
+                0x0A, 0x0B, 0x01, 0x03, 'a', 0x04, 0x01, 0x01,
+                // Reference of object 1
+                0x0A, 0x02,
+                // Object of traits 0 {a: 2}, the key by reference
+                0x0A, 0x01, 0x00, 0x04, 0x02, 0x01};
+
+        AmfArray array = (AmfArray) codec.readAmf3(ByteBuffer.wrap(bytes));
+        List<AmfData> items = array.getItems();
+        assertEquals(3, items.size());
+        assertEquals(1, ((AmfNumber) ((AmfObject) items.get(0)).getProperty("a")).getValue(), 0);
+        assertSame(items.get(0), items.get(1));
+        assertEquals(2, ((AmfNumber) ((AmfObject) items.get(2)).getProperty("a")).getValue(), 0);
+    }
+
+    @Test
+    public void amf3InAmf0() throws Exception {
+        AmfObject object = sample();
+        byte[] amf3 = encodeAmf3(object);
+        ByteBuffer buf = ByteBuffer.allocate(amf3.length + 1);
+        // AVM+ marker
+        buf.put((byte) 0x11).put(amf3).flip();
+
+        assertAmfEquals(object, codec.readAmf0(buf));
+        assertEquals(0, buf.remaining());
+    }
+
+    @Test
+    public void invalidReferencesAreRejected() throws Exception {
+        // AMF3 string reference 0 with an empty table
+        assertReadFails(new byte[]{0x06, 0x00}, true);
+        // AMF3 object reference 0
+        assertReadFails(new byte[]{0x0A, 0x00}, true);
+        // AMF0 reference 0
+        assertReadFails(new byte[]{0x07, 0x00, 0x00}, false);
+        // AMF0 string longer than the buffer
+        assertReadFails(new byte[]{0x02, 0x00, 0x10, 'a'}, false);
+    }
+
+    @Test
+    public void resetClearsReferences() throws Exception {
+        codec.readAmf3(ByteBuffer.wrap(new byte[]{0x06, 0x03, 'a'}));
+        assertEquals("a", ((AmfString) codec.readAmf3(ByteBuffer.wrap(new byte[]{0x06, 0x00}))).getValue());
+
+        codec.reset();
+
+        assertReadFails(new byte[]{0x06, 0x00}, true);
+    }
+
+    private static AmfData[] values() {
+        return new AmfData[]{new AmfNumber(0), new AmfNumber(-12.5), new AmfNumber(1e300), new AmfBoolean(true),
+                new AmfBoolean(false), new AmfString(""), new AmfString("onMetaData"), new AmfNull(),
+                new AmfUndefined()};
+    }
+
+    private static AmfObject sample() {
+        AmfObject object = new AmfObject();
+        object.setProperty("level", "status");
+        object.setProperty("code", "NetStream.Publish.Start");
+        object.setProperty("objectEncoding", 3);
+        object.setProperty("duration", 12.25);
+        object.setProperty("live", true);
+        object.setProperty("nothing", new AmfNull());
+        AmfMap map = new AmfMap();
+        map.setProperty("width", 1280);
+        map.setProperty("height", 720);
+        map.setProperty("encoder", "yasea");
+        object.setProperty("metadata", map);
+        AmfArray array = new AmfArray();
+        array.addItem(new AmfNumber(1));
+        array.addItem(new AmfString("two"));
+        AmfObject nested = new AmfObject();
+        nested.setProperty("deep", false);
+        array.addItem(nested);
+        object.setProperty("list", array);
+        return object;
+    }
+
+    private AmfData amf0RoundTrip(AmfData value) throws IOException {
+        codec.reset();
+        ByteBuffer buf = ByteBuffer.wrap(encodeAmf0(value));
+        AmfData decoded = codec.readAmf0(buf);
+        assertEquals(0, buf.remaining());
+        return decoded;
+    }
+
+    private AmfData amf3RoundTrip(AmfData value) throws IOException {
+        codec.reset();
+        ByteBuffer buf = ByteBuffer.wrap(encodeAmf3(value));
+        AmfData decoded = codec.readAmf3(buf);
+        assertEquals(0, buf.remaining());
+        return decoded;
+    }
+
+    private static byte[] encodeAmf0(AmfData value) {
+        ByteBuffer buf = ByteBuffer.allocate(AmfBufferCodec.sizeOfAmf0(value));
+        AmfBufferCodec.writeAmf0(buf, value);
+        // The size computed up front is exact
+        assertEquals(0, buf.remaining());
+        return buf.array();
+    }
+
+    private static byte[] encodeAmf3(AmfData value) {
+        ByteBuffer buf = ByteBuffer.allocate(AmfBufferCodec.sizeOfAmf3(value));
+        AmfBufferCodec.writeAmf3(buf, value);
+        assertEquals(0, buf.remaining());
+        return buf.array();
+    }
+
+    private void assertReadFails(byte[] bytes, boolean amf3) throws Exception {
+        try {
+            if (amf3) {
+                codec.readAmf3(ByteBuffer.wrap(bytes));
+            } else {
+                codec.readAmf0(ByteBuffer.wrap(bytes));
+            }
+            fail("Decoded " + Arrays.toString(bytes));
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static void assertAmfEquals(AmfData expected, AmfData actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        if (expected instanceof AmfNumber) {
+            assertEquals(((AmfNumber) expected).getValue(), ((AmfNumber) actual).getValue(), 0);
+        } else if (expected instanceof AmfBoolean) {
+            assertEquals(((AmfBoolean) expected).isValue(), ((AmfBoolean) actual).isValue());
+        } else if (expected instanceof AmfString) {
+            assertEquals(((AmfString) expected).getValue(), ((AmfString) actual).getValue());
+        } else if (expected instanceof AmfObject) {
+            Map<String, AmfData> expectedProperties = ((AmfObject) expected).properties;
+            Map<String, AmfData> actualProperties = ((AmfObject) actual).properties;
+            assertEquals(expectedProperties.keySet(), actualProperties.keySet());
+            for (Map.Entry<String, AmfData> entry : expectedProperties.entrySet()) {
+                assertAmfEquals(entry.getValue(), actualProperties.get(entry.getKey()));
+            }
+        } else if (expected instanceof AmfArray) {
+            List<AmfData> expectedItems = ((AmfArray) expected).getItems();
+            List<AmfData> actualItems = ((AmfArray) actual).getItems();
+            assertEquals(expectedItems.size(), actualItems.size());
+            for (int i = 0; i < expectedItems.size(); i++) {
+                assertAmfEquals(expectedItems.get(i), actualItems.get(i));
+            }
+        } else {
+            assertTrue(expected instanceof AmfNull || expected instanceof AmfUndefined);
+        }
+    }
+}
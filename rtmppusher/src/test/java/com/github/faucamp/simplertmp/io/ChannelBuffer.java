@@ -0,0 +1,39 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Collects everything written to it
+ */
+class ChannelBuffer extends ByteArrayOutputStream implements GatheringByteChannel {
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        long written = 0;
+        for (int i = offset; i < offset + length; i++) {
+            written += write(srcs[i]);
+        }
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int length = src.remaining();
+        byte[] bytes = new byte[length];
+        src.get(bytes);
+        write(bytes, 0, length);
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+}
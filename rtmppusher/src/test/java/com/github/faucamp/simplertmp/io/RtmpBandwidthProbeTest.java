@@ -0,0 +1,74 @@
+package com.github.faucamp.simplertmp.io;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RtmpBandwidthProbeTest {
+
+    private static final long START_MS = 1000;
+    private static final long START_TX_BYTES = 40000;
+
+    private RtmpBandwidthProbe probe;
+
+    @Before
+    public void setUp() {
+        probe = new RtmpBandwidthProbe(START_MS, START_TX_BYTES);
+    }
+
+    @Test
+    public void rateBetweenFirstAndLastAcknowledgement() {
+        // The round trip to the first one is left out
+        probe.onAcknowledgement(1100, 5000);
+        probe.onAcknowledgement(1350, 36250);
+        probe.onAcknowledgement(1600, 67500);
+
+        assertTrue(probe.isAcknowledged());
+        assertEquals(1000000, probe.getRate(2000, START_TX_BYTES + 250000), 0);
+    }
+
+    @Test
+    public void sequenceNumberWrapsAround() {
+        probe.onAcknowledgement(1100, -1000);
+        probe.onAcknowledgement(2100, 1000);
+
+        assertTrue(probe.isAcknowledged());
+        assertEquals(2000 * 8, probe.getRate(2100, START_TX_BYTES), 0);
+    }
+
+    @Test
+    public void fallsBackToBytesWritten() {
+        assertFalse(probe.isAcknowledged());
+        assertEquals(2000000, probe.getRate(2000, START_TX_BYTES + 250000), 0);
+
+        // A single acknowledgement measures nothing
+        probe.onAcknowledgement(1500, 5000);
+        assertFalse(probe.isAcknowledged());
+        assertEquals(2000000, probe.getRate(2000, START_TX_BYTES + 250000), 0);
+    }
+
+    @Test
+    public void noRateWithoutBytesOrTime() {
+        assertEquals(-1, probe.getRate(START_MS, START_TX_BYTES + 1000), 0);
+        assertEquals(-1, probe.getRate(2000, START_TX_BYTES), 0);
+    }
+
+    @Test
+    public void queuedBytesBecomeExactOnceWritten() {
+        probe.onMessageQueued(1000);
+        probe.onMessageQueued(1000);
+        assertEquals(2000, probe.getQueuedBytes());
+
+        // Written in order, with fewer header bytes than allowed for
+        probe.onMessageWritten(990);
+        assertEquals(1990, probe.getQueuedBytes());
+        probe.onMessageWritten(1000);
+        assertEquals(1990, probe.getQueuedBytes());
+        // Nothing left to account for
+        probe.onMessageWritten(500);
+        assertEquals(1990, probe.getQueuedBytes());
+    }
+}
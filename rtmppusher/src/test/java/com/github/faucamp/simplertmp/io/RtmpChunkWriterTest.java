@@ -0,0 +1,269 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.packets.Audio;
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.Video;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip of {@link RtmpChunkWriter} output through {@link RtmpDecoder}
+ */
+public class RtmpChunkWriterTest {
+
+    private static final int CHUNK_SIZE = 128;
+
+    private ChannelBuffer channel;
+    private RtmpChunkWriter writer;
+    private RtmpSessionInfo txSessionInfo;
+    // Offset of each message written in the channel
+    private List<Integer> messageOffsets;
+    private List<ContentData> written;
+
+    @Before
+    public void setUp() {
+        channel = new ChannelBuffer();
+        writer = new RtmpChunkWriter();
+        txSessionInfo = new RtmpSessionInfo();
+        messageOffsets = new ArrayList<>();
+        written = new ArrayList<>();
+    }
+
+    @Test
+    public void selectsChunkTypes() throws Exception {
+        write(video(0, 1, 100));
+        // The length changes
+        write(video(33, 1, 200));
+        // Same length, the delta of the type 1 header is repeated
+        write(video(66, 1, 200));
+        // New delta
+        write(video(76, 1, 200));
+        // Same delta again
+        write(video(86, 1, 200));
+        // Another message type on the same chunk stream
+        write(onVideoChunkStream(audio(96, 1, 200)));
+        // Another message stream
+        write(onVideoChunkStream(audio(106, 2, 200)));
+
+        assertChunkTypes(RtmpHeader.ChunkType.TYPE_0_FULL,
+                RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE,
+                RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE,
+                RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY,
+                RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE,
+                RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE,
+                RtmpHeader.ChunkType.TYPE_0_FULL);
+        assertRoundTrip();
+    }
+
+    @Test
+    public void typeZeroIsNotFollowedByTypeThree() throws Exception {
+        write(video(0, 1, 100));
+        // The delta after a full header has never been sent
+        write(video(0, 1, 100));
+        write(video(0, 1, 100));
+
+        assertChunkTypes(RtmpHeader.ChunkType.TYPE_0_FULL,
+                RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY,
+                RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE);
+        assertRoundTrip();
+    }
+
+    @Test
+    public void backwardTimestampSendsFullHeader() throws Exception {
+        write(video(100, 1, 100));
+        write(video(50, 1, 100));
+
+        assertChunkTypes(RtmpHeader.ChunkType.TYPE_0_FULL, RtmpHeader.ChunkType.TYPE_0_FULL);
+        assertRoundTrip();
+    }
+
+    @Test
+    public void extendedTimestamps() throws Exception {
+        write(video(0xfffffe, 1, 100));
+        write(video(0xffffff, 1, 100));
+        write(video(0x1000010, 1, 100));
+        write(video(0x7fffffff, 1, 100));
+
+        // Every header at or above 0xffffff is full, with the 24 bit field saturated
+        assertChunkTypes(RtmpHeader.ChunkType.TYPE_0_FULL,
+                RtmpHeader.ChunkType.TYPE_0_FULL,
+                RtmpHeader.ChunkType.TYPE_0_FULL,
+                RtmpHeader.ChunkType.TYPE_0_FULL);
+        byte[] bytes = channel.toByteArray();
+        assertEquals(0xfffffe, readUnsignedInt24(bytes, messageOffsets.get(0) + 1));
+        for (int i = 1; i < 4; i++) {
+            assertEquals(0xffffff, readUnsignedInt24(bytes, messageOffsets.get(i) + 1));
+        }
+        assertEquals(0x1000010, ByteBuffer.wrap(bytes, messageOffsets.get(2) + 12, 4).getInt());
+        assertRoundTrip();
+    }
+
+    @Test
+    public void extendedTimestampIsRepeatedInContinuationChunks() throws Exception {
+        int length = CHUNK_SIZE * 3 + 10;
+        write(video(0x1000000, 1, length));
+        write(video(0x1000021, 1, length));
+
+        byte[] bytes = channel.toByteArray();
+        for (int i = 0; i < 2; i++) {
+            // Full header and extended timestamp, then basic header and extended timestamp
+            int offset = messageOffsets.get(i) + 16 + CHUNK_SIZE;
+            for (int chunk = 1; chunk < 4; chunk++) {
+                assertEquals(0xc0 | ChunkStreamInfo.RTMP_CID_VIDEO, bytes[offset] & 0xff);
+                assertEquals(i == 0 ? 0x1000000 : 0x1000021, ByteBuffer.wrap(bytes, offset + 1, 4).getInt());
+                offset += 5 + CHUNK_SIZE;
+            }
+        }
+        assertRoundTrip();
+    }
+
+    @Test
+    public void splitsLargeMessagesIntoContinuationChunks() throws Exception {
+        int length = CHUNK_SIZE * 5 + 1;
+        write(video(0, 1, length));
+        write(video(40, 1, length));
+        write(video(80, 1, CHUNK_SIZE * 5));
+        write(video(120, 1, CHUNK_SIZE * 5));
+
+        assertChunkTypes(RtmpHeader.ChunkType.TYPE_0_FULL,
+                RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY,
+                RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE,
+                RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE);
+        byte[] bytes = channel.toByteArray();
+        int offset = 12 + CHUNK_SIZE;
+        for (int chunk = 1; chunk < 6; chunk++) {
+            assertEquals(0xc0 | ChunkStreamInfo.RTMP_CID_VIDEO, bytes[offset] & 0xff);
+            offset += 1 + CHUNK_SIZE;
+        }
+        assertEquals(messageOffsets.get(1).intValue(), offset - CHUNK_SIZE + 1);
+        assertRoundTrip();
+    }
+
+    @Test
+    public void interleavedChunkStreams() throws Exception {
+        write(video(0, 1, CHUNK_SIZE * 2));
+        write(audio(0, 1, 20));
+        write(video(40, 1, CHUNK_SIZE * 2));
+        write(audio(23, 1, 20));
+        write(audio(46, 1, 20));
+
+        assertChunkTypes(RtmpHeader.ChunkType.TYPE_0_FULL,
+                RtmpHeader.ChunkType.TYPE_0_FULL,
+                RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY,
+                RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY,
+                RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE);
+        assertRoundTrip();
+    }
+
+    @Test
+    public void encodedSizeMatchesBytesWritten() throws Exception {
+        ContentData[] packets = {video(0, 1, 100), video(33, 1, 200), video(66, 1, 200), video(76, 1, 200),
+                video(86, 1, 200), video(0x1000000, 1, CHUNK_SIZE * 3 + 10), video(0x1000021, 1, CHUNK_SIZE * 3 + 10),
+                video(0x1000042, 1, CHUNK_SIZE * 2), video(0x1000063, 1, 0)};
+        for (ContentData packet : packets) {
+            int offset = channel.size();
+            write(packet);
+            int size = channel.size() - offset;
+            assertEquals(size, RtmpChunkWriter.getEncodedSize(packet.getHeader(), CHUNK_SIZE));
+            assertTrue(size <= RtmpChunkWriter.getMaxEncodedSize(packet.size(), CHUNK_SIZE));
+        }
+        assertRoundTrip();
+    }
+
+    private void write(ContentData packet) throws IOException {
+        messageOffsets.add(channel.size());
+        RtmpHeader header = packet.getHeader();
+        writer.write(channel, packet, CHUNK_SIZE, txSessionInfo.getChunkStreamInfo(header.getChunkStreamId()));
+        written.add(packet);
+    }
+
+    private void assertChunkTypes(RtmpHeader.ChunkType... chunkTypes) {
+        assertEquals(chunkTypes.length, messageOffsets.size());
+        byte[] bytes = channel.toByteArray();
+        for (int i = 0; i < chunkTypes.length; i++) {
+            assertEquals("message " + i, chunkTypes[i],
+                    RtmpHeader.ChunkType.valueOf((byte) ((bytes[messageOffsets.get(i)] & 0xff) >>> 6)));
+        }
+    }
+
+    private void assertRoundTrip() throws IOException {
+        RtmpSessionInfo rxSessionInfo = new RtmpSessionInfo();
+        rxSessionInfo.setRxChunkSize(CHUNK_SIZE);
+        RtmpDecoder decoder = new RtmpDecoder(rxSessionInfo);
+        ByteArrayInputStream in = new ByteArrayInputStream(channel.toByteArray());
+        List<RtmpPacket> decoded = new ArrayList<>();
+        while (in.available() > 0) {
+            try {
+                RtmpPacket packet = decoder.readPacket(in);
+                if (packet != null) {
+                    decoded.add(packet);
+                }
+            } catch (WindowAckRequired e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        assertEquals(written.size(), decoded.size());
+        for (int i = 0; i < written.size(); i++) {
+            ContentData expected = written.get(i);
+            RtmpPacket actual = decoded.get(i);
+            assertNotNull(actual);
+            assertTrue("message " + i, actual instanceof ContentData);
+            RtmpHeader expectedHeader = expected.getHeader();
+            RtmpHeader actualHeader = actual.getHeader();
+            assertEquals("message " + i, expectedHeader.getChunkStreamId(), actualHeader.getChunkStreamId());
+            assertEquals("message " + i, expectedHeader.getMessageType(), actualHeader.getMessageType());
+            assertEquals("message " + i, expectedHeader.getMessageStreamId(), actualHeader.getMessageStreamId());
+            assertEquals("message " + i, expectedHeader.getAbsoluteTimestamp(), actualHeader.getAbsoluteTimestamp());
+            assertEquals("message " + i, expected.size(), actualHeader.getPacketLength());
+            assertArrayEquals("message " + i, Arrays.copyOf(expected.array(), expected.size()),
+                    Arrays.copyOf(((ContentData) actual).array(), actualHeader.getPacketLength()));
+        }
+    }
+
+    private static Video video(int timestamp, int messageStreamId, int length) {
+        Video video = new Video();
+        fill(video, timestamp, messageStreamId, length);
+        return video;
+    }
+
+    private static Audio audio(int timestamp, int messageStreamId, int length) {
+        Audio audio = new Audio();
+        fill(audio, timestamp, messageStreamId, length);
+        return audio;
+    }
+
+    private static ContentData onVideoChunkStream(ContentData packet) {
+        packet.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_CID_VIDEO);
+        return packet;
+    }
+
+    private static void fill(ContentData packet, int timestamp, int messageStreamId, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + timestamp);
+        }
+        packet.setData(data, length);
+        packet.getHeader().setAbsoluteTimestamp(timestamp);
+        packet.getHeader().setMessageStreamId(messageStreamId);
+    }
+
+    private static int readUnsignedInt24(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 16 | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff);
+    }
+}
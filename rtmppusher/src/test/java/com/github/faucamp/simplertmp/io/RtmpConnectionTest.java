@@ -0,0 +1,233 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.DefaultRtmpPublisher;
+import com.github.faucamp.simplertmp.RtmpMetrics;
+import com.github.faucamp.simplertmp.RtmpPublisher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes to a local {@link RtmpIngestServer}
+ */
+public class RtmpConnectionTest {
+
+    private static final int TIMEOUT_MS = 5000;
+
+    private RtmpIngestServer server;
+    private TestRtmpHandler handler;
+    private DefaultRtmpPublisher publisher;
+    // Release count of each array handed to the publisher
+    private final Map<byte[], Integer> released = new IdentityHashMap<>();
+    private final List<byte[]> published = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new RtmpIngestServer();
+        server.setVerifyPayloads(true);
+        server.start();
+        handler = new TestRtmpHandler();
+        publisher = new DefaultRtmpPublisher(handler);
+        publisher.setOnContentReleasedListener(new RtmpPublisher.OnContentReleasedListener() {
+            @Override
+            public void onContentReleased(byte[] data, boolean video) {
+                synchronized (released) {
+                    Integer count = released.get(data);
+                    released.put(data, count == null ? 1 : count + 1);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        publisher.close();
+        server.stop();
+    }
+
+    @Test
+    public void aggregatesReleaseCountersAndContent() throws Exception {
+        publisher.setAggregation(100, 4096);
+        assertTrue(publisher.connect(server.getUrl("live")));
+        assertTrue(publisher.publish("live"));
+
+        AtomicInteger cachedFrames = publisher.getVideoFrameCacheNumber();
+        int dts = 0;
+        for (int gop = 0; gop < 3; gop++) {
+            publishVideo(cachedFrames, avc(true, 3000), dts);
+            for (int i = 0; i < 15; i++) {
+                dts += 20;
+                publishVideo(cachedFrames, avc(false, 500), dts);
+                publishAudio(aac(200), dts);
+            }
+        }
+        // Not aggregable, sends the pending video aggregate before it, the audio one is past its delay
+        dts += 200;
+        publishVideo(cachedFrames, avc(true, 3000), dts);
+
+        waitFor(cachedFrames, 0);
+        waitFor(server, 4 + 3 * 15, 3 * 15);
+        assertTrue(server.getAggregateMessages() > 0);
+        assertEquals(0, server.getInvalidPayloads());
+        RtmpMetrics.Snapshot snapshot = publisher.getMetrics().snapshot();
+        assertEquals(4 + 3 * 15, snapshot.getVideoFrames());
+        assertEquals(3 * 15, snapshot.getAudioFrames());
+        assertReleasedOnce();
+        assertTrue(handler.exceptions.isEmpty());
+    }
+
+    @Test
+    public void pendingAggregateIsDroppedWithItsStream() throws Exception {
+        // Nothing is sent before the stream closes
+        publisher.setAggregation(60 * 1000, 4096);
+        assertTrue(publisher.connect(server.getUrl("live")));
+        assertTrue(publisher.publish("live"));
+        RtmpStream stream = publisher.publishStream("second", "live");
+        assertNotNull(stream);
+
+        AtomicInteger cachedFrames = stream.getVideoFrameCacheNumber();
+        byte[] key = avc(true, 3000);
+        cachedFrames.incrementAndGet();
+        published.add(key);
+        stream.publishVideoData(key, key.length, 0);
+        for (int i = 1; i <= 5; i++) {
+            byte[] inter = avc(false, 500);
+            cachedFrames.incrementAndGet();
+            published.add(inter);
+            stream.publishVideoData(inter, inter.length, i * 20);
+        }
+        waitFor(cachedFrames, 5);
+
+        stream.close();
+
+        assertEquals(0, cachedFrames.get());
+        assertEquals(5, stream.getMetrics().snapshot().getDroppedVideoFrames());
+        // The main stream is left alone
+        assertEquals(0, publisher.getVideoFrameCacheNumber().get());
+        assertReleasedOnce();
+    }
+
+    @Test
+    public void pipelinedPublish() throws Exception {
+        publisher.setPipelinedPublish(true);
+        assertTrue(publisher.connect(server.getUrl("live")));
+        assertTrue(publisher.publish("live"));
+
+        publishFrames();
+        assertEquals(1, server.getPublishCount());
+        assertTrue(handler.exceptions.isEmpty());
+    }
+
+    @Test
+    public void pipelinedPublishIsSentAgainOnStreamCreated() throws Exception {
+        // The pipelined publish goes to a stream that does not exist
+        server.setFirstStreamId(5);
+        publisher.setPipelinedPublish(true);
+        assertTrue(publisher.connect(server.getUrl("live")));
+        assertTrue(publisher.publish("live"));
+
+        publishFrames();
+        assertEquals(1, server.getPublishCount());
+        assertTrue(handler.exceptions.isEmpty());
+    }
+
+    @Test
+    public void rejectedPipelinedPublishFallsBack() throws Exception {
+        server.setRejectedPublishes(1);
+        publisher.setPipelinedPublish(true);
+        assertTrue(publisher.connect(server.getUrl("live")));
+        // Created and published again, one reply after the other
+        assertTrue(publisher.publish("live"));
+
+        publishFrames();
+        assertEquals(1, server.getPublishCount());
+        assertTrue(handler.exceptions.isEmpty());
+    }
+
+    private void publishFrames() throws InterruptedException {
+        AtomicInteger cachedFrames = publisher.getVideoFrameCacheNumber();
+        publishVideo(cachedFrames, avc(true, 3000), 0);
+        for (int i = 1; i <= 10; i++) {
+            publishVideo(cachedFrames, avc(false, 500), i * 40);
+            publishAudio(aac(200), i * 40);
+        }
+        waitFor(cachedFrames, 0);
+        waitFor(server, 11, 10);
+        assertEquals(0, server.getInvalidPayloads());
+    }
+
+    private void publishVideo(AtomicInteger cachedFrames, byte[] data, int dts) {
+        // Counted by the muxer as it queues the frame
+        cachedFrames.incrementAndGet();
+        published.add(data);
+        publisher.publishVideoData(data, data.length, dts);
+    }
+
+    private void publishAudio(byte[] data, int dts) {
+        published.add(data);
+        publisher.publishAudioData(data, data.length, dts);
+    }
+
+    private void assertReleasedOnce() {
+        synchronized (released) {
+            for (byte[] data : published) {
+                assertEquals(Integer.valueOf(1), released.get(data));
+            }
+        }
+    }
+
+    private static void waitFor(AtomicInteger counter, int value) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT_MS * 1000000L;
+        while (counter.get() != value && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(value, counter.get());
+    }
+
+    private static void waitFor(RtmpIngestServer server, long videoFrames, long audioFrames) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT_MS * 1000000L;
+        while ((server.getVideoFrames() < videoFrames || server.getAudioFrames() < audioFrames)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(videoFrames, server.getVideoFrames());
+        assertEquals(audioFrames, server.getAudioFrames());
+    }
+
+    /**
+     * AVC NALU tag body, a single NAL unit filling it
+     */
+    private static byte[] avc(boolean keyFrame, int size) {
+        byte[] data = new byte[size];
+        data[0] = (byte) (keyFrame ? 0x17 : 0x27);
+        data[1] = 1;
+        int length = size - 9;
+        data[5] = (byte) (length >>> 24);
+        data[6] = (byte) (length >>> 16);
+        data[7] = (byte) (length >>> 8);
+        data[8] = (byte) length;
+        data[9] = (byte) (keyFrame ? 0x65 : 0x41);
+        return data;
+    }
+
+    /**
+     * AAC raw frame tag body
+     */
+    private static byte[] aac(int size) {
+        byte[] data = new byte[size];
+        data[0] = (byte) 0xaf;
+        data[1] = 1;
+        return data;
+    }
+}
@@ -0,0 +1,205 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.packets.Audio;
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.Video;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RtmpDecoderTest {
+
+    private static final int CHUNK_SIZE = 128;
+
+    private ChannelBuffer channel;
+    private RtmpChunkWriter writer;
+    private RtmpSessionInfo txSessionInfo;
+    private RtmpSessionInfo rxSessionInfo;
+    private RtmpDecoder decoder;
+
+    @Before
+    public void setUp() {
+        channel = new ChannelBuffer();
+        writer = new RtmpChunkWriter();
+        txSessionInfo = new RtmpSessionInfo();
+        rxSessionInfo = new RtmpSessionInfo();
+        rxSessionInfo.setRxChunkSize(CHUNK_SIZE);
+        decoder = new RtmpDecoder(rxSessionInfo);
+    }
+
+    @Test
+    public void peekChunkSizeMatchesChunksRead() throws Exception {
+        write(video(0, CHUNK_SIZE * 3 + 10));
+        write(audio(0, 20));
+        write(video(40, CHUNK_SIZE * 3 + 10));
+        write(audio(23, 20));
+        write(video(80, CHUNK_SIZE));
+        // Extended timestamps, repeated in every continuation chunk
+        write(video(0x1000000, CHUNK_SIZE * 2 + 1));
+        write(video(0x1000021, CHUNK_SIZE * 2 + 1));
+
+        ByteBuffer buf = ByteBuffer.wrap(channel.toByteArray());
+        int packets = 0;
+        while (buf.hasRemaining()) {
+            int position = buf.position();
+            int size = decoder.peekChunkSize(buf);
+            assertTrue(size > 0 && size <= buf.remaining());
+            assertEquals(position, buf.position());
+            // Exactly one chunk is read from the bytes peeked
+            ByteArrayInputStream in = new ByteArrayInputStream(buf.array(), position, size);
+            if (decoder.readPacket(in) != null) {
+                packets++;
+            }
+            assertEquals(0, in.available());
+            buf.position(position + size);
+        }
+        assertEquals(7, packets);
+    }
+
+    @Test
+    public void peekChunkSizeWaitsForWholeHeader() throws Exception {
+        assertEquals(-1, decoder.peekChunkSize(ByteBuffer.allocate(0)));
+
+        write(video(0, 100));
+        byte[] bytes = channel.toByteArray();
+        for (int length = 1; length < 12; length++) {
+            assertEquals(-1, decoder.peekChunkSize(ByteBuffer.wrap(bytes, 0, length)));
+        }
+        // The body does not have to be there yet
+        assertEquals(112, decoder.peekChunkSize(ByteBuffer.wrap(bytes, 0, 12)));
+    }
+
+    @Test
+    public void peekChunkSizeDoesNotUpdateSession() throws Exception {
+        write(video(0, CHUNK_SIZE * 2));
+        ByteBuffer buf = ByteBuffer.wrap(channel.toByteArray());
+
+        assertEquals(12 + CHUNK_SIZE, decoder.peekChunkSize(buf));
+        assertEquals(12 + CHUNK_SIZE, decoder.peekChunkSize(buf));
+        assertNull(rxSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_VIDEO).prevHeaderRx());
+    }
+
+    @Test
+    public void peekChunkSizeRejectsRelativeHeaderWithoutPrevious() throws Exception {
+        // Type 3 header on the video chunk stream, nothing read on it before
+        ByteBuffer buf = ByteBuffer.wrap(new byte[]{(byte) (0xc0 | ChunkStreamInfo.RTMP_CID_VIDEO)});
+        try {
+            decoder.peekChunkSize(buf);
+            fail("Relative header accepted without a previous one");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void windowAckRequiredCarriesCompletedPacket() throws Exception {
+        // Single chunk messages of 112, 104 then 101 bytes, the headers getting shorter
+        rxSessionInfo.setAcknowledgmentWindowSize(300);
+        List<Video> videos = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            videos.add(video(i * 40, 100));
+            write(videos.get(i));
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(channel.toByteArray());
+        List<Integer> acknowledged = new ArrayList<>();
+        List<RtmpPacket> decoded = new ArrayList<>();
+        while (in.available() > 0) {
+            try {
+                decoded.add(decoder.readPacket(in));
+            } catch (WindowAckRequired e) {
+                acknowledged.add(e.getBytesRead());
+                // The packet completed by the chunk is not lost
+                assertTrue(e.getRtmpPacket() instanceof Video);
+                decoded.add(e.getRtmpPacket());
+            }
+        }
+
+        // The bytes of the chunk past the window count towards the next one
+        assertEquals(2, acknowledged.size());
+        assertEquals(112 + 104 + 101, (int) acknowledged.get(0));
+        assertEquals(112 + 104 + 101 * 4, (int) acknowledged.get(1));
+        assertEquals(6, decoded.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(videos.get(i).getHeader().getAbsoluteTimestamp(), decoded.get(i).getHeader().getAbsoluteTimestamp());
+        }
+    }
+
+    @Test
+    public void windowAckRequiredWithinPacket() throws Exception {
+        rxSessionInfo.setAcknowledgmentWindowSize(200);
+        write(video(0, CHUNK_SIZE * 3));
+
+        ByteArrayInputStream in = new ByteArrayInputStream(channel.toByteArray());
+        // First chunk of 140 bytes
+        assertNull(decoder.readPacket(in));
+        try {
+            decoder.readPacket(in);
+            fail("Window filled without acknowledgement");
+        } catch (WindowAckRequired e) {
+            // The chunk does not complete the packet
+            assertEquals(140 + 1 + CHUNK_SIZE, e.getBytesRead());
+            assertNull(e.getRtmpPacket());
+        }
+        RtmpPacket packet = decoder.readPacket(in);
+        assertTrue(packet instanceof Video);
+        assertEquals(CHUNK_SIZE * 3, packet.getHeader().getPacketLength());
+    }
+
+    @Test
+    public void reusedBuffersHoldSliceOfMessage() throws Exception {
+        decoder.setReuseBuffers(true);
+        Video first = video(0, 100);
+        write(first);
+        write(video(40, 100));
+
+        ByteArrayInputStream in = new ByteArrayInputStream(channel.toByteArray());
+        ContentData decoded = (ContentData) decoder.readPacket(in);
+        assertEquals(100, decoded.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(first.array()[i], decoded.array()[i]);
+        }
+        ContentData next = (ContentData) decoder.readPacket(in);
+        assertTrue(next instanceof Video);
+        assertEquals(40, next.getHeader().getAbsoluteTimestamp());
+        assertEquals(100, next.size());
+    }
+
+    private void write(ContentData packet) throws IOException {
+        writer.write(channel, packet, CHUNK_SIZE, txSessionInfo.getChunkStreamInfo(packet.getHeader().getChunkStreamId()));
+    }
+
+    private static Video video(int timestamp, int length) {
+        Video video = new Video();
+        fill(video, timestamp, length);
+        return video;
+    }
+
+    private static Audio audio(int timestamp, int length) {
+        Audio audio = new Audio();
+        fill(audio, timestamp, length);
+        return audio;
+    }
+
+    private static void fill(ContentData packet, int timestamp, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + timestamp);
+        }
+        packet.setData(data, length);
+        packet.getHeader().setAbsoluteTimestamp(timestamp);
+        packet.getHeader().setMessageStreamId(1);
+    }
+}
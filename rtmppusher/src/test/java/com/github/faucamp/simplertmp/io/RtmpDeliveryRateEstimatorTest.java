@@ -0,0 +1,71 @@
+package com.github.faucamp.simplertmp.io;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RtmpDeliveryRateEstimatorTest {
+
+    private RtmpDeliveryRateEstimator estimator;
+
+    @Before
+    public void setUp() {
+        estimator = new RtmpDeliveryRateEstimator();
+    }
+
+    @Test
+    public void noRateBeforeTwoAcknowledgements() {
+        assertEquals(-1, estimator.getAcknowledgedBytes());
+        assertEquals(-1, estimator.getDeliveryRate(0), 0);
+
+        estimator.onAcknowledgement(1000, 5000);
+
+        assertEquals(5000, estimator.getAcknowledgedBytes());
+        assertEquals(-1, estimator.getDeliveryRate(2000), 0);
+    }
+
+    @Test
+    public void rateOfBytesAcknowledged() {
+        estimator.onAcknowledgement(0, 1000);
+        estimator.onAcknowledgement(500, 63500);
+        estimator.onAcknowledgement(1000, 126000);
+
+        assertEquals(126000, estimator.getAcknowledgedBytes());
+        assertEquals(1000000, estimator.getDeliveryRate(1000), 0);
+    }
+
+    @Test
+    public void sequenceNumberWrapsAround() {
+        // 64 KB short of 2^32, then 64 KB past it
+        estimator.onAcknowledgement(0, 0xffff0000);
+        estimator.onAcknowledgement(1000, 0x00010000);
+
+        assertEquals(0x100010000L, estimator.getAcknowledgedBytes());
+        assertEquals(0x20000 * 8, estimator.getDeliveryRate(1000), 0);
+    }
+
+    @Test
+    public void rateDropsOnceAcknowledgementsStop() {
+        estimator.onAcknowledgement(0, 0);
+        estimator.onAcknowledgement(1000, 125000);
+        assertEquals(1000000, estimator.getDeliveryRate(1000), 0);
+
+        // Only the last acknowledgement is left in the window, nothing acknowledged since
+        assertEquals(0, estimator.getDeliveryRate(6000), 0);
+        estimator.onAcknowledgement(7000, 250000);
+        assertEquals(125000 * 8.0 / 6, estimator.getDeliveryRate(7000), 0.001);
+    }
+
+    @Test
+    public void oldestSamplesAreOverwritten() {
+        // More acknowledgements than samples kept, within the window
+        for (int i = 0; i <= 100; i++) {
+            estimator.onAcknowledgement(i * 10, i * 1250);
+        }
+
+        assertEquals(100 * 1250, estimator.getAcknowledgedBytes());
+        // From the oldest sample kept, at the same rate
+        assertEquals(1000000, estimator.getDeliveryRate(1000), 0);
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.faucamp.simplertmp.io;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RtmpFlushPolicyTest {
+
+    @Test
+    public void immediateHasNoConditions() {
+        assertTrue(RtmpFlushPolicy.IMMEDIATE.isImmediate());
+        assertTrue(new RtmpFlushPolicy(0, 0, false, 1024).isImmediate());
+        assertFalse(new RtmpFlushPolicy(0, 30, false, 1024).isImmediate());
+    }
+
+    @Test
+    public void clampsFlushBytesToBuffer() {
+        assertEquals(1024, new RtmpFlushPolicy(4096, 30, true, 1024).getFlushBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsKeyframeFlushWithoutMaxDelay() {
+        // Audio would wait for the next keyframe, or forever without video
+        new RtmpFlushPolicy(0, 0, true, 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsByteFlushWithoutMaxDelay() {
+        new RtmpFlushPolicy(4096, 0, false, 8192);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeMaxDelay() {
+        new RtmpFlushPolicy(4096, -1, false, 8192);
+    }
+}
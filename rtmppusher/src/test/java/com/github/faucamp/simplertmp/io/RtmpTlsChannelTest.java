@@ -0,0 +1,503 @@
+package com.github.faucamp.simplertmp.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.concurrent.CountDownLatch;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link RtmpTlsChannel} against a local TLS echo server with a self-signed certificate for
+ * localhost, see src/test/resources/rtmps-test.p12
+ */
+public class RtmpTlsChannelTest {
+
+    private static final String HOST = "localhost";
+    private static final char[] KEYSTORE_PASSWORD = "password".toCharArray();
+    private static final int TIMEOUT_MS = 10000;
+
+    private SSLContext serverContext;
+    private SSLContext clientContext;
+    private EchoServer server;
+    private FragmentingProxy proxy;
+    // Channel under the last TLS channel opened
+    private SocketChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = getClass().getResourceAsStream("/rtmps-test.p12");
+        try {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, KEYSTORE_PASSWORD);
+        serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, tmf.getTrustManagers(), null);
+        server = new EchoServer(serverContext);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (proxy != null) {
+            proxy.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void roundTripBlocking() throws Exception {
+        RtmpTlsChannel tls = open(server.getPort(), true, clientContext, acceptHost(HOST));
+        try {
+            assertEquals(0, tls.handshake());
+            assertTrue(tls.getSession().isValid());
+            byte[] data = pattern(100 * 1024);
+            assertEquals(data.length, writeFully(tls, ByteBuffer.wrap(data)));
+            assertArrayEquals(data, readFully(tls, data.length));
+        } finally {
+            tls.close();
+        }
+    }
+
+    @Test
+    public void gatheringWrite() throws Exception {
+        RtmpTlsChannel tls = open(server.getPort(), true, clientContext, acceptHost(HOST));
+        try {
+            tls.handshake();
+            byte[] data = pattern(3 * RtmpTlsChannel.MAX_RECORD_PAYLOAD + 5);
+            ByteBuffer[] srcs = {ByteBuffer.wrap(data, 0, 1), ByteBuffer.wrap(data, 1, 1000),
+                    ByteBuffer.allocate(0), ByteBuffer.wrap(data, 1001, data.length - 1001)};
+            long written = 0;
+            while (written < data.length) {
+                written += tls.write(srcs);
+            }
+            assertArrayEquals(data, readFully(tls, data.length));
+        } finally {
+            tls.close();
+        }
+    }
+
+    @Test
+    public void resumesSessionOnReconnect() throws Exception {
+        SSLSession first = roundTrip(server.getPort(), clientContext);
+        SSLSession second = roundTrip(server.getPort(), clientContext);
+
+        // A resumed session keeps its creation time, a full handshake makes a new one
+        assertEquals(first.getCreationTime(), second.getCreationTime());
+        assertEquals(1, server.getFullHandshakes());
+    }
+
+    @Test
+    public void rejectedByHostnameVerifier() throws Exception {
+        RtmpTlsChannel tls = open(server.getPort(), true, clientContext, acceptHost("rtmp.example.com"));
+        try {
+            tls.handshake();
+            fail("Certificate of " + HOST + " accepted");
+        } catch (SSLPeerUnverifiedException e) {
+            // Expected
+        } finally {
+            tls.close();
+        }
+    }
+
+    @Test
+    public void rejectsUntrustedCertificate() throws Exception {
+        // The shared context only trusts the system certificates
+        RtmpTlsChannel tls = open(server.getPort(), true, null, acceptHost(HOST));
+        try {
+            tls.handshake();
+            fail("Self-signed certificate trusted");
+        } catch (SSLException e) {
+            // Expected
+        } finally {
+            tls.close();
+        }
+    }
+
+    @Test
+    public void recordsSplitAcrossNonBlockingReads() throws Exception {
+        // Every record, of the handshake too, reaches the client a few bytes at a time
+        proxy = new FragmentingProxy(server.getPort(), 100);
+        RtmpTlsChannel tls = open(proxy.getPort(), false, clientContext, acceptHost(HOST));
+        Selector selector = Selector.open();
+        try {
+            handshakeNonBlocking(tls, selector);
+            byte[] data = pattern(2 * RtmpTlsChannel.MAX_RECORD_PAYLOAD + 100);
+            assertEquals(data.length, writeFully(tls, ByteBuffer.wrap(data)));
+
+            ByteBuffer received = ByteBuffer.allocate(data.length);
+            ByteBuffer dst = ByteBuffer.allocate(1000);
+            int emptyReads = 0;
+            long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+            while (received.hasRemaining() && System.currentTimeMillis() < deadlineMs) {
+                dst.clear();
+                dst.limit(Math.min(dst.capacity(), received.remaining()));
+                int n = tls.read(dst);
+                assertTrue(n >= 0);
+                if (n == 0) {
+                    emptyReads++;
+                    await(tls, selector, SelectionKey.OP_READ);
+                } else {
+                    dst.flip();
+                    received.put(dst);
+                }
+            }
+            assertArrayEquals(data, received.array());
+            assertTrue(emptyReads > 0);
+            assertTrue(proxy.getFragments() > data.length / 100);
+        } finally {
+            selector.close();
+            tls.close();
+        }
+    }
+
+    @Test
+    public void recordsSplitAcrossNonBlockingWrites() throws Exception {
+        server.setReadGate(new CountDownLatch(1));
+        RtmpTlsChannel tls = open(server.getPort(), false, clientContext, acceptHost(HOST));
+        Selector selector = Selector.open();
+        try {
+            handshakeNonBlocking(tls, selector);
+            byte[] data = pattern(8 * 1024 * 1024);
+            ByteBuffer src = ByteBuffer.wrap(data);
+
+            // Until the socket is full, with the server not reading
+            long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!tls.hasPendingOutput() && System.currentTimeMillis() < deadlineMs) {
+                assertTrue(src.hasRemaining());
+                tls.write(src);
+            }
+            assertTrue(tls.hasPendingOutput());
+            // A record is partly written, nothing more is taken
+            int position = src.position();
+            assertEquals(0, tls.write(src));
+            assertEquals(position, src.position());
+            assertTrue(!tls.flush());
+
+            server.getReadGate().countDown();
+            ByteBuffer received = ByteBuffer.allocate(data.length);
+            ByteBuffer dst = ByteBuffer.allocate(64 * 1024);
+            deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+            while (received.hasRemaining() && System.currentTimeMillis() < deadlineMs) {
+                boolean progress = false;
+                if (src.hasRemaining() || tls.hasPendingOutput()) {
+                    progress = tls.flush() && src.hasRemaining() && tls.write(src) > 0;
+                }
+                dst.clear();
+                dst.limit(Math.min(dst.capacity(), received.remaining()));
+                int n = tls.read(dst);
+                assertTrue(n >= 0);
+                if (n > 0) {
+                    dst.flip();
+                    received.put(dst);
+                    progress = true;
+                }
+                if (!progress) {
+                    await(tls, selector, tls.hasPendingOutput()
+                            ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                }
+            }
+            assertTrue(!tls.hasPendingOutput());
+            assertArrayEquals(data, received.array());
+        } finally {
+            selector.close();
+            tls.close();
+        }
+    }
+
+    private RtmpTlsChannel open(int port, boolean blocking, SSLContext context,
+                                HostnameVerifier hostnameVerifier) throws IOException {
+        channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        if (!blocking) {
+            // Small enough to fill up while the server does not read
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, 16 * 1024);
+            channel.configureBlocking(false);
+        }
+        return new RtmpTlsChannel(channel, context, HOST, port, hostnameVerifier);
+    }
+
+    private SSLSession roundTrip(int port, SSLContext context) throws IOException {
+        RtmpTlsChannel tls = open(port, true, context, acceptHost(HOST));
+        try {
+            tls.handshake();
+            byte[] data = pattern(1000);
+            writeFully(tls, ByteBuffer.wrap(data));
+            // Also takes the session tickets sent after the handshake
+            assertArrayEquals(data, readFully(tls, data.length));
+            return tls.getSession();
+        } finally {
+            tls.close();
+        }
+    }
+
+    private void handshakeNonBlocking(RtmpTlsChannel tls, Selector selector) throws IOException {
+        long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+        int ops;
+        while ((ops = tls.handshake()) != 0) {
+            if (System.currentTimeMillis() > deadlineMs) {
+                fail("TLS handshake timed out");
+            }
+            await(tls, selector, ops);
+        }
+    }
+
+    private void await(RtmpTlsChannel tls, Selector selector, int ops) throws IOException {
+        if (tls.hasBufferedInput()) {
+            return;
+        }
+        SelectionKey key = channel.register(selector, ops);
+        selector.select(100);
+        selector.selectedKeys().clear();
+        key.interestOps(0);
+    }
+
+    private static long writeFully(RtmpTlsChannel tls, ByteBuffer src) throws IOException {
+        long written = 0;
+        while (src.hasRemaining() || !tls.flush()) {
+            written += tls.write(src);
+        }
+        return written;
+    }
+
+    private static byte[] readFully(RtmpTlsChannel tls, int length) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(length);
+        while (dst.hasRemaining()) {
+            if (tls.read(dst) < 0) {
+                fail("Connection closed after " + dst.position() + " bytes");
+            }
+        }
+        return dst.array();
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7 + i / 251);
+        }
+        return data;
+    }
+
+    private static HostnameVerifier acceptHost(final String acceptedHost) {
+        return new HostnameVerifier() {
+            @Override
+            public boolean verify(String host, SSLSession session) {
+                try {
+                    return host.equals(acceptedHost) && session.getPeerCertificates().length > 0;
+                } catch (SSLPeerUnverifiedException e) {
+                    return false;
+                }
+            }
+        };
+    }
+
+    /**
+     * Echoes the bytes of each connection, a thread per connection
+     */
+    private static class EchoServer {
+        private final SSLServerSocket serverSocket;
+        private final Thread acceptThread;
+        private volatile CountDownLatch readGate;
+        private volatile int fullHandshakes;
+        private long lastCreationTime;
+
+        EchoServer(SSLContext context) throws IOException {
+            serverSocket = (SSLServerSocket) context.getServerSocketFactory()
+                    .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            acceptThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket socket = serverSocket.accept();
+                            Thread thread = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    serve((SSLSocket) socket);
+                                }
+                            });
+                            thread.setDaemon(true);
+                            thread.start();
+                        }
+                    } catch (IOException e) {
+                        // Closed
+                    }
+                }
+            });
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        /**
+         * set a latch the connections wait for before reading anything after the handshake
+         */
+        void setReadGate(CountDownLatch gate) {
+            readGate = gate;
+        }
+
+        CountDownLatch getReadGate() {
+            return readGate;
+        }
+
+        synchronized int getFullHandshakes() {
+            return fullHandshakes;
+        }
+
+        private void serve(SSLSocket socket) {
+            try {
+                socket.startHandshake();
+                synchronized (this) {
+                    long creationTime = socket.getSession().getCreationTime();
+                    if (creationTime != lastCreationTime) {
+                        fullHandshakes++;
+                        lastCreationTime = creationTime;
+                    }
+                }
+                CountDownLatch gate = readGate;
+                if (gate != null) {
+                    gate.await();
+                }
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                byte[] buffer = new byte[32 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Closed by the client, or a failed handshake
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Forwards a connection to a local port, cutting what the server sends into small writes
+     */
+    private static class FragmentingProxy {
+        private final ServerSocket serverSocket;
+        private final int fragmentSize;
+        private volatile int fragments;
+
+        FragmentingProxy(final int targetPort, int fragmentSize) throws IOException {
+            this.fragmentSize = fragmentSize;
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Socket client = serverSocket.accept();
+                        Socket target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                        client.setTcpNoDelay(true);
+                        pump(client, target, false);
+                        pump(target, client, true);
+                    } catch (IOException e) {
+                        // Closed
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        int getFragments() {
+            return fragments;
+        }
+
+        private void pump(final Socket from, final Socket to, final boolean fragment) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        InputStream in = from.getInputStream();
+                        OutputStream out = to.getOutputStream();
+                        byte[] buffer = new byte[32 * 1024];
+                        int n;
+                        while ((n = in.read(buffer)) > 0) {
+                            int step = fragment ? fragmentSize : n;
+                            for (int offset = 0; offset < n; offset += step) {
+                                out.write(buffer, offset, Math.min(step, n - offset));
+                                out.flush();
+                                if (fragment) {
+                                    fragments++;
+                                    // Gives the client the time to read each fragment on its own
+                                    Thread.sleep(1);
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        // Closed
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        try {
+                            from.close();
+                            to.close();
+                        } catch (IOException e) {
+                            // Closing anyway
+                        }
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
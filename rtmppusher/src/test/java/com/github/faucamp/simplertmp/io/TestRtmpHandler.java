@@ -0,0 +1,76 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.RtmpHandler;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records the exceptions notified instead of posting them, there is no looper in unit tests
+ */
+class TestRtmpHandler extends RtmpHandler {
+
+    final List<Exception> exceptions = new CopyOnWriteArrayList<>();
+
+    TestRtmpHandler() {
+        super(null);
+    }
+
+    @Override
+    public void notifyRtmpConnecting(String msg) {
+    }
+
+    @Override
+    public void notifyRtmpConnected(String msg) {
+    }
+
+    @Override
+    public void notifyRtmpVideoStreaming() {
+    }
+
+    @Override
+    public void notifyRtmpAudioStreaming() {
+    }
+
+    @Override
+    public void notifyRtmpStopped() {
+    }
+
+    @Override
+    public void notifyRtmpDisconnected() {
+    }
+
+    @Override
+    public void notifyRtmpVideoFpsChanged(double fps) {
+    }
+
+    @Override
+    public void notifyRtmpVideoBitrateChanged(double bitrate) {
+    }
+
+    @Override
+    public void notifyRtmpAudioBitrateChanged(double bitrate) {
+    }
+
+    @Override
+    public void notifyRtmpSocketException(SocketException e) {
+        exceptions.add(e);
+    }
+
+    @Override
+    public void notifyRtmpIOException(IOException e) {
+        exceptions.add(e);
+    }
+
+    @Override
+    public void notifyRtmpIllegalArgumentException(IllegalArgumentException e) {
+        exceptions.add(e);
+    }
+
+    @Override
+    public void notifyRtmpIllegalStateException(IllegalStateException e) {
+        exceptions.add(e);
+    }
+}
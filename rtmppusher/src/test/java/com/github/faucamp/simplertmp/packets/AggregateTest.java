@@ -0,0 +1,86 @@
+package com.github.faucamp.simplertmp.packets;
+
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AggregateTest {
+
+    @Test
+    public void encodesFlvTags() {
+        Aggregate aggregate = new Aggregate(true, new byte[1024]);
+        byte[] first = body(100, 1);
+        byte[] second = body(50, 2);
+        assertTrue(aggregate.add(first, first.length, 1000));
+        // Above 24 bits, the top byte goes in the extended timestamp field
+        assertTrue(aggregate.add(second, second.length, 0x1234567));
+
+        ByteBuffer buf = ByteBuffer.wrap(aggregate.array(), 0, aggregate.size());
+        assertTag(buf, 9, first, 1000);
+        assertTag(buf, 9, second, 0x1234567);
+        assertFalse(buf.hasRemaining());
+
+        assertEquals(2 * Aggregate.TAG_OVERHEAD + 150, aggregate.size());
+        assertEquals(2, aggregate.getMessageCount());
+        assertEquals(150, aggregate.getContentBytes());
+    }
+
+    @Test
+    public void takesHeaderOfFirstMessage() {
+        Aggregate aggregate = new Aggregate(false, new byte[1024]);
+        aggregate.add(body(10, 0), 10, 40);
+        aggregate.add(body(10, 0), 10, 63);
+
+        RtmpHeader header = aggregate.getHeader();
+        assertEquals(RtmpHeader.MessageType.AGGREGATE_MESSAGE, header.getMessageType());
+        assertEquals(ChunkStreamInfo.RTMP_CID_AUDIO, header.getChunkStreamId());
+        assertEquals(40, header.getAbsoluteTimestamp());
+        assertFalse(aggregate.isVideo());
+        // Audio tags
+        assertEquals(8, aggregate.array()[0]);
+    }
+
+    @Test
+    public void refusesMessagesPastBuffer() {
+        int capacity = 2 * (Aggregate.TAG_OVERHEAD + 100);
+        Aggregate aggregate = new Aggregate(true, new byte[capacity]);
+        assertTrue(aggregate.add(body(100, 0), 100, 0));
+        assertFalse(aggregate.add(body(101, 0), 101, 33));
+        // A failed add leaves the aggregate as it was
+        assertEquals(1, aggregate.getMessageCount());
+        assertEquals(Aggregate.TAG_OVERHEAD + 100, aggregate.size());
+        assertTrue(aggregate.add(body(100, 0), 100, 33));
+        assertEquals(capacity, aggregate.size());
+    }
+
+    private static void assertTag(ByteBuffer buf, int type, byte[] body, int timestamp) {
+        assertEquals(type, buf.get());
+        assertEquals(body.length, readInt24(buf));
+        assertEquals(timestamp & 0xffffff, readInt24(buf));
+        assertEquals(timestamp >>> 24, buf.get() & 0xff);
+        // Stream ID
+        assertEquals(0, readInt24(buf));
+        for (byte b : body) {
+            assertEquals(b, buf.get());
+        }
+        assertEquals(11 + body.length, buf.getInt());
+    }
+
+    private static int readInt24(ByteBuffer buf) {
+        return (buf.get() & 0xff) << 16 | (buf.get() & 0xff) << 8 | (buf.get() & 0xff);
+    }
+
+    private static byte[] body(int length, int seed) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 7 + seed);
+        }
+        return body;
+    }
+}
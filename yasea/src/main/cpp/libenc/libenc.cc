@@ -177,6 +177,16 @@ static bool convert_to_i420_with_crop_scale(uint8_t *src_frame, jint src_width,
 
 static void libenc_setEncoderBitrate(JNIEnv *env, jobject thiz, jint bitrate) {
     x264_ctx.bitrate = bitrate / 1024;  // kbps
+
+    // adaptive bitrate, the rate control of an opened encoder follows the new bitrate
+    if (x264_ctx.encoder != NULL) {
+        x264_ctx.params.rc.i_bitrate = x264_ctx.bitrate;
+        x264_ctx.params.rc.i_vbv_max_bitrate = x264_ctx.bitrate;
+        x264_ctx.params.rc.i_vbv_buffer_size = x264_ctx.bitrate;
+        if (x264_encoder_reconfig(x264_ctx.encoder, &x264_ctx.params) < 0) {
+            LIBENC_LOGE("Fail to reconfig x264 bitrate");
+        }
+    }
 }
 
 static void libenc_setEncoderFps(JNIEnv *env, jobject thiz, jint fps) {
@@ -522,6 +532,9 @@ static jboolean libenc_openSoftEncoder(JNIEnv *env, jobject thiz) {
     // bitrate
     x264_ctx.params.rc.i_bitrate = x264_ctx.bitrate;  // kbps
     x264_ctx.params.rc.i_rc_method = X264_RC_ABR;
+    // vbv is required to change the bitrate once the encoder is opened
+    x264_ctx.params.rc.i_vbv_max_bitrate = x264_ctx.bitrate;
+    x264_ctx.params.rc.i_vbv_buffer_size = x264_ctx.bitrate;
 
     // fps
     x264_ctx.params.i_fps_num = x264_ctx.fps;
@@ -215,9 +215,9 @@ public class UVCPublisher {
         mEncoder.stop();
     }
 
-    public void startPublish(String rtmpUrl) {
+    public void startPublish(String... rtmpUrls) {
         if (mFlvMuxer != null) {
-            mFlvMuxer.start(rtmpUrl);
+            mFlvMuxer.start(rtmpUrls);
             mFlvMuxer.setVideoResolution(mEncoder.getOutputWidth(), mEncoder.getOutputHeight());
             startEncode();
         }
@@ -1,15 +1,19 @@
 package net.ossrs.yasea;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SrsAllocator {
     private int individualAllocationSize;
+    // Number of released allocations at the start of availableAllocations
     private volatile int availableSentinel;
     private Allocation[] availableAllocations;
 
     public class Allocation {
         private byte[] data;
         private int size;
+        // Holders of the allocation, it is recycled once the last one releases it
+        private final AtomicInteger refCount = new AtomicInteger(1);
 
         public Allocation(int size) {
             this.data = new byte[size];
@@ -24,6 +28,13 @@ public class SrsAllocator {
             return size;
         }
 
+        /**
+         * Adds a holder, to be matched by a call to {@link SrsAllocator#release}.
+         */
+        public void retain() {
+            refCount.incrementAndGet();
+        }
+
         public void appendOffset(int offset) {
             size += offset;
         }
@@ -85,25 +96,27 @@ public class SrsAllocator {
     }
 
     public synchronized Allocation allocate(int size) {
-        for (int i = 0; i < availableSentinel; i++) {
-            if (availableAllocations[i].size() >= size) {
-                Allocation ret = availableAllocations[i];
-                availableAllocations[i] = null;
+        // Most recently released first, its array is the most likely to be in cache
+        for (int i = availableSentinel - 1; i >= 0; i--) {
+            Allocation ret = availableAllocations[i];
+            if (ret.array().length >= size) {
+                availableAllocations[i] = availableAllocations[--availableSentinel];
+                availableAllocations[availableSentinel] = null;
+                ret.refCount.set(1);
                 return ret;
             }
         }
         return new Allocation(size > individualAllocationSize ? size : individualAllocationSize);
     }
 
+    /**
+     * Drops a reference of the allocation, which is recycled once no holder is left.
+     */
     public synchronized void release(Allocation allocation) {
-        allocation.clear();
-
-        for (int i = 0; i < availableSentinel; i++) {
-            if (availableAllocations[i].size() == 0) {
-                availableAllocations[i] = allocation;
-                return;
-            }
+        if (allocation.refCount.decrementAndGet() > 0) {
+            return;
         }
+        allocation.clear();
 
         if (availableSentinel + 1 > availableAllocations.length) {
             availableAllocations = Arrays.copyOf(availableAllocations, availableAllocations.length * 2);
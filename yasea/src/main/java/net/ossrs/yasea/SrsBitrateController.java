@@ -0,0 +1,160 @@
+package net.ossrs.yasea;
+
+/**
+ * Adaptive video bitrate, driven by the delay of the muxer send queue and the throughput
+ * measured on the RTMP connection.
+ * <p>
+ * AIMD with hysteresis: the bitrate is cut multiplicatively, down to the measured throughput,
+ * as long as the queue delay exceeds the high threshold and does not shrink, and only raised
+ * step by step once the delay has stayed below the low threshold for a while after the last
+ * cut. Delays in between keep the bitrate unchanged.
+ */
+public class SrsBitrateController {
+
+    /**
+     * Minimum time between two samples, shorter ones are ignored
+     */
+    private static final int SAMPLE_INTERVAL_MS = 1000;
+    /**
+     * Time for a cut to show in the queue before the next one
+     */
+    private static final int DECREASE_INTERVAL_MS = 2000;
+    /**
+     * Time after a cut before the bitrate may be raised again
+     */
+    private static final int INCREASE_HOLD_MS = 5000;
+    /**
+     * Consecutive samples below the low threshold needed for each raise
+     */
+    private static final int INCREASE_SAMPLES = 2;
+    private static final double DECREASE_FACTOR = 0.8;
+    // Leaves room for audio and chunk headers in the measured throughput
+    private static final double THROUGHPUT_FACTOR = 0.9;
+    private static final double THROUGHPUT_SMOOTHING = 0.5;
+
+    private final int minBitrate;
+    private final int maxBitrate;
+    private final int increaseStep;
+    private int lowDelayMs = 100;
+    private int highDelayMs = 500;
+
+    private int bitrate;
+    private double throughput = -1;
+    private long lastSampleTime = -1;
+    private long lastSentBytes;
+    private long lastDecreaseTime;
+    private int lastQueueDelay;
+    private int lowDelaySamples;
+
+    /**
+     * @param minBitrate     the lowest bitrate, in bps
+     * @param maxBitrate     the highest bitrate, in bps
+     * @param initialBitrate the bitrate the encoder starts with, in bps
+     */
+    public SrsBitrateController(int minBitrate, int maxBitrate, int initialBitrate) {
+        if (minBitrate <= 0 || minBitrate > maxBitrate) {
+            throw new IllegalArgumentException("Invalid bitrate range: " + minBitrate + "-" + maxBitrate);
+        }
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        this.increaseStep = Math.max(maxBitrate / 20, 1);
+        this.bitrate = clamp(initialBitrate);
+    }
+
+    /**
+     * set the queue delays below which the bitrate may be raised and above which it is cut.
+     */
+    public void setDelayThresholds(int lowDelayMs, int highDelayMs) {
+        if (lowDelayMs < 0 || lowDelayMs >= highDelayMs) {
+            throw new IllegalArgumentException("Invalid delay thresholds: " + lowDelayMs + "-" + highDelayMs);
+        }
+        this.lowDelayMs = lowDelayMs;
+        this.highDelayMs = highDelayMs;
+    }
+
+    /**
+     * Takes a sample of the link, at most once per second.
+     *
+     * @param nowMs        the current time in milliseconds, from a monotonic clock
+     * @param queueDelayMs the time span of the frames waiting in the send queue
+     * @param sentBytes    the total number of bytes written on the connection
+     * @param deliveryRate the rate acknowledged by the server in bps, or -1 if unknown, in which
+     *                     case the rate of the bytes written is used as the throughput
+     * @return the target bitrate in bps
+     */
+    public int update(long nowMs, int queueDelayMs, long sentBytes, double deliveryRate) {
+        if (lastSampleTime < 0) {
+            lastSampleTime = nowMs;
+            lastSentBytes = sentBytes;
+            lastDecreaseTime = nowMs - INCREASE_HOLD_MS;
+            return bitrate;
+        }
+        long elapsed = nowMs - lastSampleTime;
+        if (elapsed < SAMPLE_INTERVAL_MS) {
+            return bitrate;
+        }
+
+        // Bytes written may still sit in the socket buffers, the acknowledged ones got through
+        double rate = deliveryRate >= 0 ? deliveryRate : (double) (sentBytes - lastSentBytes) * 8 * 1000 / elapsed;
+        throughput = throughput < 0 ? rate : throughput + (rate - throughput) * THROUGHPUT_SMOOTHING;
+        boolean draining = queueDelayMs < lastQueueDelay && bitrate < throughput * THROUGHPUT_FACTOR;
+        lastSampleTime = nowMs;
+        lastSentBytes = sentBytes;
+        lastQueueDelay = queueDelayMs;
+
+        if (queueDelayMs >= highDelayMs) {
+            lowDelaySamples = 0;
+            // Once below the throughput, the backlog shrinks by itself and a further cut only hurts
+            if (!draining && nowMs - lastDecreaseTime >= DECREASE_INTERVAL_MS) {
+                // The link drains at the measured throughput, no point in encoding more than that
+                double target = Math.min(bitrate * DECREASE_FACTOR, throughput * THROUGHPUT_FACTOR);
+                bitrate = clamp((int) target);
+                lastDecreaseTime = nowMs;
+            }
+        } else if (queueDelayMs <= lowDelayMs) {
+            lowDelaySamples++;
+            if (lowDelaySamples >= INCREASE_SAMPLES && nowMs - lastDecreaseTime >= INCREASE_HOLD_MS) {
+                bitrate = clamp(bitrate + increaseStep);
+                lowDelaySamples = 0;
+            }
+        } else {
+            lowDelaySamples = 0;
+        }
+        return bitrate;
+    }
+
+    /**
+     * Cuts the bitrate right away when the writes of the connection stall, which the queue
+     * delay only shows once the frames pile up. Counts as a cut of {@link #update}.
+     *
+     * @param nowMs the current time in milliseconds, from the clock given to {@link #update}
+     * @return the target bitrate in bps
+     */
+    public int onSendStalled(long nowMs) {
+        if (nowMs - lastDecreaseTime < DECREASE_INTERVAL_MS) {
+            return bitrate;
+        }
+        bitrate = clamp((int) (bitrate * DECREASE_FACTOR));
+        lastDecreaseTime = nowMs;
+        lowDelaySamples = 0;
+        return bitrate;
+    }
+
+    /**
+     * @return the target bitrate in bps
+     */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * @return the smoothed throughput of the connection in bps, or -1 before the first sample
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    private int clamp(int value) {
+        return Math.max(minBitrate, Math.min(maxBitrate, value));
+    }
+}
@@ -10,10 +10,10 @@ import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Leo Ma on 4/1/2016.
@@ -37,6 +37,9 @@ public class SrsEncoder {
     public static int vBitrate = SrsLiveConfig.HIGH_DEFINITION_BITRATE;//视频比特率
     public static int vFPS = SrsLiveConfig.NORMAL_FPS;//视频帧率
     public static final int vGOP = SrsLiveConfig.GOP;//I帧间隔周期
+    // Share of the probed bandwidth given to audio and video, the rest is left for overhead and variations
+    private static final double PROBED_BANDWIDTH_USAGE = 0.8;
+    private static final int PROBED_MIN_BITRATE = 256 * 1024;
 
     public static int aBitrate = SrsLiveConfig.HIGH_QUALITY_BITRATE;//音频比特率
     public static final int aSampleRate = SrsLiveConfig.AUDIO_SAMPLE_RATE;//音频采样率
@@ -52,6 +55,10 @@ public class SrsEncoder {
     private MediaCodec aEncoder;
 
     private boolean networkWeakTriggered = false;
+    private int vMinAdaptiveBitrate;
+    private int vMaxAdaptiveBitrate;
+    private SrsBitrateController bitrateController;
+    private int vAdaptedBitrate;
     private boolean useSoftEncoder = false;
     private boolean canSoftEncode = false;
 
@@ -118,7 +125,14 @@ public class SrsEncoder {
         // the first picture on the player, a spare lower GOP value is suggested. But note that
         // lower GOP will produce more I frames and therefore more streaming data flow.
         // setEncoderGop(15);
-        setEncoderBitrate(vBitrate);
+        if (vMaxAdaptiveBitrate > 0) {
+            bitrateController = new SrsBitrateController(vMinAdaptiveBitrate, vMaxAdaptiveBitrate, vBitrate);
+            vAdaptedBitrate = bitrateController.getBitrate();
+        } else {
+            bitrateController = null;
+            vAdaptedBitrate = vBitrate;
+        }
+        setEncoderBitrate(vAdaptedBitrate);
         setEncoderPreset(x264Preset);
 
         if (useSoftEncoder) {
@@ -164,7 +178,7 @@ public class SrsEncoder {
         MediaFormat videoFormat = MediaFormat.createVideoFormat(vCodec, vOutWidth, vOutHeight);
         videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, mVideoColorFormat);
         videoFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 0);
-        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, vBitrate);
+        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, vAdaptedBitrate);
         videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, vFPS);
         videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, vGOP);
         vEncoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
@@ -276,6 +290,80 @@ public class SrsEncoder {
         x264Preset = SrsLiveConfig.XH264_SUPER_FAST_PRESET;
     }
 
+    /**
+     * Lowers the video settings, from the next start, to what the probed uplink can carry: the
+     * bitrate, then the resolution and fps of the HD and SD modes below their bitrates. Like the
+     * modes, the settings stay until set again.
+     *
+     * @param bandwidth the uplink rate measured before publishing, in bps
+     */
+    public void applyProbedBandwidth(double bandwidth) {
+        int budget = (int) (bandwidth * PROBED_BANDWIDTH_USAGE) - aBitrate;
+        if (budget >= vBitrate) {
+            return;
+        }
+        vBitrate = Math.max(PROBED_MIN_BITRATE, budget);
+        if (vBitrate < SrsLiveConfig.STANDARD_DEFINITION_BITRATE) {
+            limitResolution(SrsLiveConfig.STANDARD_DEFINITION_WIDTH * SrsLiveConfig.STANDARD_DEFINITION_HEIGHT);
+            vFPS = Math.min(vFPS, SrsLiveConfig.POOR_FPS);
+        } else if (vBitrate < SrsLiveConfig.HIGH_DEFINITION_BITRATE) {
+            limitResolution(SrsLiveConfig.HIGH_DEFINITION_WIDTH * SrsLiveConfig.HIGH_DEFINITION_HEIGHT);
+            vFPS = Math.min(vFPS, SrsLiveConfig.NORMAL_FPS);
+        }
+        if (DEBUG) Log.i(TAG, String.format("probed %.0fbps, starting at %dbps %dx%d %dfps",
+                bandwidth, vBitrate, vOutWidth, vOutHeight, vFPS));
+    }
+
+    /**
+     * scales the output resolution down to the specified number of pixels, keeping its aspect
+     */
+    private void limitResolution(int maxPixels) {
+        int pixels = vLandscapeWidth * vLandscapeHeight;
+        if (pixels <= maxPixels) {
+            return;
+        }
+        double scale = Math.sqrt((double) maxPixels / pixels);
+        // Multiples of 32, see start()
+        int width = Math.max(32, (int) Math.round(vLandscapeWidth * scale / 32) * 32);
+        int height = Math.max(32, (int) Math.round(vLandscapeHeight * scale / 32) * 32);
+        boolean portrait = vOutWidth < vOutHeight;
+        vLandscapeWidth = width;
+        vLandscapeHeight = height;
+        vPortraitWidth = height;
+        vPortraitHeight = width;
+        vOutWidth = portrait ? vPortraitWidth : vLandscapeWidth;
+        vOutHeight = portrait ? vPortraitHeight : vLandscapeHeight;
+    }
+
+    /**
+     * Adapts the video bitrate to the network within the specified bounds, from the next start.
+     *
+     * @param minBitrate the lowest video bitrate, in bps
+     * @param maxBitrate the highest video bitrate, in bps
+     */
+    public void enableAdaptiveBitrate(int minBitrate, int maxBitrate) {
+        if (minBitrate <= 0 || minBitrate > maxBitrate) {
+            throw new IllegalArgumentException("Invalid bitrate range: " + minBitrate + "-" + maxBitrate);
+        }
+        vMinAdaptiveBitrate = minBitrate;
+        vMaxAdaptiveBitrate = maxBitrate;
+    }
+
+    /**
+     * Encodes at the fixed video bitrate of the mode, from the next start.
+     */
+    public void disableAdaptiveBitrate() {
+        vMinAdaptiveBitrate = 0;
+        vMaxAdaptiveBitrate = 0;
+    }
+
+    /**
+     * @return the video bitrate the encoder currently targets, in bps
+     */
+    public int getVideoBitrate() {
+        return vAdaptedBitrate;
+    }
+
     public int getOutputWidth() {
         return vOutWidth;
     }
@@ -308,6 +396,7 @@ public class SrsEncoder {
         if (vEncoder == null) {
             return;
         }
+        adaptVideoBitrate();
         if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.LOLLIPOP) {
             ByteBuffer[] inBuffers = vEncoder.getInputBuffers();
             ByteBuffer[] outBuffers = vEncoder.getOutputBuffers();
@@ -382,65 +471,59 @@ public class SrsEncoder {
     }
 
     /**
-     * Check audio frame cache number to judge the networking situation.
-     * Just cache GOP / FPS seconds data according to latency.
+     * Encode audio whatever the networking situation, the send queue of the muxer drops
+     * video frames first when the network is weak.
      */
     public void onGetPcmFrame(byte[] data, int size) {
         if (flvMuxer == null || aEncoder == null) {
             return;
         }
         if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.LOLLIPOP) {
-            AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
-            if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < vGOP) {
-                ByteBuffer[] inBuffers = aEncoder.getInputBuffers();
-                ByteBuffer[] outBuffers = aEncoder.getOutputBuffers();
-
-                int inBufferIndex = aEncoder.dequeueInputBuffer(-1);
-                if (inBufferIndex >= 0) {
-                    ByteBuffer bb = inBuffers[inBufferIndex];
-                    bb.clear();
-                    bb.put(data, 0, size);
-                    long pts = System.nanoTime() / 1000 - mPresentTime;
-                    aEncoder.queueInputBuffer(inBufferIndex, 0, size, pts, 0);
-                }
+            ByteBuffer[] inBuffers = aEncoder.getInputBuffers();
+            ByteBuffer[] outBuffers = aEncoder.getOutputBuffers();
 
-                for (; ; ) {
-                    MediaCodec.BufferInfo aEbi = new MediaCodec.BufferInfo();
-                    int outBufferIndex = aEncoder.dequeueOutputBuffer(aEbi, 0);
-                    if (outBufferIndex >= 0) {
-                        ByteBuffer bb = outBuffers[outBufferIndex];
-                        onEncodedAacFrame(bb, aEbi);
-                        aEncoder.releaseOutputBuffer(outBufferIndex, false);
-                    } else {
-                        break;
-                    }
+            int inBufferIndex = aEncoder.dequeueInputBuffer(-1);
+            if (inBufferIndex >= 0) {
+                ByteBuffer bb = inBuffers[inBufferIndex];
+                bb.clear();
+                bb.put(data, 0, size);
+                long pts = System.nanoTime() / 1000 - mPresentTime;
+                aEncoder.queueInputBuffer(inBufferIndex, 0, size, pts, 0);
+            }
+
+            for (; ; ) {
+                MediaCodec.BufferInfo aEbi = new MediaCodec.BufferInfo();
+                int outBufferIndex = aEncoder.dequeueOutputBuffer(aEbi, 0);
+                if (outBufferIndex >= 0) {
+                    ByteBuffer bb = outBuffers[outBufferIndex];
+                    onEncodedAacFrame(bb, aEbi);
+                    aEncoder.releaseOutputBuffer(outBufferIndex, false);
+                } else {
+                    break;
                 }
             }
         } else {
-            AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
-            if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < vGOP) {
-                int inBufferIndex = aEncoder.dequeueInputBuffer(-1);
-                if (inBufferIndex >= 0) {
-                    ByteBuffer bb = aEncoder.getInputBuffer(inBufferIndex);
-                    if (bb != null) {
-                        bb.put(data, 0, size);
-                    }
-                    long pts = System.nanoTime() / 1000 - mPresentTime;
-                    aEncoder.queueInputBuffer(inBufferIndex, 0, size, pts, 0);
+            int inBufferIndex = aEncoder.dequeueInputBuffer(-1);
+            if (inBufferIndex >= 0) {
+                ByteBuffer bb = aEncoder.getInputBuffer(inBufferIndex);
+                if (bb != null) {
+                    bb.put(data, 0, size);
                 }
+                long pts = System.nanoTime() / 1000 - mPresentTime;
+                aEncoder.queueInputBuffer(inBufferIndex, 0, size, pts, 0);
+            }
 
-                for (; ; ) {
-                    MediaCodec.BufferInfo aEbi = new MediaCodec.BufferInfo();
-                    int outBufferIndex = aEncoder.dequeueOutputBuffer(aEbi, 0);
-                    if (outBufferIndex >= 0) {
-                        ByteBuffer bb = aEncoder.getOutputBuffer(outBufferIndex);
-                        if (bb != null) {
-                            onEncodedAacFrame(bb, aEbi);
-                        }
-                        aEncoder.releaseOutputBuffer(outBufferIndex, false);
-                    } else {
-                        break;
+            for (; ; ) {
+                MediaCodec.BufferInfo aEbi = new MediaCodec.BufferInfo();
+                int outBufferIndex = aEncoder.dequeueOutputBuffer(aEbi, 0);
+                if (outBufferIndex >= 0) {
+                    ByteBuffer bb = aEncoder.getOutputBuffer(outBufferIndex);
+                    if (bb != null) {
+                        onEncodedAacFrame(bb, aEbi);
                     }
+                    aEncoder.releaseOutputBuffer(outBufferIndex, false);
+                } else {
+                    break;
                 }
             }
         }
@@ -458,15 +541,14 @@ public class SrsEncoder {
     }
 
     /**
-     * Check video frame cache number to judge the networking situation.
-     * Just cache GOP / FPS seconds data according to latency.
+     * Check the latency of the send queues to judge the networking situation.
+     * Frames are skipped while the queues are over their budget, they would only be dropped.
      */
     public void onGetRgbaFrame(byte[] data, int width, int height) {
         if (flvMuxer == null) {
             return;
         }
-        AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
-        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < vGOP) {
+        if (!flvMuxer.isSendLatencyOverBudget()) {
             long pts = System.nanoTime() / 1000 - mPresentTime;
             if (useSoftEncoder) {
                 swRgbaFrame(data, width, height, pts);
@@ -490,15 +572,14 @@ public class SrsEncoder {
     }
 
     /**
-     * Check video frame cache number to judge the networking situation.
-     * Just cache GOP / FPS seconds data according to latency.
+     * Check the latency of the send queues to judge the networking situation.
+     * Frames are skipped while the queues are over their budget, they would only be dropped.
      */
     public void onGetYuvNV21Frame(byte[] data, int width, int height, Rect boundingBox) {
         if (flvMuxer == null) {
             return;
         }
-        AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
-        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < vGOP) {
+        if (!flvMuxer.isSendLatencyOverBudget()) {
             long pts = System.nanoTime() / 1000 - mPresentTime;
             if (useSoftEncoder) {
                 throw new UnsupportedOperationException("Not implemented");
@@ -522,15 +603,14 @@ public class SrsEncoder {
     }
 
     /**
-     * Check video frame cache number to judge the networking situation.
-     * Just cache GOP / FPS seconds data according to latency.
+     * Check the latency of the send queues to judge the networking situation.
+     * Frames are skipped while the queues are over their budget, they would only be dropped.
      */
     public void onGetArgbFrame(int[] data, int width, int height, Rect boundingBox) {
         if (flvMuxer == null) {
             return;
         }
-        AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
-        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < vGOP) {
+        if (!flvMuxer.isSendLatencyOverBudget()) {
             long pts = System.nanoTime() / 1000 - mPresentTime;
             if (useSoftEncoder) {
                 throw new UnsupportedOperationException("Not implemented");
@@ -554,15 +634,14 @@ public class SrsEncoder {
     }
 
     /**
-     * Check video frame cache number to judge the networking situation.
-     * Just cache GOP / FPS seconds data according to latency.
+     * Check the latency of the send queues to judge the networking situation.
+     * Frames are skipped while the queues are over their budget, they would only be dropped.
      */
     public void onGetArgbFrame(int[] data, int width, int height) {
         if (flvMuxer == null) {
             return;
         }
-        AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
-        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < vGOP) {
+        if (!flvMuxer.isSendLatencyOverBudget()) {
             long pts = System.nanoTime() / 1000 - mPresentTime;
             if (useSoftEncoder) {
                 throw new UnsupportedOperationException("Not implemented");
@@ -626,9 +705,40 @@ public class SrsEncoder {
     }
 
     private void swRgbaFrame(byte[] data, int width, int height, long pts) {
+        adaptVideoBitrate();
         RGBASoftEncode(data, width, height, true, 180, pts);
     }
 
+    /**
+     * Samples the send queue delay and the connection delivery rate, and retunes the video
+     * encoder when the bitrate controller asks for another bitrate.
+     */
+    private void adaptVideoBitrate() {
+        if (bitrateController == null || flvMuxer == null) {
+            return;
+        }
+        long nowMs = System.nanoTime() / 1000000;
+        int bitrate = flvMuxer.takeSendStall() ? bitrateController.onSendStalled(nowMs)
+                : bitrateController.update(nowMs, flvMuxer.getSendLatency(), flvMuxer.getSentBytes(), flvMuxer.getDeliveryRate());
+        if (bitrate == vAdaptedBitrate) {
+            return;
+        }
+        if (DEBUG) Log.i(TAG, String.format("adapt video bitrate %d -> %d bps, throughput %.0f bps",
+                vAdaptedBitrate, bitrate, bitrateController.getThroughput()));
+        vAdaptedBitrate = bitrate;
+        if (useSoftEncoder) {
+            setEncoderBitrate(bitrate);
+        } else if (vEncoder != null) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            try {
+                vEncoder.setParameters(params);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "set video bitrate failed.");
+            }
+        }
+    }
+
     private static final int[] AUDIO_SOURCES = new int[]{
             MediaRecorder.AudioSource.DEFAULT,
             MediaRecorder.AudioSource.MIC,
@@ -6,11 +6,19 @@ import android.util.Log;
 
 import com.github.faucamp.simplertmp.DefaultRtmpPublisher;
 import com.github.faucamp.simplertmp.RtmpHandler;
+import com.github.faucamp.simplertmp.RtmpIngestRace;
+import com.github.faucamp.simplertmp.RtmpMetrics;
+import com.github.faucamp.simplertmp.RtmpPublisher;
+import com.github.faucamp.simplertmp.io.RtmpEventLoop;
+import com.github.faucamp.simplertmp.io.RtmpFlushPolicy;
+import com.github.faucamp.simplertmp.io.RtmpStallPolicy;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -21,25 +29,81 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @see android.media.MediaMuxer https://developer.android.com/reference/android/media/MediaMuxer.html
  */
 public class SrsFlvMuxer {
+
+    /**
+     * Receives the uplink rate probed before the first publish of the primary url
+     */
+    public interface OnBandwidthProbedListener {
+
+        /**
+         * called on the connection thread before publishing, which waits for it to return
+         *
+         * @param bandwidth the probed rate, in bps
+         */
+        void onBandwidthProbed(double bandwidth);
+    }
+
     private static final String TAG = "SrsFlvMuxer";
     private static final boolean DEBUG = false;
 
     private static final int VIDEO_ALLOC_SIZE = 128 * 1024;
     private static final int AUDIO_ALLOC_SIZE = 4 * 1024;
+    // Video tags handed to the publisher at once, the backlog stays in the send queue where it can be dropped
+    private static final int MAX_VIDEO_TAGS_IN_FLIGHT = 2;
+    private static final int RECONNECT_MIN_DELAY_MS = 500;
+    private static final int RECONNECT_MAX_DELAY_MS = 30 * 1000;
+    // Time given to an ingest url before the next one is tried as well
+    private static final int FAILOVER_STAGGER_MS = 250;
+    // A longer GOP is not cached, the next IDR starts the cache again
+    private static final int GOP_CACHE_MAX_BYTES = 8 * 1024 * 1024;
 
     private volatile boolean started = false;
-    private DefaultRtmpPublisher publisher;
+    private final RtmpHandler mHandler;
+    private final RtmpEventLoop mEventLoop;
+    // One per RTMP url, replaced as a whole on start and stop, read by the encoding thread
+    private volatile SrsRtmpDestination[] mDestinations = new SrsRtmpDestination[0];
+    // Connected in advance by preconnect, waiting for start
+    private SrsRtmpDestination[] mStandbyDestinations = new SrsRtmpDestination[0];
+    private final AtomicInteger mNoVideoFrameCached = new AtomicInteger(0);
+    private int mVideoWidth;
+    private int mVideoHeight;
+    private volatile int mSendLatencyBudget = SrsLiveConfig.SEND_LATENCY_BUDGET;
+    private SrsSendQueue.DropPolicy[] mDropPolicies = {SrsSendQueue.NON_REFERENCE_FRAMES, SrsSendQueue.REST_OF_GOP};
+    private volatile boolean mAutoReconnect = false;
+    private int mAggregateMaxDelayMs = 0;
+    private int mAggregateMaxVideoSize = 0;
+    private RtmpFlushPolicy mFlushPolicy = RtmpFlushPolicy.IMMEDIATE;
+    private boolean mTcpNoDelay = false;
+    private int mMetricsIntervalMs = 1000;
+    private boolean mPipelinedPublish = false;
+    private RtmpStallPolicy[] mStallPolicies = new RtmpStallPolicy[0];
+    // Set by a LOWER_BITRATE stall policy of the primary url, until taken by the encoder
+    private final AtomicBoolean mSendStalled = new AtomicBoolean(false);
+    private int mBandwidthProbeMs = 0;
+    private volatile OnBandwidthProbedListener mBandwidthProbedListener;
+    // Result of the probe since the last preconnect or start, guarded by the lock
+    private final Object mBandwidthProbeLock = new Object();
+    private boolean mBandwidthProbed = true;
+    private double mProbedBandwidth = -1;
+
+    // The latest sequence headers and the frames since the last IDR, replayed on each publish
+    private final Object mGopCacheLock = new Object();
+    private final SrsGopCache mGopCache = new SrsGopCache(GOP_CACHE_MAX_BYTES, new SrsGopCache.FrameHolder() {
+        @Override
+        public void retain(SrsSendQueue.Frame frame) {
+            ((SrsFlvFrame) frame).flvTag.retain();
+        }
 
-    private Thread worker;
-    private final Object txFrameLock = new Object();
+        @Override
+        public void release(SrsSendQueue.Frame frame) {
+            releaseFlvTag((SrsFlvFrame) frame);
+        }
+    });
 
     private SrsFlv flv = new SrsFlv();
     private boolean needToFindKeyFrame = true;
-    private SrsFlvFrame mVideoSequenceHeader;
-    private SrsFlvFrame mAudioSequenceHeader;
     private SrsAllocator mVideoAllocator = new SrsAllocator(VIDEO_ALLOC_SIZE);
     private SrsAllocator mAudioAllocator = new SrsAllocator(AUDIO_ALLOC_SIZE);
-    private ConcurrentLinkedQueue<SrsFlvFrame> mFlvTagCache = new ConcurrentLinkedQueue<>();
 
     private static final int VIDEO_TRACK = 100;
     private static final int AUDIO_TRACK = 101;
@@ -50,14 +114,301 @@ public class SrsFlvMuxer {
      * @param handler the rtmp event handler.
      */
     public SrsFlvMuxer(RtmpHandler handler) {
-        publisher = new DefaultRtmpPublisher(handler);
+        this(handler, null);
     }
 
     /**
-     * get cached video frame number in publisher
+     * constructor.
+     *
+     * @param handler   the rtmp event handler, shared by the connections to all urls.
+     * @param eventLoop the started event loop driving the RTMP connections, shared by several
+     *                  muxers to save the reader and writer threads of each, or null.
+     */
+    public SrsFlvMuxer(RtmpHandler handler, RtmpEventLoop eventLoop) {
+        mHandler = handler;
+        mEventLoop = eventLoop;
+    }
+
+    /**
+     * set the latency budget of the send queues, video frames are dropped once the queued
+     * frames span more than it.
+     *
+     * @param latencyBudgetMs the budget in milliseconds
+     */
+    public void setSendLatencyBudget(int latencyBudgetMs) {
+        mSendLatencyBudget = latencyBudgetMs;
+        for (SrsRtmpDestination destination : mDestinations) {
+            destination.sendQueue.setLatencyBudget(latencyBudgetMs);
+        }
+    }
+
+    /**
+     * set the policies choosing the video frames to drop when a send queue is over budget,
+     * applied in order. Audio and sequence headers are never dropped.
+     *
+     * @param policies the drop policies, by default {@link SrsSendQueue#NON_REFERENCE_FRAMES}
+     *                 then {@link SrsSendQueue#REST_OF_GOP}
+     */
+    public void setDropPolicies(SrsSendQueue.DropPolicy... policies) {
+        mDropPolicies = policies.clone();
+        for (SrsRtmpDestination destination : mDestinations) {
+            destination.sendQueue.setDropPolicies(policies);
+        }
+    }
+
+    /**
+     * set the drop policies of the send queue of one url only, until the next start.
+     *
+     * @param destination the index of the url given to {@link #start}
+     */
+    public void setDropPolicies(int destination, SrsSendQueue.DropPolicy... policies) {
+        mDestinations[destination].sendQueue.setDropPolicies(policies);
+    }
+
+    /**
+     * get the number of video frames dropped by the specified policy, for all urls
+     */
+    public long getDroppedFrames(SrsSendQueue.DropPolicy policy) {
+        long frames = 0;
+        for (SrsRtmpDestination destination : mDestinations) {
+            frames += destination.sendQueue.getDroppedFrames(policy);
+        }
+        return frames;
+    }
+
+    /**
+     * get the number of video frames dropped by the specified policy for one url
+     *
+     * @param destination the index of the url given to {@link #start}
+     */
+    public long getDroppedFrames(int destination, SrsSendQueue.DropPolicy policy) {
+        return mDestinations[destination].sendQueue.getDroppedFrames(policy);
+    }
+
+    /**
+     * get the number of video bytes dropped by the specified policy, for all urls
+     */
+    public long getDroppedBytes(SrsSendQueue.DropPolicy policy) {
+        long bytes = 0;
+        for (SrsRtmpDestination destination : mDestinations) {
+            bytes += destination.sendQueue.getDroppedBytes(policy);
+        }
+        return bytes;
+    }
+
+    /**
+     * get the number of video bytes dropped by the specified policy for one url
+     *
+     * @param destination the index of the url given to {@link #start}
+     */
+    public long getDroppedBytes(int destination, SrsSendQueue.DropPolicy policy) {
+        return mDestinations[destination].sendQueue.getDroppedBytes(policy);
+    }
+
+    /**
+     * get the time span of the frames waiting in the send queue of the primary url, plus the time
+     * to deliver the bytes sent but not yet acknowledged by the server, in milliseconds
+     */
+    public int getSendLatency() {
+        SrsRtmpDestination[] destinations = mDestinations;
+        return destinations.length == 0 ? 0 : destinations[0].sendQueue.getLatency() + destinations[0].getInFlightDelay();
+    }
+
+    /**
+     * get the rate at which the server of the primary url acknowledges bytes, in bps, or -1 until known
+     */
+    public double getDeliveryRate() {
+        SrsRtmpDestination[] destinations = mDestinations;
+        return destinations.length == 0 ? -1 : destinations[0].publisher.getDeliveryRate();
+    }
+
+    /**
+     * get the number of bytes sent to the primary url and not yet acknowledged, or -1 until known
+     */
+    public long getInFlightBytes() {
+        SrsRtmpDestination[] destinations = mDestinations;
+        return destinations.length == 0 ? -1 : destinations[0].publisher.getInFlightBytes();
+    }
+
+    /**
+     * get the number of bytes written on the RTMP connection to the primary url, chunk headers included
+     */
+    public long getSentBytes() {
+        SrsRtmpDestination[] destinations = mDestinations;
+        return destinations.length == 0 ? 0 : destinations[0].getSentBytes();
+    }
+
+    /**
+     * get whether the send queues of all the urls online span their latency budget, in flight
+     * bytes included, so that more video frames would only be dropped. A slow url never holds
+     * back the encoder as long as another one keeps up.
+     */
+    public boolean isSendLatencyOverBudget() {
+        boolean over = false;
+        for (SrsRtmpDestination destination : mDestinations) {
+            if (destination.online) {
+                if (destination.sendQueue.getLatency() + destination.getInFlightDelay() < mSendLatencyBudget) {
+                    return false;
+                }
+                over = true;
+            }
+        }
+        return over;
+    }
+
+    /**
+     * get cached video frame number in publisher, of the url with the fewest cached frames
+     * so that a slow url never holds back the encoder.
      */
     public AtomicInteger getVideoFrameCacheNumber() {
-        return publisher == null ? null : publisher.getVideoFrameCacheNumber();
+        AtomicInteger fewest = null;
+        for (SrsRtmpDestination destination : mDestinations) {
+            AtomicInteger number = destination.publisher.getVideoFrameCacheNumber();
+            if (destination.online && (fewest == null || number.get() < fewest.get())) {
+                fewest = number;
+            }
+        }
+        return fewest == null ? mNoVideoFrameCached : fewest;
+    }
+
+    /**
+     * set whether a lost or failed connection is opened again, after a growing delay, while
+     * the encoder keeps running. Each publish starts with the sequence headers and the
+     * frames since the last IDR, so that players get a picture right away.
+     */
+    public void setAutoReconnect(boolean enabled) {
+        mAutoReconnect = enabled;
+    }
+
+    /**
+     * set the batching of audio tags, and of inter frames up to maxVideoSize bytes, into
+     * aggregate messages spanning up to maxDelayMs, which saves per message overhead on
+     * constrained uplinks at the cost of that much latency. 0 disables batching.
+     */
+    public void setAggregation(int maxDelayMs, int maxVideoSize) {
+        mAggregateMaxDelayMs = maxDelayMs;
+        mAggregateMaxVideoSize = maxVideoSize;
+        for (SrsRtmpDestination destination : mDestinations) {
+            destination.publisher.setAggregation(maxDelayMs, maxVideoSize);
+        }
+    }
+
+    /**
+     * set when the connections hand the written tags to their socket and whether TCP_NODELAY
+     * is set, applied on the next connect of each url.
+     */
+    public void setFlushPolicy(RtmpFlushPolicy policy, boolean tcpNoDelay) {
+        mFlushPolicy = policy;
+        mTcpNoDelay = tcpNoDelay;
+        for (SrsRtmpDestination destination : mDestinations) {
+            destination.publisher.setFlushPolicy(policy);
+            destination.publisher.setTcpNoDelay(tcpNoDelay);
+        }
+    }
+
+    /**
+     * set whether the connections send the connect and publish commands back to back,
+     * without waiting for each reply, applied on the next connect of each url.
+     */
+    public void setPipelinedPublish(boolean enabled) {
+        mPipelinedPublish = enabled;
+        for (SrsRtmpDestination destination : mDestinations) {
+            destination.publisher.setPipelinedPublish(enabled);
+        }
+    }
+
+    /**
+     * set what the connections do when their writes make no progress, applied on the next
+     * connect of each url. A {@link RtmpStallPolicy.Action#LOWER_BITRATE} policy of the primary
+     * url cuts the bitrate of an adaptive encoder, see {@link #takeSendStall}.
+     */
+    public void setStallPolicies(RtmpStallPolicy... policies) {
+        mStallPolicies = policies.clone();
+        for (SrsRtmpDestination destination : mDestinations) {
+            destination.publisher.setStallPolicies(policies);
+        }
+    }
+
+    /**
+     * whether a stall policy of the primary url asked for a lower bitrate since the last call.
+     */
+    public boolean takeSendStall() {
+        return mSendStalled.getAndSet(false);
+    }
+
+    /**
+     * set the time given to measuring the uplink of the primary url, between its connect and
+     * its first publish, see {@link DefaultRtmpPublisher#probeBandwidth}. Applied on the next
+     * preconnect or start, not on failover.
+     *
+     * @param maxDurationMs the time in milliseconds, 0 for no probe
+     */
+    public void setBandwidthProbe(int maxDurationMs) {
+        mBandwidthProbeMs = maxDurationMs;
+    }
+
+    public void setOnBandwidthProbedListener(OnBandwidthProbedListener listener) {
+        mBandwidthProbedListener = listener;
+    }
+
+    /**
+     * wait for the bandwidth probe of the last preconnect or start.
+     *
+     * @param timeoutMs the longest wait in milliseconds
+     * @return the probed rate in bps, or -1 if not probed, failed or still running
+     */
+    public double awaitBandwidthProbe(int timeoutMs) {
+        long deadline = System.nanoTime() / 1000000 + timeoutMs;
+        synchronized (mBandwidthProbeLock) {
+            try {
+                long remaining;
+                while (!mBandwidthProbed && (remaining = deadline - System.nanoTime() / 1000000) > 0) {
+                    mBandwidthProbeLock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return mProbedBandwidth;
+        }
+    }
+
+    private void resetBandwidthProbe(boolean probing) {
+        synchronized (mBandwidthProbeLock) {
+            mBandwidthProbed = !probing;
+            mProbedBandwidth = -1;
+            mBandwidthProbeLock.notifyAll();
+        }
+    }
+
+    private void onBandwidthProbed(double bandwidth) {
+        OnBandwidthProbedListener listener = mBandwidthProbedListener;
+        if (listener != null && bandwidth > 0) {
+            listener.onBandwidthProbed(bandwidth);
+        }
+        synchronized (mBandwidthProbeLock) {
+            mBandwidthProbed = true;
+            mProbedBandwidth = bandwidth;
+            mBandwidthProbeLock.notifyAll();
+        }
+    }
+
+    /**
+     * set how often the fps and bitrates of the primary url are reported to the handler,
+     * applied on the next start.
+     *
+     * @param intervalMs the interval in milliseconds, 0 for none
+     */
+    public void setMetricsInterval(int intervalMs) {
+        mMetricsIntervalMs = intervalMs;
+    }
+
+    /**
+     * get the streaming metrics of one url, until the next start or failover.
+     *
+     * @param destination the index of the url given to {@link #start}
+     */
+    public RtmpMetrics getMetrics(int destination) {
+        return mDestinations[destination].publisher.getMetrics();
     }
 
     /**
@@ -67,8 +418,13 @@ public class SrsFlvMuxer {
      * @param height height
      */
     public void setVideoResolution(int width, int height) {
-        if (publisher != null) {
-            publisher.setVideoResolution(width, height);
+        mVideoWidth = width;
+        mVideoHeight = height;
+        for (SrsRtmpDestination destination : mDestinations) {
+            destination.publisher.setVideoResolution(width, height);
+        }
+        for (SrsRtmpDestination destination : mStandbyDestinations) {
+            destination.publisher.setVideoResolution(width, height);
         }
     }
 
@@ -88,110 +444,92 @@ public class SrsFlvMuxer {
         }
     }
 
-    private void disconnect() {
-        try {
-            publisher.close();
-        } catch (IllegalStateException e) {
-            // Ignore illegal state.
+    /**
+     * connect to the remote servers in advance, up to the RTMP connect command, so that
+     * {@link #start} with the same urls only has to publish. The connections are kept,
+     * and made again if lost, until then or until stop.
+     *
+     * @param rtmpUrls the urls to publish to, the first one is the primary url
+     */
+    public void preconnect(String... rtmpUrls) {
+        discardStandby();
+        SrsRtmpDestination[] destinations = new SrsRtmpDestination[rtmpUrls.length];
+        for (int i = 0; i < rtmpUrls.length; i++) {
+            destinations[i] = new SrsRtmpDestination(rtmpUrls[i]);
         }
-        mVideoSequenceHeader = null;
-        mAudioSequenceHeader = null;
-        if (DEBUG) Log.i(TAG, "worker: disconnect ok.");
-    }
-
-    private boolean connect(String url) {
-        boolean connected = false;
-        if (DEBUG)
-            Log.i(TAG, String.format("worker: connecting to RTMP server by url=%s", url));
-        if (publisher.connect(url)) {
-            connected = publisher.publish("live");
+        startBandwidthProbe(destinations);
+        mStandbyDestinations = destinations;
+        for (SrsRtmpDestination destination : destinations) {
+            destination.start();
         }
-        mVideoSequenceHeader = null;
-        mAudioSequenceHeader = null;
-        return connected;
     }
 
-    private void sendFlvTag(SrsFlvFrame frame) {
-        if (frame == null) {
-            return;
+    /**
+     * start to the remote servers for muxer, each url with its own connection and send queue
+     * so that a slow server never stalls the others. The tags are encoded once and shared.
+     *
+     * @param rtmpUrls the urls to publish to, the first one is the primary url
+     */
+    public void start(String... rtmpUrls) {
+        SrsRtmpDestination[] destinations = takeStandby(rtmpUrls);
+        boolean preconnected = destinations != null;
+        if (!preconnected) {
+            destinations = new SrsRtmpDestination[rtmpUrls.length];
+            for (int i = 0; i < rtmpUrls.length; i++) {
+                destinations[i] = new SrsRtmpDestination(rtmpUrls[i]);
+            }
+            startBandwidthProbe(destinations);
         }
-
-        if (frame.isVideo()) {
-            if (frame.isKeyFrame()) {
-                if (DEBUG) Log.i(TAG, String.format("worker: send frame type=%d, dts=%d, size=%dB",
-                        frame.type, frame.dts, frame.flvTag.array().length));
+        mDestinations = destinations;
+        started = true;
+        for (SrsRtmpDestination destination : destinations) {
+            destination.requestPublish();
+            if (!preconnected) {
+                destination.start();
             }
-            publisher.publishVideoData(frame.flvTag.array(), frame.flvTag.size(), frame.dts);
-            mVideoAllocator.release(frame.flvTag);
-        } else if (frame.isAudio()) {
-            publisher.publishAudioData(frame.flvTag.array(), frame.flvTag.size(), frame.dts);
-            mAudioAllocator.release(frame.flvTag);
+        }
+        if (mMetricsIntervalMs > 0 && destinations.length > 0) {
+            mHandler.startMetricsPolling(destinations[0].publisher.getMetrics(), mMetricsIntervalMs);
         }
     }
 
     /**
-     * start to the remote server for muxer.
+     * start to the first of several ingest servers of the same stream that accepts it. The
+     * connections are attempted in order, each one 250ms after the previous one or as soon as
+     * it failed, and the first publish wins. When the connection is lost, the muxer fails over
+     * to the next urls at once while the encoder keeps running, and the new ingest gets the
+     * sequence headers and the current GOP. Once all of them failed, the auto reconnect applies.
+     *
+     * @param ingestUrls the urls of the ingest servers, in order of priority
      */
-    public void start(final String rtmpUrl) {
+    public void startFailover(String... ingestUrls) {
+        discardStandby();
+        resetBandwidthProbe(false);
+        SrsRtmpDestination destination = new SrsRtmpDestination(ingestUrls);
+        mDestinations = new SrsRtmpDestination[]{destination};
         started = true;
-        worker = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                if (!connect(rtmpUrl)) {
-                    return;
-                }
-
-                while (!Thread.interrupted()) {
-                    while (!mFlvTagCache.isEmpty()) {
-                        SrsFlvFrame frame = mFlvTagCache.poll();
-                        if (frame != null) {
-                            if (frame.isSequenceHeader()) {
-                                if (frame.isVideo()) {
-                                    mVideoSequenceHeader = frame;
-                                    sendFlvTag(mVideoSequenceHeader);
-                                } else if (frame.isAudio()) {
-                                    mAudioSequenceHeader = frame;
-                                    sendFlvTag(mAudioSequenceHeader);
-                                }
-                            } else {
-                                if (frame.isVideo() && mVideoSequenceHeader != null) {
-                                    sendFlvTag(frame);
-                                } else if (frame.isAudio() && mAudioSequenceHeader != null) {
-                                    sendFlvTag(frame);
-                                }
-                            }
-                        }
-                    }
-                    // Waiting for next frame
-                    synchronized (txFrameLock) {
-                        try {
-                            // isEmpty() may take some time, so we set timeout to detect next frame
-                            txFrameLock.wait(500);
-                        } catch (InterruptedException ie) {
-                            worker.interrupt();
-                        }
-                    }
-                }
-            }
-        });
-        worker.start();
+        destination.requestPublish();
+        destination.start();
+        if (mMetricsIntervalMs > 0) {
+            mHandler.startMetricsPolling(destination.publisher.getMetrics(), mMetricsIntervalMs);
+        }
     }
 
     /**
-     * stop the muxer, disconnect RTMP connection.
+     * stop the muxer, disconnect RTMP connections.
      */
     public void stop() {
         started = false;
-        mFlvTagCache.clear();
-        if (worker != null) {
-            worker.interrupt();
-            try {
-                worker.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                worker.interrupt();
-            }
-            worker = null;
+        mHandler.stopMetricsPolling();
+        discardStandby();
+        resetBandwidthProbe(false);
+        final SrsRtmpDestination[] destinations = mDestinations;
+        mDestinations = new SrsRtmpDestination[0];
+        for (SrsRtmpDestination destination : destinations) {
+            destination.stop();
+        }
+        synchronized (mGopCacheLock) {
+            mGopCache.clear();
         }
         flv.reset();
         needToFindKeyFrame = true;
@@ -200,7 +538,57 @@ public class SrsFlvMuxer {
         new Thread(new Runnable() {
             @Override
             public void run() {
-                disconnect();
+                for (SrsRtmpDestination destination : destinations) {
+                    destination.disconnect();
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * lets the primary url probe the bandwidth on its first connect, if enabled.
+     */
+    private void startBandwidthProbe(SrsRtmpDestination[] destinations) {
+        boolean probing = mBandwidthProbeMs > 0 && destinations.length > 0;
+        resetBandwidthProbe(probing);
+        if (probing) {
+            destinations[0].probeBandwidthMs = mBandwidthProbeMs;
+        }
+    }
+
+    /**
+     * @return the standby destinations if connected to the urls, in the same order, or null
+     * after discarding them
+     */
+    private SrsRtmpDestination[] takeStandby(String[] rtmpUrls) {
+        SrsRtmpDestination[] destinations = mStandbyDestinations;
+        boolean matching = destinations.length == rtmpUrls.length;
+        for (int i = 0; matching && i < rtmpUrls.length; i++) {
+            matching = destinations[i].url.equals(rtmpUrls[i]);
+        }
+        if (!matching) {
+            discardStandby();
+            return null;
+        }
+        mStandbyDestinations = new SrsRtmpDestination[0];
+        return destinations;
+    }
+
+    private void discardStandby() {
+        final SrsRtmpDestination[] destinations = mStandbyDestinations;
+        if (destinations.length == 0) {
+            return;
+        }
+        mStandbyDestinations = new SrsRtmpDestination[0];
+        for (SrsRtmpDestination destination : destinations) {
+            destination.stop();
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (SrsRtmpDestination destination : destinations) {
+                    destination.disconnect();
+                }
             }
         }).start();
     }
@@ -397,6 +785,413 @@ public class SrsFlvMuxer {
         public boolean match = false;
     }
 
+    private void releaseFlvTag(SrsFlvFrame frame) {
+        if (frame.isVideo()) {
+            mVideoAllocator.release(frame.flvTag);
+        } else {
+            mAudioAllocator.release(frame.flvTag);
+        }
+    }
+
+    /**
+     * the connection to one of the urls, with its own send queue and worker thread. Given
+     * several ingest urls, it publishes to the first that accepts the stream and fails over to
+     * the next ones when the connection is lost.
+     */
+    private class SrsRtmpDestination {
+        // The ingest urls in order of priority, more than one for failover
+        private final String[] urls;
+        // The url published to, or tried last
+        private volatile String url;
+        private int urlIndex = 0;
+        private volatile DefaultRtmpPublisher publisher;
+        private final SrsSendQueue sendQueue;
+        private final Object txFrameLock = new Object();
+        // Tags handed to the publisher, released once it has sent or dropped them
+        private final ConcurrentLinkedQueue<SrsAllocator.Allocation> videoTagsInFlight = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<SrsAllocator.Allocation> audioTagsInFlight = new ConcurrentLinkedQueue<>();
+        // Set while published, no frames are queued otherwise
+        private volatile boolean online = false;
+        private volatile boolean stopped = false;
+        // Cleared while preconnected, the connection waits before publishing
+        private volatile boolean publishRequested = false;
+        private final Object publishRequestLock = new Object();
+        private SrsFlvFrame videoSequenceHeader;
+        private SrsFlvFrame audioSequenceHeader;
+        // Timestamps restart from 0 on each publish
+        private final SrsTimestampRebaser timestamps = new SrsTimestampRebaser();
+        // Set on the primary url until its first connect, when it probes the bandwidth
+        private int probeBandwidthMs = 0;
+        private Thread worker;
+
+        SrsRtmpDestination(String... urls) {
+            this.urls = urls.clone();
+            url = urls[0];
+            publisher = newPublisher();
+            sendQueue = new SrsSendQueue(mSendLatencyBudget, new SrsSendQueue.OnFrameDroppedListener() {
+                @Override
+                public void onFrameDropped(SrsSendQueue.Frame frame) {
+                    discardFlvTag((SrsFlvFrame) frame);
+                }
+            });
+            sendQueue.setDropPolicies(mDropPolicies);
+        }
+
+        private DefaultRtmpPublisher newPublisher() {
+            DefaultRtmpPublisher publisher = new DefaultRtmpPublisher(mHandler, mEventLoop);
+            publisher.setVideoResolution(mVideoWidth, mVideoHeight);
+            publisher.setAggregation(mAggregateMaxDelayMs, mAggregateMaxVideoSize);
+            publisher.setFlushPolicy(mFlushPolicy);
+            publisher.setTcpNoDelay(mTcpNoDelay);
+            publisher.setPipelinedPublish(mPipelinedPublish);
+            publisher.setStallPolicies(mStallPolicies);
+            publisher.setOnSendStalledListener(new RtmpPublisher.OnSendStalledListener() {
+                @Override
+                public void onSendStalled(RtmpStallPolicy policy, long stalledMs) {
+                    if (policy.getAction() == RtmpStallPolicy.Action.LOWER_BITRATE && isPrimary()) {
+                        mSendStalled.set(true);
+                    }
+                }
+            });
+            publisher.setOnContentReleasedListener(new RtmpPublisher.OnContentReleasedListener() {
+                @Override
+                public void onContentReleased(byte[] data, boolean video) {
+                    if (video) {
+                        releaseTag(videoTagsInFlight, mVideoAllocator, data);
+                    } else {
+                        releaseTag(audioTagsInFlight, mAudioAllocator, data);
+                    }
+                    // A video tag slot may have been freed
+                    synchronized (txFrameLock) {
+                        txFrameLock.notifyAll();
+                    }
+                }
+            });
+            return publisher;
+        }
+
+        private boolean isPrimary() {
+            SrsRtmpDestination[] destinations = mDestinations;
+            return destinations.length > 0 && destinations[0] == this;
+        }
+
+        long getSentBytes() {
+            return publisher.getTxHeaderBytes() + publisher.getTxPayloadBytes();
+        }
+
+        /**
+         * the time to deliver the bytes not yet acknowledged by the server, 0 while unknown
+         */
+        int getInFlightDelay() {
+            double rate = publisher.getDeliveryRate();
+            long inFlight = publisher.getInFlightBytes();
+            if (rate <= 0 || inFlight <= 0) {
+                return 0;
+            }
+            return (int) Math.min(inFlight * 8 * 1000 / rate, Integer.MAX_VALUE);
+        }
+
+        /**
+         * queues the frame, which holds a reference of the tag until it is sent or dropped,
+         * to be called with the GOP cache lock held.
+         */
+        void add(SrsFlvFrame frame) {
+            if (online) {
+                enqueue(frame);
+            }
+        }
+
+        private void enqueue(SrsFlvFrame frame) {
+            frame.flvTag.retain();
+            if (frame.isVideo()) {
+                publisher.getVideoFrameCacheNumber().incrementAndGet();
+            }
+            // May drop video frames, this one included, when over the latency budget
+            sendQueue.add(frame);
+            synchronized (txFrameLock) {
+                txFrameLock.notifyAll();
+            }
+        }
+
+        void start() {
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int attempt = 0;
+                    int first = 0;
+                    while (!stopped) {
+                        boolean published = connect(first);
+                        if (published) {
+                            attempt = 0;
+                            resume();
+                            sendLoop();
+                        }
+                        online = false;
+                        discardQueued();
+                        if (stopped) {
+                            break;
+                        }
+                        if (published && urls.length > 1) {
+                            // Fail over to the next url at once, the lost connection is closed meanwhile
+                            if (DEBUG) Log.i(TAG, String.format("worker: %s lost, failing over", url));
+                            closeInBackground(publisher);
+                            first = (urlIndex + 1) % urls.length;
+                            continue;
+                        }
+                        first = 0;
+                        // A standby connection is kept up regardless
+                        if (!mAutoReconnect && publishRequested) {
+                            break;
+                        }
+                        closePublisher(publisher);
+                        // Full jitter on the upper half, so that many publishers do not come back at once
+                        long delay = Math.min((long) RECONNECT_MAX_DELAY_MS, (long) RECONNECT_MIN_DELAY_MS << Math.min(attempt, 16));
+                        delay = delay / 2 + (long) (Math.random() * (delay / 2));
+                        attempt++;
+                        if (DEBUG) Log.i(TAG, String.format("worker: reconnect to %s in %dms", url, delay));
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                        publisher.getMetrics().onReconnect();
+                    }
+                    online = false;
+                    discardQueued();
+                }
+            });
+            worker.start();
+        }
+
+        /**
+         * lets the connection publish, at once if already connected.
+         */
+        void requestPublish() {
+            synchronized (publishRequestLock) {
+                publishRequested = true;
+                publishRequestLock.notifyAll();
+            }
+        }
+
+        /**
+         * parks the connection until publishing is requested.
+         *
+         * @return false if stopped or disconnected in the meantime
+         */
+        private boolean awaitPublishRequest() {
+            synchronized (publishRequestLock) {
+                while (!publishRequested) {
+                    if (stopped || publisher.isConnectionLost()) {
+                        return false;
+                    }
+                    try {
+                        // The connection may be lost while waiting
+                        publishRequestLock.wait(500);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+            }
+            return !stopped;
+        }
+
+        void stop() {
+            stopped = true;
+            if (worker != null) {
+                worker.interrupt();
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    // The worker is interrupted already, leave it to end on its own
+                    Thread.currentThread().interrupt();
+                }
+                worker = null;
+            }
+            discardQueued();
+        }
+
+        void disconnect() {
+            closePublisher(publisher);
+            videoSequenceHeader = null;
+            audioSequenceHeader = null;
+            if (DEBUG) Log.i(TAG, String.format("worker: disconnect %s ok.", url));
+        }
+
+        private boolean connect(int first) {
+            boolean connected = false;
+            if (urls.length > 1) {
+                connected = race(first);
+            } else {
+                if (DEBUG)
+                    Log.i(TAG, String.format("worker: connecting to RTMP server by url=%s", url));
+                boolean handshaken = publisher.connect(url);
+                if (probeBandwidthMs > 0) {
+                    double bandwidth = handshaken ? publisher.probeBandwidth(probeBandwidthMs) : -1;
+                    probeBandwidthMs = 0;
+                    if (DEBUG) Log.i(TAG, String.format("worker: probed %.0fbps to %s", bandwidth, url));
+                    onBandwidthProbed(bandwidth);
+                }
+                if (handshaken && awaitPublishRequest()) {
+                    connected = publisher.publish("live");
+                }
+            }
+            videoSequenceHeader = null;
+            audioSequenceHeader = null;
+            return connected;
+        }
+
+        /**
+         * publishes to the first ingest url to accept the stream, trying them from the specified
+         * one, and switches to its publisher.
+         */
+        private boolean race(int first) {
+            if (DEBUG) Log.i(TAG, String.format("worker: racing ingest urls from %s", urls[first]));
+            RtmpIngestRace<DefaultRtmpPublisher> race = new RtmpIngestRace<>(urls, FAILOVER_STAGGER_MS,
+                    new RtmpIngestRace.PublisherFactory<DefaultRtmpPublisher>() {
+                        @Override
+                        public DefaultRtmpPublisher newPublisher(String url) {
+                            return SrsRtmpDestination.this.newPublisher();
+                        }
+                    });
+            int winner = race.run(first, "live");
+            if (winner < 0 || stopped) {
+                if (winner >= 0) {
+                    closePublisher(race.getWinner());
+                }
+                return false;
+            }
+            // Nothing is queued while offline, the counters of the previous publisher are not carried over
+            urlIndex = winner;
+            url = urls[winner];
+            publisher = race.getWinner();
+            if (DEBUG) Log.i(TAG, String.format("worker: publishing to %s", url));
+            if (isPrimary() && mMetricsIntervalMs > 0) {
+                mHandler.startMetricsPolling(publisher.getMetrics(), mMetricsIntervalMs);
+            }
+            return true;
+        }
+
+        private void closePublisher(DefaultRtmpPublisher publisher) {
+            // A lost publisher may be closed by a background thread while the destination stops
+            synchronized (publisher) {
+                try {
+                    publisher.close();
+                } catch (IllegalStateException e) {
+                    // Ignore illegal state.
+                }
+            }
+        }
+
+        private void closeInBackground(final DefaultRtmpPublisher publisher) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    closePublisher(publisher);
+                }
+            }).start();
+        }
+
+        /**
+         * queues the sequence headers and the current GOP, then the frames as they come.
+         */
+        private void resume() {
+            synchronized (mGopCacheLock) {
+                timestamps.reset();
+                for (SrsSendQueue.Frame frame : mGopCache.getFrames()) {
+                    enqueue((SrsFlvFrame) frame);
+                }
+                online = true;
+            }
+        }
+
+        private void sendLoop() {
+            while (!stopped && !publisher.isConnectionLost()) {
+                // Bytes buffered in the socket take their share of the budget, up to half of it
+                int budget = mSendLatencyBudget;
+                sendQueue.setLatencyBudget(budget - Math.min(getInFlightDelay(), budget / 2));
+                while (true) {
+                    boolean videoAllowed = videoTagsInFlight.size() < MAX_VIDEO_TAGS_IN_FLIGHT;
+                    SrsFlvFrame frame = (SrsFlvFrame) sendQueue.poll(videoAllowed);
+                    if (frame == null) {
+                        break;
+                    }
+                    if (frame.isSequenceHeader()) {
+                        if (frame.isVideo()) {
+                            videoSequenceHeader = frame;
+                            sendFlvTag(videoSequenceHeader);
+                        } else if (frame.isAudio()) {
+                            audioSequenceHeader = frame;
+                            sendFlvTag(audioSequenceHeader);
+                        }
+                    } else {
+                        if (frame.isVideo() && videoSequenceHeader != null) {
+                            sendFlvTag(frame);
+                        } else if (frame.isAudio() && audioSequenceHeader != null) {
+                            sendFlvTag(frame);
+                        } else {
+                            discardFlvTag(frame);
+                        }
+                    }
+                }
+                // Waiting for next frame
+                synchronized (txFrameLock) {
+                    try {
+                        // isEmpty() may take some time, so we set timeout to detect next frame
+                        txFrameLock.wait(500);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void sendFlvTag(SrsFlvFrame frame) {
+            int dts = timestamps.rebase(frame);
+            if (frame.isVideo()) {
+                if (frame.isKeyFrame()) {
+                    if (DEBUG) Log.i(TAG, String.format("worker: send frame type=%d, dts=%d, size=%dB",
+                            frame.type, frame.dts, frame.flvTag.array().length));
+                }
+                videoTagsInFlight.add(frame.flvTag);
+                publisher.publishVideoData(frame.flvTag.array(), frame.flvTag.size(), dts);
+            } else if (frame.isAudio()) {
+                audioTagsInFlight.add(frame.flvTag);
+                publisher.publishAudioData(frame.flvTag.array(), frame.flvTag.size(), dts);
+            }
+        }
+
+        private void discardFlvTag(SrsFlvFrame frame) {
+            if (frame.isVideo()) {
+                mVideoAllocator.release(frame.flvTag);
+                publisher.getVideoFrameCacheNumber().decrementAndGet();
+                publisher.getMetrics().onVideoDropped(1);
+            } else {
+                mAudioAllocator.release(frame.flvTag);
+                publisher.getMetrics().onAudioDropped(1);
+            }
+        }
+
+        private void discardQueued() {
+            SrsSendQueue.Frame frame;
+            while ((frame = sendQueue.poll(true)) != null) {
+                discardFlvTag((SrsFlvFrame) frame);
+            }
+        }
+
+        private void releaseTag(ConcurrentLinkedQueue<SrsAllocator.Allocation> inFlight, SrsAllocator allocator, byte[] data) {
+            // Tags are released in publishing order, so the match is almost always the head
+            Iterator<SrsAllocator.Allocation> it = inFlight.iterator();
+            while (it.hasNext()) {
+                SrsAllocator.Allocation tag = it.next();
+                if (tag.array() == data) {
+                    it.remove();
+                    allocator.release(tag);
+                    return;
+                }
+            }
+        }
+    }
+
     /**
      * the demuxed tag frame.
      */
@@ -408,9 +1203,11 @@ public class SrsFlvMuxer {
     /**
      * the muxed flv frame.
      */
-    private class SrsFlvFrame {
+    private class SrsFlvFrame implements SrsSendQueue.Frame {
         // the tag bytes.
         public SrsAllocator.Allocation flvTag;
+        // the nal_ref_idc of the h.264 nalu, 0 if no other frame references it.
+        public int nal_ref_idc;
         // the codec type for audio/aac and video/avc for instance.
         public int avc_aac_type;
         // the frame type, keyframe or not.
@@ -420,21 +1217,40 @@ public class SrsFlvMuxer {
         // the dts in ms, tbn is 1000.
         public int dts;
 
+        @Override
         public boolean isKeyFrame() {
             return isVideo() && frame_type == SrsCodecVideoAVCFrame.KeyFrame;
         }
 
+        @Override
         public boolean isSequenceHeader() {
             return avc_aac_type == 0;
         }
 
+        @Override
         public boolean isVideo() {
             return type == SrsCodecFlvTag.Video;
         }
 
+        @Override
         public boolean isAudio() {
             return type == SrsCodecFlvTag.Audio;
         }
+
+        @Override
+        public boolean isReference() {
+            return nal_ref_idc != 0;
+        }
+
+        @Override
+        public int getDts() {
+            return dts;
+        }
+
+        @Override
+        public int getSize() {
+            return flvTag.size();
+        }
     }
 
     /**
@@ -794,7 +1610,7 @@ public class SrsFlvMuxer {
             audio_tag.put(audio_header, 0);
             audio_tag.put(aac_packet_type, 1);
 
-            writeRtmpPacket(SrsCodecFlvTag.Audio, pts, 0, aac_packet_type, audio_tag);
+            writeRtmpPacket(SrsCodecFlvTag.Audio, pts, 0, aac_packet_type, 3, audio_tag);
         }
 
         private void writeAdtsHeader(byte[] frame, int offset) {
@@ -840,6 +1656,7 @@ public class SrsFlvMuxer {
             int type = SrsCodecVideoAVCFrame.InterFrame;
             SrsFlvFrameBytes frame = avc.demuxAnnexB(bb, bi, true);
             int nal_unit_type = frame.data.get(0) & 0x1f;
+            int nal_ref_idc = (frame.data.get(0) >> 5) & 0x03;
             if (nal_unit_type == SrsAvcNaluType.IDR) {
                 type = SrsCodecVideoAVCFrame.KeyFrame;
             } else if (nal_unit_type == SrsAvcNaluType.SPS || nal_unit_type == SrsAvcNaluType.PPS) {
@@ -873,7 +1690,7 @@ public class SrsFlvMuxer {
             iPbs.add(avc.muxNaluHeader(frame));
             iPbs.add(frame);
 
-            writeH264IpbFrame(iPbs, type, pts, pts);
+            writeH264IpbFrame(iPbs, type, nal_ref_idc, pts, pts);
             iPbs.clear();
         }
 
@@ -900,7 +1717,7 @@ public class SrsFlvMuxer {
             video_tag = avc.muxFlvTag(frames, frame_type, avc_packet_type, dts, pts);
 
             // the timestamp in rtmp message header is dts.
-            writeRtmpPacket(SrsCodecFlvTag.Video, dts, frame_type, avc_packet_type, video_tag);
+            writeRtmpPacket(SrsCodecFlvTag.Video, dts, frame_type, avc_packet_type, 3, video_tag);
 
             // reset sps and pps.
             h264_sps_changed = false;
@@ -910,7 +1727,7 @@ public class SrsFlvMuxer {
                     h264_sps.array().length, h264_pps.array().length));
         }
 
-        private void writeH264IpbFrame(ArrayList<SrsFlvFrameBytes> frames, int type, int dts, int pts) {
+        private void writeH264IpbFrame(ArrayList<SrsFlvFrameBytes> frames, int type, int nal_ref_idc, int dts, int pts) {
             // when sps or pps not sent, ignore the packet.
             // @see https://github.com/simple-rtmp-server/srs/issues/203
             if (!h264_sps_pps_sent) {
@@ -920,22 +1737,25 @@ public class SrsFlvMuxer {
             video_tag = avc.muxFlvTag(frames, type, SrsCodecVideoAVCType.NALU, dts, pts);
 
             // the timestamp in rtmp message header is dts.
-            writeRtmpPacket(SrsCodecFlvTag.Video, dts, type, SrsCodecVideoAVCType.NALU, video_tag);
+            writeRtmpPacket(SrsCodecFlvTag.Video, dts, type, SrsCodecVideoAVCType.NALU, nal_ref_idc, video_tag);
         }
 
-        private void writeRtmpPacket(int type, int dts, int frame_type, int avc_aac_type, SrsAllocator.Allocation tag) {
+        private void writeRtmpPacket(int type, int dts, int frame_type, int avc_aac_type, int nal_ref_idc, SrsAllocator.Allocation tag) {
             SrsFlvFrame frame = new SrsFlvFrame();
             frame.flvTag = tag;
             frame.type = type;
             frame.dts = dts;
             frame.frame_type = frame_type;
             frame.avc_aac_type = avc_aac_type;
+            frame.nal_ref_idc = nal_ref_idc;
 
             if (frame.isVideo()) {
                 if (needToFindKeyFrame) {
                     if (frame.isKeyFrame()) {
                         needToFindKeyFrame = false;
                         flvTagCacheAdd(frame);
+                    } else {
+                        mVideoAllocator.release(tag);
                     }
                 } else {
                     flvTagCacheAdd(frame);
@@ -946,14 +1766,20 @@ public class SrsFlvMuxer {
         }
 
         private void flvTagCacheAdd(SrsFlvFrame frame) {
-            if (started) {
-                mFlvTagCache.add(frame);
-                if (frame.isVideo()) {
-                    getVideoFrameCacheNumber().incrementAndGet();
+            // The tag is shared by all urls and the GOP cache, each holding a reference of it
+            synchronized (mGopCacheLock) {
+                if (started) {
+                    mGopCache.add(frame);
+                    for (SrsRtmpDestination destination : mDestinations) {
+                        destination.add(frame);
+                    }
                 }
             }
-            synchronized (txFrameLock) {
-                txFrameLock.notifyAll();
+            // Drop the muxer reference, the tag is recycled once no url holds it
+            if (frame.isVideo()) {
+                mVideoAllocator.release(frame.flvTag);
+            } else {
+                mAudioAllocator.release(frame.flvTag);
             }
         }
     }
@@ -0,0 +1,117 @@
+package net.ossrs.yasea;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The latest sequence headers and the frames since the last IDR, replayed on each publish so
+ * that a new or resumed connection starts with a picture it can decode.
+ * <p>
+ * A GOP larger than the byte limit is not cached, the next IDR starts the cache again. Not
+ * thread safe.
+ */
+public class SrsGopCache {
+
+    /**
+     * Keeps the buffers of the cached frames alive, which may be shared with the send queues.
+     */
+    public interface FrameHolder {
+        void retain(SrsSendQueue.Frame frame);
+
+        void release(SrsSendQueue.Frame frame);
+    }
+
+    private final int maxBytes;
+    private final FrameHolder holder;
+    private SrsSendQueue.Frame videoSequenceHeader;
+    private SrsSendQueue.Frame audioSequenceHeader;
+    private final ArrayList<SrsSendQueue.Frame> frames = new ArrayList<>();
+    private int bytes;
+
+    /**
+     * @param maxBytes the largest GOP cached, in bytes
+     */
+    public SrsGopCache(int maxBytes, FrameHolder holder) {
+        this.maxBytes = maxBytes;
+        this.holder = holder;
+    }
+
+    /**
+     * keeps the frame if it is a sequence header or belongs to the GOP of the last IDR.
+     */
+    public void add(SrsSendQueue.Frame frame) {
+        if (frame.isSequenceHeader()) {
+            SrsSendQueue.Frame previous = frame.isVideo() ? videoSequenceHeader : audioSequenceHeader;
+            if (previous != null) {
+                holder.release(previous);
+            }
+            holder.retain(frame);
+            if (frame.isVideo()) {
+                videoSequenceHeader = frame;
+            } else {
+                audioSequenceHeader = frame;
+            }
+            return;
+        }
+
+        if (frame.isKeyFrame()) {
+            clearFrames();
+        } else if (frames.isEmpty()) {
+            // Waiting for an IDR
+            return;
+        }
+        if (bytes + frame.getSize() > maxBytes) {
+            clearFrames();
+            return;
+        }
+        holder.retain(frame);
+        frames.add(frame);
+        bytes += frame.getSize();
+    }
+
+    /**
+     * @return the frames to replay in order, the audio then video sequence headers followed by
+     * the current GOP
+     */
+    public List<SrsSendQueue.Frame> getFrames() {
+        ArrayList<SrsSendQueue.Frame> replay = new ArrayList<>(frames.size() + 2);
+        if (audioSequenceHeader != null) {
+            replay.add(audioSequenceHeader);
+        }
+        if (videoSequenceHeader != null) {
+            replay.add(videoSequenceHeader);
+        }
+        replay.addAll(frames);
+        return replay;
+    }
+
+    /**
+     * @return the size of the cached GOP, sequence headers excluded
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * releases all frames, the sequence headers included.
+     */
+    public void clear() {
+        clearFrames();
+        if (videoSequenceHeader != null) {
+            holder.release(videoSequenceHeader);
+            videoSequenceHeader = null;
+        }
+        if (audioSequenceHeader != null) {
+            holder.release(audioSequenceHeader);
+            audioSequenceHeader = null;
+        }
+    }
+
+    private void clearFrames() {
+        for (SrsSendQueue.Frame frame : frames) {
+            holder.release(frame);
+        }
+        frames.clear();
+        bytes = 0;
+    }
+}
@@ -124,6 +124,16 @@ public class SrsLiveConfig {
      */
     public static final int GOP = 10;
 
+    /**
+     * 发送队列延迟预算，排队帧跨度超过1.5秒时按丢帧策略丢弃视频帧，音频和序列头不丢
+     */
+    public static final int SEND_LATENCY_BUDGET = 1500;
+
+    /**
+     * 带宽探测时长，推流前最多用500毫秒测量上行带宽，据此选择起始码率、分辨率和帧率
+     */
+    public static final int BANDWIDTH_PROBE_DURATION = 500;
+
     /**
      * 音频采样率，44.1kHz
      */
@@ -31,6 +31,10 @@ public class SrsPublisher {
     private SrsFlvMuxer mFlvMuxer;
     private SrsMp4Muxer mMp4Muxer;
     private SrsEncoder mEncoder;
+    private boolean mBandwidthProbe = false;
+    // Guards the encoder settings against a probe result coming once encoding started
+    private final Object mBandwidthProbeLock = new Object();
+    private boolean mEncodeStarted = false;
 
     public SrsPublisher(SrsCameraGLSurfaceView view) {
         mCameraView = view;
@@ -217,14 +221,84 @@ public class SrsPublisher {
         mEncoder.stop();
     }
 
-    public void startPublish(String rtmpUrl) {
+    /**
+     * connects to the urls before startPublish with the same urls, which then only publishes
+     */
+    public void preconnect(String... rtmpUrls) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setVideoResolution(mEncoder.getOutputWidth(), mEncoder.getOutputHeight());
+            mFlvMuxer.preconnect(rtmpUrls);
+        }
+    }
+
+    public void startPublish(String... rtmpUrls) {
+        if (mFlvMuxer != null) {
+            // Set first, a preconnected url publishes the metadata at once
+            mFlvMuxer.setVideoResolution(mEncoder.getOutputWidth(), mEncoder.getOutputHeight());
+            mFlvMuxer.start(rtmpUrls);
+            if (mBandwidthProbe) {
+                // Already done if preconnected, the encoder starts at the configured mode if it is late
+                mFlvMuxer.awaitBandwidthProbe(SrsLiveConfig.BANDWIDTH_PROBE_DURATION);
+            }
+            synchronized (mBandwidthProbeLock) {
+                mEncodeStarted = true;
+            }
+            startEncode();
+        }
+    }
+
+    /**
+     * publishes to the first of the ingest urls to accept the stream, failing over to the
+     * next ones when the connection is lost, see {@link SrsFlvMuxer#startFailover}
+     */
+    public void startPublishFailover(String... ingestUrls) {
         if (mFlvMuxer != null) {
-            mFlvMuxer.start(rtmpUrl);
             mFlvMuxer.setVideoResolution(mEncoder.getOutputWidth(), mEncoder.getOutputHeight());
+            mFlvMuxer.startFailover(ingestUrls);
+            synchronized (mBandwidthProbeLock) {
+                mEncodeStarted = true;
+            }
             startEncode();
         }
     }
 
+    public void setAutoReconnect(boolean enabled) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setAutoReconnect(enabled);
+        }
+    }
+
+    public void setAggregation(int maxDelayMs, int maxVideoSize) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setAggregation(maxDelayMs, maxVideoSize);
+        }
+    }
+
+    public void setPipelinedPublish(boolean enabled) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setPipelinedPublish(enabled);
+        }
+    }
+
+    /**
+     * sets whether the uplink is measured for up to 500ms between connect and publish, to start
+     * at the bitrate, resolution and fps it can carry, see {@link SrsEncoder#applyProbedBandwidth}.
+     * Preconnecting probes in advance, otherwise startPublish waits for the probe for up to
+     * 500ms, and starts at the configured mode if the connection is not up by then.
+     */
+    public void setBandwidthProbe(boolean enabled) {
+        mBandwidthProbe = enabled;
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setBandwidthProbe(enabled ? SrsLiveConfig.BANDWIDTH_PROBE_DURATION : 0);
+        }
+    }
+
+    public void setMetricsInterval(int intervalMs) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setMetricsInterval(intervalMs);
+        }
+    }
+
     public void resumePublish() {
         if (mFlvMuxer != null) {
             mEncoder.resume();
@@ -243,6 +317,9 @@ public class SrsPublisher {
         if (mFlvMuxer != null) {
             stopEncode();
             mFlvMuxer.stop();
+            synchronized (mBandwidthProbeLock) {
+                mEncodeStarted = false;
+            }
         }
     }
 
@@ -320,6 +397,18 @@ public class SrsPublisher {
         mEncoder.setVideoSmoothMode();
     }
 
+    public void enableAdaptiveBitrate(int minBitrate, int maxBitrate) {
+        mEncoder.enableAdaptiveBitrate(minBitrate, maxBitrate);
+    }
+
+    public void disableAdaptiveBitrate() {
+        mEncoder.disableAdaptiveBitrate();
+    }
+
+    public int getVideoBitrate() {
+        return mEncoder.getVideoBitrate();
+    }
+
     public void setSendVideoOnly(boolean flag) {
         if (mic != null) {
             if (flag) {
@@ -353,6 +442,20 @@ public class SrsPublisher {
 
     public void setRtmpHandler(RtmpHandler handler) {
         mFlvMuxer = new SrsFlvMuxer(handler);
+        mFlvMuxer.setBandwidthProbe(mBandwidthProbe ? SrsLiveConfig.BANDWIDTH_PROBE_DURATION : 0);
+        mFlvMuxer.setOnBandwidthProbedListener(new SrsFlvMuxer.OnBandwidthProbedListener() {
+            @Override
+            public void onBandwidthProbed(double bandwidth) {
+                synchronized (mBandwidthProbeLock) {
+                    if (mEncodeStarted || mEncoder == null) {
+                        return;
+                    }
+                    mEncoder.applyProbedBandwidth(bandwidth);
+                    // Before the publish, so that the metadata has the probed resolution
+                    mFlvMuxer.setVideoResolution(mEncoder.getOutputWidth(), mEncoder.getOutputHeight());
+                }
+            }
+        });
         if (mEncoder != null) {
             mEncoder.setFlvMuxer(mFlvMuxer);
         }
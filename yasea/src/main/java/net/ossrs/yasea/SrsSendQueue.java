@@ -0,0 +1,272 @@
+package net.ossrs.yasea;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Send queue of the flv muxer, bounded by a latency budget instead of a frame count.
+ * <p>
+ * When the queued frames span more than the budget, the drop policies are applied in order
+ * until the queue fits again. Audio frames and sequence headers are never dropped.
+ */
+public class SrsSendQueue {
+
+    /**
+     * A queued flv frame.
+     */
+    public interface Frame {
+        boolean isVideo();
+
+        boolean isAudio();
+
+        boolean isKeyFrame();
+
+        boolean isSequenceHeader();
+
+        /**
+         * @return false if no other frame references this one, i.e. nal_ref_idc is 0
+         */
+        boolean isReference();
+
+        int getDts();
+
+        int getSize();
+    }
+
+    /**
+     * Chooses the video frames dropped when the queue exceeds its latency budget.
+     */
+    public interface DropPolicy {
+
+        /**
+         * @return the name used to report the metrics of this policy
+         */
+        String getName();
+
+        /**
+         * @param frames the queued frames, oldest first
+         * @return the index of the video frame to drop, or -1 if this policy has nothing to drop
+         */
+        int selectFrame(List<Frame> frames);
+
+        /**
+         * @return true if the frames following a dropped one in its GOP can no longer be decoded,
+         * so that they are dropped as well, queued or not yet arrived, up to the next keyframe
+         */
+        boolean dropsDependentFrames();
+    }
+
+    public interface OnFrameDroppedListener {
+        void onFrameDropped(Frame frame);
+    }
+
+    /**
+     * Drops the non-reference inter frames first, nothing depends on them.
+     */
+    public static final DropPolicy NON_REFERENCE_FRAMES = new DropPolicy() {
+        @Override
+        public String getName() {
+            return "non-reference";
+        }
+
+        @Override
+        public int selectFrame(List<Frame> frames) {
+            for (int i = 0; i < frames.size(); i++) {
+                Frame frame = frames.get(i);
+                if (frame.isVideo() && !frame.isKeyFrame() && !frame.isSequenceHeader() && !frame.isReference()) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean dropsDependentFrames() {
+            return false;
+        }
+    };
+
+    /**
+     * Drops the rest of the current GOP up to the next IDR, then whole GOPs but the last one.
+     */
+    public static final DropPolicy REST_OF_GOP = new DropPolicy() {
+        @Override
+        public String getName() {
+            return "rest-of-gop";
+        }
+
+        @Override
+        public int selectFrame(List<Frame> frames) {
+            int firstKeyFrame = -1;
+            for (int i = 0; i < frames.size(); i++) {
+                Frame frame = frames.get(i);
+                if (!frame.isVideo() || frame.isSequenceHeader()) {
+                    continue;
+                }
+                if (!frame.isKeyFrame()) {
+                    return i;
+                }
+                if (firstKeyFrame < 0) {
+                    firstKeyFrame = i;
+                } else {
+                    // A later IDR is queued, the older one may go
+                    return firstKeyFrame;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean dropsDependentFrames() {
+            return true;
+        }
+    };
+
+    private final ArrayList<Frame> frames = new ArrayList<>();
+    private final OnFrameDroppedListener listener;
+    private DropPolicy[] policies;
+    private long[] droppedFrames;
+    private long[] droppedBytes;
+    private int latencyBudgetMs;
+    // Set after dropping a frame other frames depend on, until the next keyframe arrives
+    private int skippingPolicy = -1;
+
+    public SrsSendQueue(int latencyBudgetMs, OnFrameDroppedListener listener) {
+        this.latencyBudgetMs = latencyBudgetMs;
+        this.listener = listener;
+        setDropPolicies(NON_REFERENCE_FRAMES, REST_OF_GOP);
+    }
+
+    /**
+     * set the maximum time span of the queued frames, in milliseconds.
+     */
+    public synchronized void setLatencyBudget(int latencyBudgetMs) {
+        this.latencyBudgetMs = latencyBudgetMs;
+        dropWhileOverBudget();
+    }
+
+    /**
+     * set the drop policies, applied in order, which resets their metrics.
+     */
+    public synchronized void setDropPolicies(DropPolicy... policies) {
+        this.policies = policies.clone();
+        droppedFrames = new long[policies.length];
+        droppedBytes = new long[policies.length];
+        skippingPolicy = -1;
+    }
+
+    public synchronized void add(Frame frame) {
+        if (skippingPolicy >= 0 && frame.isVideo() && !frame.isSequenceHeader()) {
+            if (!frame.isKeyFrame()) {
+                drop(frame, skippingPolicy);
+                return;
+            }
+            skippingPolicy = -1;
+        }
+        frames.add(frame);
+        dropWhileOverBudget();
+    }
+
+    /**
+     * @param videoAllowed false to only take audio frames, the queued video frames are skipped
+     * @return the oldest frame, or null if none can be taken
+     */
+    public synchronized Frame poll(boolean videoAllowed) {
+        for (int i = 0; i < frames.size(); i++) {
+            if (videoAllowed || !frames.get(i).isVideo()) {
+                return frames.remove(i);
+            }
+        }
+        return null;
+    }
+
+    public synchronized boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    /**
+     * Discards all frames without notifying the listener.
+     */
+    public synchronized void clear() {
+        frames.clear();
+        skippingPolicy = -1;
+    }
+
+    /**
+     * @return the time span of the queued frames in milliseconds
+     */
+    public synchronized int getLatency() {
+        if (frames.size() < 2) {
+            return 0;
+        }
+        return frames.get(frames.size() - 1).getDts() - frames.get(0).getDts();
+    }
+
+    /**
+     * @return the number of frames dropped by the specified policy
+     */
+    public synchronized long getDroppedFrames(DropPolicy policy) {
+        int index = Arrays.asList(policies).indexOf(policy);
+        return index < 0 ? 0 : droppedFrames[index];
+    }
+
+    /**
+     * @return the number of bytes dropped by the specified policy
+     */
+    public synchronized long getDroppedBytes(DropPolicy policy) {
+        int index = Arrays.asList(policies).indexOf(policy);
+        return index < 0 ? 0 : droppedBytes[index];
+    }
+
+    private void dropWhileOverBudget() {
+        while (getLatency() > latencyBudgetMs && dropOnce()) {
+            // keep dropping
+        }
+    }
+
+    private boolean dropOnce() {
+        for (int p = 0; p < policies.length; p++) {
+            int index = policies[p].selectFrame(frames);
+            if (index < 0) {
+                continue;
+            }
+            Frame selected = frames.get(index);
+            if (!selected.isVideo() || selected.isSequenceHeader()) {
+                // Audio and sequence headers are never dropped, whatever the policy says
+                continue;
+            }
+            frames.remove(index);
+            drop(selected, p);
+            if (policies[p].dropsDependentFrames()) {
+                dropDependentFrames(index, p);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void dropDependentFrames(int from, int policy) {
+        int i = from;
+        while (i < frames.size()) {
+            Frame frame = frames.get(i);
+            if (frame.isVideo() && !frame.isSequenceHeader()) {
+                if (frame.isKeyFrame()) {
+                    return;
+                }
+                frames.remove(i);
+                drop(frame, policy);
+            } else {
+                i++;
+            }
+        }
+        // The GOP goes on after the queued frames
+        skippingPolicy = policy;
+    }
+
+    private void drop(Frame frame, int policy) {
+        droppedFrames[policy]++;
+        droppedBytes[policy] += frame.getSize();
+        listener.onFrameDropped(frame);
+    }
+}
@@ -0,0 +1,29 @@
+package net.ossrs.yasea;
+
+/**
+ * Timestamps of a connection, restarting from 0 on each publish so that a resumed stream does
+ * not start with the gap since the muxer started. Sequence headers are sent at 0 and do not set
+ * the base, the first frame after them does.
+ */
+public class SrsTimestampRebaser {
+
+    // Dts of the first frame since the last reset, -1 until then
+    private int base = -1;
+
+    /**
+     * makes the next frame other than a sequence header the new time 0.
+     */
+    public void reset() {
+        base = -1;
+    }
+
+    /**
+     * @return the dts of the frame relative to the base, never negative
+     */
+    public int rebase(SrsSendQueue.Frame frame) {
+        if (base < 0 && !frame.isSequenceHeader()) {
+            base = frame.getDts();
+        }
+        return base < 0 ? 0 : Math.max(0, frame.getDts() - base);
+    }
+}
@@ -0,0 +1,214 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SrsBitrateControllerTest {
+
+    private static final int MIN_BITRATE = 200 * 1000;
+    private static final int MAX_BITRATE = 2000 * 1000;
+    // Additive step, a twentieth of the maximum
+    private static final int STEP = MAX_BITRATE / 20;
+    // Well above any bitrate, so that the throughput does not limit the cuts
+    private static final double FAST_LINK = 100 * 1000 * 1000;
+
+    @Test
+    public void cutsMultiplicativelyOnCongestion() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, 1000 * 1000);
+        controller.update(0, 0, 0, FAST_LINK);
+
+        assertEquals(800 * 1000, controller.update(1000, 600, 0, FAST_LINK));
+        // The next cut waits for the previous one to show in the queue
+        assertEquals(800 * 1000, controller.update(2000, 700, 0, FAST_LINK));
+        assertEquals(640 * 1000, controller.update(3000, 800, 0, FAST_LINK));
+    }
+
+    @Test
+    public void cutsDownToMeasuredThroughput() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, 1000 * 1000);
+        controller.update(0, 0, 0, -1);
+
+        // 500 kbps written in the last second
+        int bitrate = controller.update(1000, 600, 500 * 1000 / 8, -1);
+        assertEquals(450 * 1000, bitrate);
+        assertEquals(500 * 1000, controller.getThroughput(), 1);
+    }
+
+    @Test
+    public void keepsBitrateWhileQueueDrains() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, 500 * 1000);
+        controller.update(0, 0, 0, 1000 * 1000);
+        controller.update(1000, 2000, 0, 1000 * 1000);
+        int bitrate = controller.getBitrate();
+
+        // Still above the high threshold, but shrinking with the bitrate below the throughput
+        assertEquals(bitrate, controller.update(4000, 1500, 0, 1000 * 1000));
+        assertEquals(bitrate, controller.update(7000, 1000, 0, 1000 * 1000));
+    }
+
+    @Test
+    public void increasesAdditively() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, 1000 * 1000);
+        controller.update(0, 0, 0, FAST_LINK);
+
+        // Each raise takes two samples below the low threshold
+        assertEquals(1000 * 1000, controller.update(1000, 50, 0, FAST_LINK));
+        assertEquals(1000 * 1000 + STEP, controller.update(2000, 50, 0, FAST_LINK));
+        assertEquals(1000 * 1000 + STEP, controller.update(3000, 50, 0, FAST_LINK));
+        assertEquals(1000 * 1000 + 2 * STEP, controller.update(4000, 50, 0, FAST_LINK));
+    }
+
+    @Test
+    public void keepsBitrateWithinHysteresisBand() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, 1000 * 1000);
+        controller.update(0, 0, 0, FAST_LINK);
+
+        for (int i = 1; i <= 20; i++) {
+            assertEquals(1000 * 1000, controller.update(i * 1000, 100 + i * 15, 0, FAST_LINK));
+        }
+        // A delay in the band breaks the run of low samples
+        assertEquals(1000 * 1000, controller.update(21000, 50, 0, FAST_LINK));
+        assertEquals(1000 * 1000, controller.update(22000, 300, 0, FAST_LINK));
+        assertEquals(1000 * 1000, controller.update(23000, 50, 0, FAST_LINK));
+        assertEquals(1000 * 1000 + STEP, controller.update(24000, 50, 0, FAST_LINK));
+    }
+
+    @Test
+    public void holdsIncreaseAfterCut() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, 1000 * 1000);
+        controller.update(0, 0, 0, FAST_LINK);
+        assertEquals(800 * 1000, controller.update(1000, 600, 0, FAST_LINK));
+
+        for (int i = 2; i <= 5; i++) {
+            assertEquals(800 * 1000, controller.update(i * 1000, 0, 0, FAST_LINK));
+        }
+        // 5s after the cut
+        assertEquals(800 * 1000 + STEP, controller.update(6000, 0, 0, FAST_LINK));
+    }
+
+    @Test
+    public void holdsIncreaseAfterStall() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, 1000 * 1000);
+        controller.update(0, 0, 0, FAST_LINK);
+        assertEquals(800 * 1000, controller.onSendStalled(500));
+        // Counts as a cut of update
+        assertEquals(800 * 1000, controller.onSendStalled(1500));
+        assertEquals(800 * 1000, controller.update(1500, 600, 0, FAST_LINK));
+
+        for (int i = 2; i <= 4; i++) {
+            assertEquals(800 * 1000, controller.update(i * 1000 + 500, 0, 0, FAST_LINK));
+        }
+        // 5s after the stall
+        assertEquals(800 * 1000 + STEP, controller.update(5500, 0, 0, FAST_LINK));
+    }
+
+    @Test
+    public void ignoresSamplesCloserThanOneSecond() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, 1000 * 1000);
+        controller.update(0, 0, 0, FAST_LINK);
+
+        assertEquals(1000 * 1000, controller.update(999, 5000, 0, FAST_LINK));
+        assertEquals(800 * 1000, controller.update(1000, 5000, 0, FAST_LINK));
+    }
+
+    @Test
+    public void clampsToMinimum() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, 1000 * 1000);
+        controller.update(0, 0, 0, 0);
+
+        for (int i = 1; i <= 30; i++) {
+            assertTrue(controller.update(i * 1000, 10000, 0, 0) >= MIN_BITRATE);
+        }
+        assertEquals(MIN_BITRATE, controller.getBitrate());
+        assertEquals(MIN_BITRATE, controller.onSendStalled(100 * 1000));
+    }
+
+    @Test
+    public void clampsToMaximum() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE - STEP / 2);
+        controller.update(0, 0, 0, FAST_LINK);
+
+        for (int i = 1; i <= 30; i++) {
+            assertTrue(controller.update(i * 1000, 0, 0, FAST_LINK) <= MAX_BITRATE);
+        }
+        assertEquals(MAX_BITRATE, controller.getBitrate());
+    }
+
+    @Test
+    public void clampsInitialBitrate() {
+        assertEquals(MIN_BITRATE, new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, 1).getBitrate());
+        assertEquals(MAX_BITRATE, new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, Integer.MAX_VALUE).getBitrate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRange() {
+        new SrsBitrateController(MAX_BITRATE, MIN_BITRATE, MIN_BITRATE);
+    }
+
+    @Test
+    public void convergesToLinkCapacity() {
+        SimulatedLink link = new SimulatedLink(700 * 1000);
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+        link.run(controller, 60);
+
+        // The first cut goes straight down to the measured throughput
+        assertEquals(630 * 1000, link.bitrates[0]);
+        // Then the bitrate oscillates around the link, without letting the backlog grow
+        long sum = 0;
+        for (int i = 10; i < 60; i++) {
+            assertTrue(link.queueDelays[i] < 1000);
+            assertTrue(link.bitrates[i] <= 700 * 1000 + 2 * STEP);
+            sum += link.bitrates[i];
+        }
+        assertEquals(700 * 1000, sum / 50, 700 * 100);
+    }
+
+    @Test
+    public void raisesUpToLinkCapacity() {
+        SimulatedLink link = new SimulatedLink(1500 * 1000);
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, MIN_BITRATE);
+        link.run(controller, 120);
+
+        long sum = 0;
+        for (int i = 60; i < 120; i++) {
+            assertTrue(link.queueDelays[i] < 1000);
+            assertTrue(link.bitrates[i] <= 1500 * 1000 + 2 * STEP);
+            sum += link.bitrates[i];
+        }
+        assertEquals(1500 * 1000, sum / 60, 1500 * 100);
+    }
+
+    /**
+     * A link of fixed capacity behind the send queue, sampled once per second
+     */
+    private static class SimulatedLink {
+
+        private final int capacity;
+        private long queuedBits;
+        private long sentBytes;
+        private int[] bitrates;
+        private int[] queueDelays;
+
+        SimulatedLink(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void run(SrsBitrateController controller, int seconds) {
+            bitrates = new int[seconds];
+            queueDelays = new int[seconds];
+            controller.update(0, 0, 0, -1);
+            for (int i = 0; i < seconds; i++) {
+                int bitrate = controller.getBitrate();
+                queuedBits += bitrate;
+                long sent = Math.min(queuedBits, capacity);
+                queuedBits -= sent;
+                sentBytes += sent / 8;
+                // The time span of the queued frames
+                queueDelays[i] = (int) (queuedBits * 1000 / bitrate);
+                bitrates[i] = controller.update((i + 1) * 1000, queueDelays[i], sentBytes, -1);
+            }
+        }
+    }
+}
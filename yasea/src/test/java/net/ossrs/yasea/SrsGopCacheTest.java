@@ -0,0 +1,165 @@
+package net.ossrs.yasea;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SrsGopCacheTest {
+
+    private static final int MAX_FRAMES = 4;
+
+    // References held by the cache, per frame
+    private final Map<SrsSendQueue.Frame, Integer> held = new IdentityHashMap<>();
+    private SrsGopCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new SrsGopCache(MAX_FRAMES * TestFrame.SIZE, new SrsGopCache.FrameHolder() {
+            @Override
+            public void retain(SrsSendQueue.Frame frame) {
+                held.put(frame, references(frame) + 1);
+            }
+
+            @Override
+            public void release(SrsSendQueue.Frame frame) {
+                assertTrue("Released more than retained", references(frame) > 0);
+                held.put(frame, references(frame) - 1);
+            }
+        });
+    }
+
+    @Test
+    public void replaysSequenceHeadersThenGop() {
+        TestFrame videoHeader = TestFrame.sequenceHeader(0);
+        TestFrame audioHeader = TestFrame.audioSequenceHeader(0);
+        cache.add(videoHeader);
+        cache.add(audioHeader);
+        // Nothing before the first IDR can be decoded
+        cache.add(TestFrame.inter(40, true));
+        cache.add(TestFrame.audio(60));
+        TestFrame key = TestFrame.key(1000);
+        TestFrame audio = TestFrame.audio(1020);
+        TestFrame inter = TestFrame.inter(1040, true);
+        cache.add(key);
+        cache.add(audio);
+        cache.add(inter);
+
+        assertEquals(Arrays.<SrsSendQueue.Frame>asList(audioHeader, videoHeader, key, audio, inter), cache.getFrames());
+        assertEquals(3 * TestFrame.SIZE, cache.getBytes());
+    }
+
+    @Test
+    public void rebasesReplayedGopToZero() {
+        cache.add(TestFrame.audioSequenceHeader(0));
+        cache.add(TestFrame.sequenceHeader(0));
+        cache.add(TestFrame.key(5000));
+        cache.add(TestFrame.audio(5020));
+        cache.add(TestFrame.inter(5040, true));
+
+        SrsTimestampRebaser timestamps = new SrsTimestampRebaser();
+        int[] dts = new int[5];
+        List<SrsSendQueue.Frame> frames = cache.getFrames();
+        for (int i = 0; i < frames.size(); i++) {
+            dts[i] = timestamps.rebase(frames.get(i));
+        }
+        // The headers do not set the base, the IDR does
+        assertEquals(Arrays.toString(new int[]{0, 0, 0, 20, 40}), Arrays.toString(dts));
+        // Live frames go on from the replayed ones
+        assertEquals(80, timestamps.rebase(TestFrame.inter(5080, true)));
+
+        // Each publish starts again from the first frame replayed
+        timestamps.reset();
+        cache.add(TestFrame.key(9000));
+        assertEquals(0, timestamps.rebase(cache.getFrames().get(2)));
+        assertEquals(40, timestamps.rebase(TestFrame.audio(9040)));
+    }
+
+    @Test
+    public void rebaseNeverGoesNegative() {
+        SrsTimestampRebaser timestamps = new SrsTimestampRebaser();
+        assertEquals(0, timestamps.rebase(TestFrame.key(1000)));
+        // Audio queued with a dts slightly behind the video
+        assertEquals(0, timestamps.rebase(TestFrame.audio(990)));
+        assertEquals(10, timestamps.rebase(TestFrame.audio(1010)));
+    }
+
+    @Test
+    public void keyframeReleasesPreviousGop() {
+        TestFrame oldKey = TestFrame.key(0);
+        TestFrame oldInter = TestFrame.inter(40, true);
+        cache.add(oldKey);
+        cache.add(oldInter);
+        TestFrame key = TestFrame.key(2000);
+        cache.add(key);
+
+        assertEquals(0, references(oldKey));
+        assertEquals(0, references(oldInter));
+        assertEquals(1, references(key));
+        assertEquals(Arrays.<SrsSendQueue.Frame>asList(key), cache.getFrames());
+    }
+
+    @Test
+    public void skipsGopOverByteLimit() {
+        TestFrame key = TestFrame.key(0);
+        cache.add(key);
+        for (int i = 1; i < MAX_FRAMES; i++) {
+            cache.add(TestFrame.inter(i * 40, true));
+        }
+        assertEquals(MAX_FRAMES * TestFrame.SIZE, cache.getBytes());
+
+        cache.add(TestFrame.inter(MAX_FRAMES * 40, true));
+
+        // The whole GOP goes, the rest of it waits for the next IDR
+        assertTrue(cache.getFrames().isEmpty());
+        assertEquals(0, cache.getBytes());
+        cache.add(TestFrame.inter(MAX_FRAMES * 40 + 40, true));
+        assertTrue(cache.getFrames().isEmpty());
+        assertHeldNone();
+        TestFrame next = TestFrame.key(2000);
+        cache.add(next);
+        assertEquals(Arrays.<SrsSendQueue.Frame>asList(next), cache.getFrames());
+    }
+
+    @Test
+    public void newSequenceHeaderReplacesPrevious() {
+        TestFrame first = TestFrame.sequenceHeader(0);
+        TestFrame second = TestFrame.sequenceHeader(1000);
+        cache.add(first);
+        cache.add(second);
+
+        assertEquals(0, references(first));
+        assertEquals(1, references(second));
+        assertEquals(Arrays.<SrsSendQueue.Frame>asList(second), cache.getFrames());
+    }
+
+    @Test
+    public void clearReleasesEverything() {
+        cache.add(TestFrame.sequenceHeader(0));
+        cache.add(TestFrame.audioSequenceHeader(0));
+        cache.add(TestFrame.key(0));
+        cache.add(TestFrame.audio(20));
+
+        cache.clear();
+
+        assertTrue(cache.getFrames().isEmpty());
+        assertHeldNone();
+    }
+
+    private int references(SrsSendQueue.Frame frame) {
+        Integer count = held.get(frame);
+        return count == null ? 0 : count;
+    }
+
+    private void assertHeldNone() {
+        for (Map.Entry<SrsSendQueue.Frame, Integer> entry : held.entrySet()) {
+            assertEquals(0, (int) entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package net.ossrs.yasea;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SrsSendQueueTest {
+
+    private static final int BUDGET_MS = 100;
+
+    private final List<SrsSendQueue.Frame> dropped = new ArrayList<>();
+    private SrsSendQueue queue;
+
+    @Before
+    public void setUp() {
+        queue = new SrsSendQueue(BUDGET_MS, new SrsSendQueue.OnFrameDroppedListener() {
+            @Override
+            public void onFrameDropped(SrsSendQueue.Frame frame) {
+                dropped.add(frame);
+            }
+        });
+    }
+
+    @Test
+    public void keepsFramesWithinBudget() {
+        queue.add(TestFrame.key(0));
+        queue.add(TestFrame.inter(40, false));
+        queue.add(TestFrame.inter(80, true));
+
+        assertEquals(80, queue.getLatency());
+        assertTrue(dropped.isEmpty());
+    }
+
+    @Test
+    public void dropsNonReferenceFramesFirst() {
+        TestFrame key = TestFrame.key(0);
+        TestFrame ref = TestFrame.inter(40, true);
+        TestFrame nonRef = TestFrame.inter(80, false);
+        queue.add(key);
+        queue.add(ref);
+        queue.add(nonRef);
+        TestFrame last = TestFrame.inter(120, true);
+        queue.add(last);
+
+        // The non-reference frame goes, the queue still spans the budget so the GOP follows
+        assertSame(nonRef, dropped.get(0));
+        assertEquals(1, queue.getDroppedFrames(SrsSendQueue.NON_REFERENCE_FRAMES));
+        assertEquals(TestFrame.SIZE, queue.getDroppedBytes(SrsSendQueue.NON_REFERENCE_FRAMES));
+        assertEquals(2, queue.getDroppedFrames(SrsSendQueue.REST_OF_GOP));
+        assertSame(key, queue.poll(true));
+        assertNull(queue.poll(true));
+    }
+
+    @Test
+    public void dropsRestOfGopUpToNextKeyframe() {
+        queue.setDropPolicies(SrsSendQueue.REST_OF_GOP);
+        TestFrame key = TestFrame.key(0);
+        TestFrame audio = TestFrame.audio(20);
+        queue.add(key);
+        queue.add(audio);
+        queue.add(TestFrame.inter(40, true));
+        queue.add(TestFrame.inter(80, true));
+        queue.add(TestFrame.inter(120, true));
+
+        // The keyframe is the only one, so the inter frames go with everything depending on them
+        assertEquals(3, queue.getDroppedFrames(SrsSendQueue.REST_OF_GOP));
+        // Frames of the GOP arriving later cannot be decoded either
+        TestFrame late = TestFrame.inter(160, true);
+        queue.add(late);
+        assertSame(late, dropped.get(dropped.size() - 1));
+        assertSame(key, queue.poll(true));
+        assertSame(audio, queue.poll(true));
+        // Until the next keyframe
+        TestFrame next = TestFrame.key(200);
+        queue.add(next);
+        assertSame(next, queue.poll(true));
+        assertNull(queue.poll(true));
+    }
+
+    @Test
+    public void dropsOlderGopOnceAnotherKeyframeIsQueued() {
+        queue.setDropPolicies(SrsSendQueue.REST_OF_GOP);
+        TestFrame old = TestFrame.key(0);
+        TestFrame next = TestFrame.key(150);
+        queue.add(old);
+        queue.add(next);
+
+        assertSame(old, dropped.get(0));
+        assertSame(next, queue.poll(true));
+        // A keyframe followed, nothing is skipped
+        TestFrame inter = TestFrame.inter(190, true);
+        queue.add(inter);
+        assertSame(inter, queue.poll(true));
+    }
+
+    @Test
+    public void neverDropsAudioOrSequenceHeaders() {
+        TestFrame header = TestFrame.sequenceHeader(0);
+        queue.add(header);
+        for (int dts = 0; dts <= 500; dts += 20) {
+            queue.add(TestFrame.audio(dts));
+        }
+
+        assertTrue(dropped.isEmpty());
+        assertEquals(500, queue.getLatency());
+        assertSame(header, queue.poll(true));
+    }
+
+    @Test
+    public void pollSkipsVideoWhenNotAllowed() {
+        TestFrame key = TestFrame.key(0);
+        TestFrame audio = TestFrame.audio(20);
+        queue.add(key);
+        queue.add(audio);
+
+        assertSame(audio, queue.poll(false));
+        assertNull(queue.poll(false));
+        assertSame(key, queue.poll(true));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void lowerBudgetDropsRightAway() {
+        queue.add(TestFrame.key(0));
+        TestFrame nonRef = TestFrame.inter(40, false);
+        queue.add(nonRef);
+        queue.add(TestFrame.inter(80, true));
+        assertTrue(dropped.isEmpty());
+
+        queue.setLatencyBudget(50);
+
+        assertSame(nonRef, dropped.get(0));
+        assertEquals(1, queue.getDroppedFrames(SrsSendQueue.REST_OF_GOP));
+        assertEquals(0, queue.getLatency());
+    }
+
+    @Test
+    public void settingPoliciesResetsMetrics() {
+        queue.add(TestFrame.key(0));
+        queue.add(TestFrame.inter(40, false));
+        queue.add(TestFrame.inter(120, true));
+        assertEquals(1, queue.getDroppedFrames(SrsSendQueue.NON_REFERENCE_FRAMES));
+
+        queue.setDropPolicies(SrsSendQueue.NON_REFERENCE_FRAMES);
+
+        assertEquals(0, queue.getDroppedFrames(SrsSendQueue.NON_REFERENCE_FRAMES));
+        assertEquals(0, queue.getDroppedFrames(SrsSendQueue.REST_OF_GOP));
+    }
+}
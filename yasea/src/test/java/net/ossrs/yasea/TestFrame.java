@@ -0,0 +1,77 @@
+package net.ossrs.yasea;
+
+/**
+ * A frame of the given kind and dts, all of the same size.
+ */
+class TestFrame implements SrsSendQueue.Frame {
+    static final int SIZE = 1000;
+
+    private final boolean video;
+    private final boolean keyFrame;
+    private final boolean sequenceHeader;
+    private final boolean reference;
+    private final int dts;
+
+    TestFrame(boolean video, boolean keyFrame, boolean sequenceHeader, boolean reference, int dts) {
+        this.video = video;
+        this.keyFrame = keyFrame;
+        this.sequenceHeader = sequenceHeader;
+        this.reference = reference;
+        this.dts = dts;
+    }
+
+    static TestFrame key(int dts) {
+        return new TestFrame(true, true, false, true, dts);
+    }
+
+    static TestFrame inter(int dts, boolean reference) {
+        return new TestFrame(true, false, false, reference, dts);
+    }
+
+    static TestFrame sequenceHeader(int dts) {
+        return new TestFrame(true, true, true, true, dts);
+    }
+
+    static TestFrame audio(int dts) {
+        return new TestFrame(false, false, false, true, dts);
+    }
+
+    static TestFrame audioSequenceHeader(int dts) {
+        return new TestFrame(false, false, true, true, dts);
+    }
+
+    @Override
+    public boolean isVideo() {
+        return video;
+    }
+
+    @Override
+    public boolean isAudio() {
+        return !video;
+    }
+
+    @Override
+    public boolean isKeyFrame() {
+        return keyFrame;
+    }
+
+    @Override
+    public boolean isSequenceHeader() {
+        return sequenceHeader;
+    }
+
+    @Override
+    public boolean isReference() {
+        return reference;
+    }
+
+    @Override
+    public int getDts() {
+        return dts;
+    }
+
+    @Override
+    public int getSize() {
+        return SIZE;
+    }
+}